@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -72,6 +74,21 @@ public class Parser {
                         "Only simple binary expresssions of the form A op B are currently supported.");
             }
 
+            if (wx.getOperator().equals("IN") || wx.getOperator().equals("NOT IN")) {
+                if (!(ops.get(0) instanceof ZConstant)
+                        || ((ZConstant) ops.get(0)).getType() != ZConstant.COLUMNNAME
+                        || !(ops.get(1) instanceof ZQuery)) {
+                    throw new simpledb.ParsingException(
+                            "Only expressions of the form field IN (subquery) are currently supported.");
+                }
+                // 不相关子查询只执行一次，结果建成哈希集合做半连接
+                LogicalPlan sublp = parseQueryLogicalPlan(tid, (ZQuery) ops.get(1));
+                OpIterator pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+                lp.addSemiJoin(((ZConstant) ops.get(0)).getValue(), pp,
+                        wx.getOperator().equals("NOT IN"));
+                return;
+            }
+
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
@@ -187,23 +204,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +225,9 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
+        List<Boolean> aggDistinct = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +237,23 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                // Zql 把 COUNT(DISTINCT x) 的参数解析成 "distinct x"
+                boolean distinct = aggField.regionMatches(true, 0, "distinct ", 0, 9);
+                if (distinct)
+                    aggField = aggField.substring(9).trim();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
+                aggDistinct.add(distinct);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,13 +263,17 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), null, aggDistinct.get(i));
         }
+        lp.setDistinct(q.isDistinct());
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -281,9 +302,23 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, null, tId);
+    }
+
+    /**
+     * Plan a query with the LIMIT / OFFSET clause cut from its text.
+     *
+     * @param limit the clause, or null if the query has none
+     */
+    public Query handleQueryStatement(ZQuery s, LimitClause limit, TransactionId tId)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        // 只作用于最外层查询，子查询不受影响
+        if (limit != null)
+            lp.setLimit(limit.limit, limit.offset);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -463,14 +498,66 @@ public class Parser {
         }
     }
 
+    /**
+     * A trailing LIMIT n [OFFSET m] or OFFSET m clause of a query. ZQL cannot
+     * parse it, so it is cut from the text of the statement before parsing and
+     * applied to the logical plan of the outermost query.
+     */
+    public static class LimitClause {
+        private static final Pattern PATTERN = Pattern.compile(
+                "^(.*?)\\s+(?:LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?|OFFSET\\s+(\\d+))\\s*$",
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+        final int limit;
+        final int offset;
+
+        LimitClause(int limit, int offset) {
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        /**
+         * Cut the clause from the first statement of sql.
+         *
+         * @param sql the statement text; the statement without the clause is
+         *            left in it
+         * @return the clause, or null if the first statement has none
+         */
+        static LimitClause strip(StringBuilder sql) throws simpledb.ParsingException {
+            int end = sql.indexOf(";");
+            if (end < 0)
+                end = sql.length();
+            Matcher m = PATTERN.matcher(sql.substring(0, end));
+            if (!m.matches())
+                return null;
+            LimitClause clause;
+            try {
+                if (m.group(4) != null)
+                    clause = new LimitClause(Integer.MAX_VALUE, Integer.parseInt(m.group(4)));
+                else
+                    clause = new LimitClause(Integer.parseInt(m.group(2)),
+                            m.group(3) == null ? 0 : Integer.parseInt(m.group(3)));
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+            }
+            sql.replace(0, end, m.group(1));
+            return clause;
+        }
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        StringBuilder sql = new StringBuilder(s);
+        LimitClause limit = LimitClause.strip(sql);
+        ByteArrayInputStream bis = new ByteArrayInputStream(sql.toString().getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit != null)
+                    lp.setLimit(limit.limit, limit.offset);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,8 +582,18 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // ZQL 不认识 LIMIT / OFFSET，先从语句文本中去掉
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) != -1)
+                text.write(buf, 0, n);
+            StringBuilder sql = new StringBuilder(new String(text.toByteArray(), StandardCharsets.UTF_8));
+            LimitClause limit = LimitClause.strip(sql);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.toString().getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (limit != null && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException("LIMIT and OFFSET are only supported in queries");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -516,7 +613,7 @@ public class Parser {
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
+                        query = handleQueryStatement((ZQuery) s, limit,
                                 curtrans.getId());
                     else {
                         System.out
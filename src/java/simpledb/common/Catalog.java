@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -33,6 +34,16 @@ public class Catalog {
      * */
     private Map<Integer, Table> idTable;
 
+    /**
+     * 表ID和该表上二级索引的映射
+     * */
+    private Map<Integer, List<SecondaryIndex>> tableIndexes;
+
+    /**
+     * 索引文件ID和索引的映射，索引文件不是表，不出现在 tableIdIterator 中
+     * */
+    private Map<Integer, SecondaryIndex> indexFiles;
+
     /*
      * 表类
      * */
@@ -77,6 +88,8 @@ public class Catalog {
         // some code goes here
         nameTable = new HashMap<>();
         idTable = new HashMap<>();
+        tableIndexes = new HashMap<>();
+        indexFiles = new HashMap<>();
     }
 
     /**
@@ -110,6 +123,28 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index to the catalog. The index is maintained on every
+     * subsequent insert and delete on its table, and its B+ tree file can be
+     * read through {@link #getDatabaseFile} like any table file.
+     * @param index the index to add; its table must already be in the catalog
+     */
+    public void addIndex(SecondaryIndex index) {
+        if (!idTable.containsKey(index.getTableId()))
+            throw new NoSuchElementException("table " + index.getTableId() + " not exist");
+        tableIndexes.computeIfAbsent(index.getTableId(), k -> new ArrayList<>()).add(index);
+        indexFiles.put(index.getFile().getId(), index);
+    }
+
+    /**
+     * Returns the secondary indexes defined on the specified table, or an
+     * empty list if there are none.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return tableIndexes.getOrDefault(tableid, Collections.emptyList());
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -129,9 +164,7 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        Table table = this.idTable.getOrDefault(tableid, null);
-        if (table == null) throw new NoSuchElementException("table " + tableid + " not exist");
-        return table.tableFile.getTupleDesc();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -143,7 +176,11 @@ public class Catalog {
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
         Table tb = idTable.getOrDefault(tableid, null);
-        if (tb == null) throw new NoSuchElementException();
+        if (tb == null) {
+            SecondaryIndex index = indexFiles.get(tableid);
+            if (index == null) throw new NoSuchElementException("table " + tableid + " not exist");
+            return index.getFile();
+        }
         return tb.tableFile;
     }
 
@@ -173,6 +210,8 @@ public class Catalog {
         while (iterator2.hasNext()) {
             nameTable.remove(iterator2.next());
         }
+        tableIndexes.clear();
+        indexFiles.clear();
     }
     
     /**
@@ -8,8 +8,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the memory manager, and the
+ * log files, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -20,6 +20,7 @@ public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final MemoryManager _memory;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -27,6 +28,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _memory = new MemoryManager(MemoryManager.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -48,6 +50,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the memory manager shared by the queries of the static Database instance */
+    public static MemoryManager getMemoryManager() {
+        return _instance.get()._memory;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
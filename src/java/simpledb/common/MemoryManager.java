@@ -0,0 +1,207 @@
+package simpledb.common;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MemoryManager accounts for the memory that operators use for their hash
+ * tables, sort buffers and other temporary tables, in pages of tuples (the
+ * unit of the operators' budgets, {@link simpledb.storage.BufferPool#getPageSize}
+ * bytes of tuple data each).
+ * <p>
+ * The MemoryManager of the {@link Database} holds the memory shared by all
+ * running queries. A {@link simpledb.execution.Query} gets a budget from it
+ * when it starts with {@link #newQueryBudget}, itself a MemoryManager that
+ * caps the memory of the query. Operators reserve their pages from the
+ * budget of their query when they are opened, which reserves them from the
+ * shared memory as well, and release them when they are closed; a query
+ * without hash tables or sorts takes no memory at all. A reservation gets
+ * fewer pages than asked for when memory is short, and the operator then
+ * spills earlier; it fails with a DbException, rejecting the query, only if
+ * not even the minimum the operator needs is left.
+ * <p>
+ * Closing the budget of a query gives back the pages its operators did not
+ * release. The budgets of a transaction are also closed when the transaction
+ * completes, so that a query left open by an abort does not keep its memory.
+ *
+ * @Threadsafe
+ */
+public class MemoryManager {
+
+    /** Default memory shared by all running queries, in pages. */
+    public static final int DEFAULT_PAGES = 16384;
+    /** Default budget of a query, in pages. */
+    public static final int DEFAULT_QUERY_PAGES = 2048;
+
+    private final MemoryManager parent;
+    private final TransactionId tid;
+    private final int totalPages;
+    private int reservedPages = 0;
+    private int peakPages = 0;
+    private boolean closed = false;
+    private final Map<TransactionId, List<MemoryManager>> budgets = new HashMap<>();
+
+    /**
+     * @param totalPages the number of pages that can be reserved
+     */
+    public MemoryManager(int totalPages) {
+        this(null, null, totalPages);
+    }
+
+    private MemoryManager(MemoryManager parent, TransactionId tid, int totalPages) {
+        if (totalPages < 0)
+            throw new IllegalArgumentException("negative memory budget");
+        this.parent = parent;
+        this.tid = tid;
+        this.totalPages = totalPages;
+    }
+
+    public int getTotalPages() {
+        return totalPages;
+    }
+
+    public synchronized int getReservedPages() {
+        return reservedPages;
+    }
+
+    /**
+     * @return the largest number of pages reserved at the same time
+     */
+    public synchronized int getPeakPages() {
+        return peakPages;
+    }
+
+    /**
+     * Reserve up to the specified number of pages, or as many as are left if
+     * that is fewer. The budget of a query reserves them from the memory it
+     * was created from as well.
+     *
+     * @param pages    the number of pages asked for
+     * @param minPages the smallest number of pages the caller can do with
+     * @return the number of pages reserved, between min(pages, minPages) and
+     *         pages; they must be given back with {@link #release}
+     * @throws DbException if fewer than minPages pages are left, or the
+     *                     budget is closed
+     */
+    public int reserve(int pages, int minPages) throws DbException {
+        int granted;
+        synchronized (this) {
+            if (closed)
+                throw new DbException("the memory budget of the query is closed");
+            granted = Math.min(pages, totalPages - reservedPages);
+            if (granted < Math.min(pages, minPages))
+                throw new DbException("out of memory: " + minPages + " pages needed, "
+                        + (totalPages - reservedPages) + " of " + totalPages + " left");
+            reservedPages += granted;
+        }
+        if (parent != null) {
+            // 先在查询预算中占住，再向共享内存申请，两把锁不嵌套
+            int shared;
+            try {
+                shared = parent.reserve(granted, minPages);
+            } catch (DbException e) {
+                synchronized (this) {
+                    if (!closed)
+                        reservedPages -= granted;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                if (closed) {
+                    parent.release(shared);
+                    throw new DbException("the memory budget of the query is closed");
+                }
+                reservedPages -= granted - shared;
+            }
+            granted = shared;
+        }
+        synchronized (this) {
+            peakPages = Math.max(peakPages, reservedPages);
+        }
+        return granted;
+    }
+
+    /**
+     * Give back pages reserved with {@link #reserve}.
+     */
+    public void release(int pages) {
+        int released;
+        synchronized (this) {
+            // 预算关闭时已经全部归还
+            if (closed)
+                return;
+            released = Math.min(pages, reservedPages);
+            reservedPages -= released;
+        }
+        if (parent != null)
+            parent.release(released);
+    }
+
+    /**
+     * Create a budget for a query that reserves from this MemoryManager. The
+     * budget must be closed with {@link #close}; it is also closed by
+     * {@link #releaseTransaction} when the transaction of the query
+     * completes.
+     *
+     * @param tid   the transaction running the query, or null
+     * @param pages the most pages the operators of the query may reserve
+     * @return a MemoryManager for the operators of the query
+     */
+    public MemoryManager newQueryBudget(TransactionId tid, int pages) {
+        MemoryManager budget = new MemoryManager(this, tid, pages);
+        if (tid != null) {
+            synchronized (this) {
+                budgets.computeIfAbsent(tid, k -> new ArrayList<>()).add(budget);
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Close the budgets of the queries of the specified transaction that
+     * were not closed.
+     */
+    public void releaseTransaction(TransactionId tid) {
+        List<MemoryManager> open;
+        synchronized (this) {
+            open = budgets.remove(tid);
+        }
+        // 在锁外关闭，close 会再回到这里加锁
+        if (open != null) {
+            for (MemoryManager budget : open)
+                budget.close();
+        }
+    }
+
+    /**
+     * Close the budget of a query, giving back the pages its operators did
+     * not release. Later reservations fail.
+     */
+    public void close() {
+        int released;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            released = reservedPages;
+            reservedPages = 0;
+        }
+        if (parent != null) {
+            parent.forget(this);
+            parent.release(released);
+        }
+    }
+
+    private synchronized void forget(MemoryManager budget) {
+        List<MemoryManager> open = budgets.get(budget.tid);
+        if (open == null)
+            return;
+        open.remove(budget);
+        if (open.isEmpty())
+            budgets.remove(budget.tid);
+    }
+}
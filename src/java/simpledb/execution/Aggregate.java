@@ -2,31 +2,61 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Any number of aggregates can be computed over any number of group-by
+ * columns in a single pass; more than one aggregate or group-by column is
+ * computed by a {@link MultiAggregator}, whose aggregates share one table of
+ * groups.
+ * <p>
+ * The groups are kept in memory up to a budget of memoryPages pages of result
+ * tuples. Once the budget is full, tuples of groups already in memory are
+ * still aggregated in memory, while tuples of new groups are hash-partitioned
+ * on the group value into {@link SpillFile}s. After the in-memory groups have
+ * been returned, each spilled partition is aggregated in turn: in memory if
+ * its groups fit the budget, otherwise by sorting it with an external
+ * {@link OrderBy} on the first group-by field and aggregating the runs of
+ * equal values of that field one at a time.
+ * <p>
+ * Over a {@link ParallelSeqScan}, every worker of the scan aggregates the
+ * tuples it reads in memory, up to an equal share of the budget. If a worker
+ * finds more groups than its share, the partial aggregates are dropped and
+ * the output of the scan is aggregated by this thread, spilling as above.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default memory budget of a GROUP BY, in pages of result tuples. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** Upper bound on the number of spilled partitions. */
+    public static final int MAX_PARTITIONS = 32;
+    /** Smallest memory budget of a GROUP BY, in pages of result tuples. */
+    public static final int MIN_MEMORY_PAGES = 3;
+
     // 需要聚合的 tuples
     private OpIterator child;
-    // 聚合字段
-    private final int afield;
-    // 分组字段
-    private final int gfield;
-    // 运算符
-    private Aggregator.Op aop;
+    // 聚合字段及各自的运算符
+    private final int[] afields;
+    private final Aggregator.Op[] aops;
+    // 分组字段，没有分组时为空
+    private final int[] gfields;
 
     // 进行聚合操作的类
     private Aggregator aggregator;
@@ -34,6 +64,22 @@ public class Aggregate extends Operator {
     private OpIterator opIterator;
     // 聚合结果的属性行
     private TupleDesc tupleDesc;
+    private int memoryPages;
+    // 本次 open 从查询预算中得到的页数，以及由它决定的分区数
+    private int grantedPages;
+    private int numPartitions;
+
+    // 超出内存预算后新分组的元组按分组值哈希写入的分区文件
+    transient private SpillFile[] spills;
+    transient private int partition;
+    transient private int spilledPartitions;
+    transient private int sortedPartitions;
+    // 按排序聚合一个分区时的有序输入，以及预读的下一组的第一个元组
+    transient private OrderBy sorted;
+    transient private Tuple sortedNext;
+    // 并行聚合合并后的各部分，依次返回；串行聚合时为 null
+    transient private Aggregator[] parts;
+    transient private int part;
 
 
     /**
@@ -50,34 +96,105 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-        // some code goes here
+        this(child, afield, gfield, aop, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with a memory budget for the groups.
+     *
+     * @param child       The OpIterator that is feeding us tuples.
+     * @param afield      The column over which we are computing an aggregate.
+     * @param gfield      The column over which we are grouping the result, or
+     *                    -1 if there is no grouping
+     * @param aop         The aggregation operator to use
+     * @param memoryPages the number of pages of result tuples kept in memory;
+     *                    at least 3
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int memoryPages) {
+        this(child, new int[]{afield}, new Aggregator.Op[]{aop},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield}, memoryPages);
+    }
+
+    /**
+     * Constructor for several aggregates over several group-by columns.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops    The aggregation operator of each of afields
+     * @param gfields The columns over which we are grouping the result, empty
+     *                if there is no grouping
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor for several aggregates over several group-by columns, with
+     * a memory budget for the groups.
+     *
+     * @param child       The OpIterator that is feeding us tuples.
+     * @param afields     The columns over which we are computing aggregates.
+     * @param aops        The aggregation operator of each of afields
+     * @param gfields     The columns over which we are grouping the result,
+     *                    empty if there is no grouping
+     * @param memoryPages the number of pages of result tuples kept in memory;
+     *                    at least 3
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields, int memoryPages) {
+        if (memoryPages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("an aggregate needs at least 3 pages of memory");
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("an aggregate needs one operator per aggregate field");
+        this.memoryPages = memoryPages;
+        this.grantedPages = memoryPages;
+        this.numPartitions = partitions(memoryPages);
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
-        // 判断是否分组
-        Type gfieldtype = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.gfields = gfields.clone();
 
         // 创建聚合器
-        if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE) {
-            this.aggregator = new StringAggregator(gfield, gfieldtype, afield, aop);
-        } else {
-            this.aggregator = new IntegerAggregator(gfield, gfieldtype, afield, aop);
-        }
-
-        // 组建 TupleDesc
-        List<Type> typeList = new ArrayList<>();
-        List<String> nameList = new ArrayList<>();
+        this.aggregator = createAggregator();
+        this.tupleDesc = buildTupleDesc();
+    }
 
-        if (gfieldtype != null) {
-            typeList.add(gfieldtype);
-            nameList.add(child.getTupleDesc().getFieldName(gfield));
+    /**
+     * @return the output TupleDesc: the group-by fields, then one field per
+     *         aggregate, named after the fields of the child
+     */
+    private TupleDesc buildTupleDesc() {
+        TupleDesc td = child.getTupleDesc();
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = td.getFieldType(gfields[i]);
+            names[i] = td.getFieldName(gfields[i]);
         }
+        for (int i = 0; i < afields.length; i++) {
+            types[gfields.length + i] = td.getFieldType(afields[i]);
+            names[gfields.length + i] = td.getFieldName(afields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
 
-        typeList.add(child.getTupleDesc().getFieldType(afield));
-        nameList.add(child.getTupleDesc().getFieldName(afield));
-
-        this.tupleDesc = new TupleDesc(typeList.toArray(new Type[typeList.size()]), nameList.toArray(new String[nameList.size()]));
+    private Aggregator createAggregator() {
+        TupleDesc td = child.getTupleDesc();
+        if (afields.length == 1 && gfields.length <= 1) {
+            int gfield = groupField();
+            Type gfieldtype = gfield == Aggregator.NO_GROUPING ? null : td.getFieldType(gfield);
+            if (td.getFieldType(afields[0]) == Type.STRING_TYPE) {
+                return new StringAggregator(gfield, gfieldtype, afields[0], aops[0]);
+            } else {
+                return new IntegerAggregator(gfield, gfieldtype, afields[0], aops[0]);
+            }
+        }
+        Type[] gtypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gtypes[i] = td.getFieldType(gfields[i]);
+        Type[] atypes = new Type[afields.length];
+        for (int i = 0; i < afields.length; i++)
+            atypes[i] = td.getFieldType(afields[i]);
+        return new MultiAggregator(gfields, gtypes, afields, atypes, aops);
     }
 
     /**
@@ -87,7 +204,7 @@ public class Aggregate extends Operator {
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
@@ -97,15 +214,37 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(gfield);
+        return gfields.length == 0 ? null : tupleDesc.getFieldName(0);
     }
 
     /**
-     * @return the aggregate field
+     * @return the group-by fields in the <b>INPUT</b> tuples, which are the
+     * first fields of the output tuples
+     */
+    public int[] getGroupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the aggregate field, the first if there are several
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the aggregate fields in the <b>INPUT</b> tuples
+     */
+    public int[] getAggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the operator of each aggregate field
+     */
+    public Aggregator.Op[] getAggregateOps() {
+        return aops.clone();
     }
 
     /**
@@ -114,33 +253,80 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        if(gfield == -1){
-            return tupleDesc.getFieldName(0);
-        }
-        return tupleDesc.getFieldName(1);
+        return tupleDesc.getFieldName(gfields.length);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator, of the first aggregate if there
+     * are several
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("an aggregate needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    // 每个溢出分区写文件时要占一页缓冲
+    private static int partitions(int pages) {
+        return Math.min(MAX_PARTITIONS, pages - 1);
+    }
+
+    /**
+     * @return the number of partitions written to disk by the last open or
+     *         rewind; 0 if all groups fit in memory
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of spilled partitions read so far whose groups did
+     *         not fit in memory and that were aggregated by sorting
+     */
+    public int getSortedPartitions() {
+        return sortedPartitions;
+    }
+
+    private int maxGroups() {
+        return grantedPages * HeapPage.getNumTuples(aggregator.getTupleDesc());
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
-        child.open();
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        clear();
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        numPartitions = partitions(grantedPages);
+        aggregator = createAggregator();
+        if (!(child instanceof ParallelSeqScan) || !aggregateInParallel((ParallelSeqScan) child)) {
+            child.open();
+            aggregateChild();
         }
-        // 获取聚合后的迭代器
-        opIterator = aggregator.iterator();
         // 查询
         opIterator.open();
         // 使父类状态保持一致
@@ -148,31 +334,282 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Read the child into the in-memory groups, spilling the tuples of new
+     * groups once the budget is full.
+     */
+    private void aggregateChild() throws DbException, TransactionAbortedException {
+        int maxGroups = maxGroups();
+        try {
+            // 按批读取子节点，聚合器直接处理列向量
+            TupleBatch batch;
+            while ((batch = child.nextBatch()) != null) {
+                if (aggregator.numGroups() + batch.numRows() <= maxGroups) {
+                    aggregator.mergeBatch(batch);
+                    continue;
+                }
+                // 这一批可能超出预算，逐个元组处理
+                for (int i = 0; i < batch.numRows(); i++) {
+                    Tuple t = batch.getTuple(batch.row(i));
+                    if (aggregator.numGroups() < maxGroups)
+                        aggregator.mergeTupleIntoGroup(t);
+                    else if (!aggregator.mergeIntoExistingGroup(t))
+                        spill(t);
+                }
+            }
+            if (spills != null) {
+                for (SpillFile f : spills) {
+                    if (f != null)
+                        f.finish();
+                }
+            }
+        } catch (IOException e) {
+            clear();
+            throw new DbException("aggregate spill failed: " + e.getMessage());
+        }
+        // 获取聚合后的迭代器
+        opIterator = aggregator.iterator();
+        partition = -1;
+    }
+
+    private void spill(Tuple t) throws IOException {
+        if (spills == null)
+            spills = new SpillFile[numPartitions];
+        int p = Aggregator.partitionOf(groupHash(t), numPartitions);
+        if (spills[p] == null) {
+            spills[p] = new SpillFile(child.getTupleDesc());
+            spilledPartitions++;
+        }
+        spills[p].add(t);
+    }
+
+    /**
+     * @return the hash of the group-by fields of a tuple; that of a single
+     *         field is its hash code
+     */
+    private int groupHash(Tuple t) {
+        int h = 0;
+        for (int gfield : gfields)
+            h = 31 * h + t.getField(gfield).hashCode();
+        return h;
+    }
+
+    /**
+     * Start returning the groups of the next spilled partition.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (spills == null)
+            return false;
+        if (partition >= 0 && partition < numPartitions) {
+            spills[partition].delete();
+            spills[partition] = null;
+        }
+        do {
+            partition++;
+        } while (partition < numPartitions && spills[partition] == null);
+        if (partition >= numPartitions)
+            return false;
+
+        // 内存中的分组已经返回，释放它们
+        opIterator.close();
+        SpillFile f = spills[partition];
+        aggregator = createAggregator();
+        boolean fits = true;
+        try {
+            DbFileIterator it = f.iterator();
+            it.open();
+            while (fits && it.hasNext()) {
+                aggregator.mergeTupleIntoGroup(it.next());
+                fits = aggregator.numGroups() <= maxGroups();
+            }
+            it.close();
+        } catch (IOException e) {
+            throw new DbException("aggregate spill failed: " + e.getMessage());
+        }
+        if (!fits) {
+            // 分区的分组仍然放不下：按第一个分组列外部排序，内存中一次只有该列的一个值
+            aggregator = createAggregator();
+            sorted = new OrderBy(gfields[0], true, new SpillScan(f), grantedPages);
+            sorted.open();
+            sortedNext = null;
+            sortedPartitions++;
+        }
+        opIterator = aggregator.iterator();
+        opIterator.open();
+        return true;
+    }
+
+    /**
+     * Aggregate the next run of tuples of the sorted partition with the same
+     * value of the first group-by field, and start returning its groups.
+     *
+     * @return false if the partition is done
+     */
+    private boolean nextSortedRun() throws DbException, TransactionAbortedException {
+        if (sortedNext == null) {
+            if (!sorted.hasNext())
+                return false;
+            sortedNext = sorted.next();
+        }
+        Aggregator run = createAggregator();
+        Field value = sortedNext.getField(gfields[0]);
+        run.mergeTupleIntoGroup(sortedNext);
+        sortedNext = null;
+        while (sorted.hasNext()) {
+            Tuple t = sorted.next();
+            if (!t.getField(gfields[0]).equals(value)) {
+                sortedNext = t;
+                break;
+            }
+            run.mergeTupleIntoGroup(t);
+        }
+        opIterator.close();
+        opIterator = run.iterator();
+        opIterator.open();
+        return true;
+    }
+
+    private void clear() {
+        if (sorted != null)
+            sorted.close();
+        sorted = null;
+        sortedNext = null;
+        if (spills != null) {
+            for (SpillFile f : spills) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        spills = null;
+        parts = null;
+        spilledPartitions = 0;
+        sortedPartitions = 0;
+    }
+
+    /**
+     * Aggregates the output of a parallel scan in parallel. Every worker of
+     * the scan merges the batches it reads into a partial aggregate of its
+     * own, of at most an equal share of the budget of groups; once a worker
+     * has more groups than that, all workers stop. Otherwise each partial
+     * aggregate is split by the hash of the group value into as many parts
+     * as there are workers, and one task per part merges that part of all
+     * partial aggregates, so that the merge of a GROUP BY with many groups
+     * runs in parallel as well. The merged parts are returned one after the
+     * other. The child is not opened: the workers read the table on their
+     * own.
+     *
+     * @return false if the groups did not fit in the budget, in which case
+     *         nothing has been aggregated
+     */
+    private boolean aggregateInParallel(ParallelSeqScan scan) throws DbException,
+            TransactionAbortedException {
+        int share = Math.max(1, maxGroups() / scan.getParallelism());
+        AtomicBoolean overflow = new AtomicBoolean();
+        List<Aggregator> partials = scan.scanInto(this::createAggregator, (partial, batch) -> {
+            if (partial.numGroups() + batch.numRows() <= share) {
+                partial.mergeBatch(batch);
+                return true;
+            }
+            for (int i = 0; i < batch.numRows(); i++) {
+                Tuple t = batch.getTuple(batch.row(i));
+                if (partial.numGroups() < share) {
+                    partial.mergeTupleIntoGroup(t);
+                } else if (!partial.mergeIntoExistingGroup(t)) {
+                    overflow.set(true);
+                    return false;
+                }
+            }
+            return true;
+        });
+        // 有 worker 超出份额。一个分组可能在某个 worker 的内存中、又被另一个 worker 溢出，所以改为串行聚合
+        if (overflow.get())
+            return false;
+        // 空表没有 worker，结果与串行聚合一样来自一个空的聚合器
+        if (partials.isEmpty())
+            partials.add(createAggregator());
+        int n = partials.size();
+        List<ForkJoinTask<Aggregator[]>> splits = new ArrayList<>(n);
+        for (Aggregator partial : partials)
+            splits.add(ParallelSeqScan.POOL.submit(() -> partial.partition(n)));
+        ParallelSeqScan.joinAll(splits);
+
+        List<ForkJoinTask<Aggregator>> merges = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int p = i;
+            merges.add(ParallelSeqScan.POOL.submit(() -> {
+                Aggregator merged = createAggregator();
+                for (ForkJoinTask<Aggregator[]> split : splits)
+                    merged.merge(split.join()[p]);
+                return merged;
+            }));
+        }
+        ParallelSeqScan.joinAll(merges);
+        parts = new Aggregator[n];
+        for (int i = 0; i < n; i++)
+            parts[i] = merges.get(i).join();
+        startPart(0);
+        return true;
+    }
+
+    private void startPart(int p) {
+        part = p;
+        aggregator = parts[p];
+        opIterator = aggregator.iterator();
+    }
+
+    /**
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the following fields are the results of computing
+     * the aggregates. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(opIterator.hasNext()){
-            return opIterator.next();
+        while (true) {
+            if (opIterator.hasNext())
+                return opIterator.next();
+            if (sorted != null) {
+                if (nextSortedRun())
+                    continue;
+                sorted.close();
+                sorted = null;
+            }
+            if (parts != null && part + 1 < parts.length) {
+                opIterator.close();
+                startPart(part + 1);
+                opIterator.open();
+                continue;
+            }
+            if (!nextPartition())
+                return null;
         }
-        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        child.rewind();
-        opIterator.rewind();
+        if (parts != null) {
+            // 并行聚合时子节点没有打开，从合并后的第一部分重新返回
+            opIterator.close();
+            startPart(0);
+            opIterator.open();
+        } else if (spilledPartitions == 0) {
+            child.rewind();
+            opIterator.rewind();
+        } else {
+            // 溢出的分区已经读过并删除，重新聚合
+            opIterator.close();
+            clear();
+            aggregator = createAggregator();
+            child.rewind();
+            aggregateChild();
+            opIterator.open();
+        }
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate. The first fields are the group
+     * by fields, if any, and the following fields are the aggregate value
+     * columns, one per aggregate.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -189,6 +626,7 @@ public class Aggregate extends Operator {
         super.close();
         child.close();
         opIterator.close();
+        clear();
     }
 
     @Override
@@ -201,23 +639,7 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         this.child = children[0];
-        Type gfieldtype = child.getTupleDesc().getFieldType(gfield);
-
-        // 组建 TupleDesc
-        List<Type> typeList = new ArrayList<>();
-        List<String> nameList = new ArrayList<>();
-
-        // 加入分组后的字段
-        if(gfieldtype != null){
-            typeList.add(gfieldtype);
-            nameList.add(child.getTupleDesc().getFieldName(gfield));
-        }
-
-        // 加入聚合字段
-        typeList.add(child.getTupleDesc().getFieldType(afield));
-        nameList.add(child.getTupleDesc().getFieldName(afield));
-
-        this.tupleDesc = new TupleDesc(typeList.toArray(new Type[typeList.size()]), nameList.toArray(new String[nameList.size()]));
+        this.tupleDesc = buildTupleDesc();
     }
 
 }
@@ -0,0 +1,88 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The running state of the aggregates over one INT field, per group: the sum,
+ * count, minimum and maximum of the values of each group are kept in parallel
+ * arrays indexed by the group number of a {@link GroupTable}, so that every
+ * aggregate operator over the same field can be answered from one state.
+ */
+class AggregateState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // AVG 保存 sum 和 count，部分聚合结果才能合并，也避免浮点累计误差
+    private long[] sums = new long[16];
+    private int[] counts = new int[16];
+    private int[] mins = filled(16, Integer.MAX_VALUE);
+    private int[] maxs = filled(16, Integer.MIN_VALUE);
+
+    private static int[] filled(int n, int value) {
+        int[] a = new int[n];
+        Arrays.fill(a, value);
+        return a;
+    }
+
+    void ensureCapacity(int g) {
+        if (g < counts.length)
+            return;
+        int old = counts.length;
+        int n = Math.max(old * 2, g + 1);
+        sums = Arrays.copyOf(sums, n);
+        counts = Arrays.copyOf(counts, n);
+        mins = Arrays.copyOf(mins, n);
+        maxs = Arrays.copyOf(maxs, n);
+        Arrays.fill(mins, old, n, Integer.MAX_VALUE);
+        Arrays.fill(maxs, old, n, Integer.MIN_VALUE);
+    }
+
+    void add(int g, int value) {
+        sums[g] += value;
+        counts[g]++;
+        if (value < mins[g])
+            mins[g] = value;
+        if (value > maxs[g])
+            maxs[g] = value;
+    }
+
+    /**
+     * Count n more values of group g, whose values are not aggregated.
+     */
+    void addCount(int g, int n) {
+        counts[g] += n;
+    }
+
+    /**
+     * Add the state of group og of another state to group g.
+     */
+    void add(int g, AggregateState other, int og) {
+        sums[g] += other.sums[og];
+        counts[g] += other.counts[og];
+        mins[g] = Math.min(mins[g], other.mins[og]);
+        maxs[g] = Math.max(maxs[g], other.maxs[og]);
+    }
+
+    int result(int g, Aggregator.Op op) {
+        switch (op) {
+            case MIN:
+                return mins[g];
+            case MAX:
+                return maxs[g];
+            case SUM:
+                return (int) sums[g];
+            case AVG:
+                return (int) (sums[g] / counts[g]);
+            default:
+                return counts[g];
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes of the state
+     */
+    long memoryBytes() {
+        return 20L * counts.length;
+    }
+}
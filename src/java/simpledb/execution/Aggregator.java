@@ -82,6 +82,64 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge a tuple into the aggregate only if its group value has already
+     * been encountered.
+     *
+     * @param tup the Tuple containing an aggregate field and a group-by field
+     * @return false if the group is new, in which case the tuple is not merged
+     */
+    boolean mergeIntoExistingGroup(Tuple tup);
+
+    /**
+     * @return the number of groups, which is at most 1 without grouping
+     */
+    int numGroups();
+
+    /**
+     * Merge the selected rows of a batch into the aggregate. The default
+     * implementation merges them one tuple at a time.
+     *
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    default void mergeBatch(TupleBatch batch) {
+        for (int i = 0; i < batch.numRows(); i++)
+            mergeTupleIntoGroup(batch.getTuple(batch.row(i)));
+    }
+
+    /**
+     * Add the groups of another aggregator, with the same grouping, aggregate
+     * field and operator, to this one. Used to combine partial aggregates
+     * computed in parallel; other must not be used afterwards.
+     *
+     * @param other a partial aggregate of the same kind as this one
+     */
+    void merge(Aggregator other);
+
+    /**
+     * Split the groups of this aggregator into n aggregators of the same kind
+     * by the hash of the group value (see {@link #partitionOf}), so that a
+     * group of different partial aggregates always ends up in the same part.
+     * This aggregator must not be used afterwards.
+     */
+    Aggregator[] partition(int n);
+
+    /**
+     * @return the part, between 0 and n - 1, of a group value; the part of
+     *         null, the group when there is no grouping, is 0
+     */
+    static int partitionOf(Field group, int n) {
+        return group == null ? 0 : partitionOf(group.hashCode(), n);
+    }
+
+    /**
+     * @return the part, between 0 and n - 1, of a group value with the
+     *         specified hash code
+     */
+    static int partitionOf(int hash, int n) {
+        return Math.floorMod(hash ^ (hash >>> 16), n);
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
@@ -0,0 +1,78 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter returns the tuples of its child one at a time, reading the
+ * child a batch at a time with {@link OpIterator#nextBatch}. It lets an
+ * operator that consumes tuples sit on top of a batch-at-a-time pipeline, the
+ * reverse of the default {@link OpIterator#nextBatch}.
+ */
+public class BatchAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    transient private TupleBatch batch;
+    transient private int pos;
+
+    public BatchAdapter(OpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos >= batch.numRows()) {
+            batch = child.nextBatch();
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.row(pos++));
+    }
+
+    /**
+     * Passes the batches of the child through.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return child.nextBatch();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
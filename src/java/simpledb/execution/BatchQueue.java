@@ -0,0 +1,154 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * BatchQueue hands TupleBatches from a fixed number of producer threads to
+ * the single thread that consumes them. It is the exchange between the worker
+ * threads of a parallel operator and the thread running the rest of the plan.
+ * <p>
+ * The queue is bounded: a producer that gets ahead of the consumer waits in
+ * {@link #put}, so a fast scan never buffers more than a few batches. A
+ * producer that fails passes its exception to {@link #fail}, and the consumer
+ * rethrows it from {@link #take}. {@link #cancel} makes waiting and future
+ * puts return false, so producers stop once the consumer is closed.
+ */
+public class BatchQueue {
+
+    // 生产者结束的标记
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final int producers;
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+    // 只由消费者线程访问
+    private int finished = 0;
+
+    /**
+     * @param capacity the number of batches the queue holds before producers
+     *            wait
+     * @param producers the number of producers; each calls {@link #finish}
+     *            or {@link #fail} exactly once
+     */
+    public BatchQueue(int capacity, int producers) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity + producers));
+        this.producers = producers;
+    }
+
+    /**
+     * Waits, inside a ForkJoinPool without holding up its other tasks, until
+     * an element fits in the queue or the queue is cancelled.
+     */
+    private class Offer implements ForkJoinPool.ManagedBlocker {
+        private final Object o;
+        private boolean done = false;
+
+        Offer(Object o) {
+            this.o = o;
+        }
+
+        public boolean block() throws InterruptedException {
+            while (!done && !cancelled)
+                done = queue.offer(o, 10, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        public boolean isReleasable() {
+            return done || cancelled || (done = queue.offer(o));
+        }
+    }
+
+    private boolean offer(Object o) throws InterruptedException {
+        Offer offer = new Offer(o);
+        ForkJoinPool.managedBlock(offer);
+        return offer.done;
+    }
+
+    /**
+     * Add a batch, waiting while the queue is full.
+     *
+     * @return false if the queue was cancelled and the producer should stop
+     */
+    public boolean put(TupleBatch batch) throws InterruptedException {
+        return !cancelled && offer(batch);
+    }
+
+    /**
+     * Called by a producer that has added all its batches.
+     */
+    public void finish() {
+        try {
+            offer(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by a producer that stops because of an exception; the consumer
+     * rethrows the first such exception.
+     */
+    public void fail(Exception e) {
+        error.compareAndSet(null, e);
+        finish();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stop all producers and drop the batches in the queue.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    private void rethrow() throws DbException, TransactionAbortedException {
+        Exception e = error.get();
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        throw new DbException("parallel worker failed: " + e);
+    }
+
+    /**
+     * Remove the next batch, waiting until one is available.
+     *
+     * @return the next batch, or null once all producers have finished
+     * @throws TransactionAbortedException if a producer was aborted
+     * @throws DbException if a producer failed
+     */
+    public TupleBatch take() throws DbException, TransactionAbortedException {
+        while (finished < producers) {
+            rethrow();
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for a batch");
+            }
+            if (o == END) {
+                finished++;
+                continue;
+            }
+            return (TupleBatch) o;
+        }
+        rethrow();
+        return null;
+    }
+}
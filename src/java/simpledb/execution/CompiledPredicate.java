@@ -0,0 +1,168 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+/**
+ * A Predicate specialized for the type of its field and its operator. An int
+ * comparison becomes one class per operator that compares the int value of
+ * the field with a primitive operand, and a string comparison compares the
+ * String values directly, so a tuple is tested without the virtual
+ * Field.compare and its switch on the operator. Batches are filtered with
+ * {@link Predicate#filter(TupleBatch)}, which is specialized the same way.
+ * <p>
+ * A CompiledPredicate also counts the rows it has tested and passed, from
+ * which a {@link Conjunction} orders its predicates.
+ */
+abstract class CompiledPredicate {
+
+    // 比较一行的相对代价
+    static final int INT_COST = 1;
+    static final int STRING_COST = 4;
+    static final int GENERIC_COST = 8;
+
+    final Predicate predicate;
+    final int cost;
+    // 测试过的行数和通过的行数
+    long seen = 0;
+    long passed = 0;
+
+    CompiledPredicate(Predicate predicate, int cost) {
+        this.predicate = predicate;
+        this.cost = cost;
+    }
+
+    /**
+     * @return true if the tuple satisfies the predicate
+     */
+    abstract boolean test(Tuple t);
+
+    /**
+     * Narrows the selection of a batch to the rows satisfying the predicate
+     * and counts them.
+     */
+    void filter(TupleBatch batch) {
+        seen += batch.numRows();
+        predicate.filter(batch);
+        passed += batch.numRows();
+    }
+
+    /**
+     * @return the expected cost of this predicate per row it removes; a
+     *         conjunction is cheapest with the smallest rank first
+     */
+    double rank() {
+        // 加一平滑，没有观察值时按 1/2 的通过率估计
+        double pass = (passed + 1.0) / (seen + 2.0);
+        return cost / (1.0 - pass);
+    }
+
+    /**
+     * Halve the counts, so that the rank follows changes of selectivity in
+     * the input.
+     */
+    void decay() {
+        seen /= 2;
+        passed /= 2;
+    }
+
+    static CompiledPredicate compile(Predicate p, TupleDesc td) {
+        int f = p.getField();
+        Type type = td.getFieldType(f);
+        if (type == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+            int v = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+                case EQUALS:
+                case LIKE:
+                    return new CompiledPredicate(p, INT_COST) {
+                        boolean test(Tuple t) {
+                            return ((IntField) t.getField(f)).getValue() == v;
+                        }
+                    };
+                case NOT_EQUALS:
+                    return new CompiledPredicate(p, INT_COST) {
+                        boolean test(Tuple t) {
+                            return ((IntField) t.getField(f)).getValue() != v;
+                        }
+                    };
+                case GREATER_THAN:
+                    return new CompiledPredicate(p, INT_COST) {
+                        boolean test(Tuple t) {
+                            return ((IntField) t.getField(f)).getValue() > v;
+                        }
+                    };
+                case GREATER_THAN_OR_EQ:
+                    return new CompiledPredicate(p, INT_COST) {
+                        boolean test(Tuple t) {
+                            return ((IntField) t.getField(f)).getValue() >= v;
+                        }
+                    };
+                case LESS_THAN:
+                    return new CompiledPredicate(p, INT_COST) {
+                        boolean test(Tuple t) {
+                            return ((IntField) t.getField(f)).getValue() < v;
+                        }
+                    };
+                case LESS_THAN_OR_EQ:
+                    return new CompiledPredicate(p, INT_COST) {
+                        boolean test(Tuple t) {
+                            return ((IntField) t.getField(f)).getValue() <= v;
+                        }
+                    };
+            }
+        } else if (type == Type.STRING_TYPE && p.getOperand() instanceof StringField
+                && p.getOp() != Predicate.Op.LIKE) {
+            String v = ((StringField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+                case EQUALS:
+                    return new CompiledPredicate(p, STRING_COST) {
+                        boolean test(Tuple t) {
+                            return ((StringField) t.getField(f)).getValue().equals(v);
+                        }
+                    };
+                case NOT_EQUALS:
+                    return new CompiledPredicate(p, STRING_COST) {
+                        boolean test(Tuple t) {
+                            return !((StringField) t.getField(f)).getValue().equals(v);
+                        }
+                    };
+                case GREATER_THAN:
+                    return new CompiledPredicate(p, STRING_COST) {
+                        boolean test(Tuple t) {
+                            return ((StringField) t.getField(f)).getValue().compareTo(v) > 0;
+                        }
+                    };
+                case GREATER_THAN_OR_EQ:
+                    return new CompiledPredicate(p, STRING_COST) {
+                        boolean test(Tuple t) {
+                            return ((StringField) t.getField(f)).getValue().compareTo(v) >= 0;
+                        }
+                    };
+                case LESS_THAN:
+                    return new CompiledPredicate(p, STRING_COST) {
+                        boolean test(Tuple t) {
+                            return ((StringField) t.getField(f)).getValue().compareTo(v) < 0;
+                        }
+                    };
+                case LESS_THAN_OR_EQ:
+                    return new CompiledPredicate(p, STRING_COST) {
+                        boolean test(Tuple t) {
+                            return ((StringField) t.getField(f)).getValue().compareTo(v) <= 0;
+                        }
+                    };
+                default:
+                    break;
+            }
+        }
+        // LIKE 等其余情况仍用 Field.compare
+        return new CompiledPredicate(p, GENERIC_COST) {
+            boolean test(Tuple t) {
+                return p.filter(t);
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The AND of several predicates, compiled for the tuples of one TupleDesc
+ * (see {@link CompiledPredicate}) and evaluated cheapest-first by the
+ * expected cost per row removed: they start out sorted by their relative
+ * cost, and every {@link ConjunctiveFilter#REORDER_INTERVAL} rows they are
+ * sorted by the rank computed from the rows they have seen and passed.
+ * <p>
+ * A Conjunction is used by {@link ConjunctiveFilter} and by the scans that
+ * evaluate pushed-down predicates. It keeps counts, so each thread that
+ * tests rows needs its own.
+ */
+final class Conjunction {
+
+    private final CompiledPredicate[] compiled;
+    private int untilReorder = ConjunctiveFilter.REORDER_INTERVAL;
+
+    /**
+     * @param predicates the predicates, all of which a row must satisfy
+     * @param td the TupleDesc of the rows, to which the field numbers of the
+     *            predicates refer
+     */
+    Conjunction(List<Predicate> predicates, TupleDesc td) {
+        compiled = new CompiledPredicate[predicates.size()];
+        for (int i = 0; i < compiled.length; i++)
+            compiled[i] = CompiledPredicate.compile(predicates.get(i), td);
+        // 开始时先按代价排序
+        Arrays.sort(compiled, Comparator.comparingInt(c -> c.cost));
+    }
+
+    boolean isEmpty() {
+        return compiled.length == 0;
+    }
+
+    /**
+     * @return the predicates in the order they are currently evaluated
+     */
+    List<Predicate> getEvaluationOrder() {
+        List<Predicate> order = new ArrayList<>();
+        for (CompiledPredicate c : compiled)
+            order.add(c.predicate);
+        return order;
+    }
+
+    private void reorder() {
+        // 稳定排序，rank 相同时保持原来的顺序
+        Arrays.sort(compiled, Comparator.comparingDouble(CompiledPredicate::rank));
+        for (CompiledPredicate c : compiled)
+            c.decay();
+        untilReorder = ConjunctiveFilter.REORDER_INTERVAL;
+    }
+
+    /**
+     * Tests the predicates in the current order, stopping at the first one
+     * that fails.
+     *
+     * @return true if the tuple satisfies all predicates
+     */
+    boolean test(Tuple t) {
+        if (--untilReorder <= 0)
+            reorder();
+        for (CompiledPredicate c : compiled) {
+            c.seen++;
+            if (!c.test(t))
+                return false;
+            c.passed++;
+        }
+        return true;
+    }
+
+    /**
+     * Narrows the selection vector of a batch by one predicate after the
+     * other, stopping as soon as no row is left.
+     */
+    void filter(TupleBatch batch) {
+        untilReorder -= batch.numRows();
+        if (untilReorder <= 0)
+            reorder();
+        for (CompiledPredicate c : compiled) {
+            c.filter(batch);
+            if (batch.numRows() == 0)
+                break;
+        }
+    }
+}
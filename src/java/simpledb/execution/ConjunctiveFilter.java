@@ -0,0 +1,131 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * ConjunctiveFilter is a relational select on the AND of several predicates
+ * over the tuples of one child: it returns the same tuples as a chain of
+ * {@link Filter}s, in one operator.
+ * <p>
+ * When it is opened, every predicate is compiled into a comparison
+ * specialized for the type of its field and its operator (see
+ * {@link CompiledPredicate}). The predicates are evaluated cheapest-first by
+ * the expected cost per row removed: every REORDER_INTERVAL rows, they are
+ * sorted by their relative cost and the fraction of rows they have passed so
+ * far, so that a selective predicate moves ahead of one that passes almost
+ * everything. Scans order the predicates pushed into them the same way.
+ */
+public class ConjunctiveFilter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of rows between two reorderings of the predicates. */
+    public static final int REORDER_INTERVAL = 1024;
+
+    private final List<Predicate> predicates;
+    private OpIterator child;
+
+    transient private Conjunction conjunction;
+
+    /**
+     * Constructor accepts the predicates to apply and a child operator to
+     * read tuples to filter from.
+     *
+     * @param predicates
+     *            The predicates, all of which a tuple must satisfy; at least
+     *            one
+     * @param child
+     *            The child operator
+     */
+    public ConjunctiveFilter(List<Predicate> predicates, OpIterator child) {
+        if (predicates.isEmpty())
+            throw new IllegalArgumentException("a conjunctive filter needs at least one predicate");
+        this.predicates = new ArrayList<>(predicates);
+        this.child = child;
+    }
+
+    /**
+     * @return the predicates, in the order they were given
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * @return the predicates in the order they are currently evaluated
+     */
+    public List<Predicate> getEvaluationOrder() {
+        if (conjunction == null)
+            return new ArrayList<>(predicates);
+        return conjunction.getEvaluationOrder();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        conjunction = new Conjunction(predicates, child.getTupleDesc());
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next tuple of the child that satisfies all predicates,
+     * testing them in the current order and stopping at the first one that
+     * fails.
+     *
+     * @return The next tuple that passes the filter, or null if there are no
+     *         more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (conjunction.test(t))
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Narrows the selection vector of each batch of the child by one
+     * predicate after the other, stopping as soon as no row is left.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            conjunction.filter(batch);
+            if (batch.numRows() > 0)
+                return batch;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
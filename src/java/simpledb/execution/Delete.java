@@ -11,16 +11,21 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
-import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
- * them from the table they belong to.
+ * them from the table they belong to, BATCH_SIZE at a time, so that the tuples
+ * of each page are removed together.
  */
 public class Delete extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples passed to the buffer pool at a time. */
+    public static final int BATCH_SIZE = 1024;
+
     private TransactionId tid;
     private OpIterator child;
 
@@ -73,7 +78,7 @@ public class Delete extends Operator {
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
-     * @see BufferPool#deleteTuple
+     * @see BufferPool#deleteTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -82,12 +87,18 @@ public class Delete extends Operator {
         }
         BufferPool bufferPool = Database.getBufferPool();
         int count = 0;
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (child.hasNext()) {
-            try {
-                bufferPool.deleteTuple(tid, child.next());
-                count ++;
-            } catch (IOException e) {
-                throw new DbException(e.getMessage());
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    // 一批元组按页分组删除，每页只加锁、修改、标脏一次
+                    bufferPool.deleteTuples(tid, batch);
+                } catch (IOException e) {
+                    throw new DbException(e.getMessage());
+                }
+                count += batch.size();
+                batch.clear();
             }
         }
         deleteTuple = new Tuple(tupleDesc);
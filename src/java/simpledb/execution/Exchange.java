@@ -0,0 +1,201 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exchange computes its child on a thread of its own and hands the batches of
+ * the child to the thread reading the Exchange through a bounded
+ * {@link BatchQueue}. The child runs ahead of its parent by at most
+ * {@link #getCapacity()} batches and then waits, so a join can read both of
+ * its inputs while they are being computed, and a scan can read and filter
+ * pages while the operators above it consume the tuples it already returned.
+ * <p>
+ * The child is opened, read with {@link OpIterator#nextBatch}, and rewound on
+ * the producer thread, on behalf of the transaction of the plan, so the locks
+ * it takes are those the plan would take on one thread. A producer aborted
+ * while waiting for a lock stops, and the reader gets the
+ * TransactionAbortedException; other exceptions are passed on the same way.
+ * <p>
+ * A single producer puts the batches in the order the child returns them, so
+ * an Exchange keeps the order of its child. Closing or rewinding the Exchange
+ * cancels the producer and waits for it to stop before the child is closed or
+ * rewound; a producer that is reading a batch stops once it has read it.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of batches the child runs ahead of the reader. */
+    public static final int DEFAULT_CAPACITY = 4;
+
+    static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "exchange");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private OpIterator child;
+    private final int capacity;
+
+    transient private BatchQueue queue;
+    transient private Future<?> producer;
+    // 只由生产者线程写，在等待生产者结束之后读
+    transient private boolean childOpen;
+    transient private TupleBatch batch;
+    transient private int pos;
+
+    /**
+     * Creates an Exchange holding DEFAULT_CAPACITY batches.
+     *
+     * @param child the subtree to compute on another thread
+     */
+    public Exchange(OpIterator child) {
+        this(child, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param child the subtree to compute on another thread
+     * @param capacity the number of batches the child computes before it
+     *            waits for the reader; at least 1
+     */
+    public Exchange(OpIterator child, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("an exchange holds at least one batch");
+        this.child = child;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Used by the planner to put the inputs of joins and the scans on threads
+     * of their own.
+     *
+     * @return an Exchange over the iterator, or the iterator itself if it is
+     *         an Exchange already or already computes its tuples on threads
+     *         of its own
+     */
+    public static OpIterator wrap(OpIterator it) {
+        if (it instanceof Exchange || it instanceof ParallelSeqScan)
+            return it;
+        return new Exchange(it);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        start();
+        super.open();
+    }
+
+    /**
+     * Start a producer that opens the child, or rewinds it if it is already
+     * open, and puts its batches into a new queue.
+     */
+    private void start() {
+        BatchQueue q = new BatchQueue(capacity, 1);
+        boolean rewind = childOpen;
+        queue = q;
+        batch = null;
+        producer = PRODUCERS.submit(() -> produce(q, rewind));
+    }
+
+    private void produce(BatchQueue q, boolean rewind) {
+        try {
+            if (rewind) {
+                child.rewind();
+            } else {
+                child.open();
+                childOpen = true;
+            }
+            TupleBatch b;
+            while (!q.isCancelled() && (b = child.nextBatch()) != null) {
+                if (!q.put(b))
+                    return;
+            }
+            q.finish();
+        } catch (Exception e) {
+            q.fail(e);
+        }
+    }
+
+    private void stop() {
+        if (queue != null)
+            queue.cancel();
+        if (producer != null) {
+            // 等待生产者退出，之后只有本线程访问子算子
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    producer.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        queue = null;
+        producer = null;
+        batch = null;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        if (childOpen)
+            child.close();
+        childOpen = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos >= batch.numRows()) {
+            batch = queue.take();
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.row(pos++));
+    }
+
+    /**
+     * Returns the batches of the child as the producer computed them.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return queue.take();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
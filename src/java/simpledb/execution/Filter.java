@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -18,6 +19,9 @@ public class Filter extends Operator {
 
     private OpIterator child;
 
+    // 按字段类型和运算符特化的谓词，open 时生成
+    transient private CompiledPredicate compiled;
+
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -46,6 +50,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        this.compiled = CompiledPredicate.compile(predicate, child.getTupleDesc());
         this.child.open();
         super.open();
     }
@@ -76,13 +81,30 @@ public class Filter extends Operator {
         while (child.hasNext()) {
             // 注意这里child.next()虽然看似是赋值，但应该也iterator进行了跳转
             Tuple t = child.next();
-            if (predicate.filter(t)) {
+            if (compiled.test(t)) {
                 return t;
             }
         }
         return null;
     }
 
+    /**
+     * Filters the batches of the child by narrowing their selection vectors,
+     * skipping batches in which no row passes.
+     *
+     * @see Predicate#filter(TupleBatch)
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            predicate.filter(batch);
+            if (batch.numRows() > 0)
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,122 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * Compares an integer GROUP BY through IntegerAggregator, whose groups are
+ * numbered by an IntHashTable with the aggregate state in parallel arrays,
+ * against a HashMap from boxed group Fields to state objects: rows per second
+ * over the same batches, and bytes of heap per group.
+ * <p>
+ * Usage: java simpledb.execution.GroupByBenchmark [rows] [groups]
+ */
+public class GroupByBenchmark {
+
+    /** The per-group state of the HashMap baseline. */
+    private static class State {
+        long sum;
+        int count;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        TupleDesc td = Utility.getTupleDesc(2);
+        Random rand = new Random(42);
+        List<TupleBatch> batches = new ArrayList<>();
+        TupleBatch b = new TupleBatch(td);
+        for (int i = 0; i < rows; i++) {
+            if (b.isFull()) {
+                batches.add(b);
+                b = new TupleBatch(td);
+            }
+            int row = b.addRow();
+            b.setInt(0, row, rand.nextInt(groups));
+            b.setInt(1, row, rand.nextInt(1000));
+        }
+        batches.add(b);
+
+        // 预热 JIT
+        aggregate(batches);
+        hashMap(batches);
+
+        // 交替运行几轮取最好成绩，减少 GC 和 JIT 带来的抖动
+        long intNs = Long.MAX_VALUE, mapNs = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            aggregate(batches);
+            intNs = Math.min(intNs, System.nanoTime() - start);
+            start = System.nanoTime();
+            hashMap(batches);
+            mapNs = Math.min(mapNs, System.nanoTime() - start);
+        }
+
+        long before = usedMemory();
+        IntegerAggregator agg = aggregate(batches);
+        long intBytes = usedMemory() - before;
+        before = usedMemory();
+        Map<Field, State> map = hashMap(batches);
+        long mapBytes = usedMemory() - before;
+        if (map.size() != countGroups(agg))
+            throw new IllegalStateException("the two group tables disagree");
+
+        System.out.printf("%d rows, %d groups%n", rows, map.size());
+        System.out.printf("IntegerAggregator: %8.2f M rows/s  %6.1f bytes/group (%.1f by memoryBytes)%n",
+                rows / (intNs / 1000.0), (double) intBytes / map.size(),
+                (double) agg.memoryBytes() / map.size());
+        System.out.printf("HashMap<Field,..>: %8.2f M rows/s  %6.1f bytes/group%n",
+                rows / (mapNs / 1000.0), (double) mapBytes / map.size());
+    }
+
+    private static IntegerAggregator aggregate(List<TupleBatch> batches) {
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        for (TupleBatch b : batches)
+            agg.mergeBatch(b);
+        return agg;
+    }
+
+    private static Map<Field, State> hashMap(List<TupleBatch> batches) {
+        Map<Field, State> map = new HashMap<>();
+        for (TupleBatch b : batches) {
+            int[] keys = b.getInts(0);
+            int[] values = b.getInts(1);
+            for (int i = 0; i < b.numRows(); i++) {
+                int row = b.row(i);
+                State s = map.computeIfAbsent(new IntField(keys[row]), k -> new State());
+                s.sum += values[row];
+                s.count++;
+                s.min = Math.min(s.min, values[row]);
+                s.max = Math.max(s.max, values[row]);
+            }
+        }
+        return map;
+    }
+
+    private static int countGroups(IntegerAggregator agg) throws Exception {
+        OpIterator it = agg.iterator();
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
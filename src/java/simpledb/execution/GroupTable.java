@@ -0,0 +1,180 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GroupTable numbers the groups of an aggregate 0, 1, 2, ... in the order
+ * they are first seen, so that the aggregators can keep their state in arrays
+ * indexed by group. A single INT group-by field is numbered by an
+ * {@link IntHashTable}, a single other field by a HashMap from its value, and
+ * several group-by fields by a HashMap from the list of their values; without
+ * grouping there is a single group 0, which exists once the first tuple has
+ * been seen.
+ */
+class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbfields;
+    private final IntHashTable ints;
+    // 单个分组列时键是 Field，多个分组列时键是 List<Field>
+    private final Map<Object, Integer> map;
+    private final List<Object> values;
+    private boolean seen = false;
+
+    GroupTable(int gbfield, Type gbfieldType) {
+        this(gbfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gbfield},
+                gbfield == Aggregator.NO_GROUPING ? new Type[0] : new Type[]{gbfieldType});
+    }
+
+    /**
+     * @param gbfields the group-by fields, empty if there is no grouping
+     * @param gbfieldTypes the types of the group-by fields
+     */
+    GroupTable(int[] gbfields, Type[] gbfieldTypes) {
+        this.gbfields = gbfields;
+        this.ints = gbfields.length == 1 && gbfieldTypes[0] == Type.INT_TYPE ? new IntHashTable() : null;
+        this.map = gbfields.length > 0 && ints == null ? new HashMap<>() : null;
+        this.values = map != null ? new ArrayList<>() : null;
+    }
+
+    /**
+     * @return the IntHashTable numbering INT group values, or null if the
+     *         group-by field is not a single INT_TYPE field
+     */
+    IntHashTable ints() {
+        return ints;
+    }
+
+    private int groupOfKey(Object key) {
+        Integer g = map.get(key);
+        if (g == null) {
+            g = values.size();
+            map.put(key, g);
+            values.add(key);
+        }
+        return g;
+    }
+
+    /**
+     * @return the group of a group value of a single group-by field, which is
+     *         added if it is new; the group value is ignored without grouping
+     */
+    int groupOf(Field value) {
+        if (ints != null)
+            return ints.add(((IntField) value).getValue());
+        if (map != null)
+            return groupOfKey(value);
+        seen = true;
+        return 0;
+    }
+
+    private Object keyOf(Tuple t) {
+        if (gbfields.length == 1)
+            return t.getField(gbfields[0]);
+        Field[] key = new Field[gbfields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = t.getField(gbfields[i]);
+        return Arrays.asList(key);
+    }
+
+    /**
+     * @return the group of the group value of a tuple, or -1 if it is new
+     */
+    int find(Tuple t) {
+        if (ints != null)
+            return ints.find(((IntField) t.getField(gbfields[0])).getValue());
+        if (map != null) {
+            Integer g = map.get(keyOf(t));
+            return g == null ? -1 : g;
+        }
+        return seen ? 0 : -1;
+    }
+
+    int groupOf(Tuple t) {
+        if (ints != null)
+            return ints.add(((IntField) t.getField(gbfields[0])).getValue());
+        if (map != null)
+            return groupOfKey(keyOf(t));
+        seen = true;
+        return 0;
+    }
+
+    int groupOf(TupleBatch batch, int row) {
+        if (ints != null)
+            return ints.add(batch.getInt(gbfields[0], row));
+        if (map == null) {
+            seen = true;
+            return 0;
+        }
+        if (gbfields.length == 1)
+            return groupOfKey(batch.getField(gbfields[0], row));
+        Field[] key = new Field[gbfields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = batch.getField(gbfields[i], row);
+        return groupOfKey(Arrays.asList(key));
+    }
+
+    /**
+     * @return the group, in this table, of a group of another table over the
+     *         same group-by fields
+     */
+    int groupOf(GroupTable other, int g) {
+        if (ints != null)
+            return ints.add(other.ints.key(g));
+        if (map != null)
+            return groupOfKey(other.values.get(g));
+        seen = true;
+        return 0;
+    }
+
+    /**
+     * @return the group value of a group with a single group-by field, or
+     *         null without grouping
+     */
+    Field value(int g) {
+        return value(g, 0);
+    }
+
+    /**
+     * @return the value of the i-th group-by field of a group
+     */
+    Field value(int g, int i) {
+        if (ints != null)
+            return new IntField(ints.key(g));
+        if (map == null)
+            return null;
+        Object key = values.get(g);
+        return gbfields.length == 1 ? (Field) key : (Field) ((List<?>) key).get(i);
+    }
+
+    /**
+     * @return the hash of the group value of a group, the same for the same
+     *         group value in every table over the same group-by fields; 0
+     *         without grouping
+     */
+    int hash(int g) {
+        if (ints != null)
+            return ints.key(g);
+        return map != null ? values.get(g).hashCode() : 0;
+    }
+
+    int size() {
+        if (ints != null)
+            return ints.size();
+        if (map != null)
+            return values.size();
+        return seen ? 1 : 0;
+    }
+}
@@ -0,0 +1,315 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HashDistinct removes duplicate tuples from its child with a hash table of
+ * the tuples returned so far. It streams: a tuple is returned as soon as it
+ * is read, unless an equal tuple was returned before.
+ * <p>
+ * The table holds at most memoryPages pages of tuples. Once it is full,
+ * tuples equal to one in the table are still dropped, while the other tuples
+ * are hash-partitioned into {@link SpillFile}s; they can not be equal to a
+ * tuple in the table, which no longer grows. After the child is exhausted,
+ * each spilled partition is deduplicated in turn: by another HashDistinct if
+ * it has no more tuples than the table holds, otherwise by an external
+ * {@link OrderBy} on the first field and a {@link SortDistinct}. The tuples
+ * of the spilled partitions come after the others, so the order of the child
+ * is kept only if nothing is spilled. A child with a single INT field is
+ * deduplicated with an {@link IntHashTable}.
+ */
+public class HashDistinct extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of a DISTINCT, in pages of tuples. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** Upper bound on the number of spilled partitions. */
+    public static final int MAX_PARTITIONS = 32;
+    /** Smallest memory budget of a DISTINCT, in pages of tuples. */
+    public static final int MIN_MEMORY_PAGES = 3;
+
+    private OpIterator child;
+    private int memoryPages;
+    // 本次 open 从查询预算中得到的页数，以及由它决定的分区数
+    private int grantedPages;
+    private int numPartitions;
+
+    // 已经返回的元组；只有一个 INT 字段时用 ints，否则用 seen
+    transient private IntHashTable ints;
+    transient private Set<List<Field>> seen;
+    transient private TupleBatch batch;
+    transient private int pos;
+    transient private boolean childDone;
+    // 表满之后新元组按哈希写入的分区文件，以及正在去重的分区
+    transient private SpillFile[] spills;
+    transient private int partition;
+    transient private OpIterator partitionIt;
+    transient private int spilledPartitions;
+    transient private int sortedPartitions;
+
+    /**
+     * Creates a HashDistinct with the default memory budget.
+     *
+     * @param child the child operator
+     */
+    public HashDistinct(OpIterator child) {
+        this(child, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * @param child       the child operator
+     * @param memoryPages the number of pages of tuples kept in memory; at
+     *                    least 3
+     */
+    public HashDistinct(OpIterator child, int memoryPages) {
+        if (memoryPages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a distinct needs at least 3 pages of memory");
+        this.child = child;
+        this.memoryPages = memoryPages;
+        this.grantedPages = memoryPages;
+        this.numPartitions = partitions(memoryPages);
+    }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a distinct needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    // 每个溢出分区写文件时要占一页缓冲
+    private static int partitions(int pages) {
+        return Math.min(MAX_PARTITIONS, pages - 1);
+    }
+
+    /**
+     * @return the number of partitions spilled since the last open or rewind
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of spilled partitions read so far that were too
+     *         large for the table and were sorted
+     */
+    public int getSortedPartitions() {
+        return sortedPartitions;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    private int maxTuples() {
+        return grantedPages * HeapPage.getNumTuples(child.getTupleDesc());
+    }
+
+    private void start() {
+        TupleDesc td = child.getTupleDesc();
+        boolean singleInt = td.numFields() == 1 && td.getFieldType(0) == Type.INT_TYPE;
+        ints = singleInt ? new IntHashTable() : null;
+        seen = singleInt ? null : new HashSet<>();
+        batch = null;
+        childDone = false;
+        partition = -1;
+        spilledPartitions = 0;
+        sortedPartitions = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        numPartitions = partitions(grantedPages);
+        child.open();
+        start();
+        super.open();
+    }
+
+    private void clear() {
+        if (partitionIt != null)
+            partitionIt.close();
+        partitionIt = null;
+        if (spills != null) {
+            for (SpillFile f : spills) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        spills = null;
+        ints = null;
+        seen = null;
+        batch = null;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        clear();
+        child.rewind();
+        start();
+    }
+
+    private void spill(int hash, Tuple t) throws IOException {
+        if (spills == null)
+            spills = new SpillFile[numPartitions];
+        int p = Aggregator.partitionOf(hash, numPartitions);
+        if (spills[p] == null) {
+            spills[p] = new SpillFile(child.getTupleDesc());
+            spilledPartitions++;
+        }
+        spills[p].add(t);
+    }
+
+    /**
+     * @return the next tuple of the child not equal to a tuple returned
+     *         before or spilled, or null once the child is exhausted
+     */
+    private Tuple nextFromChild() throws DbException, TransactionAbortedException, IOException {
+        int maxTuples = maxTuples();
+        while (true) {
+            while (batch == null || pos >= batch.numRows()) {
+                batch = child.nextBatch();
+                pos = 0;
+                if (batch == null)
+                    return null;
+            }
+            int row = batch.row(pos++);
+            if (ints != null) {
+                int v = batch.getInt(0, row);
+                if (ints.find(v) >= 0)
+                    continue;
+                if (ints.size() < maxTuples) {
+                    ints.add(v);
+                    return batch.getTuple(row);
+                }
+                spill(v, batch.getTuple(row));
+            } else {
+                Tuple t = batch.getTuple(row);
+                List<Field> key = SortDistinct.key(t);
+                if (seen.contains(key))
+                    continue;
+                if (seen.size() < maxTuples) {
+                    seen.add(key);
+                    return t;
+                }
+                spill(key.hashCode(), t);
+            }
+        }
+    }
+
+    /**
+     * Start returning the distinct tuples of the next spilled partition.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (spills == null)
+            return false;
+        if (partitionIt != null) {
+            partitionIt.close();
+            partitionIt = null;
+            spills[partition].delete();
+            spills[partition] = null;
+        }
+        do {
+            partition++;
+        } while (partition < numPartitions && spills[partition] == null);
+        if (partition >= numPartitions)
+            return false;
+
+        SpillFile f = spills[partition];
+        if (f.numTuples() <= maxTuples()) {
+            partitionIt = new HashDistinct(new SpillScan(f), grantedPages);
+        } else {
+            // 分区比表还大：按第一个字段外部排序，内存中一次只有一段相同值的元组
+            partitionIt = new SortDistinct(new OrderBy(0, true, new SpillScan(f), grantedPages), 0);
+            sortedPartitions++;
+        }
+        partitionIt.open();
+        return true;
+    }
+
+    /**
+     * Returns the tuples of the child that are not equal to a tuple returned
+     * before, then the distinct tuples of the spilled partitions.
+     *
+     * @return the next distinct tuple, or null if there are no more
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!childDone) {
+            try {
+                Tuple t = nextFromChild();
+                if (t != null)
+                    return t;
+                if (spills != null) {
+                    for (SpillFile f : spills) {
+                        if (f != null)
+                            f.finish();
+                    }
+                }
+            } catch (IOException e) {
+                clear();
+                throw new DbException("distinct spill failed: " + e.getMessage());
+            }
+            // 内存中的元组都已返回，释放哈希表
+            childDone = true;
+            ints = null;
+            seen = null;
+            if (!nextPartition())
+                return null;
+        }
+        while (partitionIt != null) {
+            if (partitionIt.hasNext())
+                return partitionIt.next();
+            if (!nextPartition())
+                return null;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -2,27 +2,92 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. child1 is the build side: its tuples are
+ * hashed on the join field into a number of partitions, all of which start in
+ * memory. Whenever the build side exceeds the memory budget, the largest
+ * partition still in memory is written to a {@link SpillFile}, and later build
+ * tuples of that partition go straight to the file. child2, the probe side, is
+ * then read exactly once: tuples of in-memory partitions are joined right
+ * away, the others are written to the probe file of their partition. Finally
+ * each spilled partition is joined by loading its build file into memory and
+ * reading its probe file. A spilled build partition that still does not fit
+ * (e.g. a single hot key) is loaded in chunks of the budget, reading its probe
+ * file once per chunk.
+ * <p>
+ * When both join fields are INT_TYPE fields, the in-memory partitions are
+ * open-addressing int hash tables rather than maps from Field to lists of
+ * tuples, and batches are probed with the int column directly.
+ * <p>
+ * While reading the build side, the join collects its keys into a
+ * {@link RuntimeFilter}, which it pushes down through the Filters and
+ * Exchanges of the probe side into its SeqScan or ParallelSeqScan. The scan
+ * then drops the probe tuples that can not match before copying them, and
+ * child2 is opened only after the build so that a parallel scan tests every
+ * batch.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the build side, in pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** Upper bound on the number of partitions. */
+    public static final int MAX_PARTITIONS = 32;
+    /** Smallest memory budget of the build side, in pages. */
+    public static final int MIN_MEMORY_PAGES = 3;
+
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
+    private int memoryPages;
+    // 本次 open 从查询预算中得到的页数，以及由它决定的分区数
+    private int grantedPages;
+    private int numPartitions;
+    private final boolean intKeys;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    // 每个分区在内存中的哈希表；分区溢出后为 null
+    transient private List<BuildTable> maps;
+    transient private SpillFile[] buildFiles;
+    transient private SpillFile[] probeFiles;
+    transient private int buildTuplesInMemory;
+    transient private int spilledPartitions;
+    // 下推到 child2 扫描中的运行时过滤器
+    transient private RuntimeFilter runtimeFilter;
+
+    // 处理溢出分区时的状态
+    transient private int partition;
+    transient private BuildTable partitionMap;
+    transient private DbFileIterator buildIt;
+    transient private DbFileIterator probeIt;
+
+    // nextBatch 按批探测 child2 时的状态
+    transient private TupleBatch probeBatch;
+    transient private int probePos, probeRow;
+    transient private Iterator<Tuple> batchMatches;
+    transient private boolean probeDone;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -31,10 +96,138 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with a memory budget for the build side.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join; the build side
+     * @param child2
+     *            Iterator for the right(inner) relation to join; the probe side
+     * @param memoryPages
+     *            the number of pages of build tuples kept in memory; at least 3
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (memoryPages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a hash join needs at least 3 pages of memory");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.memoryPages = memoryPages;
+        this.grantedPages = memoryPages;
+        this.numPartitions = partitions(memoryPages);
+        this.intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+    }
+
+    /**
+     * The build tuples of one partition in memory, by join key. INT keys are
+     * numbered by an {@link IntHashTable}, and the tuples of each key are
+     * chained in insertion order through parallel arrays; other keys go into
+     * a HashMap of lists.
+     */
+    private static class BuildTable {
+        private final IntHashTable ids;
+        private final Map<Field, List<Tuple>> map;
+        // 整数键：tuples[i] 之后的同键元组是 tuples[next[i]]
+        private Tuple[] tuples;
+        private int[] next;
+        private int[] heads;
+        private int[] tails;
+        private int size = 0;
+
+        BuildTable(boolean intKeys) {
+            if (intKeys) {
+                ids = new IntHashTable();
+                map = null;
+                tuples = new Tuple[16];
+                next = new int[16];
+                heads = new int[16];
+                tails = new int[16];
+            } else {
+                ids = null;
+                map = new HashMap<>();
+            }
+        }
+
+        void add(Field key, Tuple t) {
+            if (map != null) {
+                map.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+                return;
+            }
+            int keys = ids.size();
+            int id = ids.add(((IntField) key).getValue());
+            if (size == tuples.length) {
+                tuples = Arrays.copyOf(tuples, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+            }
+            tuples[size] = t;
+            next[size] = -1;
+            if (id == keys) {
+                // 新键
+                if (id == heads.length) {
+                    heads = Arrays.copyOf(heads, id * 2);
+                    tails = Arrays.copyOf(tails, id * 2);
+                }
+                heads[id] = size;
+            } else {
+                next[tails[id]] = size;
+            }
+            tails[id] = size;
+            size++;
+        }
+
+        /**
+         * @return the tuples with the specified key, or null if there are none
+         */
+        Iterator<Tuple> matches(Field key) {
+            if (map != null) {
+                List<Tuple> l = map.get(key);
+                return l == null ? null : l.iterator();
+            }
+            return matches(((IntField) key).getValue());
+        }
+
+        Iterator<Tuple> matches(int key) {
+            int id = ids.find(key);
+            if (id < 0)
+                return null;
+            return new Iterator<Tuple>() {
+                private int i = heads[id];
+
+                public boolean hasNext() {
+                    return i >= 0;
+                }
+
+                public Tuple next() {
+                    if (i < 0)
+                        throw new NoSuchElementException();
+                    Tuple t = tuples[i];
+                    i = next[i];
+                    return t;
+                }
+            };
+        }
+
+        /**
+         * Write all tuples to a spill file.
+         */
+        void writeTo(SpillFile f) throws IOException {
+            if (map != null) {
+                for (List<Tuple> list : map.values()) {
+                    for (Tuple t : list)
+                        f.add(t);
+                }
+                return;
+            }
+            for (int i = 0; i < size; i++)
+                f.add(tuples[i]);
+        }
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -44,7 +237,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,44 +247,207 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a hash join needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    // 每个溢出分区写文件时要占一页缓冲
+    private static int partitions(int pages) {
+        return Math.min(MAX_PARTITIONS, pages - 1);
+    }
+
+    /**
+     * @return the number of partitions written to disk by the last open or
+     *         rewind; 0 if the build side fit in memory
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the runtime filter pushed into the probe side by the last open
+     *         or rewind, or null if there is none
+     */
+    public RuntimeFilter getRuntimeFilter() {
+        return runtimeFilter;
+    }
+
+    /**
+     * @return the scan under the Filters of it, or null if it is not a
+     *         SeqScan or ParallelSeqScan under zero or more Filters and
+     *         Exchanges
+     */
+    private static OpIterator probeScan(OpIterator it) {
+        while (it instanceof Filter || it instanceof ConjunctiveFilter || it instanceof Exchange)
+            it = ((Operator) it).getChildren()[0];
+        return it instanceof SeqScan || it instanceof ParallelSeqScan ? it : null;
+    }
+
+    private void pushRuntimeFilter(RuntimeFilter f) {
+        // Filter 不改变字段编号，child2 的连接字段就是扫描输出中的字段
+        OpIterator scan = probeScan(child2);
+        if (scan instanceof SeqScan)
+            ((SeqScan) scan).setRuntimeFilter(pred.getField2(), f);
+        else if (scan instanceof ParallelSeqScan)
+            ((ParallelSeqScan) scan).setRuntimeFilter(pred.getField2(), f);
+    }
+
+    private int maxBuildTuples() {
+        return grantedPages * HeapPage.getNumTuples(child1.getTupleDesc());
+    }
+
+    // IntField.hashCode() 就是它的值，整数列可以不创建 Field 直接分区
+    private int partitionOf(Field f) {
+        return partitionOf(f.hashCode());
+    }
+
+    private int partitionOf(int h) {
+        return Math.floorMod(h ^ (h >>> 16), numPartitions);
+    }
+
+    /**
+     * Read the build side, spilling the largest partition in memory whenever
+     * the budget is exceeded.
+     */
+    private void build() throws DbException, TransactionAbortedException, IOException {
+        maps = new ArrayList<>(numPartitions);
+        for (int i = 0; i < numPartitions; i++)
+            maps.add(new BuildTable(intKeys));
+        buildFiles = new SpillFile[numPartitions];
+        probeFiles = new SpillFile[numPartitions];
+        buildTuplesInMemory = 0;
+        spilledPartitions = 0;
+        int[] sizes = new int[numPartitions];
+        int maxTuples = maxBuildTuples();
+        Type keyType = child1.getTupleDesc().getFieldType(pred.getField1());
+        RuntimeFilter rf = null;
+        if (probeScan(child2) != null && keyType == child2.getTupleDesc().getFieldType(pred.getField2()))
+            rf = new RuntimeFilter(keyType);
         while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            Tuple t = child1.next();
+            Field key = t.getField(pred.getField1());
+            // 键太多时过滤器几乎不能排除元组，放弃
+            if (rf != null && !rf.add(key))
+                rf = null;
+            int p = partitionOf(key);
+            if (buildFiles[p] != null) {
+                buildFiles[p].add(t);
+                continue;
+            }
+            maps.get(p).add(key, t);
+            sizes[p]++;
+            if (++buildTuplesInMemory > maxTuples) {
+                int largest = -1;
+                for (int i = 0; i < numPartitions; i++) {
+                    if (buildFiles[i] == null && (largest < 0 || sizes[i] > sizes[largest]))
+                        largest = i;
+                }
+                spill(largest);
+                buildTuplesInMemory -= sizes[largest];
+                sizes[largest] = 0;
+            }
         }
-        return cnt > 0;
+        for (SpillFile f : buildFiles) {
+            if (f != null)
+                f.finish();
+        }
+        if (rf != null) {
+            rf.finish();
+            runtimeFilter = rf;
+            pushRuntimeFilter(rf);
+        }
+    }
 
+    private void spill(int p) throws IOException {
+        SpillFile f = new SpillFile(child1.getTupleDesc());
+        maps.get(p).writeTo(f);
+        maps.set(p, null);
+        buildFiles[p] = f;
+        probeFiles[p] = new SpillFile(child2.getTupleDesc());
+        spilledPartitions++;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        try {
+            build();
+        } catch (IOException e) {
+            clear();
+            throw new DbException("hash join spill failed: " + e.getMessage());
+        }
+        partition = -1;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        clear();
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        numPartitions = partitions(grantedPages);
         child1.open();
+        start();
         child2.open();
-        loadMap();
         super.open();
     }
 
+    private void clear() {
+        if (runtimeFilter != null)
+            pushRuntimeFilter(null);
+        runtimeFilter = null;
+        if (buildIt != null)
+            buildIt.close();
+        if (probeIt != null)
+            probeIt.close();
+        buildIt = null;
+        probeIt = null;
+        partitionMap = null;
+        if (buildFiles != null) {
+            for (int i = 0; i < buildFiles.length; i++) {
+                if (buildFiles[i] != null)
+                    buildFiles[i].delete();
+                if (probeFiles[i] != null)
+                    probeFiles[i].delete();
+            }
+        }
+        buildFiles = null;
+        probeFiles = null;
+        maps = null;
+        this.t1 = null;
+        this.t2 = null;
+        this.listIt = null;
+        probeBatch = null;
+        batchMatches = null;
+        probeDone = false;
+    }
+
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        clear();
         child1.rewind();
+        start();
         child2.rewind();
     }
 
@@ -111,7 +467,7 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
@@ -136,28 +492,131 @@ public class HashEquiJoin extends Operator {
             return processList();
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
+        try {
+            // loop around child2, the only pass over the probe side
+            while (partition < 0 && !probeDone && child2.hasNext()) {
+                t2 = child2.next();
+                Field key = t2.getField(pred.getField2());
+                int p = partitionOf(key);
+                BuildTable map = maps.get(p);
+                if (map == null) {
+                    probeFiles[p].add(t2);
+                    continue;
+                }
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                Iterator<Tuple> l = map.matches(key);
+                if (l == null)
+                    continue;
+                listIt = l;
+                return processList();
+            }
 
+            // child2 is done: join the spilled partitions one by one
+            while (true) {
+                if (probeIt != null) {
+                    while (probeIt.hasNext()) {
+                        t2 = probeIt.next();
+                        Iterator<Tuple> l = partitionMap.matches(t2.getField(pred.getField2()));
+                        if (l == null)
+                            continue;
+                        listIt = l;
+                        return processList();
+                    }
+                    if (buildIt.hasNext()) {
+                        // 分区太大，分块装入，每块重读一遍探测文件
+                        loadPartitionChunk();
+                        probeIt.rewind();
+                        continue;
+                    }
+                    buildIt.close();
+                    probeIt.close();
+                    buildIt = null;
+                    probeIt = null;
+                    partitionMap = null;
+                    buildFiles[partition].delete();
+                    probeFiles[partition].delete();
+                }
+                do {
+                    partition++;
+                } while (partition < numPartitions && buildFiles[partition] == null);
+                if (partition >= numPartitions)
+                    return null;
+                buildIt = buildFiles[partition].iterator();
+                buildIt.open();
+                loadPartitionChunk();
+                probeIt = probeFiles[partition].iterator();
+                probeIt.open();
+            }
+        } catch (IOException e) {
+            throw new DbException("hash join spill failed: " + e.getMessage());
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Probes with the batches of child2: the join fields of child1 tuples and
+     * the columns of the matching probe rows are copied straight into the
+     * output batch. Spilled partitions are joined a tuple at a time once
+     * child2 is done, as in {@link #fetchNext}.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD);
+        int td1n = child1.getTupleDesc().numFields();
+        int td2n = child2.getTupleDesc().numFields();
+        try {
+            while (!out.isFull()) {
+                if (batchMatches != null && batchMatches.hasNext()) {
+                    Tuple t = batchMatches.next();
+                    int row = out.addRow();
+                    for (int i = 0; i < td1n; i++)
+                        out.set(i, row, t.getField(i));
+                    for (int i = 0; i < td2n; i++)
+                        out.copy(td1n + i, row, probeBatch, i, probeRow);
+                } else if (probeBatch != null && probePos < probeBatch.numRows()) {
+                    probeRow = probeBatch.row(probePos++);
+                    int intKey = 0;
+                    Field key = null;
+                    int p;
+                    if (intKeys) {
+                        intKey = probeBatch.getInt(pred.getField2(), probeRow);
+                        p = partitionOf(intKey);
+                    } else {
+                        key = probeBatch.getField(pred.getField2(), probeRow);
+                        p = partitionOf(key);
+                    }
+                    BuildTable map = maps.get(p);
+                    if (map == null) {
+                        probeFiles[p].add(probeBatch.getTuple(probeRow));
+                        batchMatches = null;
+                    } else {
+                        batchMatches = intKeys ? map.matches(intKey) : map.matches(key);
+                    }
+                } else if (!probeDone) {
+                    probeBatch = child2.nextBatch();
+                    probePos = 0;
+                    if (probeBatch == null)
+                        probeDone = true;
+                } else {
+                    Tuple t = fetchNext();
+                    if (t == null)
+                        break;
+                    out.add(t);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("hash join spill failed: " + e.getMessage());
         }
+        return out.size() == 0 ? null : out;
+    }
 
-        return null;
+    private void loadPartitionChunk() throws DbException, TransactionAbortedException {
+        partitionMap = new BuildTable(intKeys);
+        int maxTuples = maxBuildTuples();
+        for (int n = 0; n < maxTuples && buildIt.hasNext(); n++) {
+            Tuple t = buildIt.next();
+            partitionMap.add(t.getField(pred.getField1()), t);
+        }
     }
 
     @Override
@@ -170,5 +629,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
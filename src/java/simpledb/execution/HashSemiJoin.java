@@ -0,0 +1,526 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HashSemiJoin implements {@code f IN (SELECT ...)} and
+ * {@code f NOT IN (SELECT ...)} over an uncorrelated subquery. child2, the
+ * subquery, is read once when the join is opened and its join field values
+ * are collected into a hash set; the set is kept across rewinds, so the
+ * subquery runs once per query. The tuples of child1 are then returned, in
+ * the order of child1, if their join field is in the set, or for an anti
+ * join if it is not. Each tuple of child1 is returned at most once however
+ * many times its value occurs in the subquery, and the output has the
+ * TupleDesc of child1.
+ * <p>
+ * When both join fields are INT_TYPE fields, the set is an
+ * {@link IntHashTable} and batches of child1 are filtered by narrowing their
+ * selection vectors.
+ * <p>
+ * The set holds at most memoryPages pages of values. Once it is full, values
+ * of the subquery not in the set are hash-partitioned into key
+ * {@link SpillFile}s, which are kept across rewinds like the set. A tuple of
+ * child1 whose value is not in the set but falls in a spilled partition is
+ * then written to the probe file of that partition. After child1 is
+ * exhausted, each spilled partition is joined in turn: by another
+ * HashSemiJoin if its key file fits in the budget, otherwise by sorting both
+ * files on the join field and merging them. The tuples of the spilled
+ * partitions come after the others, so the order of child1 is kept only if
+ * nothing is spilled.
+ */
+public class HashSemiJoin extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the set, in pages of join field values. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** Upper bound on the number of spilled partitions. */
+    public static final int MAX_PARTITIONS = 32;
+    /** Smallest memory budget of the set, in pages of join field values. */
+    public static final int MIN_MEMORY_PAGES = 3;
+
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator child1, child2;
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+    // 本次 open 从查询预算中得到的页数，以及由它决定的分区数
+    private int grantedPages;
+    private int numPartitions;
+
+    // 子查询结果中连接字段的值
+    transient private IntHashTable ints;
+    transient private Set<Field> keys;
+    // 集合满了之后子查询的其它值，以及落在这些分区中的 child1 元组，按哈希分区
+    transient private SpillFile[] keyFiles;
+    transient private SpillFile[] probeFiles;
+    transient private int spilledPartitions;
+    // child1 读完之后正在处理的溢出分区
+    transient private boolean probeDone;
+    transient private int partition;
+    transient private OpIterator partitionIt;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            the join predicate; its operator must be EQUALS
+     * @param child1
+     *            the outer input, whose tuples are returned
+     * @param child2
+     *            the subquery whose join field values the tuples of child1
+     *            are looked up in
+     * @param anti
+     *            true to return the tuples of child1 whose value is not in
+     *            child2 (NOT IN)
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a semi join needs an equality predicate");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a semi join needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    /**
+     * @return the number of partitions of the subquery written to disk by the
+     *         last open; 0 if all of its values fit in memory
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the number of distinct values of the subquery kept in memory,
+     *         or 0 if the join is not open
+     */
+    public int getNumKeys() {
+        if (ints != null)
+            return ints.size();
+        return keys == null ? 0 : keys.size();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    private boolean intKeys() {
+        return child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+    }
+
+    private TupleDesc keyTupleDesc() {
+        return new TupleDesc(new Type[]{child2.getTupleDesc().getFieldType(pred.getField2())});
+    }
+
+    private int maxKeys() {
+        return grantedPages * HeapPage.getNumTuples(keyTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        clear();
+        ints = intKeys() ? new IntHashTable() : null;
+        keys = ints == null ? new HashSet<>() : null;
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        numPartitions = Math.min(MAX_PARTITIONS, grantedPages - 1);
+        int maxKeys = maxKeys();
+        int field = pred.getField2();
+        child2.open();
+        try {
+            TupleBatch batch;
+            while ((batch = child2.nextBatch()) != null) {
+                for (int i = 0; i < batch.numRows(); i++) {
+                    int row = batch.row(i);
+                    if (ints != null) {
+                        int v = batch.getInt(field, row);
+                        // add 对已有的值返回原来的编号，只探测一次
+                        if (ints.size() < maxKeys)
+                            ints.add(v);
+                        else if (ints.find(v) < 0)
+                            spillKey(v, batch.getField(field, row));
+                    } else {
+                        Field f = batch.getField(field, row);
+                        if (keys.size() < maxKeys)
+                            keys.add(f);
+                        else if (!keys.contains(f))
+                            spillKey(f.hashCode(), f);
+                    }
+                }
+            }
+            if (keyFiles != null) {
+                for (SpillFile f : keyFiles) {
+                    if (f != null)
+                        f.finish();
+                }
+            }
+        } catch (IOException e) {
+            clear();
+            throw new DbException("semi join spill failed: " + e.getMessage());
+        } finally {
+            // 子查询只执行这一次
+            child2.close();
+        }
+        child1.open();
+        startProbe();
+        super.open();
+    }
+
+    private void spillKey(int hash, Field f) throws IOException {
+        if (keyFiles == null)
+            keyFiles = new SpillFile[numPartitions];
+        int p = Aggregator.partitionOf(hash, numPartitions);
+        if (keyFiles[p] == null) {
+            keyFiles[p] = new SpillFile(keyTupleDesc());
+            spilledPartitions++;
+        }
+        Tuple t = new Tuple(keyTupleDesc());
+        t.setField(0, f);
+        keyFiles[p].add(t);
+    }
+
+    /**
+     * @return true if the subquery values with this hash code that are not in
+     *         memory were spilled
+     */
+    private boolean spilled(int hash) {
+        return keyFiles != null && keyFiles[Aggregator.partitionOf(hash, numPartitions)] != null;
+    }
+
+    private void spillProbe(int hash, Tuple t) throws DbException {
+        int p = Aggregator.partitionOf(hash, numPartitions);
+        try {
+            if (probeFiles[p] == null)
+                probeFiles[p] = new SpillFile(child1.getTupleDesc());
+            probeFiles[p].add(t);
+        } catch (IOException e) {
+            clear();
+            throw new DbException("semi join spill failed: " + e.getMessage());
+        }
+    }
+
+    private void startProbe() {
+        probeFiles = keyFiles == null ? null : new SpillFile[numPartitions];
+        probeDone = false;
+        partition = -1;
+    }
+
+    /**
+     * Delete the probe files and close the spilled partition being joined.
+     */
+    private void clearProbe() {
+        if (partitionIt != null)
+            partitionIt.close();
+        partitionIt = null;
+        if (probeFiles != null) {
+            for (SpillFile f : probeFiles) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        probeFiles = null;
+    }
+
+    private void clear() {
+        clearProbe();
+        if (keyFiles != null) {
+            for (SpillFile f : keyFiles) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        keyFiles = null;
+        spilledPartitions = 0;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        clear();
+        ints = null;
+        keys = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // 子查询的值和溢出的 key 文件保留，只重新读 child1
+        clearProbe();
+        child1.rewind();
+        startProbe();
+    }
+
+    /**
+     * Start returning the matching tuples of the next spilled partition that
+     * has tuples of child1.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (probeFiles == null)
+            return false;
+        if (partitionIt != null) {
+            partitionIt.close();
+            partitionIt = null;
+            probeFiles[partition].delete();
+            probeFiles[partition] = null;
+        }
+        do {
+            partition++;
+        } while (partition < numPartitions && probeFiles[partition] == null);
+        if (partition >= numPartitions)
+            return false;
+
+        SpillScan probe = new SpillScan(probeFiles[partition]);
+        SpillScan subquery = new SpillScan(keyFiles[partition]);
+        if (keyFiles[partition].numTuples() <= maxKeys()) {
+            HashSemiJoin j = new HashSemiJoin(new JoinPredicate(pred.getField1(), Predicate.Op.EQUALS, 0),
+                    probe, subquery, anti);
+            j.setMemoryPages(grantedPages);
+            partitionIt = j;
+        } else {
+            // 分区的值仍然放不下：两边按连接字段外部排序后归并，各用一半预算
+            int pages = Math.max(OrderBy.MIN_MEMORY_PAGES, grantedPages / 2);
+            partitionIt = new MergeSemiJoin(new OrderBy(pred.getField1(), true, probe, pages),
+                    new OrderBy(0, true, subquery, pages), pred.getField1(), anti);
+        }
+        partitionIt.open();
+        return true;
+    }
+
+    /**
+     * Finish the probe files once child1 is exhausted.
+     */
+    private void finishProbe() throws DbException {
+        probeDone = true;
+        if (probeFiles == null)
+            return;
+        try {
+            for (SpillFile f : probeFiles) {
+                if (f != null)
+                    f.finish();
+            }
+        } catch (IOException e) {
+            clear();
+            throw new DbException("semi join spill failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the next tuple of child1 whose join field is in the subquery,
+     * or is not for an anti join; the tuples of the spilled partitions come
+     * last.
+     *
+     * @return the next matching tuple of child1, or null if there are no more
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!probeDone) {
+            int field = pred.getField1();
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                Field f = t.getField(field);
+                boolean found = ints != null ? ints.find(((IntField) f).getValue()) >= 0
+                        : keys.contains(f);
+                if (!found && spilled(f.hashCode()))
+                    spillProbe(f.hashCode(), t);
+                else if (found != anti)
+                    return t;
+            }
+            finishProbe();
+        }
+        while (true) {
+            if (partitionIt != null && partitionIt.hasNext())
+                return partitionIt.next();
+            if (!nextPartition())
+                return null;
+        }
+    }
+
+    /**
+     * Filters the batches of child1 by narrowing their selection vectors,
+     * skipping batches in which no row matches, then returns the batches of
+     * the spilled partitions.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        int field = pred.getField1();
+        TupleBatch batch;
+        while (!probeDone && (batch = child1.nextBatch()) != null) {
+            int n = batch.numRows();
+            int[] sel = new int[n];
+            int k = 0;
+            if (ints != null) {
+                int[] col = batch.getInts(field);
+                for (int i = 0; i < n; i++) {
+                    int row = batch.row(i);
+                    boolean found = ints.find(col[row]) >= 0;
+                    if (!found && spilled(col[row]))
+                        spillProbe(col[row], batch.getTuple(row));
+                    else if (found != anti)
+                        sel[k++] = row;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    int row = batch.row(i);
+                    Field f = batch.getField(field, row);
+                    boolean found = keys.contains(f);
+                    if (!found && spilled(f.hashCode()))
+                        spillProbe(f.hashCode(), batch.getTuple(row));
+                    else if (found != anti)
+                        sel[k++] = row;
+                }
+            }
+            batch.select(sel, k);
+            if (k > 0)
+                return batch;
+        }
+        if (!probeDone)
+            finishProbe();
+        while (true) {
+            if (partitionIt != null) {
+                batch = partitionIt.nextBatch();
+                if (batch != null)
+                    return batch;
+            }
+            if (!nextPartition())
+                return null;
+        }
+    }
+
+    /**
+     * Joins a spilled partition whose values do not fit in memory: child1 is
+     * the probe file and child2 the key file, both sorted ascending on the
+     * join field, and the tuples of child1 are returned in that order.
+     */
+    private static class MergeSemiJoin extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private OpIterator child1, child2;
+        private final int field;
+        private final boolean anti;
+        // child2 中第一个不小于当前 child1 元组的值
+        transient private Field key;
+
+        MergeSemiJoin(OpIterator child1, OpIterator child2, int field, boolean anti) {
+            this.child1 = child1;
+            this.child2 = child2;
+            this.field = field;
+            this.anti = anti;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child1.getTupleDesc();
+        }
+
+        private Field nextKey() throws DbException, TransactionAbortedException {
+            return child2.hasNext() ? child2.next().getField(0) : null;
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            child1.open();
+            child2.open();
+            key = nextKey();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child1.close();
+            child2.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child1.rewind();
+            child2.rewind();
+            key = nextKey();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                Field f = t.getField(field);
+                while (key != null && key.compare(Predicate.Op.LESS_THAN, f))
+                    key = nextKey();
+                boolean found = key != null && key.equals(f);
+                if (found != anti)
+                    return t;
+            }
+            return null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { child1, child2 };
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            child1 = children[0];
+            child2 = children[1];
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
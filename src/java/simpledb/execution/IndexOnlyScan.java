@@ -0,0 +1,124 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexOnlyScan answers a scan of a heap table from one of its secondary
+ * indexes, without reading any heap pages. It returns only the columns
+ * stored in the index (the key followed by the included columns), named
+ * tableAlias.fieldName like {@link SeqScan}. Each returned tuple carries the
+ * RecordId of the heap tuple it was built from.
+ */
+public class IndexOnlyScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private final IndexPredicate ipred;
+    private final TupleDesc td;
+
+    private DbFileIterator iter;
+
+    /**
+     * Creates an index-only scan over the specified index.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to read
+     * @param tableAlias
+     *            the alias of the indexed table
+     * @param ipred
+     *            the predicate on the index key to scan for, or null to read
+     *            the whole index in key order
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        int[] covered = index.getCoveredFields();
+        Type[] types = new Type[covered.length];
+        String[] names = new String[covered.length];
+        for (int i = 0; i < covered.length; i++) {
+            types[i] = tableTd.getFieldType(covered[i]);
+            names[i] = tableAlias + "." + tableTd.getFieldName(covered[i]);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the name of the indexed table in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the indexed table
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the index this operator reads
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (ipred == null) {
+            iter = index.getFile().iterator(tid);
+        } else {
+            iter = index.getFile().indexIterator(tid, ipred);
+        }
+        iter.open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (iter == null) throw new IllegalStateException("Operator not yet open");
+        return iter.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (iter == null) throw new IllegalStateException("Operator not yet open");
+        Tuple entry = iter.next();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            t.setField(i, entry.getField(i));
+        }
+        t.setRecordId(index.getRecordId(entry));
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        iter.rewind();
+    }
+
+    public void close() {
+        if (iter != null) {
+            iter.close();
+        }
+        iter = null;
+    }
+}
@@ -11,15 +11,21 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
- * constructor
+ * constructor. The tuples are passed to the buffer pool BATCH_SIZE at a time,
+ * so that each page is filled in one go.
  */
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples passed to the buffer pool at a time. */
+    public static final int BATCH_SIZE = 1024;
+
     private TransactionId tid;
     private OpIterator child;
     private int tableId;
@@ -83,7 +89,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -92,12 +98,18 @@ public class Insert extends Operator {
         }
         BufferPool bufferPool = Database.getBufferPool();
         int count = 0;
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (child.hasNext()) {
-            try {
-                bufferPool.insertTuple(tid, tableId, child.next());
-                count ++;
-            } catch (IOException e) {
-                e.printStackTrace();
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    // 一批元组一起插入，每页只加锁、修改、标脏一次
+                    bufferPool.insertTuples(tid, tableId, batch);
+                } catch (IOException e) {
+                    throw new DbException(e.getMessage());
+                }
+                count += batch.size();
+                batch.clear();
             }
         }
         insertTuple = new Tuple(tupleDesc);
@@ -0,0 +1,117 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * IntHashTable numbers distinct int keys: the first key added gets id 0, the
+ * next new key id 1, and so on. Operators keep the state of a key, such as an
+ * aggregate or a list of tuples, in plain arrays indexed by its id, so a group
+ * or join key costs a few array slots instead of a boxed Field, a map entry
+ * and a state object.
+ * <p>
+ * The table uses open addressing with linear probing over two parallel
+ * arrays, the keys and their ids, and is kept at most half full.
+ */
+public class IntHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] slotKeys;
+    private int[] slotIds;
+    private int mask;
+    // 按编号保存的键
+    private int[] keys;
+    private int size = 0;
+
+    public IntHashTable() {
+        this(16);
+    }
+
+    /**
+     * @param expected the number of keys to make room for
+     */
+    public IntHashTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(8, expected) * 2 - 1) << 1;
+        allocate(capacity);
+        keys = new int[Math.max(8, expected)];
+    }
+
+    private void allocate(int capacity) {
+        slotKeys = new int[capacity];
+        slotIds = new int[capacity];
+        Arrays.fill(slotIds, -1);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the id of key, or -1 if it has not been added
+     */
+    public int find(int key) {
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int id = slotIds[slot];
+            if (id < 0 || slotKeys[slot] == key)
+                return id;
+        }
+    }
+
+    /**
+     * @return the id of key, which gets the next id if it is new
+     */
+    public int add(int key) {
+        int slot = hash(key) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int id = slotIds[slot];
+            if (id < 0)
+                break;
+            if (slotKeys[slot] == key)
+                return id;
+        }
+        int id = size++;
+        if (id == keys.length)
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        keys[id] = key;
+        slotKeys[slot] = key;
+        slotIds[slot] = id;
+        if (size * 2 > slotIds.length)
+            rehash();
+        return id;
+    }
+
+    private void rehash() {
+        allocate(slotIds.length * 2);
+        for (int id = 0; id < size; id++) {
+            int slot = hash(keys[id]) & mask;
+            while (slotIds[slot] >= 0)
+                slot = (slot + 1) & mask;
+            slotKeys[slot] = keys[id];
+            slotIds[slot] = id;
+        }
+    }
+
+    /**
+     * @return the key with the specified id
+     */
+    public int key(int id) {
+        return keys[id];
+    }
+
+    /**
+     * @return the number of keys, which is also the next id
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate number of bytes of the arrays of the table
+     */
+    public long memoryBytes() {
+        return 4L * (slotKeys.length + slotIds.length + keys.length);
+    }
+}
@@ -4,9 +4,7 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -21,50 +19,9 @@ public class IntegerAggregator implements Aggregator {
     private final Op what;
     private final TupleDesc td; // 根据gbfield创建的TupleDesc
     // https://wenku.baidu.com/view/627f3a07bfd126fff705cc1755270722182e5947.html
-    // 分组列作为key，聚合列作为value
-    private final Map<Field, AggResult> results = new HashMap<>();
-
-    // 有另一种实现方法是抽象类及其不同op对应的继承，但是更麻烦
-    private static class AggResult {
-        private final Op op;
-        private float result;
-        private int count;
-
-        private AggResult(Op what) {
-            this.op = what;
-        }
-
-        public void merge(int newValue) {
-            if (count == 0) {
-                result = newValue;
-                count = 1;
-            } else {
-                switch (op) {
-                    case MIN:
-                        result = Math.min(result, newValue);
-                        break;
-                    case MAX:
-                        result = Math.max(result, newValue);
-                        break;
-                    case SUM:
-                        result = result + newValue;
-                        break;
-                    case AVG:
-                        result = (result * count + newValue) / (count + 1);
-                        break;
-                }
-                count++;
-            }
-        }
-
-        public int intResult() {
-            if (op == Op.COUNT) {
-                return count;
-            } else {
-                return (int) result;
-            }
-        }
-    }
+    // 分组编号到聚合状态：状态按分组编号存在并列的数组里
+    private final GroupTable groups;
+    private final AggregateState state = new AggregateState();
 
     /**
      * Aggregate constructor
@@ -87,6 +44,7 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldType = gbfieldtype;
         this.afield = afield;
         this.what = what;
+        this.groups = new GroupTable(gbfield, gbfieldtype);
         if (gbfield != Aggregator.NO_GROUPING) {
             // 返回的TupleDesc有分组列和聚合列
             this.td = new TupleDesc(new Type[]{gbfieldType, Type.INT_TYPE});
@@ -108,18 +66,90 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field keyField = null;
-        if (gbfield != Aggregator.NO_GROUPING) {
-            keyField = tup.getField(gbfield);
+        int g = groups.groupOf(tup);
+        state.ensureCapacity(g);
+        state.add(g, ((IntField) tup.getField(afield)).getValue());
+    }
+
+    @Override
+    public boolean mergeIntoExistingGroup(Tuple tup) {
+        int g = groups.find(tup);
+        if (g < 0)
+            return false;
+        state.add(g, ((IntField) tup.getField(afield)).getValue());
+        return true;
+    }
+
+    @Override
+    public int numGroups() {
+        return groups.size();
+    }
+
+    /**
+     * Merge the selected rows of a batch, reading the aggregate column as an
+     * int vector. Integer group values are looked up in the IntHashTable of
+     * the groups directly; consecutive rows of the same group share one
+     * lookup.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        int[] values = batch.getInts(afield);
+        int n = batch.numRows();
+        IntHashTable ints = groups.ints();
+        if (ints != null) {
+            int[] keys = batch.getInts(gbfield);
+            int g = -1;
+            int lastKey = 0;
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                if (g < 0 || keys[row] != lastKey) {
+                    lastKey = keys[row];
+                    g = ints.add(lastKey);
+                    state.ensureCapacity(g);
+                }
+                state.add(g, values[row]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                int g = groups.groupOf(batch, row);
+                state.ensureCapacity(g);
+                state.add(g, values[row]);
+            }
+        }
+    }
+
+    @Override
+    public void merge(Aggregator other) {
+        IntegerAggregator o = (IntegerAggregator) other;
+        for (int og = 0; og < o.groups.size(); og++) {
+            int g = groups.groupOf(o.groups, og);
+            state.ensureCapacity(g);
+            state.add(g, o.state, og);
+        }
+    }
+
+    @Override
+    public Aggregator[] partition(int n) {
+        IntegerAggregator[] parts = new IntegerAggregator[n];
+        for (int i = 0; i < n; i++)
+            parts[i] = new IntegerAggregator(gbfield, gbfieldType, afield, what);
+        for (int g = 0; g < groups.size(); g++) {
+            IntegerAggregator part = parts[Aggregator.partitionOf(groups.value(g), n)];
+            int pg = part.groups.groupOf(groups, g);
+            part.state.ensureCapacity(pg);
+            part.state.add(pg, state, g);
         }
-//        } else {
-//            keyField = Aggregator.EMPTY_FIELD;
-//        }
-        int newValue = ((IntField) tup.getField(afield)).getValue();
-        // 如果key有对应的value，则把值合并到那个value中，否则new一个新的value合并值进去
-        // computeIfAbsent: 如果 key 对应的 value 不存在，则使用获取 remappingFunction
-        // 重新计算后的值，并保存为该 key 的 value，否则返回 value
-        results.computeIfAbsent(keyField, key -> new IntegerAggregator.AggResult(what)).merge(newValue);
+        return parts;
+    }
+
+    /**
+     * @return the approximate number of bytes of the aggregate state and, for
+     *         integer groups, of the group table
+     */
+    public long memoryBytes() {
+        IntHashTable ints = groups.ints();
+        return (ints == null ? 0 : ints.memoryBytes()) + state.memoryBytes();
     }
 
     /**
@@ -135,14 +165,14 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
 //        throw new
 //        UnsupportedOperationException("please implement me for lab2");
-        List<Tuple> tuples = new ArrayList<>(results.size());
-        for (Map.Entry<Field, AggResult> entry: results.entrySet()) {
+        List<Tuple> tuples = new ArrayList<>(groups.size());
+        for (int g = 0; g < groups.size(); g++) {
             Tuple tuple = new Tuple(td);
             if (gbfield != Aggregator.NO_GROUPING) {
-                tuple.setField(0, entry.getKey());
-                tuple.setField(1, new IntField(entry.getValue().intResult()));
+                tuple.setField(0, groups.value(g));
+                tuple.setField(1, new IntField(state.result(g, what)));
             } else {
-                tuple.setField(0, new IntField(entry.getValue().intResult()));
+                tuple.setField(0, new IntField(state.result(g, what)));
             }
             tuples.add(tuple);
         }
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.HeapPage;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,14 +10,30 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * By default Join is a tuple-at-a-time nested loops join, which reads child2
+ * once per tuple of child1. In block mode it buffers a number of pages worth of
+ * child1 tuples and reads child2 once per block instead.
  */
-public class Join extends Operator {
+public class Join extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default size of the outer block of a block nested loops join, in pages. */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
     private JoinPredicate joinPredicate;
     private OpIterator child1;
     private OpIterator child2;
+    private int blockPages;
+    // 本次 open 从查询预算中得到的块大小
+    private int grantedPages;
+
+    // 块模式下缓存的外层元组，以及当前的内层元组
+    private final List<Tuple> block = new ArrayList<>();
+    private int blockPos;
+    private Tuple inner;
+    private boolean firstBlock;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -34,6 +51,62 @@ public class Join extends Operator {
         this.joinPredicate = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.blockPages = 0;
+    }
+
+    /**
+     * Constructor for a block nested loops join.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            the number of pages worth of child1 tuples joined per pass
+     *            over child2; at least 1
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
+        if (blockPages < 1)
+            throw new IllegalArgumentException("a block needs at least one page");
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.blockPages = blockPages;
+    }
+
+    /**
+     * @return the size of the outer block in pages, or 0 for a tuple-at-a-time
+     *         join
+     */
+    public int getBlockPages() {
+        return blockPages;
+    }
+
+    /**
+     * @return the size of the outer block in pages, 0 for a tuple-at-a-time
+     *         join, which keeps no tuples in memory
+     */
+    public int getMemoryPages() {
+        return blockPages;
+    }
+
+    /**
+     * Set the size of the outer block of a block nested loops join.
+     *
+     * @throws IllegalStateException if the join is tuple-at-a-time
+     */
+    public void setMemoryPages(int pages) {
+        if (blockPages == 0)
+            throw new IllegalStateException("a tuple-at-a-time join has no block");
+        if (pages < 1)
+            throw new IllegalArgumentException("a block needs at least one page");
+        this.blockPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return blockPages == 0 ? 0 : 1;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -73,22 +146,35 @@ public class Join extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        if (blockPages > 0)
+            grantedPages = reserveMemory(blockPages, 1);
         this.child1.open();
         this.child2.open();
+        resetBlock();
         super.open();
     }
 
+    private void resetBlock() {
+        t1 = null;
+        block.clear();
+        blockPos = 0;
+        inner = null;
+        firstBlock = true;
+    }
+
     public void close() {
         // some code goes here
         super.close();
         this.child1.close();
         this.child2.close();
+        resetBlock();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         this.child1.rewind();
         this.child2.rewind();
+        resetBlock();
     }
 
     private Tuple t1;
@@ -112,6 +198,8 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (blockPages > 0)
+            return fetchNextBlock();
         // some code goes here
         TupleDesc td1 = child1.getTupleDesc();
         TupleDesc td2 = child2.getTupleDesc();
@@ -143,6 +231,47 @@ public class Join extends Operator {
         return null;
     }
 
+    /**
+     * Block nested loops: for each block of child1 tuples, read child2 once and
+     * compare each of its tuples with every tuple of the block.
+     */
+    private Tuple fetchNextBlock() throws TransactionAbortedException, DbException {
+        while (true) {
+            while (inner != null && blockPos < block.size()) {
+                Tuple outer = block.get(blockPos++);
+                if (joinPredicate.filter(outer, inner))
+                    return merge(outer, inner);
+            }
+            if (!block.isEmpty() && child2.hasNext()) {
+                inner = child2.next();
+                blockPos = 0;
+                continue;
+            }
+            // 当前块已和整个内层比较完，读下一块
+            block.clear();
+            inner = null;
+            int blockTuples = grantedPages * HeapPage.getNumTuples(child1.getTupleDesc());
+            while (block.size() < blockTuples && child1.hasNext())
+                block.add(child1.next());
+            if (block.isEmpty())
+                return null;
+            if (!firstBlock)
+                child2.rewind();
+            firstBlock = false;
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple tuple = new Tuple(this.getTupleDesc());
+        for (int i = 0; i < td1n; i++)
+            tuple.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            tuple.setField(td1n + i, t2.getField(i));
+        return tuple;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,171 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.HeapPage;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Materialize reads all the tuples of its child once, when it is opened, and
+ * returns them from a temporary table: a rewind replays the stored tuples
+ * without executing the child again. It is the inner input of a nested-loop
+ * {@link Join} with an uncorrelated subquery, which would otherwise run the
+ * whole subquery once per block of outer tuples.
+ * <p>
+ * The table keeps at most memoryPages pages of tuples in memory; the
+ * remaining tuples are written to a {@link SpillFile} and read back after
+ * the others. The child is closed as soon as it is exhausted, and the table
+ * is kept until the Materialize is closed.
+ */
+public class Materialize extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the table, in pages of tuples. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** Smallest memory budget of the table, in pages of tuples. */
+    public static final int MIN_MEMORY_PAGES = 1;
+
+    private OpIterator child;
+    private int memoryPages;
+
+    transient private List<Tuple> tuples;
+    transient private SpillFile spill;
+    transient private SpillScan spillIt;
+    transient private int pos;
+
+    /**
+     * Creates a Materialize with the default memory budget.
+     *
+     * @param child the child operator
+     */
+    public Materialize(OpIterator child) {
+        this(child, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * @param child       the child operator
+     * @param memoryPages the number of pages of tuples kept in memory; at
+     *                    least 1
+     */
+    public Materialize(OpIterator child, int memoryPages) {
+        if (memoryPages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a materialize needs at least 1 page of memory");
+        this.child = child;
+        this.memoryPages = memoryPages;
+    }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a materialize needs at least 1 page of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of tuples of the child written to disk, or 0 if all
+     *         of them are in memory
+     */
+    public long getSpilledTuples() {
+        return spill == null ? 0 : spill.numTuples();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        clear();
+        int pages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        int maxTuples = pages * HeapPage.getNumTuples(child.getTupleDesc());
+        tuples = new ArrayList<>();
+        child.open();
+        try {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (tuples.size() < maxTuples) {
+                    tuples.add(t);
+                } else {
+                    if (spill == null)
+                        spill = new SpillFile(child.getTupleDesc());
+                    spill.add(t);
+                }
+            }
+            if (spill != null)
+                spill.finish();
+        } catch (IOException e) {
+            clear();
+            throw new DbException("materialize spill failed: " + e.getMessage());
+        } finally {
+            // 子树只执行这一次，读完就释放它的扫描和线程
+            child.close();
+        }
+        pos = 0;
+        super.open();
+    }
+
+    private void clear() {
+        if (spillIt != null)
+            spillIt.close();
+        spillIt = null;
+        if (spill != null)
+            spill.delete();
+        spill = null;
+        tuples = null;
+    }
+
+    public void close() {
+        super.close();
+        clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+        if (spillIt != null)
+            spillIt.close();
+        spillIt = null;
+    }
+
+    /**
+     * Returns the tuples kept in memory, then the tuples of the spill file.
+     *
+     * @return the next tuple of the child, or null if there are no more
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (pos < tuples.size())
+            return tuples.get(pos++);
+        if (spill == null)
+            return null;
+        if (spillIt == null) {
+            spillIt = new SpillScan(spill);
+            spillIt.open();
+        }
+        return spillIt.hasNext() ? spillIt.next() : null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
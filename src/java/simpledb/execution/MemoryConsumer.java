@@ -0,0 +1,28 @@
+package simpledb.execution;
+
+/**
+ * An operator that keeps tuples in memory, such as a hash table or a sort
+ * buffer, within a budget of pages. The optimizer splits the budget of a
+ * query among its MemoryConsumers with {@link #setMemoryPages}; when it is
+ * opened, the operator reserves its pages from the
+ * {@link simpledb.common.MemoryManager} of the query and, if it is granted
+ * fewer, spills to disk earlier.
+ */
+public interface MemoryConsumer {
+
+    /**
+     * @return the number of pages of tuples the operator keeps in memory
+     */
+    int getMemoryPages();
+
+    /**
+     * Set the number of pages of tuples the operator keeps in memory, at
+     * least {@link #getMinMemoryPages}. It takes effect on the next open.
+     */
+    void setMemoryPages(int pages);
+
+    /**
+     * @return the smallest number of pages the operator can run with
+     */
+    int getMinMemoryPages();
+}
@@ -0,0 +1,166 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * MetadataAggregate answers an ungrouped aggregate over a whole table from
+ * the structure of its file, without reading its tuples: COUNT over a heap
+ * table from the header bitmaps of its pages (see
+ * {@link HeapFile#countTuples}), and MIN and MAX over the key of a B+ tree
+ * from its left-most and right-most leaves (see {@link BTreeFile#minKey} and
+ * {@link BTreeFile#maxKey}). Like {@link Aggregate} without grouping, it
+ * returns a single tuple with one INT field per aggregate, or no tuple if
+ * the table is empty.
+ */
+public class MetadataAggregate implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final Aggregator.Op[] aops;
+    private final TupleDesc td;
+
+    transient private Tuple result;
+    transient private boolean returned;
+    transient private boolean open = false;
+
+    /**
+     * @return true if every aggregate can be answered from the structure of
+     *         the file: all are COUNT and the file is a HeapFile, or all are
+     *         MIN or MAX over the INT key field of a BTreeFile
+     */
+    public static boolean canAnswer(DbFile file, int[] afields, Aggregator.Op[] aops) {
+        boolean counts = true;
+        boolean keyBounds = file instanceof BTreeFile
+                && file.getTupleDesc().getFieldType(((BTreeFile) file).keyField()) == Type.INT_TYPE;
+        for (int i = 0; i < aops.length; i++) {
+            counts &= aops[i] == Aggregator.Op.COUNT;
+            keyBounds = keyBounds && (aops[i] == Aggregator.Op.MIN || aops[i] == Aggregator.Op.MAX)
+                    && afields[i] == ((BTreeFile) file).keyField();
+        }
+        return (counts && file instanceof HeapFile) || keyBounds;
+    }
+
+    /**
+     * Creates an aggregate answered from the metadata of the specified table.
+     *
+     * @param tid
+     *            The transaction this aggregate is running as a part of.
+     * @param tableid
+     *            the table to aggregate
+     * @param tableAlias
+     *            the alias of the table, used to name the fields
+     * @param afields
+     *            the fields of the table to aggregate; ignored by COUNT
+     * @param aops
+     *            the operator of each aggregate
+     * @throws IllegalArgumentException if the aggregates can not be answered
+     *            from the metadata of the table
+     */
+    public MetadataAggregate(TransactionId tid, int tableid, String tableAlias, int[] afields,
+                             Aggregator.Op[] aops) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (afields.length == 0 || afields.length != aops.length || !canAnswer(file, afields, aops))
+            throw new IllegalArgumentException("aggregates can not be answered from the table metadata");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.aops = aops.clone();
+
+        TupleDesc tableTd = file.getTupleDesc();
+        Type[] types = new Type[afields.length];
+        String[] names = new String[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            types[i] = Type.INT_TYPE;
+            names[i] = tableAlias + "." + tableTd.getFieldName(afields[i]);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the name of the aggregated table in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the aggregated table
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] getAggregateOps() {
+        return aops.clone();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        result = new Tuple(td);
+        Field count = null;
+        for (int i = 0; i < aops.length && result != null; i++) {
+            Field value;
+            if (aops[i] == Aggregator.Op.COUNT) {
+                if (count == null)
+                    count = new IntField(((HeapFile) file).countTuples(tid));
+                value = ((IntField) count).getValue() == 0 ? null : count;
+            } else if (aops[i] == Aggregator.Op.MIN) {
+                value = ((BTreeFile) file).minKey(tid);
+            } else {
+                value = ((BTreeFile) file).maxKey(tid);
+            }
+            // 空表没有分组，不返回元组
+            if (value == null)
+                result = null;
+            else
+                result.setField(i, value);
+        }
+        returned = false;
+        open = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open) throw new IllegalStateException("Operator not yet open");
+        return result != null && !returned;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        returned = true;
+        return result;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        result = null;
+        open = false;
+    }
+}
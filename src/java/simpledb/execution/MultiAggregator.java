@@ -0,0 +1,227 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes several aggregates over any number of group-by fields in a single
+ * pass. All aggregates share one {@link GroupTable}, so the group of a tuple
+ * is looked up once however many aggregates there are, and aggregates over
+ * the same field share one {@link AggregateState}: COUNT, SUM, AVG, MIN and
+ * MAX of a field cost no more than one of them.
+ * <p>
+ * The result tuples have the group-by fields, in order, followed by one INT
+ * field per aggregate.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldTypes;
+    private final int[] afields;
+    private final Type[] afieldTypes;
+    private final Op[] ops;
+    private final TupleDesc td;
+    private final GroupTable groups;
+    // 每个不同的聚合字段一份状态，aggState[i] 是第 i 个聚合使用的状态
+    private final int[] stateFields;
+    private final boolean[] stateInts;
+    private final AggregateState[] states;
+    private final int[] aggState;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple,
+     *            empty if there is no grouping
+     * @param gbfieldTypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldTypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException if an operator other than COUNT is
+     *            applied to a STRING_TYPE field
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldTypes, int[] afields, Type[] afieldTypes, Op[] ops) {
+        this.gbfields = gbfields;
+        this.gbfieldTypes = gbfieldTypes;
+        this.afields = afields;
+        this.afieldTypes = afieldTypes;
+        this.ops = ops;
+        this.groups = new GroupTable(gbfields, gbfieldTypes);
+
+        List<Integer> fields = new ArrayList<>();
+        this.aggState = new int[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            if (afieldTypes[i] != Type.INT_TYPE && ops[i] != Op.COUNT)
+                throw new IllegalArgumentException("This operator cannot be handled");
+            int s = fields.indexOf(afields[i]);
+            if (s < 0) {
+                s = fields.size();
+                fields.add(afields[i]);
+            }
+            aggState[i] = s;
+        }
+        this.stateFields = new int[fields.size()];
+        this.stateInts = new boolean[fields.size()];
+        this.states = new AggregateState[fields.size()];
+        for (int s = 0; s < states.length; s++) {
+            stateFields[s] = fields.get(s);
+            states[s] = new AggregateState();
+        }
+        for (int i = 0; i < afields.length; i++)
+            stateInts[aggState[i]] = afieldTypes[i] == Type.INT_TYPE;
+
+        Type[] types = new Type[gbfields.length + afields.length];
+        System.arraycopy(gbfieldTypes, 0, types, 0, gbfields.length);
+        for (int i = 0; i < afields.length; i++)
+            types[gbfields.length + i] = Type.INT_TYPE;
+        this.td = new TupleDesc(types);
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private void add(int g, Tuple tup) {
+        for (int s = 0; s < states.length; s++) {
+            states[s].ensureCapacity(g);
+            if (stateInts[s])
+                states[s].add(g, ((IntField) tup.getField(stateFields[s])).getValue());
+            else
+                states[s].addCount(g, 1);
+        }
+    }
+
+    @Override
+    public void mergeTupleIntoGroup(Tuple tup) {
+        add(groups.groupOf(tup), tup);
+    }
+
+    @Override
+    public boolean mergeIntoExistingGroup(Tuple tup) {
+        int g = groups.find(tup);
+        if (g < 0)
+            return false;
+        add(g, tup);
+        return true;
+    }
+
+    @Override
+    public int numGroups() {
+        return groups.size();
+    }
+
+    /**
+     * Merge the selected rows of a batch: the group of each row is looked up
+     * once, then each aggregate field is read as a vector and added to the
+     * state of the groups. A single INT group-by field is looked up in the
+     * IntHashTable of the groups directly.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.numRows();
+        if (n == 0)
+            return;
+        int[] rowGroups = new int[n];
+        int maxGroup = 0;
+        IntHashTable ints = groups.ints();
+        if (ints != null) {
+            int[] keys = batch.getInts(gbfields[0]);
+            int g = -1;
+            int lastKey = 0;
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                if (g < 0 || keys[row] != lastKey) {
+                    lastKey = keys[row];
+                    g = ints.add(lastKey);
+                }
+                rowGroups[i] = g;
+                maxGroup = Math.max(maxGroup, g);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                rowGroups[i] = groups.groupOf(batch, batch.row(i));
+                maxGroup = Math.max(maxGroup, rowGroups[i]);
+            }
+        }
+        for (int s = 0; s < states.length; s++) {
+            AggregateState state = states[s];
+            state.ensureCapacity(maxGroup);
+            if (stateInts[s]) {
+                int[] values = batch.getInts(stateFields[s]);
+                for (int i = 0; i < n; i++)
+                    state.add(rowGroups[i], values[batch.row(i)]);
+            } else {
+                for (int i = 0; i < n; i++)
+                    state.addCount(rowGroups[i], 1);
+            }
+        }
+    }
+
+    private void add(int g, MultiAggregator other, int og) {
+        for (int s = 0; s < states.length; s++) {
+            states[s].ensureCapacity(g);
+            states[s].add(g, other.states[s], og);
+        }
+    }
+
+    @Override
+    public void merge(Aggregator other) {
+        MultiAggregator o = (MultiAggregator) other;
+        for (int og = 0; og < o.groups.size(); og++)
+            add(groups.groupOf(o.groups, og), o, og);
+    }
+
+    @Override
+    public Aggregator[] partition(int n) {
+        MultiAggregator[] parts = new MultiAggregator[n];
+        for (int i = 0; i < n; i++)
+            parts[i] = new MultiAggregator(gbfields, gbfieldTypes, afields, afieldTypes, ops);
+        for (int g = 0; g < groups.size(); g++) {
+            MultiAggregator part = parts[Aggregator.partitionOf(groups.hash(g), n)];
+            part.add(part.groups.groupOf(groups, g), this, g);
+        }
+        return parts;
+    }
+
+    /**
+     * @return the approximate number of bytes of the aggregate states and,
+     *         for integer groups, of the group table
+     */
+    public long memoryBytes() {
+        IntHashTable ints = groups.ints();
+        long bytes = ints == null ? 0 : ints.memoryBytes();
+        for (AggregateState state : states)
+            bytes += state.memoryBytes();
+        return bytes;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples have the group values followed by the
+     *         value of each aggregate
+     */
+    public OpIterator iterator() {
+        List<Tuple> tuples = new ArrayList<>(groups.size());
+        for (int g = 0; g < groups.size(); g++) {
+            Tuple tuple = new Tuple(td);
+            for (int i = 0; i < gbfields.length; i++)
+                tuple.setField(i, groups.value(g, i));
+            for (int i = 0; i < afields.length; i++)
+                tuple.setField(gbfields.length + i, new IntField(states[aggState[i]].result(g, ops[i])));
+            tuples.add(tuple);
+        }
+        return new TupleIterator(td, tuples);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
@@ -39,6 +40,31 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next batch of tuples from the operator, for consumers that
+   * process tuples a batch at a time. The default implementation collects up
+   * to {@link TupleBatch#DEFAULT_CAPACITY} tuples from next(), so every
+   * OpIterator can feed a batch consumer; operators with a batch-at-a-time
+   * implementation override it (see {@link BatchAdapter} for the other
+   * direction).
+   * <p>
+   * A consumer reads an open iterator either with next() or with
+   * nextBatch(), not both: an operator that overrides nextBatch() does not
+   * return a tuple already buffered by hasNext().
+   *
+   * @return the next batch, with at least one selected row, or null if there
+   *         are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    if (!hasNext())
+      return null;
+    TupleBatch batch = new TupleBatch(getTupleDesc());
+    while (!batch.isFull() && hasNext())
+      batch.add(next());
+    return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
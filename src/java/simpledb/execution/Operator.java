@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.MemoryManager;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -57,11 +58,14 @@ public abstract class Operator implements OpIterator {
         // Ensures that a future call to next() will fail
         next = null;
         this.open = false;
+        releaseMemory();
     }
 
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    transient private MemoryManager memory = null;
+    transient private int reservedPages = 0;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
@@ -109,4 +113,43 @@ public abstract class Operator implements OpIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * Set the budget of the query this operator runs in. Operators that keep
+     * tuples in memory reserve their pages from it when they are opened.
+     *
+     * @param memory the budget of the query, or null for none
+     */
+    public void setMemoryManager(MemoryManager memory) {
+        this.memory = memory;
+    }
+
+    public MemoryManager getMemoryManager() {
+        return memory;
+    }
+
+    /**
+     * Reserve pages from the budget of the query, giving back the pages
+     * reserved before. Without a budget all the pages are granted. The pages
+     * are released by {@link #close}.
+     *
+     * @return the number of pages reserved
+     * @throws DbException if fewer than minPages pages are left
+     */
+    protected int reserveMemory(int pages, int minPages) throws DbException {
+        releaseMemory();
+        if (memory == null)
+            return pages;
+        reservedPages = memory.reserve(pages, minPages);
+        return reservedPages;
+    }
+
+    /**
+     * Give back the pages reserved by {@link #reserveMemory}.
+     */
+    protected void releaseMemory() {
+        if (memory != null && reservedPages > 0)
+            memory.release(reservedPages);
+        reservedPages = 0;
+    }
+
 }
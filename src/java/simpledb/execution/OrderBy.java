@@ -2,18 +2,34 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The child is sorted in memory if it fits in the memory budget. Otherwise
+ * OrderBy runs an external merge sort: it writes sorted runs of one budget
+ * each to {@link SpillFile}s, and merges them with a k-way heap, reading one
+ * page of each run at a time. If there are more runs than pages in the
+ * budget, they are merged in several passes. The budget is reserved from the
+ * query when the OrderBy is opened (see {@link MemoryConsumer}).
  */
-public class OrderBy extends Operator {
+public class OrderBy extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of an ORDER BY, in pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    /** Smallest memory budget of an ORDER BY, in pages. */
+    public static final int MIN_MEMORY_PAGES = 3;
+
     private OpIterator child;
     private final TupleDesc td;
     private final List<Tuple> childTups = new ArrayList<>();
@@ -21,6 +37,14 @@ public class OrderBy extends Operator {
     private final String orderByFieldName;
     private Iterator<Tuple> it;
     private final boolean asc;
+    private int memoryPages;
+    // 本次 open 从查询预算中得到的页数
+    private int grantedPages;
+    private final TupleComparator comparator;
+    // 外部排序时的有序段，以及归并它们的迭代器
+    private final List<SpillFile> runs = new ArrayList<>();
+    private RunMerger merger;
+    private int runsWritten = 0;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,11 +57,31 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node with a memory budget.
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            the number of pages of tuples kept in memory; at least 3
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int memoryPages) {
+        if (memoryPages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages of memory");
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryPages = memoryPages;
+        this.comparator = new TupleComparator(orderbyField, asc);
     }
     
     public boolean isASC()
@@ -54,6 +98,37 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk by the last open,
+     *         including the runs of intermediate merge passes; 0 if the child
+     *         was sorted in memory
+     */
+    public int getRunsWritten() {
+        return runsWritten;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -61,22 +136,104 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        clear();
+        runsWritten = 0;
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        int maxTuples = grantedPages * HeapPage.getNumTuples(td);
+        try {
+            // load the tuples in a collection, and write it out as a sorted
+            // run whenever it reaches the memory budget
+            while (child.hasNext()) {
+                childTups.add(child.next());
+                if (childTups.size() >= maxTuples)
+                    spillRun();
+            }
+            if (runs.isEmpty()) {
+                childTups.sort(comparator);
+            } else {
+                if (!childTups.isEmpty())
+                    spillRun();
+                // 每个段读入时占一页，段太多时先多趟归并
+                while (runs.size() > grantedPages)
+                    mergePass();
+            }
+        } catch (IOException e) {
+            clear();
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        startOutput();
         super.open();
     }
 
+    private void spillRun() throws IOException {
+        childTups.sort(comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        run.finish();
+        childTups.clear();
+        runs.add(run);
+        runsWritten++;
+    }
+
+    /**
+     * Merge the runs in groups of grantedPages - 1 (one page is left for the
+     * output), until at most grantedPages runs remain.
+     */
+    private void mergePass() throws IOException, DbException, TransactionAbortedException {
+        List<SpillFile> merged = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += grantedPages - 1) {
+            List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + grantedPages - 1));
+            RunMerger m = new RunMerger(group, comparator);
+            SpillFile out = new SpillFile(td);
+            Tuple t;
+            while ((t = m.next()) != null)
+                out.add(t);
+            out.finish();
+            m.close();
+            for (SpillFile run : group)
+                run.delete();
+            merged.add(out);
+            runsWritten++;
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    private void startOutput() throws DbException, TransactionAbortedException {
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+        } else {
+            if (merger != null)
+                merger.close();
+            try {
+                merger = new RunMerger(runs, comparator);
+            } catch (IOException e) {
+                throw new DbException("external sort failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void clear() {
+        if (merger != null) {
+            merger.close();
+            merger = null;
+        }
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+        childTups.clear();
+        it = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        clear();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        startOutput();
     }
 
     /**
@@ -86,8 +243,10 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
+        if (merger != null) {
+            return merger.next();
+        } else if (it != null && it.hasNext()) {
             return it.next();
         } else
             return null;
@@ -105,24 +264,57 @@ public class OrderBy extends Operator {
 
 }
 
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+/**
+ * Merges sorted runs with a heap holding the current tuple of each run. Ties
+ * are broken by the position of the run, so that the merge is stable.
+ */
+class RunMerger {
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+    private static class Head {
+        final Tuple tuple;
+        final int run;
+
+        Head(Tuple tuple, int run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    private final List<DbFileIterator> iterators = new ArrayList<>();
+    private final PriorityQueue<Head> heap;
+
+    RunMerger(List<SpillFile> runs, Comparator<Tuple> comparator)
+            throws IOException, DbException, TransactionAbortedException {
+        heap = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+            int c = comparator.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Integer.compare(a.run, b.run);
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            DbFileIterator run = runs.get(i).iterator();
+            run.open();
+            iterators.add(run);
+            if (run.hasNext())
+                heap.add(new Head(run.next(), i));
+        }
+    }
+
+    /**
+     * @return the smallest tuple left in the runs, or null if they are exhausted
+     */
+    Tuple next() throws DbException, TransactionAbortedException {
+        Head head = heap.poll();
+        if (head == null)
+            return null;
+        DbFileIterator run = iterators.get(head.run);
+        if (run.hasNext())
+            heap.add(new Head(run.next(), head.run));
+        return head.tuple;
+    }
+
+    void close() {
+        for (DbFileIterator run : iterators)
+            run.close();
+        iterators.clear();
+        heap.clear();
     }
-    
 }
@@ -0,0 +1,400 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * ParallelSeqScan scans a HeapFile with several worker threads of a shared
+ * ForkJoinPool. The pages of the file are handed out in ranges of
+ * PAGES_PER_RANGE consecutive pages: a worker takes the next range that no
+ * worker has taken yet, so fast workers scan more ranges. Each worker reads its
+ * pages into TupleBatches, applies the pushed-down predicates and projection
+ * to them, and puts them into a bounded {@link BatchQueue}; like a SeqScan,
+ * every worker reorders the predicates by the rows it has seen. The thread
+ * that reads the scan takes the batches from the queue, one tuple or one batch
+ * at a time, so ParallelSeqScan is used like any other OpIterator.
+ * <p>
+ * All workers read pages with {@link simpledb.storage.BufferPool#getPage} on
+ * behalf of the transaction of the scan, so the transaction holds a shared
+ * lock on every page that was read, exactly as with a SeqScan. A worker that
+ * is aborted while waiting for a lock stops the scan, and the reader gets the
+ * TransactionAbortedException.
+ * <p>
+ * Tuples come out in no particular order. Closing or rewinding the scan
+ * cancels the workers and waits for them to stop.
+ */
+public class ParallelSeqScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of workers per scan. */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    /** The planner scans smaller tables with a SeqScan. */
+    public static final int MIN_PAGES = 64;
+    /** Number of consecutive pages a worker takes at a time. */
+    public static final int PAGES_PER_RANGE = 8;
+
+    static final ForkJoinPool POOL = new ForkJoinPool(DEFAULT_PARALLELISM);
+
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final String tableAlias;
+    private final List<Predicate> predicates;
+    private final int[] outFields;
+    private final int parallelism;
+    private final TupleDesc scanTD;
+    private final TupleDesc td;
+
+    // 哈希连接下推的运行时过滤器，字段号对应表的字段；worker 在打开后读取
+    transient private volatile RuntimeFilter runtimeFilter;
+    transient private volatile int runtimeFilterField;
+    transient private BatchQueue queue;
+    transient private List<ForkJoinTask<?>> workers;
+    transient private TupleBatch batch;
+    transient private int pos;
+
+    /**
+     * Creates a parallel scan with DEFAULT_PARALLELISM workers and no
+     * projection.
+     *
+     * @see #ParallelSeqScan(TransactionId, int, String, List, int[], int)
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates) {
+        this(tid, tableid, tableAlias, predicates, null, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Creates a parallel scan over the specified HeapFile.
+     *
+     * @param tid the transaction this scan is running as a part of
+     * @param tableid the table to scan; must be stored in a HeapFile
+     * @param tableAlias the alias of the table, used to name the fields as in
+     *            {@link SeqScan#getTupleDesc}
+     * @param predicates the predicates a tuple must satisfy to be returned;
+     *            their field numbers refer to the fields of the table
+     * @param outFields the fields of the table to return, or null for all
+     * @param parallelism the maximum number of workers; at least 1
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates,
+                           int[] outFields, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("a parallel scan needs at least one worker");
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("a parallel scan reads HeapFiles only");
+        this.tid = tid;
+        this.file = (HeapFile) f;
+        this.tableAlias = tableAlias;
+        this.predicates = new ArrayList<>(predicates);
+        this.outFields = outFields;
+        this.parallelism = parallelism;
+        this.scanTD = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        if (outFields == null) {
+            this.td = scanTD;
+        } else {
+            List<TupleDesc.TDItem> items = scanTD.getItems();
+            List<TupleDesc.TDItem> projected = new ArrayList<>();
+            for (int field : outFields)
+                projected.add(items.get(field));
+            this.td = new TupleDesc();
+            this.td.setItems(projected);
+        }
+    }
+
+    public String getTableName() {
+        return Database.getCatalog().getTableName(file.getId());
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the predicates evaluated by the workers
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Set the runtime filter the returned tuples must pass; batches read
+     * before it is set may not have been tested.
+     *
+     * @param field the field tested, numbered as in {@link #getTupleDesc()}
+     * @param filter the filter, or null to remove it
+     */
+    public void setRuntimeFilter(int field, RuntimeFilter filter) {
+        runtimeFilterField = outFields == null ? field : outFields[field];
+        runtimeFilter = filter;
+    }
+
+    /**
+     * @return the runtime filter of the scan, or null if there is none
+     */
+    public RuntimeFilter getRuntimeFilter() {
+        return runtimeFilter;
+    }
+
+    /**
+     * @return the TupleDesc of the table before projection, to which the
+     *         field numbers of the predicates refer
+     */
+    public TupleDesc getScanTupleDesc() {
+        return scanTD;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        start();
+        super.open();
+    }
+
+    private void start() {
+        int numPages = file.numPages();
+        int n = numWorkers(numPages);
+        AtomicInteger nextPage = new AtomicInteger();
+        BatchQueue q = new BatchQueue(2 * n, n);
+        queue = q;
+        workers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            workers.add(POOL.submit(() -> scanIntoQueue(q, nextPage, numPages)));
+        batch = null;
+    }
+
+    private int numWorkers(int numPages) {
+        int ranges = (numPages + PAGES_PER_RANGE - 1) / PAGES_PER_RANGE;
+        return Math.min(parallelism, ranges);
+    }
+
+    private void stop() {
+        if (queue != null)
+            queue.cancel();
+        if (workers != null) {
+            // 等待所有 worker 退出，之后不会再有线程以本事务的名义读页
+            for (ForkJoinTask<?> w : workers)
+                w.quietlyJoin();
+        }
+        queue = null;
+        workers = null;
+        batch = null;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    /**
+     * Where a worker puts the batches that pass its predicates.
+     */
+    private interface Sink {
+        /**
+         * @return false if the worker should stop
+         */
+        boolean put(TupleBatch b) throws Exception;
+
+        boolean isCancelled();
+    }
+
+    /**
+     * Consumes the batches of one worker into a state of its own.
+     *
+     * @see #scanInto
+     */
+    public interface BatchConsumer<S> {
+        /**
+         * @return false to stop all workers of the scan
+         */
+        boolean accept(S state, TupleBatch batch) throws DbException;
+    }
+
+    /**
+     * The body of a worker: scan page ranges until none is left.
+     */
+    private void scanRanges(AtomicInteger nextPage, int numPages, Sink sink) throws Exception {
+        int numSlots = HeapPage.getNumTuples(file.getTupleDesc());
+        boolean[] columns = SeqScan.usedColumns(predicates, outFields, scanTD.numFields());
+        // 每个工作线程各自统计通过率并重排过滤条件
+        Conjunction conjunction = new Conjunction(predicates, file.getTupleDesc());
+        TupleBatch b = new TupleBatch(scanTD);
+        int start;
+        while (!sink.isCancelled() && (start = nextPage.getAndAdd(PAGES_PER_RANGE)) < numPages) {
+            int end = Math.min(numPages, start + PAGES_PER_RANGE);
+            for (int pageNo = start; pageNo < end && !sink.isCancelled(); pageNo++) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(file.getId(), pageNo), Permissions.READ_ONLY);
+                int slot = 0;
+                while (slot < numSlots) {
+                    slot = page.readBatch(slot, b, columns);
+                    if (b.isFull()) {
+                        if (!emit(sink, conjunction, b))
+                            return;
+                        b = new TupleBatch(scanTD);
+                    }
+                }
+            }
+        }
+        if (b.size() > 0)
+            emit(sink, conjunction, b);
+    }
+
+    /**
+     * Filter and project a batch read by a worker and pass it on.
+     *
+     * @return false if the worker should stop
+     */
+    private boolean emit(Sink sink, Conjunction conjunction, TupleBatch b) throws Exception {
+        conjunction.filter(b);
+        if (b.numRows() == 0)
+            return true;
+        RuntimeFilter rf = runtimeFilter;
+        if (rf != null) {
+            rf.filter(b, runtimeFilterField);
+            if (b.numRows() == 0)
+                return true;
+        }
+        return sink.put(outFields == null ? b : b.project(td, outFields));
+    }
+
+    private void scanIntoQueue(BatchQueue q, AtomicInteger nextPage, int numPages) {
+        try {
+            scanRanges(nextPage, numPages, new Sink() {
+                public boolean put(TupleBatch b) throws InterruptedException {
+                    return q.put(b);
+                }
+
+                public boolean isCancelled() {
+                    return q.isCancelled();
+                }
+            });
+            q.finish();
+        } catch (Exception e) {
+            q.fail(e);
+        }
+    }
+
+    /**
+     * Scans the whole table without a reader: each worker passes the batches
+     * it reads, after the predicates and projection, to a state of its own,
+     * such as a partial aggregate. The scan does not need to be open.
+     *
+     * @param newState creates the state of a worker
+     * @param consumer adds a batch to the state of the worker that read it;
+     *            once it returns false, the workers stop without reading the
+     *            rest of the table
+     * @return the states of all workers, once they are all done
+     * @throws TransactionAbortedException if a worker was aborted
+     * @throws DbException if a worker failed
+     */
+    public <S> List<S> scanInto(Supplier<S> newState, BatchConsumer<S> consumer)
+            throws DbException, TransactionAbortedException {
+        int numPages = file.numPages();
+        int n = numWorkers(numPages);
+        AtomicInteger nextPage = new AtomicInteger();
+        AtomicBoolean stopped = new AtomicBoolean();
+        List<S> states = new ArrayList<>(n);
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            S state = newState.get();
+            states.add(state);
+            Sink sink = new Sink() {
+                public boolean put(TupleBatch b) throws DbException {
+                    if (!consumer.accept(state, b))
+                        stopped.set(true);
+                    return !stopped.get();
+                }
+
+                public boolean isCancelled() {
+                    return stopped.get();
+                }
+            };
+            tasks.add(POOL.submit(() -> {
+                try {
+                    scanRanges(nextPage, numPages, sink);
+                } catch (Exception e) {
+                    // 一个 worker 失败时其余 worker 也停下
+                    stopped.set(true);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+        joinAll(tasks);
+        return states;
+    }
+
+    /**
+     * Wait for all tasks, then rethrow the first exception of a task.
+     */
+    static void joinAll(List<? extends ForkJoinTask<?>> tasks) throws DbException, TransactionAbortedException {
+        Throwable error = null;
+        for (ForkJoinTask<?> task : tasks) {
+            task.quietlyJoin();
+            if (error == null && task.isCompletedAbnormally())
+                error = task.getException();
+        }
+        // ForkJoinTask 会把受检异常包装成 RuntimeException
+        while (error != null && !(error instanceof TransactionAbortedException)
+                && !(error instanceof DbException) && error.getCause() != null)
+            error = error.getCause();
+        if (error instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) error;
+        if (error instanceof DbException)
+            throw (DbException) error;
+        if (error != null)
+            throw new DbException("parallel worker failed: " + error);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos >= batch.numRows()) {
+            batch = queue.take();
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.row(pos++));
+    }
+
+    /**
+     * Returns the batches of the workers as they arrive.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return queue.take();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
@@ -1,7 +1,11 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
 
@@ -122,6 +126,117 @@ public class Predicate implements Serializable {
         return tmp.compare(op, operand);
     }
 
+    /**
+     * Applies the predicate to the selected rows of a batch, keeping selected
+     * only those for which the comparison is true. Comparisons of an int
+     * column, and of a string column except for LIKE, run over the column
+     * vector without building Fields.
+     *
+     * @param batch The batch to filter; its selection vector is replaced
+     */
+    public void filter(TupleBatch batch) {
+        int n = batch.numRows();
+        int[] sel = new int[n];
+        int k = 0;
+        if (operand instanceof IntField && batch.getTupleDesc().getFieldType(fieldId) == Type.INT_TYPE) {
+            int[] col = batch.getInts(fieldId);
+            int v = ((IntField) operand).getValue();
+            // 每种运算符一个循环，循环体内没有分支和虚调用
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (col[row] == v) sel[k++] = row;
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (col[row] != v) sel[k++] = row;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (col[row] > v) sel[k++] = row;
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (col[row] >= v) sel[k++] = row;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (col[row] < v) sel[k++] = row;
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int row = batch.row(i);
+                        if (col[row] <= v) sel[k++] = row;
+                    }
+                    break;
+            }
+        } else if (operand instanceof StringField && op != Op.LIKE
+                && batch.getTupleDesc().getFieldType(fieldId) == Type.STRING_TYPE) {
+            byte[] bytes = batch.getStringBytes(fieldId);
+            int[] lengths = batch.getStringLengths(fieldId);
+            String s = ((StringField) operand).getValue();
+            byte[] v = new byte[s.length()];
+            for (int i = 0; i < v.length; i++)
+                v[i] = (byte) s.charAt(i);
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                if (matches(compare(bytes, row * Type.STRING_LEN, lengths[row], v)))
+                    sel[k++] = row;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                if (batch.getField(fieldId, row).compare(op, operand))
+                    sel[k++] = row;
+            }
+        }
+        batch.select(sel, k);
+    }
+
+    /**
+     * Compares a string slice with v as unsigned bytes, which orders
+     * single-byte strings like String.compareTo.
+     */
+    private static int compare(byte[] bytes, int off, int len, byte[] v) {
+        int n = Math.min(len, v.length);
+        for (int i = 0; i < n; i++) {
+            int c = (bytes[off + i] & 0xff) - (v[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return len - v.length;
+    }
+
+    private boolean matches(int cmp) {
+        switch (op) {
+            case EQUALS:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+            default:
+                return false;
+        }
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -4,6 +4,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -17,6 +18,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private final int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -43,6 +45,9 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = fieldList.get(i);
     }
 
     public TupleDesc getTupleDesc() {
@@ -83,6 +88,16 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Projects the batches of the child without copying: the result shares
+     * the column vectors of the projected fields.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(td, outFields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -3,7 +3,9 @@ package simpledb.execution;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.MemoryManager;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -15,6 +17,12 @@ import java.util.*;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * A started query has a memory budget in the
+ * {@link Database#getMemoryManager memory manager} of the database, from
+ * which its operators reserve the memory for their hash tables and buffers.
+ * What they still hold is given back when the query is closed, or at the
+ * latest when its transaction completes.
  * 
  * @author Sam Madden
  */
@@ -27,6 +35,7 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     final TransactionId tid;
     transient private boolean started = false;
+    transient private MemoryManager memory;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -48,6 +57,13 @@ public class Query implements Serializable {
         return this.op;
     }
 
+    /**
+     * @return the memory budget of the query while it is started, or null
+     */
+    public MemoryManager getMemoryManager() {
+        return memory;
+    }
+
     public Query(TransactionId t) {
         tid = t;
     }
@@ -57,13 +73,39 @@ public class Query implements Serializable {
         tid = t;
     }
 
+    /**
+     * Create the memory budget of the query and open its plan.
+     *
+     * @throws DbException if there is not enough memory left to open the
+     *                     operators of the query
+     */
     public void start() throws DbException,
             TransactionAbortedException {
-        op.open();
+        int pages = logicalPlan != null ? logicalPlan.getMemoryPages()
+                : MemoryManager.DEFAULT_QUERY_PAGES;
+        memory = Database.getMemoryManager().newQueryBudget(tid, pages);
+        setMemoryManager(op, memory);
+        try {
+            op.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            memory.close();
+            memory = null;
+            throw e;
+        }
 
         started = true;
     }
 
+    private static void setMemoryManager(OpIterator it, MemoryManager memory) {
+        if (!(it instanceof Operator))
+            return;
+        ((Operator) it).setMemoryManager(memory);
+        for (OpIterator child : ((Operator) it).getChildren()) {
+            if (child != null)
+                setMemoryManager(child, memory);
+        }
+    }
+
     public TupleDesc getOutputTupleDesc() {
         return this.op.getTupleDesc();
     }
@@ -96,6 +138,10 @@ public class Query implements Serializable {
     /** Close the iterator */
     public void close() {
         op.close();
+        // 算子没有释放的内存也随预算一起归还
+        if (memory != null)
+            memory.close();
+        memory = null;
         started = false;
     }
 
@@ -114,12 +160,16 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try {
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                System.out.println(tup);
+                cnt++;
+            }
+        } finally {
+            // 执行失败时也要归还内存预算
+            this.close();
         }
         System.out.println("\n " + cnt + " rows.");
-        this.close();
     }
 }
@@ -0,0 +1,146 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A RuntimeFilter is built by {@link HashEquiJoin} from the join keys of its
+ * build side and pushed down into the scan of its probe side, which then
+ * drops the rows whose key can not match before they are copied into tuples
+ * or passed up the plan.
+ * <p>
+ * It is a Bloom filter over the hash codes of the keys, plus the range of the
+ * keys when they are INT_TYPE. A key that passes may still have no match; a
+ * key that fails has none. Once finished, a filter is only read, so the
+ * workers of a {@link ParallelSeqScan} can share it.
+ */
+public class RuntimeFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Build sides with more keys than this get no filter. */
+    public static final int MAX_KEYS = 1 << 20;
+    // 每个键占的位数和探测次数，误判率约 2%
+    private static final int BITS_PER_KEY = 8;
+    private static final int NUM_PROBES = 3;
+
+    private final boolean intKeys;
+    // 构建阶段收集的哈希值
+    private int[] hashes = new int[64];
+    private int numKeys = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private long[] bits;
+    private int mask;
+
+    /**
+     * @param type the type of the join keys
+     */
+    public RuntimeFilter(Type type) {
+        this.intKeys = type == Type.INT_TYPE;
+    }
+
+    /**
+     * Add a build key. Keys can only be added before {@link #finish}.
+     *
+     * @return false if the filter holds too many keys to be useful
+     */
+    public boolean add(Field key) {
+        if (numKeys == MAX_KEYS)
+            return false;
+        if (intKeys) {
+            int v = ((IntField) key).getValue();
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (numKeys == hashes.length)
+            hashes = Arrays.copyOf(hashes, numKeys * 2);
+        hashes[numKeys++] = key.hashCode();
+        return true;
+    }
+
+    /**
+     * Build the bit array from the keys added.
+     */
+    public void finish() {
+        long numBits = Math.max(64, Integer.highestOneBit(Math.max(1, numKeys * BITS_PER_KEY - 1)) * 2L);
+        bits = new long[(int) (numBits >>> 6)];
+        mask = (int) numBits - 1;
+        for (int i = 0; i < numKeys; i++) {
+            int h1 = mix(hashes[i]);
+            int h2 = (h1 >>> 16) | 1;
+            for (int k = 0; k < NUM_PROBES; k++) {
+                int bit = (h1 + k * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+        hashes = null;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    private boolean mightContainHash(int hash) {
+        int h1 = mix(hash);
+        int h2 = (h1 >>> 16) | 1;
+        for (int k = 0; k < NUM_PROBES; k++) {
+            int bit = (h1 + k * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if no build key equals v
+     */
+    public boolean mightContain(int v) {
+        return v >= min && v <= max && mightContainHash(v);
+    }
+
+    /**
+     * @return false if no build key equals key
+     */
+    public boolean mightContain(Field key) {
+        if (intKeys)
+            return mightContain(((IntField) key).getValue());
+        return mightContainHash(key.hashCode());
+    }
+
+    /**
+     * Narrows the selection of a batch to the rows whose specified field
+     * might equal a build key.
+     */
+    public void filter(TupleBatch batch, int field) {
+        int n = batch.numRows();
+        int[] sel = new int[n];
+        int k = 0;
+        if (intKeys) {
+            int[] col = batch.getInts(field);
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                if (mightContain(col[row])) sel[k++] = row;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                if (mightContainHash(batch.getString(field, row).hashCode())) sel[k++] = row;
+            }
+        }
+        batch.select(sel, k);
+    }
+
+    /**
+     * @return the number of keys the filter was built from
+     */
+    public int numKeys() {
+        return numKeys;
+    }
+}
@@ -6,6 +6,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 
 import java.util.*;
 
@@ -13,6 +14,18 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan can evaluate predicates and a projection itself. A HeapFile is then
+ * read a batch at a time, also when the scan is read a tuple at a time: only
+ * the fields that the predicates and the projection use are decoded from the
+ * pages, the predicates are tested on the batch, and only the tuples that
+ * pass are made, with only the projected fields. Other files are read a tuple
+ * at a time and the tuples that pass are copied. Like a
+ * {@link ConjunctiveFilter}, the scan evaluates its predicates cheapest-first
+ * by the expected cost per row removed, reordering them as it reads.
+ * <p>
+ * A hash join can also push a {@link RuntimeFilter} of its build keys into
+ * the scan of its probe side, which is tested after the predicates.
  */
 public class SeqScan implements OpIterator {
 
@@ -24,6 +37,21 @@ public class SeqScan implements OpIterator {
 
     private DbFile file;
     private DbFileIterator iter;
+    // 下推到扫描中的过滤条件（字段号对应表的字段）和投影，投影为 null 时返回所有字段
+    private final List<Predicate> predicates;
+    private final int[] outFields;
+    transient private Conjunction conjunction;
+    transient private TupleDesc outTD;
+    transient private Tuple nextTuple;
+    // 按元组读取 HeapFile 时当前的批及其中下一行
+    transient private TupleBatch batch;
+    transient private int pos;
+    // 哈希连接下推的运行时过滤器，字段号对应表的字段；在 Exchange 之下时由另一个线程读取
+    transient private volatile RuntimeFilter runtimeFilter;
+    transient private volatile int runtimeFilterField;
+    // nextBatch 读取 HeapFile 的位置
+    private int batchPage;
+    private int batchSlot;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -42,11 +70,79 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, Collections.emptyList(), null);
+    }
+
+    /**
+     * Creates a sequential scan that returns only the tuples satisfying the
+     * specified predicates, with only the specified fields.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, used to name the fields
+     * @param predicates
+     *            the predicates a tuple must satisfy to be returned; their
+     *            field numbers refer to the fields of the table
+     * @param outFields
+     *            the fields of the table to return, in this order, or null
+     *            for all
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates,
+                   int[] outFields) {
         // some code goes here
         this.tableid = tableid;
         this.tid = tid;
         this.tableAlias = tableAlias;
         this.file = Database.getCatalog().getDatabaseFile(tableid);
+        this.predicates = new ArrayList<>(predicates);
+        this.outFields = outFields;
+    }
+
+    /**
+     * @return the predicates evaluated by the scan
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * @return the predicates in the order they are currently evaluated,
+     *         which changes as the scan sees how many tuples each one passes
+     */
+    public List<Predicate> getEvaluationOrder() {
+        if (conjunction == null)
+            return new ArrayList<>(predicates);
+        return conjunction.getEvaluationOrder();
+    }
+
+    /**
+     * @return the fields of the table returned by the scan, or null for all
+     */
+    public int[] getOutFields() {
+        return outFields;
+    }
+
+    /**
+     * Set the runtime filter the returned tuples must pass.
+     *
+     * @param field
+     *            the field tested, numbered as in {@link #getTupleDesc()}
+     * @param filter
+     *            the filter, or null to remove it
+     */
+    public void setRuntimeFilter(int field, RuntimeFilter filter) {
+        runtimeFilterField = outFields == null ? field : outFields[field];
+        runtimeFilter = filter;
+    }
+
+    /**
+     * @return the runtime filter of the scan, or null if there is none
+     */
+    public RuntimeFilter getRuntimeFilter() {
+        return runtimeFilter;
     }
 
     /**
@@ -93,6 +189,12 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.iter = file.iterator(tid);
         this.iter.open();
+        batchPage = 0;
+        batchSlot = 0;
+        conjunction = new Conjunction(predicates, file.getTupleDesc());
+        outTD = getTupleDesc();
+        nextTuple = null;
+        batch = null;
     }
 
     /**
@@ -106,6 +208,23 @@ public class SeqScan implements OpIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
+        TupleDesc scanTD = getScanTupleDesc();
+        if (outFields == null)
+            return scanTD;
+        List<TupleDesc.TDItem> items = scanTD.getItems();
+        List<TupleDesc.TDItem> projected = new ArrayList<>();
+        for (int field : outFields)
+            projected.add(items.get(field));
+        TupleDesc res = new TupleDesc();
+        res.setItems(projected);
+        return res;
+    }
+
+    /**
+     * @return the TupleDesc of all fields of the table, prefixed with the
+     *         alias, to which the field numbers of the predicates refer
+     */
+    public TupleDesc getScanTupleDesc() {
         // some code goes here
         TupleDesc res = new TupleDesc();
 //        List<TupleDesc.TDItem> itemsBefore = Database.getCatalog().getTupleDesc(tableid).getItems();
@@ -121,13 +240,57 @@ public class SeqScan implements OpIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return this.iter.hasNext();
+        if (conjunction.isEmpty() && outFields == null && runtimeFilter == null)
+            return this.iter.hasNext();
+        if (nextTuple == null)
+            nextTuple = fetchNext();
+        return nextTuple != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return this.iter.next();
+        if (conjunction.isEmpty() && outFields == null && runtimeFilter == null)
+            return this.iter.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    /**
+     * @return the next tuple of the file that satisfies the predicates, with
+     *         the projected fields only, or null if there are no more
+     */
+    private Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (file instanceof HeapFile) {
+            // 按批解码页面，只解码用到的字段，只为通过的行生成元组
+            while (batch == null || pos >= batch.numRows()) {
+                batch = nextBatch();
+                pos = 0;
+                if (batch == null)
+                    return null;
+            }
+            return batch.getTuple(batch.row(pos++));
+        }
+        while (iter.hasNext()) {
+            // 页中已解析的元组，不通过的直接跳过，不复制
+            Tuple t = iter.next();
+            if (!conjunction.test(t))
+                continue;
+            RuntimeFilter rf = runtimeFilter;
+            if (rf != null && !rf.mightContain(t.getField(runtimeFilterField)))
+                continue;
+            if (outFields == null)
+                return t;
+            Tuple out = new Tuple(outTD);
+            for (int i = 0; i < outFields.length; i++)
+                out.setField(i, t.getField(outFields[i]));
+            out.setRecordId(t.getRecordId());
+            return out;
+        }
+        return null;
     }
 
     public void close() {
@@ -139,5 +302,59 @@ public class SeqScan implements OpIterator {
             TransactionAbortedException {
         // some code goes here
         this.iter.rewind();
+        batchPage = 0;
+        batchSlot = 0;
+        nextTuple = null;
+        batch = null;
+    }
+
+    /**
+     * Reads a HeapFile a page at a time, copying the fields used by the
+     * predicates and the projection of the tuples of each page into the
+     * column vectors of the batch, then applies the predicates and the
+     * projection to the batch; other files are read a tuple at a time.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!(file instanceof HeapFile))
+            return OpIterator.super.nextBatch();
+        TupleDesc scanTD = getScanTupleDesc();
+        boolean[] columns = usedColumns(predicates, outFields, scanTD.numFields());
+        int numPages = ((HeapFile) file).numPages();
+        int numSlots = HeapPage.getNumTuples(file.getTupleDesc());
+        while (batchPage < numPages) {
+            TupleBatch batch = new TupleBatch(scanTD);
+            while (!batch.isFull() && batchPage < numPages) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(file.getId(), batchPage), Permissions.READ_ONLY);
+                batchSlot = page.readBatch(batchSlot, batch, columns);
+                if (batchSlot == numSlots) {
+                    batchPage++;
+                    batchSlot = 0;
+                }
+            }
+            conjunction.filter(batch);
+            RuntimeFilter rf = runtimeFilter;
+            if (rf != null && batch.numRows() > 0)
+                rf.filter(batch, runtimeFilterField);
+            if (batch.numRows() > 0)
+                return outFields == null ? batch : batch.project(outTD, outFields);
+        }
+        return null;
+    }
+
+    /**
+     * @return which fields of a table are read by the predicates and the
+     *         projection, or null if all are
+     */
+    static boolean[] usedColumns(List<Predicate> predicates, int[] outFields, int numFields) {
+        // 运行时过滤器的字段是连接字段，总在投影中
+        if (outFields == null)
+            return null;
+        boolean[] columns = new boolean[numFields];
+        for (int field : outFields)
+            columns[field] = true;
+        for (Predicate p : predicates)
+            columns[p.getField()] = true;
+        return columns;
     }
 }
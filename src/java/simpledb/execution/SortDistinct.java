@@ -0,0 +1,274 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * SortDistinct removes duplicate tuples from a child that is sorted, in
+ * either direction, on one of its fields, such as an {@link OrderBy}, a
+ * {@link simpledb.index.BTreeScan} or a {@link SortMergeJoin}. Equal tuples
+ * have the same value of the sort field, so they are in the same run of
+ * tuples with that value: only the distinct tuples of the current run are
+ * kept in memory, and while they fit the tuples are returned in the order of
+ * the child. A child with a single field needs no memory beyond the previous tuple.
+ * <p>
+ * The run is kept in at most memoryPages pages of tuples, reserved from the
+ * budget of the query when the SortDistinct is opened (see
+ * {@link MemoryConsumer}). Once the run is full, tuples equal to one in it
+ * are still dropped, while the others are written to a {@link SpillFile}.
+ * At the end of the run, the spilled tuples are deduplicated by a
+ * {@link HashDistinct} if they fit in the budget, otherwise by sorting them
+ * on the next field and deduplicating them with another SortDistinct. They
+ * are returned after the other tuples of their run, so the output is still
+ * sorted on the sort field.
+ */
+public class SortDistinct extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the current run, in pages of tuples. */
+    public static final int DEFAULT_MEMORY_PAGES = 16;
+    /** Smallest memory budget of a SortDistinct, in pages of tuples. */
+    public static final int MIN_MEMORY_PAGES = 3;
+
+    private OpIterator child;
+    private final int sortField;
+    private int memoryPages;
+    // 本次 open 从查询预算中得到的页数
+    private int grantedPages;
+
+    // 当前这段排序字段值相同的元组中已经返回的元组
+    transient private Field runValue;
+    transient private Set<List<Field>> run;
+    // 当前这段超出预算的元组，对它们去重的迭代器，以及读到的下一段的第一个元组
+    transient private SpillFile overflow;
+    transient private OpIterator overflowIt;
+    transient private Tuple pending;
+    transient private int spilledRuns;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the child operator; its tuples must be sorted on sortField
+     * @param sortField
+     *            the field the tuples of the child are sorted on
+     */
+    public SortDistinct(OpIterator child, int sortField) {
+        this(child, sortField, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * @param child       the child operator; its tuples must be sorted on
+     *                    sortField
+     * @param sortField   the field the tuples of the child are sorted on
+     * @param memoryPages the number of pages of tuples of the current run
+     *                    kept in memory; at least 3
+     */
+    public SortDistinct(OpIterator child, int sortField, int memoryPages) {
+        if (memoryPages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a SortDistinct needs at least 3 pages of memory");
+        this.child = child;
+        this.sortField = sortField;
+        this.memoryPages = memoryPages;
+        this.grantedPages = memoryPages;
+    }
+
+    public int getSortField() {
+        return sortField;
+    }
+
+    public String getSortFieldName() {
+        return child.getTupleDesc().getFieldName(sortField);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a SortDistinct needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    /**
+     * @return the number of runs whose distinct tuples did not fit in memory
+     *         since the last open or rewind
+     */
+    public int getSpilledRuns() {
+        return spilledRuns;
+    }
+
+    private int maxTuples() {
+        return grantedPages * HeapPage.getNumTuples(child.getTupleDesc());
+    }
+
+    /**
+     * @return the values of the fields of a tuple, which are equal for equal
+     *         tuples
+     */
+    static List<Field> key(Tuple t) {
+        Field[] fields = new Field[t.getTupleDesc().numFields()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = t.getField(i);
+        return Arrays.asList(fields);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        child.open();
+        clear();
+        run = new HashSet<>();
+        super.open();
+    }
+
+    private void clear() {
+        if (overflowIt != null)
+            overflowIt.close();
+        overflowIt = null;
+        if (overflow != null)
+            overflow.delete();
+        overflow = null;
+        pending = null;
+        runValue = null;
+        spilledRuns = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        clear();
+        run = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        clear();
+        run.clear();
+    }
+
+    /**
+     * Start returning the distinct tuples of the current run that did not fit
+     * in memory. None of them is equal to a tuple of the run returned before.
+     */
+    private void startOverflow() throws DbException, TransactionAbortedException {
+        // 这一段在内存中的元组都已返回，释放它们
+        run.clear();
+        if (overflow.numTuples() <= maxTuples()) {
+            overflowIt = new HashDistinct(new SpillScan(overflow), grantedPages);
+        } else {
+            // 溢出的元组排序字段都相同，按下一个字段排序；每深一层，相同的字段就多一个
+            int next = (sortField + 1) % child.getTupleDesc().numFields();
+            overflowIt = new SortDistinct(new OrderBy(next, true, new SpillScan(overflow), grantedPages),
+                    next, grantedPages);
+        }
+        overflowIt.open();
+        spilledRuns++;
+    }
+
+    /**
+     * Returns the next tuple of the child that is not equal to a tuple
+     * returned before.
+     *
+     * @return the next distinct tuple, or null if the child is exhausted
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (true) {
+            if (overflowIt != null) {
+                if (overflowIt.hasNext())
+                    return overflowIt.next();
+                overflowIt.close();
+                overflowIt = null;
+                overflow.delete();
+                overflow = null;
+            }
+            Tuple t = pending;
+            pending = null;
+            if (t == null && child.hasNext())
+                t = child.next();
+            if (t == null) {
+                if (overflow == null)
+                    return null;
+                startOverflow();
+                continue;
+            }
+            Field value = t.getField(sortField);
+            if (!value.equals(runValue)) {
+                if (overflow != null) {
+                    // 先返回上一段溢出的元组
+                    pending = t;
+                    startOverflow();
+                    continue;
+                }
+                // 新的一段，之前的元组不会再出现
+                runValue = value;
+                run.clear();
+                if (t.getTupleDesc().numFields() > 1)
+                    run.add(key(t));
+                return t;
+            }
+            if (t.getTupleDesc().numFields() == 1)
+                continue;
+            List<Field> key = key(t);
+            if (run.contains(key))
+                continue;
+            if (run.size() < maxTuples()) {
+                run.add(key);
+                return t;
+            }
+            spill(t);
+        }
+    }
+
+    private void spill(Tuple t) throws DbException {
+        try {
+            if (overflow == null)
+                overflow = new SpillFile(child.getTupleDesc());
+            overflow.add(t);
+        } catch (IOException e) {
+            clear();
+            throw new DbException("distinct spill failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,458 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.index.BTreeScan;
+import simpledb.storage.Field;
+import simpledb.storage.HeapPage;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs sorted in ascending order of their join
+ * fields. It supports equi-joins and band/range joins (the predicate is one of
+ * EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ).
+ * <p>
+ * An input that is not already sorted on its join field, by a clustered
+ * {@link BTreeScan}, an {@link OrderBy} or another SortMergeJoin (see
+ * {@link #isSortedOn}), is sorted by an OrderBy first. For every tuple of
+ * child1, in order, the matching tuples of child2 are a contiguous range of
+ * the sorted child2 whose bounds only move forward, so each input is read
+ * once. The tuples of child2 between the bounds are buffered: for an
+ * equi-join this is the group of tuples with the current key; for a range
+ * join it may be most of child2, so a range join keeps at most its memory
+ * budget of them in memory and writes the older ones to {@link SpillFile}s,
+ * which it reads again for every tuple of child1 and deletes once their
+ * tuples can not match any more.
+ * <p>
+ * The output is in ascending order of the join field of child1 (and, for an
+ * equi-join, of child2), which lets later joins and ORDER BY skip a sort.
+ */
+public class SortMergeJoin extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private OpIterator left, right;
+    private boolean leftNeedsSort, rightNeedsSort;
+    // 每个需要排序的输入和范围连接的缓冲区各自的内存预算
+    private int sharePages = OrderBy.DEFAULT_MEMORY_PAGES;
+
+    // child2 从 lo 到 hi 的元组与 t1 匹配，buffer 中保存尚可能匹配的元组
+    transient private List<Tuple> buffer;
+    transient private int lo, hi, pos;
+    transient private Tuple t1;
+    // 范围连接：buffer 之前超出内存预算的元组，按读入顺序分段写入溢出文件
+    transient private ArrayDeque<Run> runs;
+    transient private Iterator<Run> runIt;
+    transient private SpillScan runScan;
+    // 范围连接：读出后还不匹配的下一个右元组，以及 child2 是否已读完
+    transient private Tuple pending;
+    transient private boolean rightRead;
+    transient private int bufferTuples;
+    transient private long spilledTuples;
+
+    /**
+     * Consecutive tuples of child2 that a range join wrote to disk, with the
+     * last of them, whose join field is the largest.
+     */
+    private static class Run {
+        final SpillFile file;
+        final Tuple last;
+
+        Run(SpillFile file, Tuple last) {
+            this.file = file;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality or a range comparison
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        sortInputs();
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate a join predicate with
+     *         the specified operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if the tuples of the specified iterator are known to come in
+     *         ascending order of the specified field
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (it instanceof TopN) {
+            TopN t = (TopN) it;
+            return t.isASC() && t.getOrderByField() == field;
+        } else if (it instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) it;
+            return !s.isReverse() && s.getKeyField() == field;
+        } else if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            if (field == j.pred.getField1())
+                return true;
+            return j.pred.getOperator() == Predicate.Op.EQUALS
+                    && field == j.child1.getTupleDesc().numFields() + j.pred.getField2();
+        } else if (it instanceof Filter || it instanceof ConjunctiveFilter || it instanceof Limit
+                || it instanceof Exchange) {
+            // 过滤不改变顺序，Exchange 只有一个生产者，也按原顺序交出批
+            return isSortedOn(((Operator) it).getChildren()[0], field);
+        }
+        return false;
+    }
+
+    private void sortInputs() {
+        leftNeedsSort = !isSortedOn(child1, pred.getField1());
+        rightNeedsSort = !isSortedOn(child2, pred.getField2());
+        left = leftNeedsSort ? new OrderBy(pred.getField1(), true, child1, sharePages) : child1;
+        right = rightNeedsSort ? new OrderBy(pred.getField2(), true, child2, sharePages) : child2;
+    }
+
+    private boolean isRangeJoin() {
+        return pred.getOperator() != Predicate.Op.EQUALS;
+    }
+
+    private int numShares() {
+        return (leftNeedsSort ? 1 : 0) + (rightNeedsSort ? 1 : 0) + (isRangeJoin() ? 1 : 0);
+    }
+
+    /**
+     * @return the memory budget of the OrderBys that sort the inputs and, for
+     *         a range join, of the buffered tuples of child2; 0 for an
+     *         equi-join of sorted inputs
+     */
+    public int getMemoryPages() {
+        return sharePages * numShares();
+    }
+
+    /**
+     * Split a memory budget evenly among the OrderBys that sort the inputs
+     * and, for a range join, the buffered tuples of child2.
+     *
+     * @throws IllegalStateException if this is an equi-join of sorted inputs
+     */
+    public void setMemoryPages(int pages) {
+        if (numShares() == 0)
+            throw new IllegalStateException("a merge join of sorted inputs does not sort");
+        if (pages < getMinMemoryPages())
+            throw new IllegalArgumentException("an external sort needs at least 3 pages of memory");
+        sharePages = pages / numShares();
+        if (leftNeedsSort)
+            ((OrderBy) left).setMemoryPages(sharePages);
+        if (rightNeedsSort)
+            ((OrderBy) right).setMemoryPages(sharePages);
+    }
+
+    public int getMinMemoryPages() {
+        return OrderBy.MIN_MEMORY_PAGES * numShares();
+    }
+
+    /**
+     * @return the number of tuples of child2 a range join has written to disk
+     *         since it was opened or rewound
+     */
+    public long getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return true if child1 is sorted by the join, false if it is already in
+     *         order
+     */
+    public boolean leftNeedsSort() {
+        return leftNeedsSort;
+    }
+
+    /**
+     * @return true if child2 is sorted by the join, false if it is already in
+     *         order
+     */
+    public boolean rightNeedsSort() {
+        return rightNeedsSort;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (isRangeJoin())
+            bufferTuples = reserveMemory(sharePages, 1) * HeapPage.getNumTuples(child2.getTupleDesc());
+        // 排序输入的 OrderBy 不是子节点，由连接把查询的预算交给它们
+        if (leftNeedsSort)
+            ((OrderBy) left).setMemoryManager(getMemoryManager());
+        if (rightNeedsSort)
+            ((OrderBy) right).setMemoryManager(getMemoryManager());
+        left.open();
+        right.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        clearRuns();
+        runs = new ArrayDeque<>();
+        buffer = new ArrayList<>();
+        lo = hi = pos = 0;
+        t1 = null;
+        pending = null;
+        rightRead = false;
+        spilledTuples = 0;
+    }
+
+    private void clearRuns() {
+        if (runScan != null)
+            runScan.close();
+        runScan = null;
+        runIt = null;
+        if (runs != null) {
+            for (Run r : runs)
+                r.file.delete();
+        }
+        runs = null;
+    }
+
+    public void close() {
+        super.close();
+        right.close();
+        left.close();
+        clearRuns();
+        buffer = null;
+        t1 = null;
+        pending = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        reset();
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    /**
+     * Read child2 until the buffer holds index i.
+     *
+     * @return false if child2 has fewer tuples
+     */
+    private boolean ensure(int i) throws DbException, TransactionAbortedException {
+        while (buffer.size() <= i) {
+            if (!right.hasNext())
+                return false;
+            buffer.add(right.next());
+        }
+        return true;
+    }
+
+    private int compareRight(int i, Field key) {
+        return compare(buffer.get(i).getField(pred.getField2()), key);
+    }
+
+    /**
+     * Move the bounds of the group of child2 that is equal to the key of a new
+     * tuple of child1, which is not smaller than the previous one.
+     */
+    private void advance(Field key) throws DbException, TransactionAbortedException {
+        // 下界：左元组 key 增大时，左边这些右元组不会再匹配
+        while (ensure(lo) && compareRight(lo, key) < 0)
+            lo++;
+        hi = Math.max(hi, lo);
+        while (ensure(hi) && compareRight(hi, key) <= 0)
+            hi++;
+        // 丢弃不会再匹配的前缀，避免缓冲区无限增长
+        if (lo >= 1024 && lo * 2 >= buffer.size()) {
+            buffer.subList(0, lo).clear();
+            hi -= lo;
+            lo = 0;
+        }
+        pos = lo;
+    }
+
+    /**
+     * Buffer a tuple of child2 for a range join, writing the buffer to a new
+     * run on disk when it holds the memory budget of tuples.
+     */
+    private void keep(Tuple t2) throws DbException {
+        buffer.add(t2);
+        if (buffer.size() - lo < bufferTuples)
+            return;
+        SpillFile f = null;
+        try {
+            f = new SpillFile(right.getTupleDesc());
+            for (int i = lo; i < buffer.size(); i++)
+                f.add(buffer.get(i));
+            f.finish();
+        } catch (IOException e) {
+            if (f != null)
+                f.delete();
+            throw new DbException("sort-merge join spill failed: " + e.getMessage());
+        }
+        runs.add(new Run(f, t2));
+        spilledTuples += f.numTuples();
+        buffer.clear();
+        lo = 0;
+    }
+
+    /**
+     * Read the tuples of child2 that match a new tuple of child1 of a range
+     * join, and drop those that can not match any more.
+     */
+    private void advanceRange() throws DbException, TransactionAbortedException {
+        Predicate.Op op = pred.getOperator();
+        if (op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ) {
+            // 匹配的是 child2 的前缀：读到第一个不匹配的元组，它留给更大的左元组
+            while (pending != null || right.hasNext()) {
+                Tuple t2 = pending != null ? pending : right.next();
+                pending = null;
+                if (!pred.filter(t1, t2)) {
+                    pending = t2;
+                    break;
+                }
+                keep(t2);
+            }
+        } else {
+            // 匹配的是 child2 的后缀：先读完 child2，再丢弃左元组增大后不再匹配的前缀
+            if (!rightRead) {
+                while (right.hasNext())
+                    keep(right.next());
+                rightRead = true;
+            }
+            while (!runs.isEmpty() && !pred.filter(t1, runs.peekFirst().last))
+                runs.pollFirst().file.delete();
+            if (runs.isEmpty()) {
+                while (lo < buffer.size() && !pred.filter(t1, buffer.get(lo)))
+                    lo++;
+            }
+        }
+        if (runScan != null)
+            runScan.close();
+        runScan = null;
+        runIt = runs.iterator();
+        pos = lo;
+    }
+
+    /**
+     * @return the next buffered tuple of child2 that matches t1 in a range
+     *         join, from the runs on disk and then from memory, or null
+     */
+    private Tuple nextRangeMatch() throws DbException, TransactionAbortedException {
+        while (true) {
+            Tuple t2;
+            if (runScan != null && runScan.hasNext()) {
+                t2 = runScan.next();
+            } else if (runIt.hasNext()) {
+                if (runScan != null)
+                    runScan.close();
+                runScan = new SpillScan(runIt.next().file);
+                runScan.open();
+                continue;
+            } else if (pos < buffer.size()) {
+                t2 = buffer.get(pos++);
+            } else {
+                return null;
+            }
+            // 后缀的第一段开头可能还有不匹配的元组
+            if (pred.filter(t1, t2))
+                return t2;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples returned are the concatenation of joining tuples
+     * from the left and right relation, as in {@link Join}.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Tuple t2;
+        if (isRangeJoin()) {
+            while (t1 == null || (t2 = nextRangeMatch()) == null) {
+                if (!left.hasNext())
+                    return null;
+                t1 = left.next();
+                advanceRange();
+            }
+        } else {
+            while (t1 == null || pos >= hi) {
+                if (!left.hasNext())
+                    return null;
+                t1 = left.next();
+                advance(t1.getField(pred.getField1()));
+            }
+            t2 = buffer.get(pos++);
+        }
+
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        sortInputs();
+    }
+
+}
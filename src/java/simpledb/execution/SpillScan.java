@@ -0,0 +1,58 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the tuples of a spilled partition, as the child of an operator such
+ * as the OrderBy that sorts it.
+ */
+class SpillScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SpillFile file;
+    transient private DbFileIterator it;
+
+    SpillScan(SpillFile file) {
+        this.file = file;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        try {
+            it = file.iterator();
+        } catch (IOException e) {
+            throw new DbException("spill failed: " + e.getMessage());
+        }
+        it.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return it.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return it.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return file.getTupleDesc();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+    }
+}
@@ -4,9 +4,8 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -17,22 +16,12 @@ public class StringAggregator implements Aggregator {
 
     private final int gbfield;
     private final Type gbfieldType;
+    private final int afield;
     private final TupleDesc td; // 根据gbfield创建的TupleDesc
     // https://wenku.baidu.com/view/627f3a07bfd126fff705cc1755270722182e5947.html
-    // 分组列作为key，聚合列作为value
-    private final Map<Field, StringAggregator.AggResult> results = new HashMap<>();
-
-    private static class AggResult {
-        private int count;
-
-        public void merge() {
-            count ++;
-        }
-
-        public int intResult() {
-            return count;
-        }
-    }
+    // 分组编号到该组的计数
+    private final GroupTable groups;
+    private int[] counts = new int[16];
 
     /**
      * Aggregate constructor
@@ -50,6 +39,8 @@ public class StringAggregator implements Aggregator {
         }
         this.gbfield = gbfield;
         this.gbfieldType = gbfieldtype;
+        this.afield = afield;
+        this.groups = new GroupTable(gbfield, gbfieldtype);
 
         if (gbfield != Aggregator.NO_GROUPING) {
             // 返回的TupleDesc有分组列和聚合列
@@ -71,14 +62,61 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field keyField = null;
-        if (gbfield != Aggregator.NO_GROUPING) {
-            keyField = tup.getField(gbfield);
+        add(groups.groupOf(tup), 1);
+    }
+
+    @Override
+    public boolean mergeIntoExistingGroup(Tuple tup) {
+        int g = groups.find(tup);
+        if (g < 0)
+            return false;
+        counts[g]++;
+        return true;
+    }
+
+    @Override
+    public int numGroups() {
+        return groups.size();
+    }
+
+    private void add(int g, int count) {
+        if (g >= counts.length)
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, g + 1));
+        counts[g] += count;
+    }
+
+    /**
+     * Merge the selected rows of a batch; without grouping only the number of
+     * rows matters.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        if (gbfield == Aggregator.NO_GROUPING) {
+            if (batch.numRows() > 0)
+                add(groups.groupOf((Field) null), batch.numRows());
+            return;
+        }
+        for (int i = 0; i < batch.numRows(); i++)
+            add(groups.groupOf(batch, batch.row(i)), 1);
+    }
+
+    @Override
+    public void merge(Aggregator other) {
+        StringAggregator o = (StringAggregator) other;
+        for (int og = 0; og < o.groups.size(); og++)
+            add(groups.groupOf(o.groups, og), o.counts[og]);
+    }
+
+    @Override
+    public Aggregator[] partition(int n) {
+        StringAggregator[] parts = new StringAggregator[n];
+        for (int i = 0; i < n; i++)
+            parts[i] = new StringAggregator(gbfield, gbfieldType, afield, Op.COUNT);
+        for (int g = 0; g < groups.size(); g++) {
+            StringAggregator part = parts[Aggregator.partitionOf(groups.value(g), n)];
+            part.add(part.groups.groupOf(groups, g), counts[g]);
         }
-        // 如果key有对应的value，则把值合并到那个value中，否则new一个新的value合并值进去
-        // computeIfAbsent: 如果 key 对应的 value 不存在，则使用获取 remappingFunction
-        // 重新计算后的值，并保存为该 key 的 value，否则返回 value
-        results.computeIfAbsent(keyField, key -> new StringAggregator.AggResult()).merge();
+        return parts;
     }
 
     /**
@@ -91,14 +129,14 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        List<Tuple> tuples = new ArrayList<>(results.size());
-        for (Map.Entry<Field, StringAggregator.AggResult> entry: results.entrySet()) {
+        List<Tuple> tuples = new ArrayList<>(groups.size());
+        for (int g = 0; g < groups.size(); g++) {
             Tuple tuple = new Tuple(td);
             if (gbfield != Aggregator.NO_GROUPING) {
-                tuple.setField(0, entry.getKey());
-                tuple.setField(1, new IntField(entry.getValue().intResult()));
+                tuple.setField(0, groups.value(g));
+                tuple.setField(1, new IntField(counts[g]));
             } else {
-                tuple.setField(0, new IntField(entry.getValue().intResult()));
+                tuple.setField(0, new IntField(counts[g]));
             }
             tuples.add(tuple);
         }
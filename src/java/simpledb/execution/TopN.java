@@ -0,0 +1,233 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.HeapPage;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n: it returns the
+ * first n tuples of the child in the order an {@link OrderBy} on the same field
+ * would return them, ties included.
+ * <p>
+ * Instead of sorting the whole child, TopN reads it once and keeps the best n
+ * tuples seen so far in a bounded heap whose root is the worst of them, so the
+ * child is consumed in O(m log n) time and O(n) memory.
+ * <p>
+ * The heap is reserved from the budget of the query when the TopN is opened
+ * (see {@link MemoryConsumer}). If fewer pages are granted than n tuples
+ * take, the child is sorted by an external {@link OrderBy} in the granted
+ * pages instead, and its first n tuples are returned.
+ */
+public class TopN extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Smallest memory budget of a TopN, in pages of tuples. */
+    public static final int MIN_MEMORY_PAGES = OrderBy.MIN_MEMORY_PAGES;
+
+    /**
+     * A tuple with its position in the child, which breaks ties so that the
+     * result is the same as that of a stable sort.
+     */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    private OpIterator child;
+    private final int orderByField;
+    private final String orderByFieldName;
+    private final boolean asc;
+    private final int n;
+    private final Comparator<Entry> order;
+    private final List<Tuple> result = new ArrayList<>();
+    private Iterator<Tuple> it;
+    private int memoryPages;
+    // 本次 open 从查询预算中得到的页数
+    private int grantedPages;
+    // 预算放不下 n 个元组时对子节点的外部排序，以及已经返回的元组数
+    transient private OrderBy sorted;
+    transient private int returned;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int n, OpIterator child) {
+        if (n < 0)
+            throw new IllegalArgumentException("n must not be negative");
+        this.child = child;
+        this.orderByField = orderbyField;
+        this.orderByFieldName = child.getTupleDesc().getFieldName(orderbyField);
+        this.asc = asc;
+        this.n = n;
+        int perPage = HeapPage.getNumTuples(child.getTupleDesc());
+        this.memoryPages = Math.max(MIN_MEMORY_PAGES, (n + perPage - 1) / perPage);
+        this.grantedPages = memoryPages;
+        TupleComparator comparator = new TupleComparator(orderbyField, asc);
+        this.order = (a, b) -> {
+            int c = comparator.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return orderByFieldName;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return the pages the heap of n tuples takes, or
+     *         {@link #MIN_MEMORY_PAGES} if it takes fewer
+     */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public void setMemoryPages(int pages) {
+        if (pages < MIN_MEMORY_PAGES)
+            throw new IllegalArgumentException("a TopN needs at least 3 pages of memory");
+        this.memoryPages = pages;
+    }
+
+    public int getMinMemoryPages() {
+        return MIN_MEMORY_PAGES;
+    }
+
+    /**
+     * @return the number of pages reserved by the last open, fewer than
+     *         {@link #getMemoryPages} if the budget of the query was short
+     */
+    public int getGrantedPages() {
+        return grantedPages;
+    }
+
+    /**
+     * @return true if the last open sorted the child because the heap did not
+     *         fit in the granted pages
+     */
+    public boolean isSorted() {
+        return sorted != null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        result.clear();
+        if (sorted != null)
+            sorted.close();
+        sorted = null;
+        grantedPages = reserveMemory(memoryPages, MIN_MEMORY_PAGES);
+        if ((long) grantedPages * HeapPage.getNumTuples(getTupleDesc()) < n) {
+            // 堆放不下：在得到的页数内外部排序，只取前 n 个
+            sorted = new OrderBy(orderByField, asc, child, grantedPages);
+            sorted.open();
+            returned = 0;
+            it = null;
+            super.open();
+            return;
+        }
+        child.open();
+        if (n > 0) {
+            // 大顶堆，堆顶是目前保留的元组中排在最后的一个
+            PriorityQueue<Entry> heap = new PriorityQueue<>(n, order.reversed());
+            long seq = 0;
+            while (child.hasNext()) {
+                Entry e = new Entry(child.next(), seq++);
+                if (heap.size() < n) {
+                    heap.add(e);
+                } else if (order.compare(e, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+            List<Entry> entries = new ArrayList<>(heap);
+            entries.sort(order);
+            for (Entry e : entries)
+                result.add(e.tuple);
+        }
+        it = result.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (sorted != null)
+            sorted.close();
+        sorted = null;
+        child.close();
+        result.clear();
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (sorted != null) {
+            sorted.rewind();
+            returned = 0;
+        } else {
+            it = result.iterator();
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the retained tuples in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (sorted != null) {
+            if (returned < n && sorted.hasNext()) {
+                returned++;
+                return sorted.next();
+            }
+            return null;
+        }
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,405 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeDefragmenter reorganizes a BTreeFile online, in many small transactions, so
+ * that it can run alongside regular traffic. It works in four passes:
+ * <ol>
+ * <li>MERGE: leaves with the same parent are packed up to the fill factor, and a leaf
+ * whose remaining tuples fit into its left neighbour is merged into it. Deletes only
+ * merge pages below the minimum occupancy, so they leave many half-empty leaves.</li>
+ * <li>COMPACT: the pages at the end of the file are moved into the empty pages
+ * closest to its start.</li>
+ * <li>ORDER: leaves are moved so that, following the right sibling pointers, they
+ * are stored in runs of consecutive page numbers. A leaf is swapped with the leaf
+ * that occupies the page it should go to.</li>
+ * <li>TRUNCATE: the empty pages at the end of the file are removed, and the file is
+ * shortened once the step has committed.</li>
+ * </ol>
+ * Each call to {@link #step()} runs one transaction which touches at most a few
+ * pages. A step which is aborted (e.g., because of a lock conflict) is simply
+ * retried by the next call.
+ *
+ * @see BTreeFile#movePage
+ * @see BTreeFile#truncateEmptyPages
+ */
+public class BTreeDefragmenter {
+
+	public static final int DEFAULT_PAGES_PER_STEP = 8;
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	private enum Phase { MERGE, COMPACT, ORDER, TRUNCATE, DONE }
+
+	private final BTreeFile f;
+	private final int pagesPerStep;
+	private final double fillFactor;
+
+	private Phase phase = Phase.MERGE;
+	// 下一步从包含该 key 的最右叶子页继续
+	private Field resumeKey = null;
+	// ORDER 阶段已经放好位置的叶子页号，后面的叶子不会再占用它们
+	private final Set<Integer> placed = new HashSet<>();
+
+	private int pagesMerged = 0;
+	private int pagesMoved = 0;
+	private int pagesTruncated = 0;
+
+	/**
+	 * @param f - the B+ tree to defragment
+	 * @param pagesPerStep - the number of leaves visited (or pages moved) per transaction
+	 * @param fillFactor - the fraction of a leaf filled when leaves are packed
+	 */
+	public BTreeDefragmenter(BTreeFile f, int pagesPerStep, double fillFactor) {
+		if(pagesPerStep < 2) {
+			throw new IllegalArgumentException("a step must visit at least two pages");
+		}
+		this.f = f;
+		this.pagesPerStep = pagesPerStep;
+		this.fillFactor = fillFactor;
+	}
+
+	public BTreeDefragmenter(BTreeFile f) {
+		this(f, DEFAULT_PAGES_PER_STEP, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Defragment the whole file, one step after another.
+	 */
+	public void run() throws DbException, IOException {
+		while(step()) {
+			// 每一步都是一个独立的小事务，中间可以穿插其他事务
+		}
+	}
+
+	/**
+	 * Run one step of the defragmentation in a transaction of its own.
+	 *
+	 * @return false if the defragmentation is complete
+	 */
+	public boolean step() throws DbException, IOException {
+		if(phase == Phase.DONE) {
+			return false;
+		}
+		Transaction t = new Transaction();
+		t.start();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		// 中途被中止时，下一步从同一位置重试
+		Phase phaseBefore = phase;
+		Field resumeBefore = resumeKey;
+		int truncated = 0;
+		try {
+			switch(phase) {
+			case MERGE:
+				merge(t.getId(), dirtypages);
+				break;
+			case COMPACT:
+				compact(t.getId(), dirtypages);
+				break;
+			case ORDER:
+				order(t.getId(), dirtypages);
+				break;
+			case TRUNCATE:
+				truncated = f.truncateEmptyPages(t.getId(), dirtypages);
+				phase = Phase.DONE;
+				break;
+			default:
+				break;
+			}
+			Database.getBufferPool().cacheDirtyPages(t.getId(), new ArrayList<>(dirtypages.values()));
+		} catch(TransactionAbortedException e) {
+			phase = phaseBefore;
+			resumeKey = resumeBefore;
+			abort(t, dirtypages);
+			return true;
+		} catch(DbException | IOException | RuntimeException e) {
+			abort(t, dirtypages);
+			throw e;
+		}
+		if(truncated == 0) {
+			t.commit();
+			return phase != Phase.DONE;
+		}
+		// 中止会恢复 header 页但恢复不了文件长度，所以提交之后才缩短文件；
+		// 从提交到缩短一直持有文件的锁，其他事务不能在中间追加新页
+		synchronized(f) {
+			t.commit();
+			f.shrinkFile(truncated);
+		}
+		pagesTruncated += truncated;
+		return phase != Phase.DONE;
+	}
+
+	/**
+	 * Abort a step. The pages it modified have not been marked dirty yet, so they are
+	 * dropped from the buffer pool to make sure the next reader gets them from disk.
+	 */
+	private void abort(Transaction t, Map<PageId, Page> dirtypages) throws IOException {
+		for(PageId pid : dirtypages.keySet()) {
+			Database.getBufferPool().discardPage(pid);
+		}
+		t.abort();
+	}
+
+	/**
+	 * @return the number of leaf pages freed by merging
+	 */
+	public int getPagesMerged() {
+		return pagesMerged;
+	}
+
+	/**
+	 * @return the number of pages moved to another place in the file
+	 */
+	public int getPagesMoved() {
+		return pagesMoved;
+	}
+
+	/**
+	 * @return the number of pages removed from the end of the file
+	 */
+	public int getPagesTruncated() {
+		return pagesTruncated;
+	}
+
+	/**
+	 * Find the leaf where the current pass continues: the right-most leaf which may
+	 * contain the resume key, or the left-most leaf when a pass starts.
+	 */
+	private BTreeLeafPage resumeLeaf(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId root = f.getRootPtrPage(tid, dirtypages).getRootId();
+		BTreeLeafPage leaf = resumeKey == null ? f.findLeafPage(tid, root, null) : f.findLastLeafPage(tid, root, resumeKey);
+		return (BTreeLeafPage) f.getPage(tid, dirtypages, leaf.getId(), Permissions.READ_WRITE);
+	}
+
+	private void endPass(Phase next) {
+		phase = next;
+		resumeKey = null;
+	}
+
+	private void remember(BTreeLeafPage leaf) {
+		Iterator<Tuple> it = leaf.reverseIterator();
+		if(it.hasNext()) {
+			resumeKey = it.next().getField(f.keyField());
+		}
+	}
+
+	/**
+	 * Pack the leaves: fill each leaf up to the fill factor with the first tuples of its
+	 * right sibling, and merge the sibling into it once the rest fits. Within a step a
+	 * sibling may be left less than half full, because it is packed next; the last pair
+	 * of a step, or of a parent, is only packed as far as the minimum occupancy allows.
+	 */
+	private void merge(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage leaf = resumeLeaf(tid, dirtypages);
+		int max = leaf.getMaxTuples();
+		int target = Math.max(max / 2, (int) (max * fillFactor));
+		for(int visited = 0; visited < pagesPerStep; visited++) {
+			BTreePageId rightId = leaf.getRightSiblingId();
+			if(rightId == null) {
+				endPass(Phase.COMPACT);
+				return;
+			}
+			BTreeLeafPage right = (BTreeLeafPage) f.getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			if(!leaf.getParentId().equals(right.getParentId())) {
+				leaf = right;
+				continue;
+			}
+			BTreeInternalPage parent = (BTreeInternalPage) f.getPage(tid, dirtypages, leaf.getParentId(),
+					Permissions.READ_WRITE);
+			BTreeEntry entry = parentEntry(parent, leaf.getId());
+			boolean lastPair = visited == pagesPerStep - 1 || !isLeftChild(parent, rightId);
+			int tuples = leaf.getNumTuples() + right.getNumTuples();
+			if(tuples <= target || (lastPair && tuples <= max)) {
+				f.mergeLeafPages(tid, dirtypages, leaf, right, parent, entry);
+				// 合并后继续尝试把下一个兄弟并入当前页
+				dirtypages.remove(rightId);
+				Database.getBufferPool().discardPage(rightId);
+				pagesMerged++;
+				continue;
+			}
+			int n = target - leaf.getNumTuples();
+			if(lastPair) {
+				// 右兄弟之后不会再被填充，必须保持至少半满
+				n = Math.min(n, right.getNumTuples() - max / 2);
+			}
+			if(n > 0) {
+				Iterator<Tuple> it = right.iterator();
+				for(int i = 0; i < n; i++) {
+					Tuple t = it.next();
+					right.deleteTuple(t);
+					leaf.insertTuple(t);
+				}
+				entry.setKey(it.next().getField(f.keyField()));
+				parent.updateEntry(entry);
+			}
+			leaf = right;
+		}
+		remember(leaf);
+	}
+
+	private static boolean isLeftChild(BTreeInternalPage parent, BTreePageId child) {
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			if(it.next().getLeftChild().equals(child)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static BTreeEntry parentEntry(BTreeInternalPage parent, BTreePageId leftChild) throws DbException {
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(leftChild)) {
+				return e;
+			}
+		}
+		throw new DbException("page " + leftChild + " is not a left child of " + parent.getId());
+	}
+
+	/**
+	 * Collect the ids of all pages in use, by page number: the pages of the tree
+	 * (without reading the leaves) and the header pages.
+	 */
+	private Map<Integer, BTreePageId> pagesInUse(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<Integer, BTreePageId> pages = new HashMap<>();
+		BTreeRootPtrPage rootPtr = f.getRootPtrPage(tid, dirtypages);
+		Deque<BTreePageId> todo = new ArrayDeque<>();
+		todo.add(rootPtr.getRootId());
+		while(!todo.isEmpty()) {
+			BTreePageId pid = todo.poll();
+			pages.put(pid.getPageNumber(), pid);
+			if(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) f.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = null;
+				while(it.hasNext()) {
+					e = it.next();
+					todo.add(e.getLeftChild());
+				}
+				if(e != null) {
+					todo.add(e.getRightChild());
+				}
+			}
+		}
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			pages.put(headerId.getPageNumber(), headerId);
+			headerId = ((BTreeHeaderPage) f.getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		return pages;
+	}
+
+	/**
+	 * Move the pages at the end of the file into the first empty pages.
+	 */
+	private void compact(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<Integer, BTreePageId> inUse = pagesInUse(tid, dirtypages);
+		int hole = 1;
+		for(int moves = 0; moves < pagesPerStep; moves++) {
+			int last = Collections.max(inUse.keySet());
+			while(hole < last && !f.isEmptyPage(tid, dirtypages, hole)) {
+				hole++;
+			}
+			if(hole >= last) {
+				endPass(Phase.ORDER);
+				return;
+			}
+			BTreePageId src = inUse.remove(last);
+			Page page = f.getPage(tid, dirtypages, src, Permissions.READ_WRITE);
+			Page dest = f.claimEmptyPage(tid, dirtypages, hole, src.pgcateg());
+			f.movePage(tid, dirtypages, page, (BTreePageId) dest.getId());
+			free(tid, dirtypages, src);
+			inUse.put(hole, (BTreePageId) dest.getId());
+			pagesMoved++;
+		}
+	}
+
+	/**
+	 * Mark a page that was moved away as empty, and make sure its stale contents are
+	 * never written back.
+	 */
+	private void free(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		dirtypages.remove(pid);
+		Database.getBufferPool().discardPage(pid);
+		f.setEmptyPage(tid, dirtypages, pid.getPageNumber());
+	}
+
+	/**
+	 * Walk the leaves in key order, and place each leaf on the page right after the
+	 * previous one where possible.
+	 */
+	private void order(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<Integer, BTreePageId> inUse = pagesInUse(tid, dirtypages);
+		BTreeLeafPage prev = resumeLeaf(tid, dirtypages);
+		placed.add(prev.getId().getPageNumber());
+		for(int visited = 0; visited < pagesPerStep; visited++) {
+			BTreePageId leafId = prev.getRightSiblingId();
+			if(leafId == null) {
+				endPass(Phase.TRUNCATE);
+				placed.clear();
+				return;
+			}
+			BTreeLeafPage leaf = (BTreeLeafPage) f.getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+			int target = prev.getId().getPageNumber() + 1;
+			BTreePageId occupant = inUse.get(target);
+			if(leafId.getPageNumber() != target && !placed.contains(target)) {
+				if(occupant == null && f.isEmptyPage(tid, dirtypages, target)) {
+					// 目标位置是空页，直接搬过去
+					Page dest = f.claimEmptyPage(tid, dirtypages, target, BTreePageId.LEAF);
+					leaf = (BTreeLeafPage) f.movePage(tid, dirtypages, leaf, (BTreePageId) dest.getId());
+					free(tid, dirtypages, leafId);
+					inUse.remove(leafId.getPageNumber());
+					inUse.put(target, leaf.getId());
+					pagesMoved++;
+				}
+				else if(occupant != null && occupant.pgcateg() == BTreePageId.LEAF) {
+					// 目标位置是另一个叶子，两者交换位置
+					leaf = swap(tid, dirtypages, leaf, occupant);
+					pagesMoved += 2;
+				}
+			}
+			placed.add(leaf.getId().getPageNumber());
+			prev = leaf;
+		}
+		remember(prev);
+	}
+
+	/**
+	 * Swap the places of two leaves, using a temporary empty page.
+	 *
+	 * @return the leaf, at the page number of the occupant
+	 */
+	private BTreeLeafPage swap(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage leaf,
+			BTreePageId occupantId) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId leafId = leaf.getId();
+		Page occupant = f.getPage(tid, dirtypages, occupantId, Permissions.READ_WRITE);
+		Page tmp = f.getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		// occupant -> tmp, leaf -> occupant 的位置, tmp -> leaf 原来的位置
+		Page occupantAtTmp = f.movePage(tid, dirtypages, occupant, (BTreePageId) tmp.getId());
+		Page moved = f.movePage(tid, dirtypages, f.getPage(tid, dirtypages, leafId, Permissions.READ_WRITE), occupantId);
+		f.movePage(tid, dirtypages, f.getPage(tid, dirtypages, (BTreePageId) occupantAtTmp.getId(), Permissions.READ_WRITE), leafId);
+		free(tid, dirtypages, (BTreePageId) tmp.getId());
+		return (BTreeLeafPage) moved;
+	}
+}
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -33,6 +34,19 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private final int keyField;
 
+	/**
+	 * 顺序扫描叶子页时，每批异步预读的兄弟叶子页数量，0 表示不预读
+	 */
+	private static int prefetchDepth = 8;
+
+	/**
+	 * 固定在缓冲池中的内部节点层数（从根开始数），0 表示不固定
+	 */
+	private volatile int pinnedLevels = 0;
+	// 本文件固定过的页，以及固定它们的缓冲池（缓冲池被重置后要重新固定）
+	private final Set<BTreePageId> pinnedPages = ConcurrentHashMap.newKeySet();
+	private volatile BufferPool pinnedIn = null;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -168,6 +182,85 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * @return the number of sibling leaf pages that scans prefetch at a time
+	 */
+	public static int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Set the number of sibling leaf pages that scans prefetch at a time.
+	 * 0 disables prefetching.
+	 */
+	public static void setPrefetchDepth(int depth) {
+		prefetchDepth = Math.max(0, depth);
+	}
+
+	/**
+	 * @return the number of internal levels of this tree, counted from the root,
+	 *         which are kept resident in the buffer pool
+	 */
+	public int getPinnedLevels() {
+		return pinnedLevels;
+	}
+
+	/**
+	 * Keep the root pointer page and the internal pages of the top levels of this
+	 * tree resident in the buffer pool, so that probes of a hot index never wait
+	 * for the disk before they reach the lower levels. Pages are pinned as probes
+	 * reach them, and unpinned when they are freed. Together with the child
+	 * lookups cached by {@link BTreeInternalPage#findChild}, this makes the walk
+	 * through the upper levels a few binary searches on resident pages.
+	 * 
+	 * @param levels - the number of internal levels to pin; 0 unpins all pages
+	 * @see BufferPool#pinPage
+	 */
+	public void setPinnedLevels(int levels) {
+		if(levels < pinnedLevels) {
+			// 层数变少时全部放开，需要的页会在下次查找时重新固定
+			unpinAll();
+		}
+		pinnedLevels = Math.max(0, levels);
+	}
+
+	private void unpinAll() {
+		BufferPool pool = pinnedIn;
+		for(BTreePageId pid : pinnedPages) {
+			if(pool != null)
+				pool.unpinPage(pid);
+		}
+		pinnedPages.clear();
+	}
+
+	/**
+	 * Pin a page reached by a probe at the given depth (0 for the root pointer
+	 * page and the root), if the depth is within the pinned levels.
+	 */
+	private void pin(BTreePageId pid, int depth) {
+		if(depth >= pinnedLevels)
+			return;
+		BufferPool pool = Database.getBufferPool();
+		if(pool != pinnedIn) {
+			pinnedPages.clear();
+			pinnedIn = pool;
+		}
+		if(!pinnedPages.contains(pid) && pool.pinPage(pid))
+			pinnedPages.add(pid);
+	}
+
+	/**
+	 * Forget the pins of a page number which is no longer used by the tree.
+	 */
+	private void unpin(int pageNo) {
+		BufferPool pool = pinnedIn;
+		for(int categ : new int[]{BTreePageId.INTERNAL, BTreePageId.LEAF}) {
+			BTreePageId pid = new BTreePageId(tableid, pageNo, categ);
+			if(pinnedPages.remove(pid) && pool != null)
+				pool.unpinPage(pid);
+		}
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -188,28 +281,16 @@ public class BTreeFile implements DbFile {
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		// 获页面类别
-		int type = pid.pgcateg();
-		// 叶子节点
-		if(type == BTreePageId.LEAF){
-			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-		}
+		pin(BTreeRootPtrPage.getId(tableid), 0);
+		int depth = 0;
 		// 锁定路径上的所有内部节点，以READ_ONLY锁
-		BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		Iterator<BTreeEntry> it = internalPage.iterator();
-		BTreeEntry entry = null;
-		while(it.hasNext()){
-			entry = it.next();
-			// 如果要搜索的字段为空，找到最左节点(用于迭代器)
-			if(f == null){
-				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-			}
-			// 如果找到的节点相等，返回
-			if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)){
-				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-			}
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			pin(pid, depth++);
+			BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			// 第一个 key >= f 的 entry 的左孩子；f 为空时是最左孩子(用于迭代器)
+			pid = internalPage.findChild(f);
 		}
-		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+		return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
 	}
 	
 	/**
@@ -229,6 +310,127 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Recursive function which finds and locks (READ_ONLY) the right-most leaf page
+	 * possibly containing the key field f. This is the starting point of a descending
+	 * scan, which then follows the left sibling pointers.
+	 * 
+	 * If f is null, it finds the right-most leaf page -- used for the reverse iterator
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param f - the field to search for
+	 * @return the right-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Field f)
+			throws DbException, TransactionAbortedException {
+		pin(BTreeRootPtrPage.getId(tableid), 0);
+		int depth = 0;
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			pin(pid, depth++);
+			BTreeInternalPage internalPage = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+					Permissions.READ_ONLY);
+			// 右子树中的 key 都不小于 entry 的 key，所以找最后一个 key <= f 的 entry 的右孩子
+			pid = internalPage.findLastChild(f);
+		}
+		return (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Find the smallest key of the tree by descending to the left-most leaf, so
+	 * that MIN over the key field reads one page per level instead of every
+	 * leaf. Empty leaves, which only the root can be, are skipped by following
+	 * the right sibling pointers.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the smallest key, or null if the tree is empty
+	 */
+	public Field minKey(TransactionId tid) throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(root == null)
+			return null;
+		BTreeLeafPage leaf = findLeafPage(tid, root, null);
+		while(leaf != null) {
+			Iterator<Tuple> it = leaf.iterator();
+			if(it.hasNext())
+				return it.next().getField(keyField);
+			BTreePageId next = leaf.getRightSiblingId();
+			leaf = next == null ? null : (BTreeLeafPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+		}
+		return null;
+	}
+
+	/**
+	 * Find the largest key of the tree by descending to the right-most leaf.
+	 * @see #minKey(TransactionId)
+	 * 
+	 * @param tid - the transaction id
+	 * @return the largest key, or null if the tree is empty
+	 */
+	public Field maxKey(TransactionId tid) throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(root == null)
+			return null;
+		BTreeLeafPage leaf = findLastLeafPage(tid, root, null);
+		while(leaf != null) {
+			Iterator<Tuple> it = leaf.reverseIterator();
+			if(it.hasNext())
+				return it.next().getField(keyField);
+			BTreePageId prev = leaf.getLeftSiblingId();
+			leaf = prev == null ? null : (BTreeLeafPage) Database.getBufferPool().getPage(tid, prev, Permissions.READ_ONLY);
+		}
+		return null;
+	}
+
+	/**
+	 * Asynchronously prefetch the leaf pages that a scan will visit after the
+	 * specified leaf, so that following the sibling pointers does not wait for
+	 * one disk read per page. Only siblings that share the leaf's parent are
+	 * prefetched (they can be found without reading the siblings themselves),
+	 * and at most {@link #getPrefetchDepth()} of them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param leaf - the leaf page the scan is currently reading
+	 * @param forward - true if the scan follows right sibling pointers, false
+	 *            if it follows left sibling pointers
+	 * @param bound - if not null, stop at the first sibling whose separator key
+	 *            in the parent does not satisfy this predicate, since the scan
+	 *            ends before it
+	 * @return the number of pages that were requested
+	 */
+	int prefetchSiblings(TransactionId tid, BTreeLeafPage leaf, boolean forward, IndexPredicate bound)
+			throws DbException, TransactionAbortedException {
+		BTreePageId parentId = leaf.getParentId();
+		if (prefetchDepth == 0 || parentId.pgcateg() != BTreePageId.INTERNAL) {
+			return 0;
+		}
+		BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPage(tid, parentId,
+				Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = forward ? parent.iterator() : parent.reverseIterator();
+		List<BTreePageId> siblings = new ArrayList<>(prefetchDepth);
+		boolean found = false;
+		while (it.hasNext() && siblings.size() < prefetchDepth) {
+			BTreeEntry e = it.next();
+			BTreePageId near = forward ? e.getLeftChild() : e.getRightChild();
+			BTreePageId far = forward ? e.getRightChild() : e.getLeftChild();
+			if (!found && near.equals(leaf.getId())) {
+				found = true;
+			}
+			if (found) {
+				if (bound != null && !e.getKey().compare(bound.getOp(), bound.getField())) {
+					break;
+				}
+				siblings.add(far);
+			}
+		}
+		Database.getBufferPool().prefetchPages(siblings);
+		return siblings.size();
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -475,7 +677,7 @@ public class BTreeFile implements DbFile {
 	 * @throws DbException
 	 * @throws TransactionAbortedException
 	 */
-	private void updateParentPointers(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
+	void updateParentPointers(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
 			throws DbException, TransactionAbortedException{
 		Iterator<BTreeEntry> it = page.iterator();
 		BTreePageId pid = page.getId();
@@ -857,8 +1059,8 @@ public class BTreeFile implements DbFile {
 		}
 
 		// 4. 更新父节点
-		// 从左节点删除，拉到父节点
-		rightSibling.deleteKeyAndRightChild(entry);
+		// 从右节点删除，拉到父节点（它的左孩子已经移到了 page 中）
+		rightSibling.deleteKeyAndLeftChild(entry);
 		parentEntry.setKey(entry.getKey());
 		parent.updateEntry(parentEntry);
 
@@ -1169,12 +1371,22 @@ public class BTreeFile implements DbFile {
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
+	Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
+		return initEmptyPage(tid, dirtypages, newPageId);
+	}
+
+	/**
+	 * Wipe the specified page on disk and in the cache, and return a clean copy locked
+	 * with read-write permission. The page must already be marked as used in the header.
+	 */
+	private Page initEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId newPageId)
+			throws DbException, IOException, TransactionAbortedException {
+		int emptyPageNo = newPageId.getPageNumber();
+
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
@@ -1272,6 +1484,233 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		unpin(emptyPageNo);
+	}
+
+	/**
+	 * Find the header page containing the slot of the specified page number.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @param perm - the permissions with which to lock the header page
+	 * @return the header page, or null if there is no header page for pageNo (in which
+	 *         case the page is in use)
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo,
+			Permissions perm) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		int headerPageCount = 0;
+		// 与 setEmptyPage 使用相同的页号到槽位的映射
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < pageNo) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
+		}
+		if(headerId == null) {
+			return null;
+		}
+		return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, perm);
+	}
+
+	/**
+	 * @return the slot corresponding to the specified page number in the header page
+	 *         returned by {@link #getHeaderPage}
+	 */
+	private static int headerSlot(int pageNo) {
+		return pageNo - (pageNo - 1) / BTreeHeaderPage.getNumSlots() * BTreeHeaderPage.getNumSlots();
+	}
+
+	/**
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @return true if the header pages mark the specified page as empty (available for reuse)
+	 */
+	public boolean isEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		if(pageNo < 1 || pageNo > numPages()) {
+			return false;
+		}
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, pageNo, Permissions.READ_ONLY);
+		return headerPage != null && !headerPage.isSlotUsed(headerSlot(pageNo));
+	}
+
+	/**
+	 * Reuse a specific empty page. Unlike {@link #getEmptyPage}, which takes the first
+	 * empty page, this lets the caller choose where the page goes, e.g., to place
+	 * neighbouring leaves next to each other in the file.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number of the empty page
+	 * @param pgcateg - the BTreePageId category of the new page
+	 * @return the new empty page, locked with read-write permission
+	 * @throws DbException if the page is not empty
+	 */
+	public Page claimEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!isEmptyPage(tid, dirtypages, pageNo)) {
+			throw new DbException("page " + pageNo + " is not empty");
+		}
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, pageNo, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(headerSlot(pageNo), true);
+		return initEmptyPage(tid, dirtypages, new BTreePageId(tableid, pageNo, pgcateg));
+	}
+
+	/**
+	 * Move the contents of a page to another page of the same category, and update every
+	 * pointer to the page: the parent's child pointer (or the root pointer), the sibling
+	 * pointers of neighbouring leaves, the parent pointers of the children of an internal
+	 * page, and the links between header pages.
+	 * 
+	 * The destination page must already be locked with read-write permission by this
+	 * transaction, e.g., because it was returned by {@link #claimEmptyPage} or because its
+	 * previous contents were just moved somewhere else. The source page is left as it is;
+	 * the caller decides whether to free it with {@link #setEmptyPage} or to reuse it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page to move
+	 * @param dest - the id of the destination page
+	 * @return the moved page
+	 * @throws DbException if the categories of the source and destination differ
+	 */
+	public Page movePage(TransactionId tid, Map<PageId, Page> dirtypages, Page page, BTreePageId dest)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId src = (BTreePageId) page.getId();
+		if(src.pgcateg() != dest.pgcateg() || src.getTableId() != dest.getTableId()) {
+			throw new DbException("can not move " + src + " to " + dest);
+		}
+		byte[] data = page.getPageData();
+		Page moved;
+		if(dest.pgcateg() == BTreePageId.LEAF) {
+			moved = new BTreeLeafPage(dest, data, keyField);
+		}
+		else if(dest.pgcateg() == BTreePageId.INTERNAL) {
+			moved = new BTreeInternalPage(dest, data, keyField);
+		}
+		else {
+			moved = new BTreeHeaderPage(dest, data);
+		}
+		dirtypages.put(dest, moved);
+
+		if(moved instanceof BTreePage) {
+			// 1. 更新父节点中的指针
+			BTreePageId parentId = ((BTreePage) moved).getParentId();
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				rootPtr.setRootId(dest);
+			}
+			else {
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				Iterator<BTreeEntry> it = parent.iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					boolean changed = false;
+					if(e.getLeftChild().equals(src)) {
+						e.setLeftChild(dest);
+						changed = true;
+					}
+					if(e.getRightChild().equals(src)) {
+						e.setRightChild(dest);
+						changed = true;
+					}
+					if(changed) {
+						parent.updateEntry(e);
+					}
+				}
+			}
+		}
+
+		if(moved instanceof BTreeLeafPage) {
+			// 2. 更新兄弟节点的指针
+			BTreeLeafPage leaf = (BTreeLeafPage) moved;
+			if(leaf.getLeftSiblingId() != null) {
+				BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getLeftSiblingId(), Permissions.READ_WRITE);
+				left.setRightSiblingId(dest);
+			}
+			if(leaf.getRightSiblingId() != null) {
+				BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+				right.setLeftSiblingId(dest);
+			}
+		}
+		else if(moved instanceof BTreeInternalPage) {
+			// 2. 更新子节点的父指针
+			updateParentPointers(tid, dirtypages, (BTreeInternalPage) moved);
+		}
+		else {
+			// 2. 更新 header 页链表
+			BTreeHeaderPage header = (BTreeHeaderPage) moved;
+			if(header.getPrevPageId() == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(dest);
+			}
+			else {
+				BTreeHeaderPage prev = (BTreeHeaderPage) getPage(tid, dirtypages, header.getPrevPageId(), Permissions.READ_WRITE);
+				prev.setNextPageId(dest);
+			}
+			if(header.getNextPageId() != null) {
+				BTreeHeaderPage next = (BTreeHeaderPage) getPage(tid, dirtypages, header.getNextPageId(), Permissions.READ_WRITE);
+				next.setPrevPageId(dest);
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Remove the empty pages at the end of the file. The header slots of the removed
+	 * pages are marked as used again, which is how header pages treat page numbers past
+	 * the end of the file. The file itself is not shortened here, since the transaction
+	 * could still abort and restore the header pages; once it commits, the caller cuts
+	 * the removed pages off with {@link #shrinkFile}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the number of pages removed
+	 */
+	public int truncateEmptyPages(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		// 先对所有 header 页加写锁，此后其他事务不能再申请或释放页面
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE)).getNextPageId();
+		}
+		synchronized(this) {
+			int last = numPages();
+			int removed = 0;
+			// 至少保留一页，根节点总在文件中
+			while(last - removed > 1 && isEmptyPage(tid, dirtypages, last - removed)) {
+				int pageNo = last - removed;
+				getHeaderPage(tid, dirtypages, pageNo, Permissions.READ_WRITE).markSlotUsed(headerSlot(pageNo), true);
+				for(int pgcateg : new int[]{BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER}) {
+					BTreePageId pid = new BTreePageId(tableid, pageNo, pgcateg);
+					Database.getBufferPool().discardPage(pid);
+					dirtypages.remove(pid);
+				}
+				removed++;
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Cut the pages removed by {@link #truncateEmptyPages} off the end of the file. Call
+	 * this after the transaction which removed them commits, holding the lock of this
+	 * BTreeFile from before the commit: until the commit the transaction's locks on the
+	 * header pages keep other transactions from appending pages, and after it the lock
+	 * of the file does.
+	 * 
+	 * @param removed - the number of pages returned by truncateEmptyPages
+	 */
+	public void shrinkFile(int removed) throws IOException {
+		assert Thread.holdsLock(this) : "the file must stay locked from the commit until it is shrunk";
+		if(removed > 0) {
+			try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+				rf.setLength(BTreeRootPtrPage.getPageSize() + (long) (numPages() - removed) * BufferPool.getPageSize());
+			}
+		}
 	}
 
 	/**
@@ -1300,6 +1739,31 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key order.
+	 * The iterator starts at the right-most leaf and follows the left sibling
+	 * pointers. This method will acquire a read lock on the affected pages of the
+	 * file, and may block until the lock can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, in descending order
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeReverseIterator(this, tid, null);
+	}
+
+	/**
+	 * Get the tuples matching the IndexPredicate in descending key order.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples, in descending order
+	 * @see #indexIterator(TransactionId, IndexPredicate)
+	 */
+	public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BTreeReverseIterator(this, tid, ipred);
+	}
+
 }
 
 /**
@@ -1309,6 +1773,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// 已经请求预读、但还没有读到的兄弟页数量
+	int prefetched = 0;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1332,6 +1798,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
 		it = curp.iterator();
+		prefetched = f.prefetchSiblings(tid, curp, true, null);
 	}
 
 	/**
@@ -1353,6 +1820,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				// 上一批预读的页快读完时，再预读下一批
+				if (--prefetched <= 0)
+					prefetched = f.prefetchSiblings(tid, curp, true, null);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1390,10 +1860,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// 已经请求预读、但还没有读到的兄弟页数量
+	int prefetched = 0;
 
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	final IndexPredicate prefetchBound;
 
 	/**
 	 * Constructor for this iterator
@@ -1405,6 +1878,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		// 小于条件的扫描在第一个不满足的 key 处结束，不要预读更右边的页
+		this.prefetchBound = ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ ? ipred : null;
 	}
 
 	/**
@@ -1423,6 +1898,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			curp = f.findLeafPage(tid, root, null);
 		}
 		it = curp.iterator();
+		// 等值查找通常只读一两个叶子页，不值得预读
+		if (ipred.getOp() != Op.EQUALS)
+			prefetched = f.prefetchSiblings(tid, curp, true, prefetchBound);
 	}
 
 	/**
@@ -1462,6 +1940,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if (--prefetched <= 0)
+					prefetched = f.prefetchSiblings(tid, curp, true, prefetchBound);
 				it = curp.iterator();
 			}
 		}
@@ -1485,3 +1965,115 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for tuples on a B+ Tree File
+ * in descending key order, optionally restricted to the tuples matching a
+ * predicate. It starts at the right-most leaf page that may contain a matching
+ * tuple and follows the left sibling pointers.
+ */
+class BTreeReverseIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	// 已经请求预读、但还没有读到的兄弟页数量
+	int prefetched = 0;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final IndexPredicate ipred;
+	final IndexPredicate prefetchBound;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null to return all tuples
+	 */
+	public BTreeReverseIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.prefetchBound = ipred != null && (ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) ? ipred : null;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * applicable for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if (ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
+				|| ipred.getOp() == Op.LESS_THAN_OR_EQ)) {
+			curp = f.findLastLeafPage(tid, root, ipred.getField());
+		}
+		else {
+			curp = f.findLastLeafPage(tid, root, null);
+		}
+		it = curp.reverseIterator();
+		if (ipred == null || ipred.getOp() != Op.EQUALS)
+			prefetched = f.prefetchSiblings(tid, curp, false, prefetchBound);
+	}
+
+	/**
+	 * Read the previous tuple either from the current page or from the page to
+	 * the left, by following the left sibling pointer.
+	 * 
+	 * @return the next tuple (in descending order) matching the predicate, or
+	 *         null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null) {
+					return t;
+				}
+				Field key = t.getField(f.keyField());
+				if (key.compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+				else if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+					// 降序扫描时，大于条件一旦不满足，后面的 key 更小，也不会满足
+					return null;
+				}
+				else if (ipred.getOp() == Op.EQUALS && key.compare(Op.LESS_THAN, ipred.getField())) {
+					return null;
+				}
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if (prevp == null) {
+				return null;
+			}
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, prevp, Permissions.READ_ONLY);
+			if (--prefetched <= 0)
+				prefetched = f.prefetchSiblings(tid, curp, false, prefetchBound);
+			it = curp.reverseIterator();
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+		prefetched = 0;
+	}
+}
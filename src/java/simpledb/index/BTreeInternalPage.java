@@ -30,6 +30,23 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	/**
+	 * The keys and child page numbers in slot order, without the empty slots, so
+	 * that child lookups can binary search them. Built on the first lookup and
+	 * dropped whenever the page is modified.
+	 */
+	private static final class Routes {
+		final Field[] keys;
+		final int[] children;
+
+		Routes(Field[] keys, int[] children) {
+			this.keys = keys;
+			this.children = children;
+		}
+	}
+
+	private volatile Routes routes = null;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -435,6 +452,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		routes = null;
 	}
 
 	/**
@@ -603,6 +621,79 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		routes = null;
+	}
+
+	private Routes routes() {
+		Routes r = routes;
+		if(r == null) {
+			int n = Math.max(getNumEntries(), 0);
+			Field[] k = new Field[n];
+			int[] c = new int[n + 1];
+			int j = -1;
+			for(int i = 0; i < numSlots && j < n; i++) {
+				if(!isSlotUsed(i))
+					continue;
+				// 槽位 0 只有孩子指针，之后每个槽位是 key 和它的右孩子
+				if(j >= 0)
+					k[j] = keys[i];
+				c[++j] = children[i];
+			}
+			r = new Routes(k, c);
+			routes = r;
+		}
+		return r;
+	}
+
+	/**
+	 * Find the child to descend into to reach the left-most leaf which may contain
+	 * the key f: the left child of the first entry whose key is greater than or
+	 * equal to f, or the right-most child if there is none.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the child page id, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		Routes r = routes();
+		if(r.keys.length == 0)
+			return null;
+		int lo = 0;
+		if(f != null) {
+			int hi = r.keys.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(r.keys[mid].compare(Op.GREATER_THAN_OR_EQ, f))
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+		}
+		return new BTreePageId(pid.getTableId(), r.children[lo], childCategory);
+	}
+
+	/**
+	 * Find the child to descend into to reach the right-most leaf which may contain
+	 * the key f: the right child of the last entry whose key is less than or equal
+	 * to f, or the left-most child if there is none.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the child page id, or null if the page has no entries
+	 */
+	public BTreePageId findLastChild(Field f) {
+		Routes r = routes();
+		if(r.keys.length == 0)
+			return null;
+		int lo = r.keys.length;
+		if(f != null) {
+			lo = 0;
+			int hi = r.keys.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(r.keys[mid].compare(Op.GREATER_THAN, f))
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+		}
+		return new BTreePageId(pid.getTableId(), r.children[lo], childCategory);
 	}
 
 	/**
@@ -765,8 +856,13 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// 左孩子在前一个使用中的槽位，中间可能有删除留下的空槽
+				BTreePageId childId = null;
+				for(int i = entry - 1; i >= 0 && childId == null; i--)
+					childId = p.getChildId(i);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
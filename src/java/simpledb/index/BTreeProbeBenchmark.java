@@ -0,0 +1,98 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * Measures the latency of equality probes on a BTreeFile with a buffer pool
+ * smaller than the tree, with and without pinning the upper levels of the
+ * tree. Between batches of probes a range scan streams leaves through the
+ * pool, as a concurrent report would, pushing unpinned internal pages out.
+ * <p>
+ * Usage: java simpledb.index.BTreeProbeBenchmark [rows] [probes] [bufferPoolPages] [pinnedLevels]
+ */
+public class BTreeProbeBenchmark {
+
+	private static final int PAGE_SIZE = 1024;
+	private static final int PROBES_PER_SCAN = 50;
+
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int probes = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int pages = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int levels = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+		// 小页让树多几层，上层节点才有被挤出缓冲池的机会
+		BufferPool.setPageSize(PAGE_SIZE);
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, rows, rows, null, tuples, 0);
+		System.out.printf("B+ tree over %d rows: %d pages of %d bytes, buffer pool of %d pages%n",
+				rows, btree.numPages(), PAGE_SIZE, pages);
+
+		Random rand = new Random(42);
+		int[] keys = new int[probes];
+		for (int i = 0; i < probes; i++) {
+			keys[i] = tuples.get(rand.nextInt(tuples.size())).get(0);
+		}
+
+		// 交替运行几轮取最好成绩，减少 GC 和 JIT 带来的抖动
+		long plainNs = Long.MAX_VALUE, pinnedNs = Long.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			plainNs = Math.min(plainNs, run(btree, pages, 0, keys, rows));
+			pinnedNs = Math.min(pinnedNs, run(btree, pages, levels, keys, rows));
+		}
+		System.out.printf("unpinned:           %.2f us/probe%n", plainNs / 1000.0 / probes);
+		System.out.printf("%d levels pinned:    %.2f us/probe%n", levels, pinnedNs / 1000.0 / probes);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * @return the time spent in probes, without the scans between them
+	 */
+	private static long run(BTreeFile btree, int pages, int levels, int[] keys, int rows) throws Exception {
+		Database.resetBufferPool(pages);
+		btree.setPinnedLevels(levels);
+		TransactionId tid = new TransactionId();
+		long matches = 0;
+		long elapsed = 0;
+		int scanFrom = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (i % PROBES_PER_SCAN == 0) {
+				// 另一个事务扫描一段叶子页，把没有固定的页挤出缓冲池
+				TransactionId scanTid = new TransactionId();
+				DbFileIterator scan = btree.indexIterator(scanTid,
+						new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(scanFrom)));
+				scan.open();
+				for (int n = 0; n < pages * 100 && scan.hasNext(); n++) {
+					scan.next();
+				}
+				scan.close();
+				Database.getBufferPool().transactionComplete(scanTid);
+				scanFrom = (scanFrom + rows / 16) % rows;
+			}
+			long start = System.nanoTime();
+			DbFileIterator it = btree.indexIterator(tid,
+					new IndexPredicate(Predicate.Op.EQUALS, new IntField(keys[i])));
+			it.open();
+			while (it.hasNext()) {
+				it.next();
+				matches++;
+			}
+			it.close();
+			elapsed += System.nanoTime() - start;
+			// 只读事务，及时释放锁
+			Database.getBufferPool().transactionComplete(tid);
+			tid = new TransactionId();
+		}
+		btree.setPinnedLevels(0);
+		if (matches < keys.length)
+			throw new IllegalStateException("tree is missing keys");
+		return elapsed;
+	}
+}
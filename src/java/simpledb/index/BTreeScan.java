@@ -25,6 +25,8 @@ public class BTreeScan implements OpIterator {
 	private final TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private boolean reverse = false;
+	private int keyField;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -49,8 +51,21 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan which returns the tuples in ascending or
+	 * descending key order.
+	 * 
+	 * @param reverse
+	 *            if true, the tuples are returned in descending key order
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred, boolean reverse) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.reverse = reverse;
 		reset(tableid,tableAlias);
 	}
 
@@ -63,6 +78,28 @@ public class BTreeScan implements OpIterator {
 		return this.tablename;
 	}
 
+	/**
+	 * @return true if this scan returns the tuples in descending key order
+	 */
+	public boolean isReverse() {
+		return reverse;
+	}
+
+	/**
+	 * @return the index of the key field of the tree; the tuples are returned
+	 *         in the order of this field
+	 */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return the index predicate of this scan, or null if it scans all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans. 
 	 * */
@@ -87,7 +124,12 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
+		if(reverse) {
+			BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+			this.it = ipred == null ? file.reverseIterator(tid) : file.reverseIndexIterator(tid, ipred);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
@@ -0,0 +1,358 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket of a
+ * HashIndexFile. A bucket that overflows once the directory has reached its
+ * maximum depth (or whose tuples all share the same hash value) is extended
+ * with a chain of overflow pages, linked through the next pointer.
+ *
+ * @see HashIndexFile
+ * @see HashDirectoryPage
+ */
+public class HashBucketPage implements Page {
+
+	private final static int INDEX_SIZE = 4;
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final int numSlots;
+
+	private int localDepth;
+	private int nextPage;
+	private final byte[] header;
+	private final Tuple[] tuples;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * 缓存在缓冲池中的桶页上按 key 建立的槽位索引，第一次查找时构建，
+	 * 修改页面时失效。避免每次等值查找都扫描整个桶
+	 */
+	private Map<Field, List<Integer>> slotsByKey = null;
+	private int slotsByKeyField = -1;
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the local depth of the bucket and the
+	 * page number of the next overflow page (0 if there is none), followed by
+	 * a HeapPage-style header bitmap and tuple slots. The number of tuples is
+	 * <p>
+	 *          floor(((BufferPool.getPageSize() - 8) * 8) / (tuple size * 8 + 1))
+	 * <p>
+	 * @see Database#getCatalog
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		nextPage = dis.readInt();
+
+		header = new byte[getHeaderSize()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i = 0; i < tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage with the specified local depth.
+	 */
+	public static byte[] createEmptyPageData(int localDepth) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		data[0] = (byte) (localDepth >>> 24);
+		data[1] = (byte) (localDepth >>> 16);
+		data[2] = (byte) (localDepth >>> 8);
+		data[3] = (byte) localDepth;
+		return data;
+	}
+
+	/** Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int extraBits = 2 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	private int getHeaderSize() {
+		return (int) Math.ceil(numSlots / 8.0);
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		if (!isSlotUsed(slotId)) {
+			for (int i = 0; i < td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(nextPage);
+			dos.write(header);
+			for (int i = 0; i < tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++) {
+					tuples[i].getField(j).serialize(dos);
+				}
+			}
+			dos.write(new byte[len - (2 * INDEX_SIZE + header.length + td.getSize() * tuples.length)]);
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * @return the local depth of this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the page number of the next overflow page of this bucket, or 0 if
+	 *         there is none
+	 */
+	public int getNextPage() {
+		return nextPage;
+	}
+
+	public void setNextPage(int nextPage) {
+		this.nextPage = nextPage;
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple is updated to reflect
+	 * that it is now stored on this page.
+	 * @throws DbException if the page is full or the tupledesc is mismatched.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				slotsByKey = null;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		int slot = rid.getTupleNumber();
+		if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(slot, false);
+		tuples[slot] = null;
+		t.setRecordId(null);
+		slotsByKey = null;
+	}
+
+	/**
+	 * Removes every tuple from this page and returns them.
+	 */
+	public List<Tuple> clear() {
+		List<Tuple> removed = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				removed.add(tuples[i]);
+				markSlotUsed(i, false);
+				tuples[i] = null;
+			}
+		}
+		slotsByKey = null;
+		return removed;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for (int i = 0; i < numSlots; i++)
+			if (!isSlotUsed(i))
+				cnt++;
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		return (header[headerbyte] & (1 << headerbit)) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		if (value)
+			header[headerbyte] |= 1 << headerbit;
+		else
+			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		return new Iterator<Tuple>() {
+			int slot = nextUsed(0);
+
+			private int nextUsed(int from) {
+				while (from < numSlots && !isSlotUsed(from))
+					from++;
+				return from;
+			}
+
+			public boolean hasNext() {
+				return slot < numSlots;
+			}
+
+			public Tuple next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				Tuple t = tuples[slot];
+				slot = nextUsed(slot + 1);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Returns an iterator over the tuples on this page whose keyField equals
+	 * the specified key.
+	 *
+	 * @param key the key to look up
+	 * @param keyField the index of the key field in the tuples
+	 */
+	public synchronized Iterator<Tuple> iterator(Field key, int keyField) {
+		if (slotsByKey == null || slotsByKeyField != keyField) {
+			Map<Field, List<Integer>> index = new HashMap<>();
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					index.computeIfAbsent(tuples[i].getField(keyField), k -> new ArrayList<>(1)).add(i);
+			}
+			slotsByKey = index;
+			slotsByKeyField = keyField;
+		}
+		List<Integer> slots = slotsByKey.get(key);
+		if (slots == null)
+			return Collections.emptyIterator();
+		List<Tuple> matches = new ArrayList<>(slots.size());
+		for (int slot : slots)
+			matches.add(tuples[slot]);
+		return matches.iterator();
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The directory page of an extendible hash index. It stores the global depth
+ * d of the directory followed by 2^d bucket page numbers; the bucket for a key
+ * is found by taking the low d bits of the key's hash value as an offset into
+ * the directory. Several directory entries may point to the same bucket page
+ * when that bucket's local depth is smaller than d.
+ *
+ * @see HashIndexFile
+ * @see HashBucketPage
+ */
+public class HashDirectoryPage implements Page {
+
+	private final static int INDEX_SIZE = 4;
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private int globalDepth;
+	private int[] buckets;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is the global depth (an int) followed by
+	 * 2^globalDepth ints, each the page number of a bucket page.
+	 *
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		globalDepth = dis.readInt();
+		buckets = new int[1 << globalDepth];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = dis.readInt();
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the largest global depth whose directory still fits in one page
+	 */
+	public static int getMaxGlobalDepth() {
+		int entries = (BufferPool.getPageSize() - INDEX_SIZE) / INDEX_SIZE;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to a directory of
+	 * depth one whose two entries point at the specified bucket pages.
+	 */
+	public static byte[] createPageData(int bucket0, int bucket1) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(1);
+			dos.writeInt(bucket0);
+			dos.writeInt(bucket1);
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] header = baos.toByteArray();
+		System.arraycopy(header, 0, data, 0, header.length);
+		return data;
+	}
+
+	/**
+	 * @return the global depth of the directory
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * @return the number of entries in the directory (2^globalDepth)
+	 */
+	public int getNumEntries() {
+		return buckets.length;
+	}
+
+	/**
+	 * @return the page number of the bucket stored in the specified directory entry
+	 */
+	public int getBucket(int entry) {
+		return buckets[entry];
+	}
+
+	/**
+	 * Point the specified directory entry at a bucket page.
+	 */
+	public void setBucket(int entry, int pgNo) {
+		buckets[entry] = pgNo;
+	}
+
+	/**
+	 * @return the directory entry for the specified hash value
+	 */
+	public int entryFor(int hash) {
+		return hash & (buckets.length - 1);
+	}
+
+	/**
+	 * Double the directory: every new entry i + 2^d points at the same bucket
+	 * as entry i.
+	 *
+	 * @throws DbException if the directory is already at its maximum depth
+	 */
+	public void doubleDirectory() throws DbException {
+		if (globalDepth >= getMaxGlobalDepth()) {
+			throw new DbException("hash directory is already at its maximum depth " + globalDepth);
+		}
+		int[] newBuckets = Arrays.copyOf(buckets, buckets.length * 2);
+		System.arraycopy(buckets, 0, newBuckets, buckets.length, buckets.length);
+		buckets = newBuckets;
+		globalDepth++;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			for (int b : buckets) {
+				dos.writeInt(b);
+			}
+			dos.write(new byte[len - INDEX_SIZE * (buckets.length + 1)]);
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			byte[] oldDataRef;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+}
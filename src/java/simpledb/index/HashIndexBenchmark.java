@@ -0,0 +1,96 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.DbFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Compares the latency of equality lookups through a HashIndexFile against
+ * BTreeFile.indexIterator on the same data.
+ * <p>
+ * Usage: java simpledb.index.HashIndexBenchmark [rows] [lookups] [bufferPoolPages]
+ */
+public class HashIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int pages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, rows, rows, null, tuples, 0);
+		// BTreeFileEncoder 会把缓冲池重置为默认大小，建好 B+ 树之后再设置
+		Database.resetBufferPool(pages);
+
+		File f = File.createTempFile("hash_index", ".dat");
+		f.deleteOnExit();
+		HashIndexFile hash = new HashIndexFile(f, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(hash, UUID.randomUUID().toString());
+
+		// NO STEAL：分批提交，避免缓冲池被脏页占满
+		long start = System.nanoTime();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < tuples.size(); i++) {
+			List<Integer> t = tuples.get(i);
+			Database.getBufferPool().insertTuple(tid, hash.getId(),
+					Utility.getHeapTuple(new int[]{t.get(0), t.get(1)}));
+			if (i % Math.max(1, pages / 4) == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		System.out.printf("built hash index over %d rows in %d ms (%d pages)%n",
+				rows, (System.nanoTime() - start) / 1000000, hash.numPages());
+
+		Random rand = new Random(42);
+		int[] keys = new int[lookups];
+		for (int i = 0; i < lookups; i++) {
+			keys[i] = tuples.get(rand.nextInt(tuples.size())).get(0);
+		}
+
+		tid = new TransactionId();
+		// 预热：让两个索引的页都进入缓冲池，并触发 JIT
+		run(btree, btree.getId(), tid, keys);
+		run(hash, hash.getId(), tid, keys);
+
+		// 交替运行几轮取最好成绩，减少 GC 和 JIT 带来的抖动
+		long btreeNs = Long.MAX_VALUE, hashNs = Long.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			btreeNs = Math.min(btreeNs, run(btree, btree.getId(), tid, keys));
+			hashNs = Math.min(hashNs, run(hash, hash.getId(), tid, keys));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		System.out.printf("BTreeFile.indexIterator:     %.2f us/lookup%n", btreeNs / 1000.0 / lookups);
+		System.out.printf("HashIndexFile.indexIterator: %.2f us/lookup%n", hashNs / 1000.0 / lookups);
+	}
+
+	private static long run(DbFile file, int tableid, TransactionId tid, int[] keys) throws Exception {
+		long matches = 0;
+		long start = System.nanoTime();
+		for (int key : keys) {
+			IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(key));
+			DbFileIterator it = file instanceof BTreeFile
+					? ((BTreeFile) file).indexIterator(tid, ipred)
+					: ((HashIndexFile) file).indexIterator(tid, ipred);
+			it.open();
+			while (it.hasNext()) {
+				it.next();
+				matches++;
+			}
+			it.close();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (matches < keys.length)
+			throw new IllegalStateException("table " + tableid + " is missing keys");
+		return elapsed;
+	}
+}
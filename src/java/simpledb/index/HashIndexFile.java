@@ -0,0 +1,498 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashIndexFile is an implementation of a DbFile that stores tuples in an
+ * extendible hash table keyed on one field. Page 0 is a
+ * {@link HashDirectoryPage} mapping the low bits of a key's hash value to a
+ * {@link HashBucketPage}; all other pages are buckets. An equality lookup
+ * therefore reads the (usually cached) directory page and one bucket page,
+ * instead of descending a B+ tree from its root.
+ * <p>
+ * When a bucket fills up it is split in two, doubling the directory if the
+ * bucket's local depth equals the global depth. Once the directory has
+ * reached its maximum size, or when splitting cannot separate the tuples of
+ * a bucket (they all share a hash value), the bucket is extended with
+ * overflow pages instead. Buckets are never merged; deleted slots are simply
+ * reused by later inserts.
+ * <p>
+ * All pages are read and written through the BufferPool, so hash index pages
+ * are locked, cached, logged and evicted like any other page.
+ *
+ * @see HashIndexScan
+ */
+public class HashIndexFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * 文件是否已经写入了目录页，避免每次查找都去检查文件长度
+	 */
+	private volatile boolean initialized = false;
+
+	/**
+	 * Constructs a hash index file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            index file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashIndexFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashIndexFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	public int getId() {
+		return tableid;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash index is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the number of pages in this HashIndexFile, including the
+	 * directory page.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] pageBuf = new byte[BufferPool.getPageSize()];
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			raf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+			raf.readFully(pageBuf);
+			Debug.log(1, "HashIndexFile.readPage: read page %d", id.getPageNumber());
+			if (id.isDirectory()) {
+				return new HashDirectoryPage(id, pageBuf);
+			} else {
+				return new HashBucketPage(id, pageBuf);
+			}
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Read past end of table");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			raf.write(page.getPageData());
+		}
+	}
+
+	/**
+	 * Computes the hash value of a key. The high bits are folded into the low
+	 * ones since the directory only looks at the low bits.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page, see
+	 * {@link BTreeFile#getPage(TransactionId, Map, BTreePageId, Permissions)}.
+	 */
+	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Get the directory page with the specified permissions. Create the
+	 * directory page and the first two buckets if the file is empty.
+	 */
+	HashDirectoryPage getDirectoryPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (!initialized) {
+			synchronized (this) {
+				if (f.length() == 0) {
+					try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+						bw.write(HashDirectoryPage.createPageData(1, 2));
+						bw.write(HashBucketPage.createEmptyPageData(1));
+						bw.write(HashBucketPage.createEmptyPageData(1));
+					} catch (IOException e) {
+						throw new DbException("failed to create hash index: " + e.getMessage());
+					}
+				}
+				initialized = true;
+			}
+		}
+		return (HashDirectoryPage) getPage(tid, dirtypages,
+				new HashPageId(tableid, HashPageId.DIRECTORY_PGNO), perm);
+	}
+
+	/**
+	 * Append a new, empty bucket page to the end of the file and return it
+	 * with write permission.
+	 */
+	private HashBucketPage getEmptyBucket(TransactionId tid, Map<PageId, Page> dirtypages, int localDepth)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId newPageId;
+		synchronized (this) {
+			newPageId = new HashPageId(tableid, numPages());
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.seek((long) newPageId.getPageNumber() * BufferPool.getPageSize());
+				raf.write(HashBucketPage.createEmptyPageData(localDepth));
+			}
+		}
+		// make sure the page is not in the buffer pool or in the local cache
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+		return (HashBucketPage) getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Insert a tuple into the first page of the bucket chain starting at
+	 * bucketNo that has an empty slot, appending an overflow page to the chain
+	 * if all of its pages are full.
+	 */
+	private void insertIntoChain(TransactionId tid, Map<PageId, Page> dirtypages, int bucketNo, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+				new HashPageId(tableid, bucketNo), Permissions.READ_WRITE);
+		while (page.getNumEmptySlots() == 0) {
+			if (page.getNextPage() == 0) {
+				HashBucketPage overflow = getEmptyBucket(tid, dirtypages, page.getLocalDepth());
+				page.setNextPage(overflow.getId().getPageNumber());
+				page = overflow;
+			} else {
+				page = (HashBucketPage) getPage(tid, dirtypages,
+						new HashPageId(tableid, page.getNextPage()), Permissions.READ_WRITE);
+			}
+		}
+		page.insertTuple(t);
+	}
+
+	/**
+	 * Returns true if every page in the bucket chain starting at bucketNo is full.
+	 */
+	private boolean chainIsFull(TransactionId tid, Map<PageId, Page> dirtypages, int bucketNo)
+			throws DbException, TransactionAbortedException {
+		int pgNo = bucketNo;
+		while (pgNo != 0) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+			if (page.getNumEmptySlots() > 0)
+				return false;
+			pgNo = page.getNextPage();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if every tuple in the bucket chain starting at bucketNo
+	 * hashes to the specified value, in which case splitting the bucket can
+	 * not make room for another tuple with that hash.
+	 */
+	private boolean chainHasSingleHash(TransactionId tid, Map<PageId, Page> dirtypages, int bucketNo, int h)
+			throws DbException, TransactionAbortedException {
+		int pgNo = bucketNo;
+		while (pgNo != 0) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext()) {
+				if (hash(it.next().getField(keyField)) != h)
+					return false;
+			}
+			pgNo = page.getNextPage();
+		}
+		return true;
+	}
+
+	/**
+	 * Split the bucket at the specified directory entry. A new bucket is
+	 * created with local depth one greater than the old bucket, the directory
+	 * entries which now distinguish the two buckets are pointed at the new
+	 * one, and the tuples of the old bucket chain are redistributed.
+	 *
+	 * @return false if the bucket can not be split because the directory is
+	 *         already at its maximum depth
+	 */
+	private boolean splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, int entry)
+			throws DbException, IOException, TransactionAbortedException {
+		HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+		int bucketNo = dir.getBucket(entry);
+		HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages,
+				new HashPageId(tableid, bucketNo), Permissions.READ_WRITE);
+		int localDepth = bucket.getLocalDepth();
+		if (localDepth == dir.getGlobalDepth()) {
+			if (dir.getGlobalDepth() >= HashDirectoryPage.getMaxGlobalDepth())
+				return false;
+			dir.doubleDirectory();
+		}
+
+		HashBucketPage newBucket = getEmptyBucket(tid, dirtypages, localDepth + 1);
+		int newBucketNo = newBucket.getId().getPageNumber();
+		// 低 localDepth 位相同、第 localDepth 位为 1 的目录项指向新桶
+		int bit = 1 << localDepth;
+		for (int i = 0; i < dir.getNumEntries(); i++) {
+			if (dir.getBucket(i) == bucketNo && (i & bit) != 0) {
+				dir.setBucket(i, newBucketNo);
+			}
+		}
+
+		// 清空旧桶链上的所有页（溢出页保留在旧桶链上复用），再按新的目录重新插入
+		List<Tuple> moved = new ArrayList<>();
+		int pgNo = bucketNo;
+		while (pgNo != 0) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+			page.setLocalDepth(localDepth + 1);
+			moved.addAll(page.clear());
+			pgNo = page.getNextPage();
+		}
+		for (Tuple t : moved) {
+			int target = dir.getBucket(dir.entryFor(hash(t.getField(keyField))));
+			insertIntoChain(tid, dirtypages, target, t);
+		}
+		return true;
+	}
+
+	/**
+	 * Insert a tuple into this HashIndexFile, splitting buckets as needed.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation.
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		int h = hash(t.getField(keyField));
+
+		HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_ONLY);
+		int entry = dir.entryFor(h);
+		while (chainIsFull(tid, dirtypages, dir.getBucket(entry))) {
+			// 分裂后所有元组仍可能落在同一个桶中，继续分裂直到有空位或目录达到上限；
+			// 桶中元组的哈希值都相同时分裂没有意义，直接使用溢出页
+			if (chainHasSingleHash(tid, dirtypages, dir.getBucket(entry), h)
+					|| !splitBucket(tid, dirtypages, entry))
+				break;
+			dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+			entry = dir.entryFor(h);
+		}
+		insertIntoChain(tid, dirtypages, dir.getBucket(entry), t);
+
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Delete a tuple from this HashIndexFile.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation.
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+			throw new DbException("tuple is not in this hash index");
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+				(HashPageId) rid.getPageId(), Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash index file which satisfy
+	 * the predicate. Equality predicates only read the bucket chain the key
+	 * hashes to; any other predicate falls back to a full scan.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashIndexSearchIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash index file, in no
+	 * particular order.
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashIndexFileIterator(this, tid);
+	}
+}
+
+/**
+ * Helper class that iterates over all bucket pages of a HashIndexFile in
+ * page order.
+ */
+class HashIndexFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	int pgNo;
+	int numPages;
+
+	final TransactionId tid;
+	final HashIndexFile f;
+
+	public HashIndexFileIterator(HashIndexFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		f.getDirectoryPage(tid, new HashMap<>(), Permissions.READ_ONLY);
+		numPages = f.numPages();
+		pgNo = HashPageId.DIRECTORY_PGNO;
+		it = Collections.emptyIterator();
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (it == null)
+			return null;
+		while (!it.hasNext()) {
+			if (++pgNo >= numPages)
+				return null;
+			HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), pgNo), Permissions.READ_ONLY);
+			it = page.iterator();
+		}
+		return it.next();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for searching tuples in a
+ * HashIndexFile.
+ */
+class HashIndexSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+	DbFileIterator scan = null;
+
+	final TransactionId tid;
+	final HashIndexFile f;
+	final IndexPredicate ipred;
+
+	public HashIndexSearchIterator(HashIndexFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator on the first page of the bucket the key hashes to,
+	 * or on a full scan if the predicate is not an equality.
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if (ipred.getOp() != Op.EQUALS) {
+			scan = f.iterator(tid);
+			scan.open();
+			return;
+		}
+		HashDirectoryPage dir = f.getDirectoryPage(tid, new HashMap<>(), Permissions.READ_ONLY);
+		int bucketNo = dir.getBucket(dir.entryFor(HashIndexFile.hash(ipred.getField())));
+		curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(f.getId(), bucketNo), Permissions.READ_ONLY);
+		it = curp.iterator(ipred.getField(), f.keyField());
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (scan != null) {
+			while (scan.hasNext()) {
+				Tuple t = scan.next();
+				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+					return t;
+			}
+			return null;
+		}
+		while (it != null) {
+			if (it.hasNext())
+				return it.next();
+			// follow the overflow chain of the bucket
+			if (curp.getNextPage() == 0) {
+				it = null;
+			} else {
+				curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+						new HashPageId(f.getId(), curp.getNextPage()), Permissions.READ_ONLY);
+				it = curp.iterator(ipred.getField(), f.keyField());
+			}
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		if (scan != null)
+			scan.close();
+		scan = null;
+		it = null;
+		curp = null;
+	}
+}
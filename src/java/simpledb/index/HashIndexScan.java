@@ -0,0 +1,136 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * HashIndexScan is an index access method which returns the tuples of a
+ * HashIndexFile whose key equals a given value. A new lookup can be started
+ * on an open scan with {@link #rewind(IndexPredicate)}, which makes it
+ * suitable as the inner side of an index nested loops join.
+ */
+public class HashIndexScan implements IndexOpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final HashIndexFile file;
+	private final TupleDesc myTd;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+	private final String tablename;
+	private final String alias;
+
+	/**
+	 * Creates a hash index scan over the specified table as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan; must be a HashIndexFile
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser); the returned
+	 *            tupleDesc should have fields with name tableAlias.fieldName
+	 * @param ipred
+	 *            The equality predicate to look up. May be null, in which case
+	 *            the predicate must be supplied to {@link #open(IndexPredicate)}.
+	 */
+	public HashIndexScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.file = (HashIndexFile) Database.getCatalog().getDatabaseFile(tableid);
+		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.alias = tableAlias;
+		this.ipred = ipred;
+		TupleDesc td = file.getTupleDesc();
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		this.myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public HashIndexScan(TransactionId tid, int tableid, IndexPredicate ipred) {
+		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
+	}
+
+	/**
+	 * @return the name of the table the operator scans
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	private void checkPredicate(IndexPredicate ipred) throws DbException {
+		if (ipred == null)
+			throw new DbException("hash index scan requires a predicate");
+		if (ipred.getOp() != Predicate.Op.EQUALS)
+			throw new DbException("hash index only supports equality lookups, got " + ipred.getOp());
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		open(ipred);
+	}
+
+	public void open(IndexPredicate ipred) throws NoSuchElementException, DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+		checkPredicate(ipred);
+		this.ipred = ipred;
+		it = file.indexIterator(tid, ipred);
+		it.open();
+		isOpen = true;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.next();
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		rewind(ipred);
+	}
+
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+}
@@ -0,0 +1,250 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a B+ tree index over one field of a heap table. Each
+ * entry of the index stores the key, an optional list of included columns
+ * copied from the heap tuple, and the RecordId (page number and slot) of the
+ * heap tuple it was built from:
+ * <pre>
+ *     (key, included_1, ..., included_n, pageno, slot)
+ * </pre>
+ * Because the included columns live in the index itself, a query that only
+ * references the key and included columns can be answered from the index
+ * leaves alone, without reading any heap pages (see
+ * {@link simpledb.execution.IndexOnlyScan}).
+ * <p>
+ * Indexes are registered with {@link simpledb.common.Catalog#addIndex} and are
+ * kept up to date by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple}.
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final int tableId;
+    private final int keyField;
+    private final int[] includedFields;
+    private final BTreeFile btree;
+
+    /**
+     * RecordId 在索引项中的位置，紧跟在 key 和包含列之后
+     */
+    private final int pageNoField;
+    private final int slotField;
+
+    /**
+     * Creates a secondary index stored in the specified file. If the file is
+     * empty an empty B+ tree is written to it; the index is not populated
+     * with the existing contents of the table until {@link #build} is called.
+     *
+     * @param f the file backing the index B+ tree
+     * @param name the name of the index
+     * @param tableId the id of the (heap) table being indexed
+     * @param keyField the index of the key field in the table's TupleDesc
+     * @param includedFields indexes of additional table fields to store in
+     *            each index entry
+     */
+    public SecondaryIndex(File f, String name, int tableId, int keyField, int... includedFields)
+            throws IOException {
+        this.name = name;
+        this.tableId = tableId;
+        this.keyField = keyField;
+        this.includedFields = includedFields == null ? new int[0] : includedFields.clone();
+        this.pageNoField = 1 + this.includedFields.length;
+        this.slotField = pageNoField + 1;
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[slotField + 1];
+        String[] names = new String[slotField + 1];
+        types[0] = tableTd.getFieldType(keyField);
+        names[0] = tableTd.getFieldName(keyField);
+        for (int i = 0; i < this.includedFields.length; i++) {
+            if (this.includedFields[i] == keyField) {
+                throw new IllegalArgumentException("key field " + names[0] + " can not be included twice");
+            }
+            types[i + 1] = tableTd.getFieldType(this.includedFields[i]);
+            names[i + 1] = tableTd.getFieldName(this.includedFields[i]);
+        }
+        types[pageNoField] = Type.INT_TYPE;
+        names[pageNoField] = "pageno";
+        types[slotField] = Type.INT_TYPE;
+        names[slotField] = "slot";
+
+        // BTreeFile 读取根指针页时要求文件非空，这里先写入空的根指针页和叶子页
+        if (!f.exists() || f.length() == 0) {
+            try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f))) {
+                bw.write(BTreeRootPtrPage.createEmptyPageData());
+                bw.write(BTreeLeafPage.createEmptyPageData());
+            }
+        }
+        this.btree = new BTreeFile(f, 0, new TupleDesc(types, names));
+    }
+
+    /**
+     * @return the name of this index
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the table this index is built on
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the index of the key field in the indexed table
+     */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the indexes of the table fields that are stored in the index
+     *         entries in addition to the key
+     */
+    public int[] getIncludedFields() {
+        return includedFields.clone();
+    }
+
+    /**
+     * @return the B+ tree file holding the index entries
+     */
+    public BTreeFile getFile() {
+        return btree;
+    }
+
+    /**
+     * Returns the table fields stored in each entry, in entry order: the key
+     * first, followed by the included fields.
+     */
+    public int[] getCoveredFields() {
+        int[] covered = new int[includedFields.length + 1];
+        covered[0] = keyField;
+        System.arraycopy(includedFields, 0, covered, 1, includedFields.length);
+        return covered;
+    }
+
+    /**
+     * Returns true if every table field in the specified collection is stored
+     * in the index, so that the index alone can answer a query on them.
+     *
+     * @param fields indexes of table fields referenced by a query
+     */
+    public boolean covers(Collection<Integer> fields) {
+        Set<Integer> covered = new HashSet<>();
+        for (int i : getCoveredFields()) {
+            covered.add(i);
+        }
+        return covered.containsAll(fields);
+    }
+
+    /**
+     * Builds the index entry for the specified heap tuple. The tuple must
+     * have a RecordId.
+     */
+    public Tuple entryFor(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(btree.getTupleDesc());
+        entry.setField(0, t.getField(keyField));
+        for (int i = 0; i < includedFields.length; i++) {
+            entry.setField(i + 1, t.getField(includedFields[i]));
+        }
+        entry.setField(pageNoField, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(slotField, new IntField(rid.getTupleNumber()));
+        return entry;
+    }
+
+    /**
+     * Returns the RecordId of the heap tuple an index entry points to.
+     */
+    public RecordId getRecordId(Tuple entry) {
+        int pageNo = ((IntField) entry.getField(pageNoField)).getValue();
+        int slot = ((IntField) entry.getField(slotField)).getValue();
+        return new RecordId(new HeapPageId(tableId, pageNo), slot);
+    }
+
+    /**
+     * Adds the entry for a newly inserted heap tuple to the index.
+     *
+     * @param tid the transaction inserting the tuple
+     * @param t the heap tuple; its RecordId must already be set
+     * @return the index pages dirtied by the insert
+     */
+    public List<Page> insertEntry(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return btree.insertTuple(tid, entryFor(t));
+    }
+
+    /**
+     * Removes the entry for a heap tuple from the index.
+     *
+     * @param tid the transaction deleting the tuple
+     * @param t the heap tuple
+     * @param rid the RecordId the tuple had before it was deleted
+     * @return the index pages dirtied by the delete
+     * @throws DbException if the index has no entry for the tuple
+     */
+    public List<Page> deleteEntry(TransactionId tid, Tuple t, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        // 相同 key 的索引项可能有多个，按 RecordId 找到对应的那一项
+        DbFileIterator it = btree.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, t.getField(keyField)));
+        Tuple match = null;
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (rid.equals(getRecordId(entry))) {
+                    match = entry;
+                    break;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (match == null) {
+            throw new DbException("index " + name + " has no entry for " + rid);
+        }
+        return btree.deleteTuple(tid, match);
+    }
+
+    /**
+     * Populates the index with an entry for every tuple currently stored in
+     * the table. Should be called once, right after the index is created.
+     *
+     * @param tid the transaction to build the index in
+     */
+    public void build(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        List<Tuple> entries = new ArrayList<>();
+        it.open();
+        try {
+            while (it.hasNext()) {
+                entries.add(entryFor(it.next()));
+            }
+        } finally {
+            it.close();
+        }
+        for (Tuple entry : entries) {
+            Database.getBufferPool().cacheDirtyPages(tid, btree.insertTuple(tid, entry));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.storage.HeapPage;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -16,6 +17,9 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Estimated fraction of pairs of tuples that satisfy a non-equality join predicate. */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -73,20 +77,42 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        // 两个输入各在自己的线程上计算；已经在 Exchange 之下的扫描不再包一层
+        plan1 = Exchange.wrap(plan1);
+        plan2 = Exchange.wrap(plan2);
+
+        if (lj instanceof LogicalSemiJoinNode) {
+            if (plan1.getTupleDesc().getFieldType(t1id) != plan2.getTupleDesc().getFieldType(t2id))
+                throw new ParsingException("Type of " + lj.f1QuantifiedName
+                        + " does not match the type of its subquery");
+            // IN 子查询：子查询只执行一次，结果建成哈希集合
+            return new HashSemiJoin(p, plan1, plan2, ((LogicalSemiJoinNode) lj).anti);
+        }
+        // 嵌套循环每块外层元组都要重新扫描内层；子查询的结果先物化，只执行一次
+        OpIterator inner = lj instanceof LogicalSubplanJoinNode ? new Materialize(plan2) : plan2;
+
+        if (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // 两边已经按连接字段有序，归并连接既不用排序也不用建哈希表，且保持顺序
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
                 // fall back on regular join
                 Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+                java.lang.reflect.Constructor<?> ct = c.getConstructor(
+                        JoinPredicate.class, OpIterator.class, OpIterator.class);
                 j = (OpIterator) ct
                         .newInstance(new Object[] { p, plan1, plan2 });
             } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
+                j = new Join(p, plan1, inner, Join.DEFAULT_BLOCK_PAGES);
             }
+        } else if (SortMergeJoin.supports(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
         } else {
-            j = new Join(p, plan1, plan2);
+            // 不等和 LIKE 只能嵌套循环，按块读外层，每块扫描一遍内层
+            j = new Join(p, plan1, inner, Join.DEFAULT_BLOCK_PAGES);
         }
 
         return j;
@@ -125,6 +151,17 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (!SortMergeJoin.supports(j.p)) {
+            // 块嵌套循环：每块外层元组扫描一遍内层
+            Integer t1id = p.getTableId(j.t1Alias);
+            int blockTuples = Join.DEFAULT_BLOCK_PAGES * (t1id == null ? 1
+                    : HeapPage.getNumTuples(Database.getCatalog().getTupleDesc(t1id)));
+            double blocks = Math.ceil((double) card1 / blockTuples);
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        } else if (j.p != Predicate.Op.EQUALS) {
+            // 范围连接用归并连接：各扫描一遍、各排序一次，再加上输出的元组
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2)
+                    + RANGE_JOIN_SELECTIVITY * card1 * card2;
         } else {
             // Insert your code here.
             // HINT: You may need to use the variable "j" if you implemented
@@ -134,6 +171,13 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * @return the number of comparisons of an in-memory sort of card tuples
+     */
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -197,7 +241,7 @@ public class JoinOptimizer {
         }
         else{
             // 如果不是等于的情况下，是 30%
-            card = (int)(0.3 * card1 * card2);
+            card = (int)(RANGE_JOIN_SELECTIVITY * card1 * card2);
         }
         return card <= 0 ? 1 : card;
     }
@@ -259,6 +303,10 @@ public class JoinOptimizer {
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
             // some code goes here
+            // 没有连接（单表查询）时无需排序
+            if (joins.isEmpty()) {
+                return joins;
+            }
             CostCard bestCostCard = new CostCard();
             PlanCache planCache = new PlanCache();
             int size = joins.size();
@@ -335,12 +383,13 @@ public class JoinOptimizer {
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        // 子查询连接没有第二个表
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
+        String table2Name = j.t2Alias == null ? null : Database.getCatalog().getTableName(
                 this.p.getTableId(j.t2Alias));
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
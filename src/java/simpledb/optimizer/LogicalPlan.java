@@ -1,9 +1,13 @@
 package simpledb.optimizer;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
+import simpledb.common.MemoryManager;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -15,9 +19,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, the group by fields and the
+ * aggregates. All aggregates of a query are computed in one pass over
+ * its groups, which may be keyed on any number of fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,12 +36,20 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    // 分组字段，以及各个聚合的运算符和字段，一次聚合全部计算
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    // SELECT DISTINCT，以及 DISTINCT 聚合（如 COUNT(DISTINCT x)）共同的字段
+    private boolean distinct = false;
+    private String distinctAggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private boolean hasLimit = false;
+    private int limit, offset;
+    // 查询的内存预算，由 physicalPlan 分给各个在内存中保存元组的算子
+    private int memoryPages = MemoryManager.DEFAULT_QUERY_PAGES;
     private String query;
 //    private Query owner;
 
@@ -69,6 +81,17 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the memory budget of the query, in pages, which {@link #physicalPlan}
+        splits among the operators that keep tuples in memory.
+    */
+    public void setMemoryPages(int pages) {
+        this.memoryPages = pages;
+    }
+
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -159,6 +182,27 @@ public class LogicalPlan {
         joins.add(lj);
     }
 
+    /** Add an {@code IN} or {@code NOT IN} predicate over an uncorrelated
+     *  subquery to the plan. The subquery is executed once, and the tuples
+     *  of the table of joinField1 are kept if the first field of its result
+     *  has their value of joinField1, or does not for NOT IN.
+     *  @param joinField1 The field of the outer table; it may be a fully
+     *    qualified name or an unqualified unique field name
+     *  @param subplan the subquery
+     *  @param anti true for NOT IN
+     *  @throws ParsingException if the field is ambiguous or unknown
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSemiJoinNode lj = new LogicalSemiJoinNode(table1, pureField, subplan, anti);
+        System.out.println("Added semi join on " + joinField1);
+        joins.add(lj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -189,23 +233,78 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Every aggregate of the query is computed by a single
+        Aggregate operator, grouped by all of the GROUP BY fields; an
+        aggregate added twice is computed once.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield, gfield, false);
+    }
+
+    /** Add an aggregate, such as COUNT(DISTINCT x), that may be over the distinct
+        values of its field only.  The DISTINCT aggregates of a query must all be over
+        the same field, and can not be mixed with other aggregates.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+        @param gfield a field to group by, or null
+        @param distinct whether to aggregate the distinct values of afield only
+     * @throws ParsingException if the aggregate can not be combined with the
+     *   aggregates added before
+    */
+    public void addAggregate(String op, String afield, String gfield, boolean distinct) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
+        if (distinct && afield.equals("null.*"))
+            throw new ParsingException("DISTINCT can not be applied to *");
+        if (!aggOps.isEmpty() && (distinctAggField != null) != distinct)
+            throw new ParsingException("DISTINCT and other aggregates can not be mixed");
+        if (distinct && distinctAggField != null && !distinctAggField.equals(afield))
+            throw new ParsingException("DISTINCT aggregates must all be over the same field");
+        if (distinct)
+            distinctAggField = afield;
+        if (aggIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
         hasAgg = true;
     }
 
+    /** Add a GROUP BY field to the query.  The groups are output in the
+        order the fields are added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** @return the position of the aggregate with the specified operator and
+     *   (disambiguated) field among the aggregates of the query, or -1
+     */
+    private int aggIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Make the query return each distinct tuple of its result once (SELECT DISTINCT).
+        @param distinct whether to remove duplicate result tuples
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -219,6 +318,20 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT / OFFSET clause: the query returns at most limit tuples,
+        after skipping the first offset tuples of the result.
+        @param limit the maximum number of tuples to return; Integer.MAX_VALUE for OFFSET alone
+        @param offset the number of tuples to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        hasLimit = true;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -292,16 +405,35 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        boolean orderedByIndex = false;
+        // 顺序扫描的表，以及下推到扫描中的过滤条件；其中一部分用并行扫描
+        Map<String,List<Predicate>> scanPredicates = new HashMap<>();
+        Set<String> parallelScans = new HashSet<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
                  ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
+            // 如果某个二级索引覆盖了查询用到的所有列，直接扫描索引而不读堆页
+            OpIterator indexScan = coveringIndexScan(t, table);
+            if (indexScan != null) {
+                ss = indexScan;
+            } else if (Database.getCatalog().getDatabaseFile(table.t) instanceof BTreeFile) {
+                BTreeScan btreeScan = btreeScan(t, table);
+                ss = btreeScan;
+                orderedByIndex = btreeScan.isReverse() || (hasOrderBy && oByAsc && orderByKey(table));
+            } else {
+                scanPredicates.put(table.alias, new ArrayList<>());
+                if (ParallelSeqScan.DEFAULT_PARALLELISM > 1
+                        && Database.getCatalog().getDatabaseFile(table.t) instanceof HeapFile
+                        && ((HeapFile) Database.getCatalog().getDatabaseFile(table.t)).numPages() >= ParallelSeqScan.MIN_PAGES)
+                    parallelScans.add(table.alias);
+            }
+
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
@@ -309,6 +441,8 @@ public class LogicalPlan {
 
         }
 
+        // 同一个表上的过滤条件合并成一个算子
+        Map<String,List<Predicate>> tableFilters = new HashMap<>();
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -335,16 +469,41 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (scanPredicates.containsKey(lf.tableAlias))
+                scanPredicates.get(lf.tableAlias).add(p);
+            else
+                tableFilters.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel = s.estimateSelectivity(Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        for (Map.Entry<String,List<Predicate>> e : tableFilters.entrySet()) {
+            OpIterator subplan = subplanMap.get(e.getKey());
+            if (e.getValue().size() == 1)
+                subplanMap.put(e.getKey(), new Filter(e.getValue().get(0), subplan));
+            else
+                subplanMap.put(e.getKey(), new ConjunctiveFilter(e.getValue(), subplan));
+        }
+
+        // 扫描只解析查询用到的字段，连接和排序也只复制这些字段
+        for (Map.Entry<String,List<Predicate>> e : scanPredicates.entrySet()) {
+            int tableId = getTableId(e.getKey());
+            int[] outFields = scanOutFields(e.getKey());
+            if (parallelScans.contains(e.getKey()))
+                subplanMap.put(e.getKey(), new ParallelSeqScan(t, tableId, e.getKey(), e.getValue(),
+                        outFields, ParallelSeqScan.DEFAULT_PARALLELISM));
+            else
+                subplanMap.put(e.getKey(), new SeqScan(t, tableId, e.getKey(), e.getValue(), outFields));
+        }
+
+        // 每个表的扫描和过滤在自己的线程上执行，与上面的算子流水并行
+        subplanMap.replaceAll((alias, plan) -> Exchange.wrap(plan));
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -407,34 +566,54 @@ public class LogicalPlan {
         
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
 
+        // 单表上没有过滤和分组的 COUNT，以及 B+ 树 key 上的 MIN/MAX，直接由文件结构回答
+        OpIterator metadata = metadataAggregate(t);
+        if (metadata != null)
+            node = metadata;
+
+        // 归并连接的输出按连接字段有序，ORDER BY 该字段时也不需要再排序
+        if (hasOrderBy && oByAsc && !hasAgg && !orderedByIndex) {
+            try {
+                orderedByIndex = SortMergeJoin.isSortedOn(node, node.getTupleDesc().fieldNameToIndex(oByField));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + oByField + " in ORDER BY");
+            }
+        }
+
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
         List<Type> outTypes = new ArrayList<>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int k = aggIndex(si.aggOp, si.fname);
+                if (k < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                }
+                outFields.add(groupByFields.size() + k);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
 //                    id = 
-                    td.fieldNameToIndex(si.fname);
+                    if (!si.fname.equals("null.*"))
+                        td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -457,25 +636,363 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
+        if (hasAgg && metadata == null) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+            int[] gfields = new int[groupByFields.size()];
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                if (distinctAggField != null) {
+                    // DISTINCT 聚合：先投影出分组字段和聚合字段并去重，再照常聚合
+                    List<Integer> fields = new ArrayList<>();
+                    List<Type> types = new ArrayList<>();
+                    for (String g : groupByFields)
+                        fields.add(td.fieldNameToIndex(g));
+                    fields.add(td.fieldNameToIndex(distinctAggField));
+                    for (int f : fields)
+                        types.add(td.getFieldType(f));
+                    int sortedField = sortedField(node, fields);
+                    node = distinct(new Project(fields, types, node), sortedField, 0, true,
+                            statsMap, filterSelectivities);
+                    td = node.getTupleDesc();
+                }
+                for (int i = 0; i < afields.length; i++) {
+                    aops[i] = getAggOp(aggOps.get(i));
+                    afields[i] = countStarField(aggFields.get(i), aops[i]);
+                    if (afields[i] < 0)
+                        afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                }
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                aggNode = new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (distinct) {
+            // 先投影再去重，ORDER BY 和 LIMIT 作用于去重后的结果
+            int sortedField = sortedField(node, outFields);
+            node = new Project(outFields, outTypes, node);
+            int oField = 0;
+            if (hasOrderBy) {
+                try {
+                    oField = node.getTupleDesc().fieldNameToIndex(oByField);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("ORDER BY field " + oByField + " of a SELECT DISTINCT is not in the SELECT list");
+                }
+                if (orderedByIndex)
+                    sortedField = oField;
+            }
+            node = distinct(node, sortedField, oField, !hasOrderBy || oByAsc, statsMap, filterSelectivities);
+            // 为去重而排序时已经按 ORDER BY 字段排好
+            if (hasOrderBy && node instanceof SortDistinct
+                    && ((SortDistinct) node).getChildren()[0] instanceof OrderBy)
+                orderedByIndex = true;
+        }
+
+        // 按聚簇 key 排序时，B+ 树扫描已经按顺序输出，不需要再排序
+        if (hasOrderBy && !orderedByIndex) {
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            // 只要前 n 个元组且放得进内存时，用有界堆代替完整排序
+            long n = hasLimit ? (long) limit + offset : Long.MAX_VALUE;
+            if (n <= (long) OrderBy.DEFAULT_MEMORY_PAGES * HeapPage.getNumTuples(node.getTupleDesc()))
+                node = new TopN(field, oByAsc, (int) n, node);
+            else
+                node = new OrderBy(field, oByAsc, node);
+        }
+
+        if (hasLimit) {
+            node = new Limit(limit, offset, node);
         }
 
-        return new Project(outFields, outTypes, node);
+        node = distinct ? node : new Project(outFields, outTypes, node);
+        splitMemory(node);
+        return node;
+    }
+
+    /**
+     * Split the memory budget of the query among its operators that keep
+     * tuples in memory, including those of its subqueries. They are all open
+     * at the same time, so if their budgets add up to more than the budget of
+     * the query, each gets a share in proportion to its own budget, but not
+     * less than the minimum it needs.
+     */
+    private void splitMemory(OpIterator plan) {
+        List<MemoryConsumer> consumers = new ArrayList<>();
+        collectMemoryConsumers(plan, consumers);
+        long total = 0;
+        for (MemoryConsumer c : consumers)
+            total += c.getMemoryPages();
+        if (total <= memoryPages)
+            return;
+        for (MemoryConsumer c : consumers) {
+            // 不保存元组的算子（如逐元组的嵌套循环连接）不参与分配
+            if (c.getMemoryPages() == 0)
+                continue;
+            int share = (int) ((long) c.getMemoryPages() * memoryPages / total);
+            c.setMemoryPages(Math.max(c.getMinMemoryPages(), share));
+        }
+    }
+
+    private static void collectMemoryConsumers(OpIterator it, List<MemoryConsumer> consumers) {
+        if (it instanceof MemoryConsumer)
+            consumers.add((MemoryConsumer) it);
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null)
+                    collectMemoryConsumers(child, consumers);
+            }
+        }
+    }
+
+    /** @return the position in fields of a field the tuples of node are sorted on in
+     *   ascending order, or -1 if there is none
+     */
+    private static int sortedField(OpIterator node, List<Integer> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (SortMergeJoin.isSortedOn(node, fields.get(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Remove the duplicate tuples of a plan.  A plan sorted on one of its fields is
+     *   deduplicated by a {@link SortDistinct} as it is.  Otherwise a {@link HashDistinct}
+     *   is used if the number of distinct tuples estimated from the table statistics fits
+     *   in its memory budget, and a sort followed by a SortDistinct if it does not.
+     *  @param sortedField a field the tuples of node are sorted on, or -1
+     *  @param sortField the field to sort on if a sort is needed
+     *  @param asc whether that sort is in ascending order
+     */
+    private OpIterator distinct(OpIterator node, int sortedField, int sortField, boolean asc,
+                                Map<String,TableStats> statsMap, Map<String,Double> filterSelectivities) {
+        if (sortedField >= 0)
+            return new SortDistinct(node, sortedField);
+        TupleDesc td = node.getTupleDesc();
+        double maxTuples = (double) HashDistinct.DEFAULT_MEMORY_PAGES * HeapPage.getNumTuples(td);
+        if (estimateDistinct(td, statsMap, filterSelectivities) <= maxTuples)
+            return new HashDistinct(node);
+        return new SortDistinct(new OrderBy(sortField, asc, node), sortField);
+    }
+
+    /** Estimate the number of distinct tuples with the specified fields: the product of
+     *   the numbers of distinct values of the fields, but no more than the number of
+     *   tuples of their tables after the filters.
+     *  @return the estimate, or Double.MAX_VALUE if a field is not a field of a table
+     *   with statistics
+     */
+    private double estimateDistinct(TupleDesc td, Map<String,TableStats> statsMap,
+                                    Map<String,Double> filterSelectivities) {
+        double values = 1.0;
+        double tuples = 1.0;
+        Set<String> aliases = new HashSet<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            String[] parts = td.getFieldName(i).split("[.]");
+            Integer tableId = parts.length == 2 ? getTableId(parts[0]) : null;
+            if (tableId == null)
+                return Double.MAX_VALUE;
+            TableStats stats = statsMap.get(Database.getCatalog().getTableName(tableId));
+            if (stats == null)
+                return Double.MAX_VALUE;
+            int field;
+            try {
+                field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(parts[1]);
+            } catch (NoSuchElementException e) {
+                return Double.MAX_VALUE;
+            }
+            values /= stats.avgSelectivity(field, Predicate.Op.EQUALS);
+            if (aliases.add(parts[0]))
+                tuples *= stats.estimateTableCardinality(filterSelectivities.getOrDefault(parts[0], 1.0));
+        }
+        return Math.min(values, tuples);
+    }
+
+    /** Find a secondary index on the table scanned by the specified scan node that can
+     *   answer the query by itself: its key must be restricted by one of the filters on
+     *   the table, and it must store every field of the table the query references.
+     *  @return an {@link IndexOnlyScan} over such an index, or null if there is none
+     */
+    private OpIterator coveringIndexScan(TransactionId t, LogicalScanNode table) {
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.t);
+        if (indexes.isEmpty())
+            return null;
+        Set<String> fieldNames = referencedFields(table.alias, true);
+        if (fieldNames == null)
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> fields = new HashSet<>();
+        try {
+            for (String name : fieldNames)
+                fields.add(td.fieldNameToIndex(name));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+
+        IndexOnlyScan best = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            int keyField = td.fieldNameToIndex(lf.fieldPureName);
+            for (SecondaryIndex index : indexes) {
+                if (index.getKeyField() != keyField || !index.covers(fields))
+                    continue;
+                Field f;
+                if (td.getFieldType(keyField) == Type.INT_TYPE)
+                    f = new IntField(Integer.parseInt(lf.c));
+                else
+                    f = new StringField(lf.c, Type.STRING_LEN);
+                IndexOnlyScan scan = new IndexOnlyScan(t, index, table.alias, new IndexPredicate(lf.p, f));
+                // 等值查找优先于范围扫描
+                if (lf.p == Predicate.Op.EQUALS)
+                    return scan;
+                if (best == null)
+                    best = scan;
+            }
+        }
+        return best;
+    }
+
+    /** Build a scan over a table stored in a B+ tree. The scan uses a filter on the key
+     *   field of the tree (if there is one) to skip the leaves that can not match, and
+     *   returns the tuples in descending key order if the query orders by the key in
+     *   descending order. The filters are still applied on top of the scan.
+     */
+    private BTreeScan btreeScan(TransactionId t, LogicalScanNode table) {
+        BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(table.t);
+        TupleDesc td = file.getTupleDesc();
+        IndexPredicate ipred = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            if (td.fieldNameToIndex(lf.fieldPureName) != file.keyField())
+                continue;
+            Field f;
+            if (td.getFieldType(file.keyField()) == Type.INT_TYPE)
+                f = new IntField(Integer.parseInt(lf.c));
+            else
+                f = new StringField(lf.c, Type.STRING_LEN);
+            // 等值查找优先于范围扫描
+            if (ipred == null || lf.p == Predicate.Op.EQUALS)
+                ipred = new IndexPredicate(lf.p, f);
+        }
+        boolean reverse = hasOrderBy && !oByAsc && orderByKey(table);
+        return new BTreeScan(t, file.getId(), table.alias, ipred, reverse);
+    }
+
+    /** @return true if the query's ORDER BY field is the key of the B+ tree storing the
+     *   specified table, and nothing between the scan and the ORDER BY (joins or
+     *   aggregates) changes the order of the tuples
+     */
+    private boolean orderByKey(LogicalScanNode table) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty())
+            return false;
+        BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(table.t);
+        return oByField.equals(table.alias + "." + file.getTupleDesc().getFieldName(file.keyField()));
+    }
+
+    /** @return the field an aggregate over "*" aggregates, which is the first field since
+     *   COUNT does not look at the values, or -1 if the aggregate is over a named field
+     *  @throws ParsingException if an aggregate other than COUNT is over "*"
+     */
+    private static int countStarField(String afield, Aggregator.Op op) throws ParsingException {
+        if (!afield.equals("null.*"))
+            return -1;
+        if (op != Aggregator.Op.COUNT)
+            throw new ParsingException("Only COUNT can be computed over *");
+        return 0;
+    }
+
+    /** Answer the aggregates of the query from the structure of the table file, when the
+     *   query aggregates a single table without filters or grouping and
+     *   {@link MetadataAggregate#canAnswer} accepts the aggregates.
+     *  @return the MetadataAggregate, or null if the query needs a scan
+     */
+    private OpIterator metadataAggregate(TransactionId t) throws ParsingException {
+        if (!hasAgg || distinctAggField != null || !groupByFields.isEmpty() || tables.size() != 1
+                || !joins.isEmpty() || !filters.isEmpty())
+            return null;
+        LogicalScanNode table = tables.get(0);
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        int[] afields = new int[aggFields.size()];
+        Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+        for (int i = 0; i < afields.length; i++) {
+            aops[i] = getAggOp(aggOps.get(i));
+            afields[i] = countStarField(aggFields.get(i), aops[i]);
+            if (afields[i] >= 0)
+                continue;
+            String[] parts = aggFields.get(i).split("[.]");
+            if (parts.length != 2 || !parts[0].equals(table.alias))
+                return null;
+            try {
+                afields[i] = td.fieldNameToIndex(parts[1]);
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        if (!MetadataAggregate.canAnswer(Database.getCatalog().getDatabaseFile(table.t), afields, aops))
+            return null;
+        return new MetadataAggregate(t, table.t, table.alias, afields, aops);
+    }
+
+    /** Find the fields of the specified table alias that a scan of the table must return:
+     *   those referenced by the query above the filters on the table, which the scan
+     *   evaluates itself.
+     *  @return the field numbers in table order, or null if the scan must return every field
+     */
+    private int[] scanOutFields(String alias) {
+        Set<String> fieldNames = referencedFields(alias, false);
+        if (fieldNames == null || fieldNames.isEmpty())
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(alias));
+        if (fieldNames.size() == td.numFields())
+            return null;
+        int[] fields = new int[fieldNames.size()];
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (fieldNames.contains(td.getFieldName(i)))
+                fields[n++] = i;
+        }
+        return n == fields.length ? fields : null;
+    }
+
+    /** Collect the names of the fields of the specified table alias referenced anywhere in
+     *   the query (select list, filters, joins, aggregate, group by and order by).
+     *  @param withFilters whether to include the fields referenced only by filters
+     *  @return the pure field names, or null if the query may reference every field
+     *   (e.g., SELECT * or COUNT(*))
+     */
+    private Set<String> referencedFields(String alias, boolean withFilters) {
+        Set<String> fields = new HashSet<>();
+        List<String> qualified = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            qualified.add(si.fname);
+        if (hasAgg) {
+            qualified.addAll(aggFields);
+            qualified.addAll(groupByFields);
+        }
+        if (hasOrderBy)
+            qualified.add(oByField);
+        for (String name : qualified) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*"))
+                return null;
+            if (parts[0].equals(alias))
+                fields.add(parts[1]);
+        }
+        for (LogicalFilterNode lf : filters) {
+            if (withFilters && lf.tableAlias.equals(alias))
+                fields.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                fields.add(lj.f1PureName);
+            if (alias.equals(lj.t2Alias))
+                fields.add(lj.f2PureName);
+        }
+        return fields;
     }
 
     public static void main(String[] argv) {
@@ -0,0 +1,34 @@
+package simpledb.optimizer;
+
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+
+/** A LogicalSemiJoinNode represents a {@code t1.f1 IN (subquery)} or
+ * {@code t1.f1 NOT IN (subquery)} predicate in a LogicalQueryPlan: the
+ * tuples of t1 are kept, once each, if the first field of the subquery has
+ * (or, when anti is set, does not have) their value of f1.
+ */
+public class LogicalSemiJoinNode extends LogicalSubplanJoinNode {
+
+    /** True for NOT IN */
+    final boolean anti;
+
+    public LogicalSemiJoinNode(String table1, String joinField1, OpIterator sp, boolean anti) {
+        super(table1, joinField1, sp, Predicate.Op.EQUALS);
+        this.anti = anti;
+    }
+
+    @Override public boolean equals(Object o) {
+        return o instanceof LogicalSemiJoinNode && ((LogicalSemiJoinNode) o).anti == anti
+                && super.equals(o);
+    }
+
+    @Override public int hashCode() {
+        return super.hashCode() + (anti ? 1 : 0);
+    }
+
+    @Override public LogicalSemiJoinNode swapInnerOuter() {
+        return new LogicalSemiJoinNode(t1Alias, f1PureName, subPlan, anti);
+    }
+
+}
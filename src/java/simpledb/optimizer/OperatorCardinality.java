@@ -2,7 +2,10 @@ package simpledb.optimizer;
 
 import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.storage.TupleDesc;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -24,16 +27,34 @@ public class OperatorCardinality {
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         if (o instanceof Filter) {
-            return updateFilterCardinality((Filter) o, tableAliasToId,
+            return updateFilterCardinality(o,
+                    Collections.singletonList(((Filter) o).getPredicate()),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof ConjunctiveFilter) {
+            return updateFilterCardinality(o,
+                    ((ConjunctiveFilter) o).getPredicates(), tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
-                    tableAliasToId, tableStats);
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof HashSemiJoin) {
+            return updateSemiJoinCardinality((HashSemiJoin) o, tableAliasToId,
+                    tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof HashDistinct || o instanceof SortDistinct) {
+            return updateDistinctCardinality(o, tableAliasToId, tableStats);
+        } else if (o instanceof ParallelSeqScan) {
+            return updateParallelScanCardinality((ParallelSeqScan) o,
+                    tableStats);
         } else {
             OpIterator[] children = o.getChildren();
             int childC = 1;
@@ -44,34 +65,47 @@ public class OperatorCardinality {
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
                 } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                    childC = scanCardinality((SeqScan) children[0], tableStats);
                 }
             }
+            // LIMIT 和 Top-N 最多输出 n 个元组
+            if (o instanceof Limit) {
+                Limit l = (Limit) o;
+                childC = Math.max(0, Math.min(childC - l.getOffset(), l.getLimit()));
+            } else if (o instanceof TopN) {
+                childC = Math.min(childC, ((TopN) o).getN());
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
     }
 
-    private static boolean updateFilterCardinality(Filter f,
-            Map<String, Integer> tableAliasToId,
+    /**
+     * A Filter, or a ConjunctiveFilter with the selectivities of its
+     * predicates multiplied as if they were independent.
+     */
+    private static boolean updateFilterCardinality(Operator f,
+            List<Predicate> preds, Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
-        Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
-                .split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
         double selectivity = 1.0;
-        if (tableId != null) {
-            selectivity = tableStats.get(
+        Integer tableId = null;
+        for (Predicate pred : preds) {
+            String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
+                    .split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null)
+                break;
+            selectivity *= tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .estimateSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             pred.getOp(), pred.getOperand());
+        }
+        if (tableId != null) {
             if (child instanceof Operator) {
                 Operator oChild = (Operator) child;
                 boolean hasJoinPK = updateOperatorCardinality(oChild,
@@ -80,9 +114,8 @@ public class OperatorCardinality {
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
             } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        (SeqScan) child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -90,6 +123,40 @@ public class OperatorCardinality {
         return false;
     }
 
+    /**
+     * The number of tuples a SeqScan returns, after the predicates pushed
+     * down into it.
+     */
+    private static int scanCardinality(SeqScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        double selectivity = 1.0;
+        for (Predicate pred : s.getPredicates()) {
+            selectivity *= stats.estimateSelectivity(pred.getField(),
+                    pred.getOp(), pred.getOperand());
+        }
+        if (s.getPredicates().isEmpty())
+            return stats.estimateTableCardinality(1.0);
+        return (int) (stats.estimateTableCardinality(1.0) * selectivity) + 1;
+    }
+
+    /**
+     * A parallel scan applies its predicates itself, like a chain of Filters
+     * over a SeqScan.
+     */
+    private static boolean updateParallelScanCardinality(ParallelSeqScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        double selectivity = 1.0;
+        for (Predicate pred : s.getPredicates()) {
+            selectivity *= stats.estimateSelectivity(pred.getField(),
+                    pred.getOp(), pred.getOperand());
+        }
+        s.setEstimatedCardinality((int) (stats
+                .estimateTableCardinality(1.0) * selectivity) + 1);
+        return false;
+    }
+
     private static boolean updateJoinCardinality(Join j,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -123,8 +190,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -135,8 +201,7 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -146,9 +211,14 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-                                                         Map<String, Integer> tableAliasToId,
-                                                         Map<String, TableStats> tableStats) {
+    /**
+     * Update the cardinality of a HashEquiJoin or SortMergeJoin, whose join
+     * field names are qualified by table alias.
+     */
+    private static boolean updateJoinCardinality(Operator j, JoinPredicate pred,
+                                                 String field1Name, String field2Name,
+                                                 Map<String, Integer> tableAliasToId,
+                                                 Map<String, TableStats> tableStats) {
 
         OpIterator[] children = j.getChildren();
         OpIterator child1 = children[0];
@@ -156,10 +226,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -178,8 +248,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -190,17 +259,38 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                pred.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    /**
+     * A HashSemiJoin returns at most the tuples of its outer child. The
+     * subquery has its own table aliases and is not estimated here.
+     */
+    private static boolean updateSemiJoinCardinality(HashSemiJoin j,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator[] children = j.getChildren();
+        int childCard = 1;
+        boolean hasJoinPK = false;
+        if (children[0] instanceof Operator) {
+            Operator oChild = (Operator) children[0];
+            hasJoinPK = updateOperatorCardinality(oChild, tableAliasToId,
+                    tableStats);
+            childCard = oChild.getEstimatedCardinality();
+        } else if (children[0] instanceof SeqScan) {
+            childCard = scanCardinality((SeqScan) children[0], tableStats);
+        }
+        j.setEstimatedCardinality(childCard);
+        return hasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -220,28 +310,65 @@ public class OperatorCardinality {
         }
 
         if (child instanceof SeqScan) {
-            childCard = tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0);
+            childCard = scanCardinality((SeqScan) child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // 多个分组列时分组数估计为各列不同值个数之积
+        double groups = distinctValues(a.getTupleDesc(), a.getGroupFields().length,
+                tableAliasToId, tableStats);
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
+        return hasJoinPK;
+    }
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+    /**
+     * A HashDistinct or SortDistinct returns at most as many tuples as there
+     * are combinations of distinct values of its fields.
+     */
+    private static boolean updateDistinctCardinality(Operator d,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator child = d.getChildren()[0];
+        int childCard = 1;
+        boolean hasJoinPK = false;
+        if (child instanceof Operator) {
+            Operator oChild = (Operator) child;
+            hasJoinPK = updateOperatorCardinality(oChild, tableAliasToId,
+                    tableStats);
+            childCard = oChild.getEstimatedCardinality();
+        } else if (child instanceof SeqScan) {
+            childCard = scanCardinality((SeqScan) child, tableStats);
+        }
+        TupleDesc td = d.getTupleDesc();
+        double values = distinctValues(td, td.numFields(), tableAliasToId,
+                tableStats);
+        d.setEstimatedCardinality((int) Math.min(childCard, values));
+        return hasJoinPK;
+    }
+
+    /**
+     * @return the product of the numbers of distinct values of the first
+     *         numFields fields of td, estimated from the statistics of their
+     *         tables, or Double.MAX_VALUE if a field is not a table field
+     */
+    private static double distinctValues(TupleDesc td, int numFields,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        double values = 1.0;
+        for (int i = 0; i < numFields; i++) {
+            String[] tmp = td.getFieldName(i).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null)
+                return Double.MAX_VALUE;
+            double avgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            values *= 1.0 / avgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
-        return hasJoinPK;
+        return values;
     }
 }
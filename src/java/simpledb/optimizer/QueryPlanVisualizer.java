@@ -2,9 +2,12 @@ package simpledb.optimizer;
 
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import simpledb.execution.*;
+import simpledb.index.BTreeScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -12,11 +15,19 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String SEMI_JOIN = "⋉(hash)";
+    static final String ANTI_JOIN = "▷(hash)";
+    static final String MATERIALIZE = "materialize";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "o(top)";
+    static final String LIMIT = "limit";
+    static final String EXCHANGE = "exchange";
+    static final String DISTINCT = "distinct";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -24,12 +35,13 @@ public class QueryPlanVisualizer {
         if (root == null)
             return 0;
 
-        if (!(root instanceof Operator))
+        if (!(root instanceof Operator) || root instanceof ParallelSeqScan)
             return 2;
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof HashSemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -67,17 +79,55 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexOnlyScan || queryPlan instanceof BTreeScan
+                || queryPlan instanceof ParallelSeqScan || queryPlan instanceof MetadataAggregate) {
+            String tableName, alias, index = "";
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                for (Predicate p : s.getPredicates()) {
+                    index += "," + SELECT + "(" + s.getScanTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand() + ")";
+                }
+                if (s.getOutFields() != null)
+                    index += ",fields:" + s.getOutFields().length;
+            } else if (queryPlan instanceof ParallelSeqScan) {
+                ParallelSeqScan s = (ParallelSeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                index = " parallel " + s.getParallelism();
+                for (Predicate p : s.getPredicates()) {
+                    index += "," + SELECT + "(" + s.getScanTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand() + ")";
+                }
+                index += ",card:" + s.getEstimatedCardinality();
+            } else if (queryPlan instanceof MetadataAggregate) {
+                MetadataAggregate s = (MetadataAggregate) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                index = " metadata";
+                for (int i = 0; i < s.getAggregateOps().length; i++)
+                    index += "," + s.getAggregateOps()[i] + "(" + s.getTupleDesc().getFieldName(i) + ")";
+            } else if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                if (s.isReverse())
+                    index = " desc";
+            } else {
+                IndexOnlyScan s = (IndexOnlyScan) queryPlan;
+                tableName = s.getTableName();
+                index = " using " + s.getIndex().getName();
+                alias = s.getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", SCAN, tableName + alias + index);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -138,18 +188,29 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin
+                    || plan instanceof HashSemiJoin) {
+                String name;
+                if (plan instanceof HashSemiJoin) {
+                    HashSemiJoin sj = (HashSemiJoin) plan;
+                    name = sj.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                    thisNode.text = String.format("%1$s(%2$s %3$s %4$s),card:%5$d", name,
+                            sj.getJoinField1Name(), sj.isAnti() ? "NOT IN" : "IN",
+                            sj.getJoinField2Name(), sj.getEstimatedCardinality());
+                } else {
+                    name = plan instanceof HashEquiJoin ? HASH_JOIN : MERGE_JOIN;
+                    JoinPredicate jp = plan instanceof HashEquiJoin ? ((HashEquiJoin) plan).getJoinPredicate()
+                            : ((SortMergeJoin) plan).getJoinPredicate();
+                    TupleDesc td = plan.getTupleDesc();
+                    String field1 = td.getFieldName(jp.getField1());
+                    String field2 = td.getFieldName(jp.getField2()
+                            + children[0].getTupleDesc().numFields());
+                    thisNode.text = String.format("%1$s(%2$s),card:%3$d", name, field1
+                            + jp.getOperator() + field2,plan.getEstimatedCardinality());
+                }
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +219,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - name.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -172,16 +233,28 @@ public class QueryPlanVisualizer {
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                int numGroupFields = a.getGroupFields().length;
+                Aggregator.Op[] aops = a.getAggregateOps();
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < aops.length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(aops[i]).append('(').append(td.getFieldName(numGroupFields + i)).append(')');
+                }
 
-                if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                if (numGroupFields == 0) {
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int i = 0; i < numGroupFields; i++) {
+                        if (i > 0)
+                            groups.append(',');
+                        groups.append(td.getFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -198,13 +271,19 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof Filter) {
-                Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+            } else if (plan instanceof Filter || plan instanceof ConjunctiveFilter) {
+                List<Predicate> preds = plan instanceof Filter
+                        ? Collections.singletonList(((Filter) plan).getPredicate())
+                        : ((ConjunctiveFilter) plan).getPredicates();
+                String conj = "";
+                for (Predicate p : preds) {
+                    if (!conj.isEmpty())
+                        conj += " AND ";
+                    conj += children[0].getTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand();
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, conj,
+                        plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -240,6 +319,54 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit || plan instanceof Exchange
+                    || plan instanceof HashDistinct || plan instanceof SortDistinct
+                    || plan instanceof Materialize) {
+                String name;
+                if (plan instanceof Materialize) {
+                    name = MATERIALIZE;
+                    thisNode.text = String.format("%1$s,card:%2$d", MATERIALIZE,
+                            ((Materialize) plan).getEstimatedCardinality());
+                } else if (plan instanceof HashDistinct) {
+                    name = DISTINCT;
+                    thisNode.text = String.format("%1$s(hash),card:%2$d", DISTINCT,
+                            ((HashDistinct) plan).getEstimatedCardinality());
+                } else if (plan instanceof SortDistinct) {
+                    SortDistinct d = (SortDistinct) plan;
+                    name = DISTINCT;
+                    thisNode.text = String.format("%1$s(sort,%2$s),card:%3$d", DISTINCT,
+                            d.getSortFieldName(), d.getEstimatedCardinality());
+                } else if (plan instanceof Exchange) {
+                    Exchange x = (Exchange) plan;
+                    name = EXCHANGE;
+                    thisNode.text = String.format("%1$s(%2$d),card:%3$d", EXCHANGE,
+                            x.getCapacity(), x.getEstimatedCardinality());
+                } else if (plan instanceof TopN) {
+                    TopN t = (TopN) plan;
+                    name = TOPN;
+                    thisNode.text = String.format("%1$s(%2$s,%3$d),card:%4$d", TOPN,
+                            children[0].getTupleDesc().getFieldName(t.getOrderByField()),
+                            t.getN(), t.getEstimatedCardinality());
+                } else {
+                    Limit l = (Limit) plan;
+                    name = LIMIT;
+                    thisNode.text = String.format("%1$s(%2$d,%3$d),card:%4$d", LIMIT,
+                            l.getLimit(), l.getOffset(), l.getEstimatedCardinality());
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 StringBuilder fields = new StringBuilder();
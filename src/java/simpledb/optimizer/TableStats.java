@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
@@ -111,7 +112,7 @@ public class TableStats {
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        this.pagesNum = ((HeapFile) dbFile).numPages();
+        this.pagesNum = dbFile instanceof BTreeFile ? ((BTreeFile) dbFile).numPages() : ((HeapFile) dbFile).numPages();
         integerHashMap = new HashMap<>();
         stringHashMap = new HashMap<>();
 
@@ -159,6 +160,8 @@ public class TableStats {
             e.printStackTrace();
         }finally {
             scan.close();
+            // 释放扫描时加的共享锁，否则之后写这张表的事务拿不到锁
+            Database.getBufferPool().transactionComplete(tid);
         }
 
         // 写入缓存map中
@@ -217,6 +220,8 @@ public class TableStats {
             e.printStackTrace();
         }finally {
             scan.close();
+            // 释放扫描时加的共享锁，否则之后写这张表的事务拿不到锁
+            Database.getBufferPool().transactionComplete(tid);
         }
     }
 
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 //import simpledb.storage.evict.EvictStrategy;
@@ -11,9 +12,16 @@ import simpledb.storage.evict.LRUStrategy;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -42,6 +50,24 @@ public class BufferPool {
     private LRUStrategy evict;
     private LockManager lockManager;
 
+    /**
+     * 每次丢弃页面时递增。在锁外读盘的线程用它判断读到的页面是否可能已经过期
+     */
+    private volatile long discardGeneration = 0;
+
+    /** Pages that are never evicted, see {@link #pinPage}. */
+    private final Set<PageId> pinned = ConcurrentHashMap.newKeySet();
+
+    /** Pages being read by {@link #prefetchPages}; getPage waits for them instead of reading them again. */
+    private final Map<PageId, CompletableFuture<Void>> prefetching = new ConcurrentHashMap<>();
+
+    /** Background threads used by {@link #prefetchPages}. */
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "bufferpool-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
     // 锁
     class PageLock{
         private static final int SHARE = 0;
@@ -245,6 +271,41 @@ public class BufferPool {
         // some code goes here
         // Lab 1 version
 //        return this.pageCache.get(pid);
+        lockPage(tid, pid, perm);
+        LRUStrategy.LinkedNode node = cachedNode(pid);
+        if (node == null) {
+            // 在锁外读盘，避免阻塞预读线程和其他事务
+            long generation = discardGeneration;
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page page = file.readPage(pid);
+            node = installPage(pid, page, generation, true);
+        }
+        synchronized (this) {
+            // 移动到头部（节点可能刚刚被淘汰，此时不再放回链表）
+            if (pageCache.get(pid) == node) {
+                evict.moveToHead(node);
+            }
+        }
+        return node.getPage();
+    }
+
+    /**
+     * Acquire a lock on a page, as {@link #getPage} does, and return the page
+     * if it is in the buffer pool, without reading it from disk otherwise.
+     * Callers that only need a little of a page that is not cached, such as
+     * the header of a HeapPage, read it from the file themselves.
+     *
+     * @return the cached page, or null if it is not in the buffer pool
+     */
+    public Page getCachedPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockPage(tid, pid, perm);
+        LRUStrategy.LinkedNode node = cachedNode(pid);
+        return node == null ? null : node.getPage();
+    }
+
+    private void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
         int lockType = perm == Permissions.READ_ONLY ? PageLock.SHARE: PageLock.EXCLUSIVE;
         boolean isAcquired = false;
         long startTime = System.currentTimeMillis();
@@ -258,22 +319,149 @@ public class BufferPool {
                 throw new TransactionAbortedException();
             }
         }
+    }
 
-        if (!pageCache.containsKey(pid)) {
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = file.readPage(pid);
-            // 判断是否超过大小
-            if (pageCache.size() >= numPages) {
-                this.evictPage();
+    /**
+     * @return the cache node of a page, after waiting for a prefetch of it
+     *         that is in flight, or null if the page is not cached
+     */
+    private LRUStrategy.LinkedNode cachedNode(PageId pid) {
+        LRUStrategy.LinkedNode node = pageCache.get(pid);
+        CompletableFuture<Void> pending = node == null ? prefetching.get(pid) : null;
+        if (pending != null) {
+            // 预读线程正在读这一页，等它读完，不重复读盘
+            pending.join();
+            node = pageCache.get(pid);
+        }
+        return node;
+    }
+
+    /**
+     * Put a page that was just read from disk into the cache, unless another
+     * thread has cached the page in the meantime (in which case the cached
+     * version wins, since it may already have been modified).
+     *
+     * @param pid the id of the page
+     * @param page the page read from disk
+     * @param generation the value of discardGeneration before the page was read;
+     *        if pages have been discarded since, the read may be stale
+     * @param mustInstall if false, give up instead of evicting a page when the
+     *        pool is full or the read may be stale (used for prefetching)
+     * @return the cache node holding the page, or null if it was not installed
+     */
+    private synchronized LRUStrategy.LinkedNode installPage(PageId pid, Page page, long generation, boolean mustInstall)
+            throws DbException {
+        LRUStrategy.LinkedNode node = pageCache.get(pid);
+        if (node != null) {
+            return node;
+        }
+        if (!mustInstall && (generation != discardGeneration || pageCache.size() >= numPages)) {
+            return null;
+        }
+        if (generation != discardGeneration) {
+            // 读盘期间有页面被丢弃（可能被重写），重新读一次
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        }
+        // 判断是否超过大小
+        if (pageCache.size() >= numPages) {
+            this.evictPage();
+        }
+        // 放入LRU 双向链表中
+        node = new LRUStrategy.LinkedNode(pid, page);
+        evict.addToHead(node);
+        pageCache.put(pid, node);
+        return node;
+    }
+
+    /**
+     * Asynchronously read the specified pages into the buffer pool, so that a
+     * later {@link #getPage} on them does not have to wait for the disk.
+     * No locks are acquired: getPage still locks the page when it is actually
+     * requested. Pages that are already cached are skipped, and prefetching
+     * never evicts pages -- it stops once the pool is full.
+     *
+     * @param pids the pages to read, in the order they are likely to be requested
+     */
+    public void prefetchPages(List<? extends PageId> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        // 在调用线程里登记，紧接着的 getPage 就能看到这次预读而不会重复读盘
+        Map<PageId, CompletableFuture<Void>> todo = new LinkedHashMap<>();
+        for (PageId pid : pids) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            if (!pageCache.containsKey(pid) && prefetching.putIfAbsent(pid, done) == null) {
+                todo.put(pid, done);
+            }
+        }
+        if (todo.isEmpty()) {
+            return;
+        }
+        PREFETCHER.execute(() -> {
+            boolean stop = false;
+            for (Map.Entry<PageId, CompletableFuture<Void>> e : todo.entrySet()) {
+                PageId pid = e.getKey();
+                try {
+                    if (!stop && !pageCache.containsKey(pid)) {
+                        long generation = discardGeneration;
+                        if (pageCache.size() >= numPages) {
+                            stop = true;
+                        } else {
+                            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                            stop = installPage(pid, page, generation, false) == null;
+                        }
+                    }
+                } catch (Exception ex) {
+                    // 预读只是优化，失败时交给 getPage 正常读取
+                    stop = true;
+                } finally {
+                    prefetching.remove(pid);
+                    e.getValue().complete(null);
+                }
             }
-            // 放入LRU 双向链表中
-            LRUStrategy.LinkedNode node = new LRUStrategy.LinkedNode(pid, page);
-            evict.addToHead(node);
-            pageCache.put(pid, node);
-        }
-        // 移动到头部
-        evict.moveToHead(pageCache.get(pid));
-        return this.pageCache.get(pid).getPage();
+        });
+    }
+
+    /**
+     * Keep the specified page resident: once it is in the pool it is never
+     * evicted, so requests for it never wait for the disk. At most half of the
+     * pool can be pinned, so that unpinned pages still have room.
+     * <p>
+     * Pinning does not change locking: getPage still locks a pinned page. A
+     * pinned page can still be discarded, in which case the next getPage reads
+     * it again and it stays pinned.
+     *
+     * @param pid the page to pin
+     * @return false if the page could not be pinned because too many pages are
+     *         pinned already
+     */
+    public synchronized boolean pinPage(PageId pid) {
+        if (pinned.contains(pid)) {
+            return true;
+        }
+        if (pinned.size() >= numPages / 2) {
+            return false;
+        }
+        return pinned.add(pid);
+    }
+
+    /**
+     * Allow the specified page to be evicted again.
+     *
+     * @param pid the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+        pinned.remove(pid);
+    }
+
+    /** Return true if the specified page is pinned */
+    public boolean isPinned(PageId pid) {
+        return pinned.contains(pid);
+    }
+
+    /** Return the number of pinned pages */
+    public int numPinned() {
+        return pinned.size();
     }
 
     /**
@@ -334,6 +522,8 @@ public class BufferPool {
         }
         // 事务完成
         lockManager.completeTransaction(tid);
+        // 归还没有关闭的查询的内存预算
+        Database.getMemoryManager().releaseTransaction(tid);
 
     }
 
@@ -360,7 +550,75 @@ public class BufferPool {
         if (dbFile == null) {
             throw new DbException("BufferPool.insertTuple()中 tableId : " + tableId + " 的表不存在");
         }
-        for (Page page: dbFile.insertTuple(tid, t)) {
+        cacheDirtyPages(tid, dbFile.insertTuple(tid, t));
+        // 维护表上的二级索引，此时 t 已经有了 RecordId
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.insertEntry(tid, t));
+        }
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, through {@link DbFile#insertTuples}: each page is locked, modified
+     * and cached once per batch rather than once per tuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (dbFile == null) {
+            throw new DbException("BufferPool.insertTuples()中 tableId : " + tableId + " 的表不存在");
+        }
+        cacheDirtyPages(tid, dbFile.insertTuples(tid, tuples));
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Tuple t : tuples)
+                cacheDirtyPages(tid, index.insertEntry(tid, t));
+        }
+    }
+
+    /**
+     * Remove a batch of tuples from the buffer pool, through
+     * {@link DbFile#deleteTuples}: the tuples of each table are deleted
+     * together, so that each page is locked, modified and cached once.
+     *
+     * @param tid the transaction deleting the tuples
+     * @param tuples the tuples to delete
+     */
+    public void deleteTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<Integer, List<Tuple>> byTable = new LinkedHashMap<>();
+        for (Tuple t : tuples)
+            byTable.computeIfAbsent(t.getRecordId().getPageId().getTableId(), k -> new ArrayList<>()).add(t);
+        for (Map.Entry<Integer, List<Tuple>> e : byTable.entrySet()) {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(e.getKey());
+            if (dbFile == null) {
+                throw new DbException("BufferPool.deleteTuples() tableId : " + e.getKey() + " 的表不存在");
+            }
+            // 删除之后 RecordId 可能失效，先记下来用于定位索引项
+            List<RecordId> rids = new ArrayList<>();
+            for (Tuple t : e.getValue())
+                rids.add(t.getRecordId());
+            cacheDirtyPages(tid, dbFile.deleteTuples(tid, e.getValue()));
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(e.getKey())) {
+                for (int i = 0; i < rids.size(); i++)
+                    cacheDirtyPages(tid, index.deleteEntry(tid, e.getValue().get(i), rids.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Puts pages dirtied by an access method into the cache (replacing any
+     * existing versions of those pages) and marks them dirty on behalf of
+     * the specified transaction.
+     *
+     * @param tid the transaction that dirtied the pages
+     * @param pages the pages returned by a DbFile insert or delete
+     */
+    public synchronized void cacheDirtyPages(TransactionId tid, List<Page> pages) throws DbException {
+        for (Page page : pages) {
             // 如果缓存池已满，执行淘汰策略
             if(pageCache.size() > numPages){
                 evictPage();
@@ -406,6 +664,8 @@ public class BufferPool {
         if (dbFile == null) {
             throw new DbException("BufferPool.deleteTuple() tableId : " + t.getRecordId().getPageId().getTableId() + " 的表不存在");
         }
+        // 删除之后 t 的 RecordId 可能失效，先记下来用于定位索引项
+        RecordId rid = t.getRecordId();
         for (Page page : dbFile.deleteTuple(tid, t)) {
             // 获取节点，此时的页一定已经在缓存了，因为刚刚被修改的时候就已经放入缓存了
             LRUStrategy.LinkedNode node = pageCache.get(page.getId());
@@ -414,6 +674,9 @@ public class BufferPool {
             pageCache.put(page.getId(), node);    // 修改后的页要覆盖缓冲池中的页
             page.markDirty(true, tid);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(rid.getPageId().getTableId())) {
+            cacheDirtyPages(tid, index.deleteEntry(tid, t, rid));
+        }
     }
 
     /**
@@ -444,8 +707,10 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if (pageCache.containsKey(pid)) {
-            pageCache.remove(pid);
+        discardGeneration++;
+        LRUStrategy.LinkedNode node = pageCache.remove(pid);
+        if (node != null) {
+            evict.remove(node);
         }
     }
 
@@ -533,8 +798,8 @@ public class BufferPool {
             evictPageId = evict.getEvictPageId();
             // 获取淘汰的页
             page = pageCache.get(evictPageId).getPage();
-            // 判断是否脏页
-            if (page.isDirty() != null) {
+            // 判断是否脏页，固定的页也不能淘汰
+            if (page.isDirty() != null || pinned.contains(evictPageId)) {
                 // 脏页放回去，放到队头了
                 // 如果加了日志之后，可以刷脏页了不？事务未提交不能，把页刷到磁盘，redo日志好像可以
                 evict.moveToHead(pageCache.get(evictPageId));
@@ -550,7 +815,7 @@ public class BufferPool {
                 break;
             }
         }
-        if (isAllDirty) {throw new DbException("All page are dirty page.");}
+        if (isAllDirty) {throw new DbException("All page are dirty or pinned page.");}
    }
 
    public synchronized void restorePages(TransactionId tid) {
@@ -566,6 +831,9 @@ public class BufferPool {
                // 读取当前的页面
                Page pageFromDisk = table.readPage(pageId);
 
+               // 回滚的插入留下的空槽可以再用
+               if (table instanceof HeapFile)
+                   ((HeapFile) table).noteFreeSlots(pageId.getPageNumber());
                // 写回内存
                node.setPage(pageFromDisk);
                pageCache.put(pageId, node);
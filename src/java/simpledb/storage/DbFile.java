@@ -64,6 +64,55 @@ public interface DbFile {
     List<Page> deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction. By
+     * default the tuples are inserted one at a time; files that can fill a
+     * page with several tuples override this to lock and modify each page
+     * once per batch. Modified pages are marked dirty right away, so that the
+     * buffer pool keeps them until the batch is done.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add, which are updated to reflect that they
+     *          are now stored in this file
+     * @return The pages that were modified, each once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page p : insertTuple(tid, t)) {
+                p.markDirty(true, tid);
+                pages.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<>(pages.values());
+    }
+
+    /**
+     * Removes a batch of tuples from the file on behalf of the specified
+     * transaction. By default the tuples are deleted one at a time; files
+     * override this to group the tuples by the page that stores them.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to delete
+     * @return The pages that were modified, each once
+     * @throws DbException if a tuple cannot be deleted or is not a member
+     *   of the file
+     */
+    default List<Page> deleteTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page p : deleteTuple(tid, t)) {
+                p.markDirty(true, tid);
+                pages.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<>(pages.values());
+    }
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
@@ -9,6 +9,7 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -24,6 +25,8 @@ public class HeapFile implements DbFile {
 
     private final File file;
     private final TupleDesc tupleDesc;
+    // insertTuples 从这一页开始找空槽，之前的页在上次查看时都已满
+    private final AtomicInteger firstFreePage = new AtomicInteger();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -168,11 +171,117 @@ public class HeapFile implements DbFile {
         // some code goes here
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        noteFreeSlots(t.getRecordId().getPageId().getPageNumber());
         ArrayList<Page> result = new ArrayList<>();
         result.add(page);
         return result;
     }
 
+    /**
+     * Inserts the tuples in order, filling each page with a free slot before
+     * moving on to the next one and appending new pages at the end of the
+     * file when the existing ones are full. Each page is locked, modified and
+     * marked dirty once for the whole batch; pages are marked dirty as soon
+     * as they are modified, so the buffer pool does not evict them while the
+     * rest of the batch is inserted.
+     */
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> result = new ArrayList<>();
+        int next = 0;
+        int start = firstFreePage.get();
+        int pageNo = start;
+        for (; next < tuples.size() && pageNo < numPages(); pageNo++) {
+            HeapPageId pageId = new HeapPageId(this.getId(), pageNo);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+            int free = page.getNumEmptySlots();
+            if (free == 0) {
+                Database.getBufferPool().unsafeReleasePage(tid, page.getId());
+                continue;
+            }
+            for (; free > 0 && next < tuples.size(); free--)
+                page.insertTuple(tuples.get(next++));
+            page.markDirty(true, tid);
+            result.add(page);
+            if (free > 0)
+                break;
+        }
+        while (next < tuples.size()) {
+            HeapPageId pageId = new HeapPageId(this.getId(), numPages());
+            writePage(new HeapPage(pageId, HeapPage.createEmptyPageData()));
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+            for (int free = page.getNumEmptySlots(); free > 0 && next < tuples.size(); free--)
+                page.insertTuple(tuples.get(next++));
+            page.markDirty(true, tid);
+            result.add(page);
+            pageNo = pageId.getPageNumber();
+        }
+        // 期间有页被删除过元组时保留更小的位置
+        firstFreePage.compareAndSet(start, pageNo);
+        return result;
+    }
+
+    /**
+     * Deletes the tuples grouped by the page that stores them: each page is
+     * locked, modified and marked dirty once for the whole batch.
+     */
+    public List<Page> deleteTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, List<Tuple>> byPage = new LinkedHashMap<>();
+        for (Tuple t : tuples)
+            byPage.computeIfAbsent(t.getRecordId().getPageId(), k -> new ArrayList<>()).add(t);
+        List<Page> result = new ArrayList<>();
+        for (Map.Entry<PageId, List<Tuple>> e : byPage.entrySet()) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, e.getKey(), Permissions.READ_WRITE);
+            for (Tuple t : e.getValue())
+                page.deleteTuple(t);
+            page.markDirty(true, tid);
+            result.add(page);
+            noteFreeSlots(e.getKey().getPageNumber());
+        }
+        return result;
+    }
+
+    /**
+     * Note that the specified page may have free slots again (after a delete,
+     * or after an abort restored it), so that insertTuples looks at it.
+     */
+    public void noteFreeSlots(int pageNo) {
+        firstFreePage.accumulateAndGet(pageNo, Math::min);
+    }
+
+    /**
+     * Count the tuples of the file from the header bitmaps of its pages,
+     * without decoding any tuple. Every page is locked with a shared lock, as
+     * a scan would; a page in the buffer pool is counted from its header, and
+     * of a page that is not, only the header bytes are read from the file,
+     * without building a HeapPage or caching it.
+     *
+     * @return the number of tuples in the file
+     */
+    public int countTuples(TransactionId tid) throws DbException, TransactionAbortedException {
+        int numSlots = HeapPage.getNumTuples(tupleDesc);
+        byte[] header = new byte[HeapPage.getHeaderSize(tupleDesc)];
+        int count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int pageNo = 0; pageNo < numPages(); pageNo++) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getCachedPage(tid,
+                        new HeapPageId(getId(), pageNo), Permissions.READ_ONLY);
+                if (page != null) {
+                    count += numSlots - page.getNumEmptySlots();
+                } else {
+                    // 持有共享锁时，不在缓冲池中的页在磁盘上就是最新的
+                    raf.seek((long) BufferPool.getPageSize() * pageNo);
+                    raf.readFully(header);
+                    count += HeapPage.countUsedSlots(header, numSlots);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot read the page headers of " + file + ": " + e.getMessage());
+        }
+        return count;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -12,6 +13,11 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The tuples are not parsed when the page is read: the page keeps its bytes,
+ * which are also its before image, and parses a slot into a Tuple the first
+ * time the tuple is asked for. {@link #readBatch} decodes the fields of the
+ * used slots straight from the bytes into the column vectors of a batch.
  *
  * @see HeapFile
  * @see BufferPool
@@ -23,11 +29,14 @@ public class HeapPage implements Page {
     final TupleDesc td;
     // header 是一个字节数组，每个字节8个bit，每个bit表示一个槽的占用情况。按照顺序和一一对应的方式存储。
     final byte[] header;
+    // 各槽的元组：第一次按元组读取时才从页面数据中解析，插入的元组直接放入
     final Tuple[] tuples;
     final int numSlots;
+    // 每个字段在一个槽中的偏移
+    private final int[] fieldOffsets;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
 
     boolean dirty;
     TransactionId tid;
@@ -49,33 +58,28 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
-        // 先计算好该page能存放多少元组数，之后将header和tuples分别写入到header和tuples两个数组中
-        // ，完事后将页面上的所有数据序列化缓存，保存至oldData字节数组中。
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of tuples with the given TupleDesc, for pages which do not
+     * belong to a table in the catalog (such as the pages of a {@link SpillFile}).
+     */
+    public HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         // 能容纳的元组数
         this.numSlots = getNumTuples();
-        // 从data数组中读出页中的内容
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            // 读出header内容
-            header[i] = dis.readByte();
-
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        // 读出header内容
+        header = Arrays.copyOf(data, getHeaderSize());
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                // 读出元组内容
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        // 页面数据同时是前像，回滚恢复时用；元组在用到时才从中解析
+        synchronized (oldDataLock) {
+            oldData = data.clone();
         }
-        dis.close();
-        // 给oldData保存页中之前的内容，把page对象的内容写入到一个数组放到oldData中，回滚恢复时用
-        setBeforeImage();
         // 设为非脏页
         this.dirty = false;
         // 当前事务id
@@ -87,10 +91,16 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return getNumTuples(td);
+    }
+
+    /**
+     * @return the number of tuples with the given TupleDesc that fit on one page
+     */
+    public static int getNumTuples(TupleDesc td) {
         // Bytes per page, including header
         int pageSize = BufferPool.getPageSize();
         return (int) Math.floor(pageSize*8.0/(td.getSize()*8+1));
-
     }
 
     /**
@@ -99,7 +109,15 @@ public class HeapPage implements Page {
      */
     private int getHeaderSize() {
         // some code goes here
-        return (int) Math.ceil(getNumTuples()/8.0);
+        return getHeaderSize(td);
+    }
+
+    /**
+     * @return the number of header bytes at the start of a page of tuples with
+     *         the given TupleDesc
+     */
+    public static int getHeaderSize(TupleDesc td) {
+        return (int) Math.ceil(getNumTuples(td)/8.0);
     }
     
     /** Return a view of this page before it was modified
@@ -138,23 +156,39 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file. 将源文件的某一行变为一个tuple
+     * @return the bytes of the page as they were read or last saved as the
+     *         before image; a used slot whose tuple has not been parsed yet
+     *         has not changed since
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private byte[] pageBytes() {
+        synchronized (oldDataLock) {
+            return oldData;
         }
+    }
+
+    private int slotOffset(int slot) {
+        return header.length + slot * td.getSize();
+    }
+
+    /**
+     * @return the tuple in a used slot, parsed from the page data the first
+     *         time it is asked for
+     */
+    private synchronized Tuple tuple(int slot) {
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = readTuple(slot);
+            tuples[slot] = t;
+        }
+        return t;
+    }
 
-        // read fields in the tuple
+    /**
+     * Parse the tuple of a used slot from the page data.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(pageBytes(), slotOffset(slotId), td.getSize()));
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
@@ -171,6 +205,11 @@ public class HeapPage implements Page {
         return t;
     }
 
+    private static int readInt(byte[] data, int off) {
+        return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16)
+                | ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -185,8 +224,9 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
+        byte[] data = pageBytes();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -216,6 +256,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // 还没有解析的元组与页面数据中的相同，直接复制
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -262,6 +312,36 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Serialize tuples into the data of a page, filling the first slots. Unlike
+     * insertTuple, this does not change the record ids of the tuples.
+     *
+     * @param td the TupleDesc of the tuples
+     * @param tuples the tuples, at most {@link #getNumTuples(TupleDesc)} of them
+     * @return the page data
+     */
+    public static byte[] createPageData(TupleDesc td, List<Tuple> tuples) throws IOException {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        int headerSize = (int) Math.ceil(getNumTuples(td) / 8.0);
+        for (int i = 0; i < headerSize; i++) {
+            int used = Math.min(8, Math.max(0, tuples.size() - i * 8));
+            // 槽位 i*8+j 对应第 i 个字节的第 j 位（低位在前）
+            dos.writeByte((1 << used) - 1);
+        }
+        for (Tuple t : tuples) {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+        }
+        dos.flush();
+        byte[] data = new byte[len];
+        byte[] written = baos.toByteArray();
+        System.arraycopy(written, 0, data, 0, written.length);
+        return data;
+    }
+
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
      *   that it is no longer stored on any page.
@@ -269,7 +349,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         RecordId recordId = t.getRecordId();
@@ -290,7 +370,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         TupleDesc desc = t.getTupleDesc();
@@ -329,17 +409,31 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Returns the number of empty slots on this page.
+     * Returns the number of empty slots on this page. The used slots are
+     * counted a header byte at a time, without looking at the tuples.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int count = 0;
-        for (int i=0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                count++;
-            }
-        }
-        return count;
+        return numSlots - countUsedSlots(header, numSlots);
+    }
+
+    /**
+     * Count the used slots of a page from its header alone, a byte at a time.
+     *
+     * @param header the header bytes of the page, as stored at its start
+     * @param numSlots the number of slots of the page
+     * @return the number of used slots
+     */
+    public static int countUsedSlots(byte[] header, int numSlots) {
+        int used = 0;
+        int fullBytes = numSlots / 8;
+        for (int i = 0; i < fullBytes; i++)
+            used += Integer.bitCount(header[i] & 0xFF);
+        // 最后一个字节中超出槽数的位不计
+        int rest = numSlots % 8;
+        if (rest > 0)
+            used += Integer.bitCount(header[fullBytes] & ((1 << rest) - 1));
+        return used;
     }
 
     /**
@@ -382,16 +476,63 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Append the tuples in the used slots, starting at the specified slot, to
+     * a batch until the batch is full. Each row keeps the page and slot it
+     * was read from.
+     *
+     * @return the slot to continue from, or the number of slots of the page
+     *         if the rest of the page has been read
+     */
+    public int readBatch(int slot, TupleBatch batch) {
+        return readBatch(slot, batch, null);
+    }
+
+    /**
+     * Like {@link #readBatch(int, TupleBatch)}, but decodes only the fields
+     * whose entry of columns is true; the other fields of the rows are left
+     * unset. The fields of tuples that have not been parsed are decoded from
+     * the page data into the column vectors without making Tuples.
+     *
+     * @param columns which fields to decode, or null for all
+     */
+    public synchronized int readBatch(int slot, TupleBatch batch, boolean[] columns) {
+        byte[] data = pageBytes();
+        int numFields = td.numFields();
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            int row = batch.addRow();
+            Tuple t = tuples[slot];
+            int off = slotOffset(slot);
+            for (int f = 0; f < numFields; f++) {
+                if (columns != null && !columns[f])
+                    continue;
+                if (t != null) {
+                    batch.set(f, row, t.getField(f));
+                } else if (td.getFieldType(f) == Type.INT_TYPE) {
+                    batch.setInt(f, row, readInt(data, off + fieldOffsets[f]));
+                } else {
+                    // 字符串字段：4 字节长度，然后是字符
+                    int at = off + fieldOffsets[f];
+                    batch.setStringBytes(f, row, data, at + 4, readInt(data, at));
+                }
+            }
+            batch.setRecordId(row, pid, slot);
+        }
+        return slot;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         // some code goes here
         List<Tuple> tupleList = new ArrayList<>();
         for (int i=0; i < numSlots; i++) {
             if (isSlotUsed(i)) {
-                tupleList.add(this.tuples[i]);
+                tupleList.add(tuple(i));
             }
         }
         return tupleList.iterator();
@@ -0,0 +1,169 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * SpillFile is a temporary file of tuples that operators write when their
+ * input does not fit in their memory budget, such as the sorted runs of an
+ * external sort. Tuples are stored in the HeapPage format, one page after the
+ * other, in the order they were added.
+ * <p>
+ * A SpillFile is private to the operator that created it, so it bypasses the
+ * BufferPool: there is nothing to lock, log or recover. Writing buffers one
+ * page, and each iterator reads one page at a time.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final int tuplesPerPage;
+    private final File file;
+    private DataOutputStream out;
+    private final List<Tuple> page = new ArrayList<>();
+    private int numPages = 0;
+    private long numTuples = 0;
+
+    /**
+     * Create an empty temporary file for tuples with the given TupleDesc.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.tuplesPerPage = HeapPage.getNumTuples(td);
+        this.file = File.createTempFile("simpledb-spill", ".dat");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Append a tuple to the file.
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null) {
+            throw new IllegalStateException("spill file is already finished");
+        }
+        page.add(t);
+        numTuples++;
+        if (page.size() == tuplesPerPage) {
+            writePage();
+        }
+    }
+
+    private void writePage() throws IOException {
+        out.write(HeapPage.createPageData(td, page));
+        page.clear();
+        numPages++;
+    }
+
+    /**
+     * Write the last, partially filled page. No tuples can be added afterwards;
+     * {@link #iterator()} finishes the file if needed.
+     */
+    public void finish() throws IOException {
+        if (out == null) {
+            return;
+        }
+        if (!page.isEmpty()) {
+            writePage();
+        }
+        out.close();
+        out = null;
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of pages written to disk so far
+     */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Delete the file from disk. Open iterators must not be used afterwards.
+     */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // 反正要删除，写失败无所谓
+        }
+        file.delete();
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they were
+     *         added. It reads one page at a time.
+     */
+    public DbFileIterator iterator() throws IOException {
+        finish();
+        return new SpillFileIterator();
+    }
+
+    private class SpillFileIterator extends AbstractDbFileIterator {
+        private DataInputStream in = null;
+        private Iterator<Tuple> it = null;
+        private int pageNo = 0;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("cannot open spill file: " + e.getMessage());
+            }
+            pageNo = 0;
+            it = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException {
+            if (in == null) {
+                return null;
+            }
+            while (it == null || !it.hasNext()) {
+                if (pageNo == numPages) {
+                    return null;
+                }
+                try {
+                    byte[] data = new byte[BufferPool.getPageSize()];
+                    in.readFully(data);
+                    it = new HeapPage(new HeapPageId(0, pageNo++), data, td).iterator();
+                } catch (IOException e) {
+                    throw new DbException("cannot read spill file: " + e.getMessage());
+                }
+            }
+            return it.next();
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // 只读文件，关闭失败不影响结果
+                }
+                in = null;
+            }
+            it = null;
+        }
+    }
+}
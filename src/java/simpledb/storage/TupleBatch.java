@@ -0,0 +1,315 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TupleBatch holds up to a fixed number of tuples column by column; it is the
+ * unit of work of the batch-at-a-time execution path (see
+ * {@link simpledb.execution.OpIterator#nextBatch}). An INT_TYPE column is an
+ * int[] with one value per row; a STRING_TYPE column is a byte[] with a slice
+ * of Type.STRING_LEN bytes per row, plus an int[] with the length of each
+ * string.
+ * <p>
+ * Rows are addressed by their physical position in the column vectors. An
+ * operator that drops rows, such as a Filter, does not move any data: it sets
+ * a selection vector, the ascending positions of the rows that are still part
+ * of the batch. Without a selection vector all rows are selected. Consumers
+ * visit the selected rows as
+ * <pre>
+ *     for (int i = 0; i &lt; batch.numRows(); i++) {
+ *         int row = batch.row(i);
+ *         ...
+ *     }
+ * </pre>
+ * An operator that drops or reorders columns shares the column vectors with
+ * its input (see {@link #project}).
+ * <p>
+ * A row read from a page also keeps where it came from, in a page vector and
+ * a slot vector, so that the tuples made from the batch have the RecordId
+ * that a {@link simpledb.execution.Delete} needs.
+ */
+public class TupleBatch {
+
+    /** Default number of rows of a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // 每列只有一种表示：整数列用 ints，字符串列用 strings + lengths
+    private final int[][] ints;
+    private final byte[][] strings;
+    private final int[][] lengths;
+    // 行的来源：页为 null 表示这一行不来自页面（例如连接结果）
+    private final PageId[] pageIds;
+    private final int[] slots;
+    private int size;
+    private int[] selection;
+    private int numSelected;
+
+    /**
+     * Create an empty batch of DEFAULT_CAPACITY rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the TupleDesc of the rows
+     * @param capacity the maximum number of rows; at least 1
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("a batch holds at least one row");
+        int n = td.numFields();
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[n][];
+        this.strings = new byte[n][];
+        this.lengths = new int[n][];
+        this.pageIds = new PageId[capacity];
+        this.slots = new int[capacity];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new byte[capacity * Type.STRING_LEN];
+                lengths[i] = new int[capacity];
+            }
+        }
+    }
+
+    private TupleBatch(TupleDesc td, TupleBatch from, int[] fields) {
+        this.td = td;
+        this.capacity = from.capacity;
+        this.ints = new int[fields.length][];
+        this.strings = new byte[fields.length][];
+        this.lengths = new int[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            ints[i] = from.ints[fields[i]];
+            strings[i] = from.strings[fields[i]];
+            lengths[i] = from.lengths[fields[i]];
+        }
+        this.pageIds = from.pageIds;
+        this.slots = from.slots;
+        this.size = from.size;
+        this.selection = from.selection;
+        this.numSelected = from.numSelected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of rows stored, selected or not
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return the number of selected rows
+     */
+    public int numRows() {
+        return selection == null ? size : numSelected;
+    }
+
+    /**
+     * @return the position of the i-th selected row
+     */
+    public int row(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * @return the selection vector, or null if all rows are selected
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Keep only the specified rows selected.
+     *
+     * @param rows the positions of the selected rows, in ascending order
+     * @param n the number of entries of rows in use
+     */
+    public void select(int[] rows, int n) {
+        this.selection = rows;
+        this.numSelected = n;
+    }
+
+    /**
+     * @return the values of an INT_TYPE column
+     */
+    public int[] getInts(int field) {
+        return ints[field];
+    }
+
+    /**
+     * @return the bytes of a STRING_TYPE column; the string of a row starts
+     *         at row * Type.STRING_LEN
+     */
+    public byte[] getStringBytes(int field) {
+        return strings[field];
+    }
+
+    /**
+     * @return the string lengths of a STRING_TYPE column
+     */
+    public int[] getStringLengths(int field) {
+        return lengths[field];
+    }
+
+    public int getInt(int field, int row) {
+        return ints[field][row];
+    }
+
+    public String getString(int field, int row) {
+        return new String(strings[field], row * Type.STRING_LEN, lengths[field][row],
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the value of a row as a Field
+     */
+    public Field getField(int field, int row) {
+        if (ints[field] != null)
+            return new IntField(ints[field][row]);
+        return new StringField(getString(field, row), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the RecordId of a row, or null if the row was not read from a
+     *         page
+     */
+    public RecordId getRecordId(int row) {
+        return pageIds[row] == null ? null : new RecordId(pageIds[row], slots[row]);
+    }
+
+    /**
+     * Record the page and slot a row was read from.
+     */
+    public void setRecordId(int row, PageId pid, int slot) {
+        pageIds[row] = pid;
+        slots[row] = slot;
+    }
+
+    /**
+     * @return the row at the specified position as a Tuple, with the
+     *         RecordId of the row if it has one
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Append an empty row. Its fields must be set before it is read.
+     *
+     * @return the position of the new row
+     * @throws IllegalStateException if the batch is full or has a selection
+     *             vector
+     */
+    public int addRow() {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        if (selection != null)
+            throw new IllegalStateException("cannot add rows to a batch with a selection vector");
+        pageIds[size] = null;
+        return size++;
+    }
+
+    /**
+     * Append a tuple, with its RecordId if it has one.
+     */
+    public void add(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++)
+            set(i, row, t.getField(i));
+        RecordId rid = t.getRecordId();
+        if (rid != null)
+            setRecordId(row, rid.getPageId(), rid.getTupleNumber());
+    }
+
+    public void setInt(int field, int row, int value) {
+        ints[field][row] = value;
+    }
+
+    public void setString(int field, int row, String value) {
+        // 与 StringField.serialize 一致，每个字符只保留低 8 位
+        int len = Math.min(value.length(), Type.STRING_LEN);
+        byte[] bytes = strings[field];
+        int off = row * Type.STRING_LEN;
+        for (int i = 0; i < len; i++)
+            bytes[off + i] = (byte) value.charAt(i);
+        lengths[field][row] = len;
+    }
+
+    /**
+     * Set a STRING_TYPE field from the characters of a string as stored in a
+     * page, one byte each.
+     */
+    public void setStringBytes(int field, int row, byte[] src, int off, int len) {
+        len = Math.min(len, Type.STRING_LEN);
+        System.arraycopy(src, off, strings[field], row * Type.STRING_LEN, len);
+        lengths[field][row] = len;
+    }
+
+    public void set(int field, int row, Field value) {
+        if (ints[field] != null)
+            ints[field][row] = ((IntField) value).getValue();
+        else
+            setString(field, row, ((StringField) value).getValue());
+    }
+
+    /**
+     * Copy a field of a row of another batch, of the same type, into a row of
+     * this batch.
+     */
+    public void copy(int field, int row, TupleBatch from, int fromField, int fromRow) {
+        if (ints[field] != null) {
+            ints[field][row] = from.ints[fromField][fromRow];
+        } else {
+            int len = from.lengths[fromField][fromRow];
+            System.arraycopy(from.strings[fromField], fromRow * Type.STRING_LEN,
+                    strings[field], row * Type.STRING_LEN, len);
+            lengths[field][row] = len;
+        }
+    }
+
+    /**
+     * Returns a batch with the specified columns of this batch, sharing the
+     * column vectors and the selection vector.
+     *
+     * @param td the TupleDesc of the result
+     * @param fields the columns of this batch that make up the result
+     */
+    public TupleBatch project(TupleDesc td, int[] fields) {
+        return new TupleBatch(td, this, fields);
+    }
+
+    /**
+     * Remove all rows and the selection vector.
+     */
+    public void clear() {
+        size = 0;
+        selection = null;
+        numSelected = 0;
+    }
+}
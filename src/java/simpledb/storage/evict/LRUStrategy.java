@@ -67,8 +67,14 @@ public class LRUStrategy {
     }
 
     public void remove(LinkedNode node){
+        // 节点已经不在链表中（例如淘汰时已经摘下）
+        if (node.prev == null) {
+            return;
+        }
         node.prev.next = node.next;
         node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
     }
 
     public void moveToHead(LinkedNode node){
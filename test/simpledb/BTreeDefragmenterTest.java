@@ -0,0 +1,225 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BTreeDefragmenterTest extends SimpleDbTestBase {
+    private static final int ROWS = 6000;
+
+    private BTreeFile bf;
+
+    /**
+     * Build a fragmented tree: keys inserted in random order (so leaves split all over
+     * the file), then three quarters of them deleted.
+     */
+    @Before public void setUp() throws Exception {
+        BufferPool.setPageSize(512);
+        Database.reset();
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("defrag", ".dat");
+        f.deleteOnExit();
+        bf = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(3));
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < keys.size(); i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{keys.get(i), i}));
+            if (i % 200 == 199) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            int key = keys.get(i);
+            if (key % 4 == 0)
+                continue;
+            DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+            if (i % 200 == 199) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private List<Integer> scanKeys() throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Integer> result = new ArrayList<>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    /**
+     * @return the fraction of leaves whose right sibling is the next page in the file
+     */
+    private double contiguousLeaves() throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            pid = p.iterator().next().getLeftChild();
+        }
+        int leaves = 0, contiguous = 0;
+        while (pid != null) {
+            BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            BTreePageId next = leaf.getRightSiblingId();
+            if (next != null && next.getPageNumber() == pid.getPageNumber() + 1)
+                contiguous++;
+            leaves++;
+            pid = next;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return leaves <= 1 ? 1.0 : contiguous / (double) (leaves - 1);
+    }
+
+    @Test public void defragment() throws Exception {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < ROWS; i += 4)
+            expected.add(i);
+        assertEquals(expected, scanKeys());
+        int pagesBefore = bf.numPages();
+        double contiguousBefore = contiguousLeaves();
+
+        BTreeDefragmenter defrag = new BTreeDefragmenter(bf);
+        defrag.run();
+
+        assertTrue(defrag.getPagesMerged() > 0);
+        assertTrue(defrag.getPagesTruncated() > 0);
+        assertTrue(bf.numPages() < pagesBefore / 2);
+        assertTrue(contiguousLeaves() > Math.max(0.8, contiguousBefore));
+        assertEquals(expected, scanKeys());
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the file must still be usable after it has been shrunk
+        tid = new TransactionId();
+        for (int i = 1; i < ROWS; i += 4) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{i, 0}));
+            expected.add(i);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(expected);
+        assertEquals(expected, scanKeys());
+    }
+
+    /**
+     * The defragmenter works in small transactions, so other transactions can run
+     * between its steps.
+     */
+    @Test public void interleavedWithUpdates() throws Exception {
+        BTreeDefragmenter defrag = new BTreeDefragmenter(bf, 4, BTreeDefragmenter.DEFAULT_FILL_FACTOR);
+        Set<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < ROWS; i += 4)
+            expected.add(i);
+        int next = 2;
+        while (defrag.step()) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{next, 0}));
+            Database.getBufferPool().transactionComplete(tid);
+            expected.add(next);
+            next = (next + 36) % ROWS;
+        }
+        assertEquals(new ArrayList<>(expected), scanKeys());
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Truncation only shortens the file once its transaction commits: an aborted
+     * truncation leaves the file and its header pages as they were.
+     */
+    @Test public void abortedTruncation() throws Exception {
+        new BTreeDefragmenter(bf).run();
+        // 删掉最大的一半 key，文件末尾的叶子页变空
+        TransactionId tid = new TransactionId();
+        for (int key = ROWS / 2; key < ROWS; key += 4) {
+            DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        int pages = bf.numPages();
+        tid = new TransactionId();
+        assertTrue(bf.isEmptyPage(tid, new HashMap<>(), pages));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Transaction t = new Transaction();
+        t.start();
+        Map<PageId, Page> dirtypages = new HashMap<>();
+        assertTrue(bf.truncateEmptyPages(t.getId(), dirtypages) > 0);
+        Database.getBufferPool().cacheDirtyPages(t.getId(), new ArrayList<>(dirtypages.values()));
+        t.abort();
+        assertEquals(pages, bf.numPages());
+        tid = new TransactionId();
+        assertTrue(bf.isEmptyPage(tid, new HashMap<>(), pages));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // 不持有文件锁时不能缩短文件
+        try {
+            bf.shrinkFile(0);
+            fail("expected shrinkFile to require the lock of the file");
+        } catch (AssertionError e) {
+            // expected
+        }
+
+        BTreeDefragmenter defrag = new BTreeDefragmenter(bf);
+        defrag.run();
+        assertTrue(defrag.getPagesTruncated() > 0);
+        assertTrue(bf.numPages() < pages);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < ROWS / 2; i += 4)
+            expected.add(i);
+        assertEquals(expected, scanKeys());
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeDefragmenterTest.class);
+    }
+}
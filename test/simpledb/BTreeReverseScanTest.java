@@ -0,0 +1,161 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BTreeReverseScanTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private BTreeFile bf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        bf = BTreeUtility.createRandomBTreeFile(2, 5000, 300, null, tuples, 0);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        BTreeFile.setPrefetchDepth(8);
+    }
+
+    private static List<List<Integer>> readAll(DbFileIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private static void assertDescending(List<List<Integer>> result) {
+        for (int i = 1; i < result.size(); i++)
+            assertTrue(result.get(i - 1).get(0) >= result.get(i).get(0));
+    }
+
+    /**
+     * The reverse iterator returns every tuple, largest key first.
+     */
+    @Test public void reverseIterator() throws Exception {
+        List<List<Integer>> result = readAll(bf.reverseIterator(tid));
+        assertEquals(tuples.size(), result.size());
+        assertDescending(result);
+        assertTrue(result.containsAll(tuples));
+    }
+
+    /**
+     * The reverse index iterator returns exactly the tuples matching each kind of
+     * predicate, including keys with many duplicates spanning several leaves.
+     */
+    @Test public void reverseIndexIterator() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.NOT_EQUALS}) {
+            for (int key : new int[]{-1, 0, 150, 299, 300}) {
+                IntField f = new IntField(key);
+                List<List<Integer>> expected = new ArrayList<>();
+                for (List<Integer> t : tuples) {
+                    if (new IntField(t.get(0)).compare(op, f))
+                        expected.add(t);
+                }
+                List<List<Integer>> result = readAll(bf.reverseIndexIterator(tid, new IndexPredicate(op, f)));
+                assertEquals(op + " " + key, expected.size(), result.size());
+                assertDescending(result);
+                assertTrue(result.containsAll(expected));
+            }
+        }
+    }
+
+    /**
+     * Prefetching sibling leaves must not change the results, also when the
+     * buffer pool is too small to hold the whole tree.
+     */
+    @Test public void prefetchDoesNotChangeResults() throws Exception {
+        Database.resetBufferPool(20);
+        BTreeFile.setPrefetchDepth(16);
+        List<List<Integer>> forward = readAll(bf.iterator(tid));
+        List<List<Integer>> backward = readAll(bf.reverseIterator(tid));
+        assertEquals(tuples.size(), forward.size());
+        assertEquals(tuples.size(), backward.size());
+        Collections.reverse(backward);
+        for (int i = 0; i < forward.size(); i++)
+            assertEquals(forward.get(i).get(0), backward.get(i).get(0));
+
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.GREATER_THAN, new IntField(100));
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(0) > 100)
+                expected++;
+        }
+        assertEquals(expected, readAll(bf.indexIterator(tid, ipred)).size());
+    }
+
+    /**
+     * ORDER BY the key of the tree is answered by the order of the scan, without
+     * an OrderBy operator.
+     */
+    @Test public void orderByKeyUsesIndexOrder() throws Exception {
+        // 重新注册，让表的字段有名字
+        BTreeFile named = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        String name = UUID.randomUUID().toString();
+        Database.getCatalog().addTable(named, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(named.getId(), 10));
+
+        for (boolean asc : new boolean[]{true, false}) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(named.getId(), "t");
+            lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "200");
+            lp.addProjectField("t.c0", null);
+            lp.addOrderBy("t.c0", asc);
+            OpIterator plan = lp.physicalPlan(tid, stats, false);
+            assertFalse(TestUtil.containsOperator(plan, OrderBy.class));
+            assertTrue(TestUtil.containsOperator(plan, BTreeScan.class));
+
+            List<Integer> expected = new ArrayList<>();
+            for (List<Integer> t : tuples) {
+                if (t.get(0) < 200)
+                    expected.add(t.get(0));
+            }
+            expected.sort(asc ? Comparator.naturalOrder() : Comparator.reverseOrder());
+            List<Integer> actual = new ArrayList<>();
+            plan.open();
+            while (plan.hasNext())
+                actual.add(((IntField) plan.next().getField(0)).getValue());
+            plan.close();
+            assertEquals(expected, actual);
+        }
+
+        // ordering by another field still needs a sort
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "t");
+        lp.addProjectField("t.c1", null);
+        lp.addOrderBy("t.c1", false);
+        assertTrue(TestUtil.containsOperator(lp.physicalPlan(tid, stats, false), OrderBy.class));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeReverseScanTest.class);
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ConjunctiveFilterTest extends SimpleDbTestBase {
+
+    private final TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+
+    private List<Tuple> randomTuples(int n, long seed) {
+        Random r = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(r.nextInt(100)));
+            t.setField(1, new StringField("s" + r.nextInt(50), Type.STRING_LEN));
+            t.setField(2, new IntField(r.nextInt(1000)));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    /**
+     * Returns the same tuples, in the same order, as a chain of Filters, both
+     * a tuple and a batch at a time, for every operator on int and string
+     * fields.
+     */
+    @Test public void matchesFilters() throws Exception {
+        List<Tuple> tuples = randomTuples(5000, 1);
+        for (Predicate.Op op : Predicate.Op.values()) {
+            List<Predicate> preds = Arrays.asList(
+                    new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(10)),
+                    new Predicate(1, op, new StringField("s2", Type.STRING_LEN)),
+                    new Predicate(2, op, new IntField(500)));
+            OpIterator chain = new TupleIterator(td, tuples);
+            for (Predicate p : preds)
+                chain = new Filter(p, chain);
+            chain.open();
+            List<String> expected = TestUtil.drainStrings(chain);
+            chain.close();
+
+            ConjunctiveFilter f = new ConjunctiveFilter(preds, new TupleIterator(td, tuples));
+            f.open();
+            assertEquals(op.toString(), expected, TestUtil.drainStrings(f));
+            f.rewind();
+            List<String> batched = new ArrayList<>();
+            TupleBatch b;
+            while ((b = f.nextBatch()) != null) {
+                for (int i = 0; i < b.numRows(); i++)
+                    batched.add(b.getTuple(b.row(i)).toString());
+            }
+            assertEquals(op.toString(), expected, batched);
+            f.close();
+        }
+    }
+
+    /**
+     * A selective predicate moves ahead of one that passes every row.
+     */
+    @Test public void reordersBySelectivity() throws Exception {
+        Predicate all = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+        Predicate few = new Predicate(2, Predicate.Op.EQUALS, new IntField(5));
+        ConjunctiveFilter f = new ConjunctiveFilter(Arrays.asList(all, few),
+                new TupleIterator(td, randomTuples(5000, 2)));
+        f.open();
+        assertEquals(all, f.getEvaluationOrder().get(0));
+        TestUtil.drainStrings(f);
+        assertEquals(few, f.getEvaluationOrder().get(0));
+        f.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ConjunctiveFilterTest.class);
+    }
+}
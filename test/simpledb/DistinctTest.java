@@ -0,0 +1,193 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+    /**
+     * A HashDistinct returns the first of equal tuples in the order of its
+     * child while its table fits in memory, and every distinct tuple once
+     * when it spills.
+     */
+    @Test public void hashDistinct() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 30000, 100, null, rows, "c");
+        List<List<Integer>> expected = new ArrayList<>(new LinkedHashSet<>(rows));
+        assertTrue(expected.size() < rows.size());
+        TupleDesc td = Utility.getTupleDesc(2);
+
+        HashDistinct d = new HashDistinct(new TupleIterator(td, TestUtil.tuples(rows)));
+        d.open();
+        assertEquals(expected, TestUtil.drain(d));
+        assertEquals(0, d.getSpilledPartitions());
+        d.rewind();
+        assertEquals(expected, TestUtil.drain(d));
+        d.close();
+
+        // 预算很小时溢出，较大的分区排序后去重
+        d = new HashDistinct(new TupleIterator(td, TestUtil.tuples(rows)), 3);
+        d.open();
+        List<List<Integer>> spilled = TestUtil.drain(d);
+        assertTrue(d.getSpilledPartitions() > 0);
+        assertTrue(d.getSortedPartitions() > 0);
+        assertEquals(expected.size(), spilled.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(spilled));
+        d.close();
+
+        // 单个 INT 字段用整数哈希表
+        List<Tuple> single = new ArrayList<>();
+        Set<Integer> values = new LinkedHashSet<>();
+        for (List<Integer> row : rows) {
+            single.add(Utility.getHeapTuple(row.get(0)));
+            values.add(row.get(0));
+        }
+        d = new HashDistinct(new TupleIterator(Utility.getTupleDesc(1), single));
+        d.open();
+        List<Integer> result = new ArrayList<>();
+        for (List<Integer> t : TestUtil.drain(d))
+            result.add(t.get(0));
+        assertEquals(new ArrayList<>(values), result);
+        d.close();
+    }
+
+    /**
+     * A SortDistinct over input sorted on one field removes duplicates that
+     * are not adjacent, and keeps the order of the input.
+     */
+    @Test public void sortDistinct() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 5000, 30, null, rows, "c");
+        Set<List<Integer>> expected = new HashSet<>(rows);
+        TupleDesc td = Utility.getTupleDesc(2);
+
+        SortDistinct d = new SortDistinct(new OrderBy(1, false, new TupleIterator(td, TestUtil.tuples(rows))), 1);
+        d.open();
+        List<List<Integer>> result = TestUtil.drain(d);
+        d.close();
+        assertEquals(expected.size(), result.size());
+        assertEquals(expected, new HashSet<>(result));
+        for (int i = 1; i < result.size(); i++)
+            assertTrue(result.get(i - 1).get(1) >= result.get(i).get(1));
+    }
+
+    /**
+     * A SortDistinct whose runs do not fit in its budget spills their other
+     * tuples and deduplicates them by hashing or, if they do not fit either,
+     * by sorting them on the next field; the output is still sorted.
+     */
+    @Test public void sortDistinctSpills() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        Random r = new Random(7);
+        for (int i = 0; i < 20000; i++)
+            rows.add(Arrays.asList(r.nextInt(3), r.nextInt(5000)));
+        Set<List<Integer>> expected = new HashSet<>(rows);
+        TupleDesc td = Utility.getTupleDesc(2);
+
+        for (int pages : new int[]{SortDistinct.MIN_MEMORY_PAGES, 5}) {
+            SortDistinct d = new SortDistinct(new OrderBy(0, true, new TupleIterator(td, TestUtil.tuples(rows))),
+                    0, pages);
+            d.open();
+            List<List<Integer>> result = TestUtil.drain(d);
+            assertEquals(expected.size(), result.size());
+            assertEquals(expected, new HashSet<>(result));
+            for (int i = 1; i < result.size(); i++)
+                assertTrue(result.get(i - 1).get(0) <= result.get(i).get(0));
+            assertEquals(3, d.getSpilledRuns());
+            d.rewind();
+            assertEquals(result, TestUtil.drain(d));
+            d.close();
+        }
+    }
+
+    /**
+     * The planner deduplicates with a hash table when the distinct values
+     * fit in memory, reuses the order of a B+ tree scan, and counts distinct
+     * values per group.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, 20, null, rows, "c");
+        HeapFile named = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(named, "dist");
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 50, null, new ArrayList<>(), 0);
+        BTreeFile btree = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(btree, "distb");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("dist", new TableStats(named.getId(), 10));
+        stats.put("distb", new TableStats(btree.getId(), 10));
+        TransactionId tid = new TransactionId();
+        Parser parser = new Parser();
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT DISTINCT d.c1 FROM dist d ORDER BY d.c1 DESC;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, HashDistinct.class));
+        TreeSet<Integer> values = new TreeSet<>();
+        for (List<Integer> row : rows)
+            values.add(row.get(1));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int v : values.descendingSet())
+            expected.add(Collections.singletonList(v));
+        plan.open();
+        assertEquals(expected, TestUtil.drain(plan));
+        plan.close();
+
+        lp = parser.generateLogicalPlan(tid, "SELECT DISTINCT b.c0 FROM distb b;");
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, SortDistinct.class));
+        assertFalse(TestUtil.containsOperator(plan, OrderBy.class));
+        plan.open();
+        List<List<Integer>> keys = TestUtil.drain(plan);
+        plan.close();
+        assertEquals(new HashSet<>(keys).size(), keys.size());
+        for (int i = 1; i < keys.size(); i++)
+            assertTrue(keys.get(i - 1).get(0) < keys.get(i).get(0));
+
+        lp = parser.generateLogicalPlan(tid,
+                "SELECT d.c0, COUNT(DISTINCT d.c1) FROM dist d GROUP BY d.c0;");
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, HashDistinct.class));
+        Map<Integer, Set<Integer>> groups = new HashMap<>();
+        for (List<Integer> row : rows)
+            groups.computeIfAbsent(row.get(0), k -> new HashSet<>()).add(row.get(1));
+        List<List<Integer>> counts = new ArrayList<>();
+        for (Map.Entry<Integer, Set<Integer>> e : groups.entrySet())
+            counts.add(Arrays.asList(e.getKey(), e.getValue().size()));
+        counts.sort(Comparator.comparing(Object::toString));
+        plan.open();
+        List<List<Integer>> result = TestUtil.drain(plan);
+        plan.close();
+        result.sort(Comparator.comparing(Object::toString));
+        assertEquals(counts, result);
+
+        try {
+            parser.generateLogicalPlan(tid, "SELECT COUNT(DISTINCT d.c1), SUM(d.c0) FROM dist d;");
+            fail("expected DISTINCT and other aggregates to be rejected");
+        } catch (ParsingException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DistinctTest.class);
+    }
+}
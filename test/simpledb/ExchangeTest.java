@@ -0,0 +1,255 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    /**
+     * A child that counts the batches read from it, and fails with the given
+     * exception once it has returned some batches.
+     */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        final AtomicInteger batches = new AtomicInteger();
+        volatile boolean closed = false;
+        private final Exception failure;
+
+        CountingIterator(int numTuples, Exception failure) {
+            super(Utility.getTupleDesc(1), tuples(numTuples));
+            this.failure = failure;
+        }
+
+        private static List<Tuple> tuples(int n) {
+            List<Tuple> tuples = new ArrayList<>();
+            for (int i = 0; i < n; i++)
+                tuples.add(Utility.getHeapTuple(i));
+            return tuples;
+        }
+
+        @Override
+        public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+            if (failure != null && batches.get() == 3) {
+                if (failure instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) failure;
+                throw (DbException) failure;
+            }
+            TupleBatch b = super.nextBatch();
+            if (b != null)
+                batches.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            closed = true;
+        }
+    }
+
+    /**
+     * An Exchange returns the tuples of its child in the same order, a tuple
+     * or a batch at a time, and again after a rewind.
+     */
+    @Test public void keepsOrderOfChild() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, new ArrayList<>(), "c");
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(600));
+        OpIterator serial = new Filter(p, new SeqScan(tid, f.getId(), "t"));
+        serial.open();
+        List<List<Integer>> expected = TestUtil.drain(serial);
+        serial.close();
+
+        Exchange x = new Exchange(new Filter(p, new SeqScan(tid, f.getId(), "t")), 1);
+        assertEquals(serial.getTupleDesc(), x.getTupleDesc());
+        x.open();
+        assertEquals(expected, TestUtil.drain(x));
+        x.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = x.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++)
+                batched.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+        }
+        assertEquals(expected, batched);
+        x.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The child runs at most a few batches ahead of a reader that does not
+     * read, and closing the Exchange stops and closes the child.
+     */
+    @Test public void backpressureAndClose() throws Exception {
+        CountingIterator child = new CountingIterator(100 * TupleBatch.DEFAULT_CAPACITY, null);
+        Exchange x = new Exchange(child, 2);
+        x.open();
+        assertEquals(Collections.singletonList(0), SystemTestUtil.tupleToList(x.next()));
+        Thread.sleep(200);
+        // 队列里最多 capacity 个批和结束标记的位置，生产者手中还有一个
+        assertTrue(child.batches.get() <= 2 + 1 + 1 + 1);
+        x.close();
+        assertTrue(child.closed);
+        int read = child.batches.get();
+        Thread.sleep(50);
+        assertEquals(read, child.batches.get());
+
+        x.open();
+        assertEquals(100 * TupleBatch.DEFAULT_CAPACITY, TestUtil.drain(x).size());
+        x.close();
+    }
+
+    /**
+     * An exception of the child is thrown by the reader of the Exchange,
+     * also when the child is aborted waiting for a lock.
+     */
+    @Test public void passesOnExceptions() throws Exception {
+        Exchange x = new Exchange(new CountingIterator(10 * TupleBatch.DEFAULT_CAPACITY,
+                new TransactionAbortedException()));
+        x.open();
+        try {
+            TestUtil.drain(x);
+            fail("expected the exchange to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        x.close();
+
+        x = new Exchange(new CountingIterator(10 * TupleBatch.DEFAULT_CAPACITY, new DbException("broken")));
+        x.open();
+        try {
+            TestUtil.drain(x);
+            fail("expected the exchange to fail");
+        } catch (DbException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        x.close();
+
+        // 另一个事务持有第一页的写锁
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 1000, null, new ArrayList<>(), "c");
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().getPage(writer, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        TransactionId reader = new TransactionId();
+        x = new Exchange(new SeqScan(reader, f.getId(), "t"));
+        x.open();
+        try {
+            TestUtil.drain(x);
+            fail("expected the exchange to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        x.close();
+        Database.getBufferPool().transactionComplete(reader, false);
+        Database.getBufferPool().transactionComplete(writer);
+    }
+
+    /**
+     * The planner puts the scans and the inputs of joins under Exchanges.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rowsA = new ArrayList<>();
+        List<List<Integer>> rowsB = new ArrayList<>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, rowsA, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, rowsB, "c");
+        HeapFile namedA = new HeapFile(a.getFile(), a.getTupleDesc());
+        HeapFile namedB = new HeapFile(b.getFile(), b.getTupleDesc());
+        Database.getCatalog().addTable(namedA, "xa");
+        Database.getCatalog().addTable(namedB, "xb");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("xa", new TableStats(namedA.getId(), 10));
+        stats.put("xb", new TableStats(namedB.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(namedA.getId(), "a");
+        lp.addScan(namedB.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+        lp.addFilter("b.c1", Predicate.Op.GREATER_THAN, "100");
+        lp.addProjectField("a.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, Exchange.class));
+
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> ra : rowsA) {
+            for (List<Integer> rb : rowsB) {
+                if (ra.get(0).equals(rb.get(0)) && rb.get(1) > 100)
+                    expected.add(ra.get(1));
+            }
+        }
+        List<Integer> actual = new ArrayList<>();
+        plan.open();
+        for (List<Integer> t : TestUtil.drain(plan))
+            actual.add(t.get(0));
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples read through an Exchange keep their RecordIds, so a Delete over
+     * an Exchange, and a DELETE statement, whose scan the planner puts under
+     * an Exchange, remove the right tuples.
+     */
+    @Test public void delete() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, rows, "c");
+        TransactionId tid = new TransactionId();
+        Delete delete = new Delete(tid, new Exchange(new SeqScan(tid, f.getId(), "t")));
+        delete.open();
+        assertEquals(rows.size(), ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        scan.open();
+        assertFalse(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        rows.clear();
+        HeapFile g = SystemTestUtil.createRandomHeapFile(2, 100, 50, null, rows, "c");
+        HeapFile named = new HeapFile(g.getFile(), g.getTupleDesc());
+        Database.getCatalog().addTable(named, "xdel");
+        TableStats.setTableStats("xdel", new TableStats(named.getId(), 10));
+        new Parser().processNextStatement("DELETE FROM xdel WHERE xdel.c0 < 25;");
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> r : rows) {
+            if (r.get(0) >= 25)
+                expected.add(r);
+        }
+        assertTrue(expected.size() < rows.size());
+        tid = new TransactionId();
+        scan = new SeqScan(tid, named.getId(), "t");
+        scan.open();
+        assertEquals(expected, TestUtil.drain(scan));
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
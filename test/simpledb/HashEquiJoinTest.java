@@ -0,0 +1,114 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private static final int MEMORY_PAGES = 3;
+
+    private final TupleDesc td = Utility.getTupleDesc(2);
+
+    /**
+     * Counts the tuples pulled from it.
+     */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int pulled = 0;
+
+        CountingIterator(TupleDesc td, List<Tuple> tuples) {
+            super(td, tuples);
+        }
+
+        @Override
+        public Tuple next() {
+            pulled++;
+            return super.next();
+        }
+    }
+
+    private List<Tuple> randomTuples(int n, int keys, long seed) {
+        Random r = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            tuples.add(Utility.getHeapTuple(new int[]{r.nextInt(keys), i}));
+        return tuples;
+    }
+
+    private List<List<Integer>> nestedLoops(List<Tuple> build, List<Tuple> probe) throws Exception {
+        Join join = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, build), new TupleIterator(td, probe));
+        join.open();
+        List<List<Integer>> result = TestUtil.sortedResult(join);
+        join.close();
+        return result;
+    }
+
+    /**
+     * A build side of many times the budget is partitioned to disk; the join
+     * returns the same tuples as a nested loops join and reads the probe side
+     * exactly once.
+     */
+    @Test public void spillsPartitions() throws Exception {
+        int perPage = HeapPage.getNumTuples(td);
+        List<Tuple> build = randomTuples(10 * MEMORY_PAGES * perPage, 5000, 1);
+        List<Tuple> probe = randomTuples(4000, 5000, 2);
+        CountingIterator probeIt = new CountingIterator(td, probe);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, build), probeIt, MEMORY_PAGES);
+        join.open();
+        List<List<Integer>> expected = nestedLoops(build, probe);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, TestUtil.sortedResult(join));
+        assertTrue(join.getSpilledPartitions() > 0);
+        assertEquals(probe.size(), probeIt.pulled);
+
+        join.rewind();
+        assertEquals(expected, TestUtil.sortedResult(join));
+        join.close();
+    }
+
+    /**
+     * A spilled partition that does not fit in the budget, here a single key,
+     * is joined in chunks.
+     */
+    @Test public void skewedKey() throws Exception {
+        int perPage = HeapPage.getNumTuples(td);
+        List<Tuple> build = randomTuples(3 * MEMORY_PAGES * perPage, 1, 3);
+        List<Tuple> probe = randomTuples(20, 2, 4);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, build), new TupleIterator(td, probe), MEMORY_PAGES);
+        join.open();
+        assertEquals(nestedLoops(build, probe), TestUtil.sortedResult(join));
+        assertEquals(1, join.getSpilledPartitions());
+        join.close();
+    }
+
+    /**
+     * A build side within the budget is joined in memory.
+     */
+    @Test public void inMemory() throws Exception {
+        List<Tuple> build = randomTuples(200, 50, 5);
+        List<Tuple> probe = randomTuples(300, 50, 6);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, build), new TupleIterator(td, probe), MEMORY_PAGES);
+        join.open();
+        assertEquals(nestedLoops(build, probe), TestUtil.sortedResult(join));
+        assertEquals(0, join.getSpilledPartitions());
+        join.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.HashIndexFile;
+import simpledb.index.HashIndexScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HashIndexFileTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private HashIndexFile hf;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.deleteOnExit();
+        hf = new HashIndexFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<List<Integer>> lookup(int key) throws Exception {
+        HashIndexScan scan = new HashIndexScan(tid, hf.getId(),
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        List<List<Integer>> result = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext())
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        return result;
+    }
+
+    /**
+     * Enough tuples to split buckets and double the directory several times.
+     */
+    @Test public void insertSplitsAndLookup() throws Exception {
+        Map<Integer, List<List<Integer>>> expected = new HashMap<>();
+        Random rand = new Random(7);
+        for (int i = 0; i < 4000; i++) {
+            int key = rand.nextInt(1000);
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{key, i}));
+            expected.computeIfAbsent(key, k -> new ArrayList<>()).add(Arrays.asList(key, i));
+        }
+        assertTrue(hf.numPages() > 3);
+        for (int key = 0; key < 1000; key++) {
+            List<List<Integer>> actual = lookup(key);
+            List<List<Integer>> exp = expected.getOrDefault(key, Collections.emptyList());
+            assertEquals(exp.size(), actual.size());
+            assertTrue(actual.containsAll(exp));
+        }
+
+        // the full scan sees every tuple exactly once
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(4000, count);
+    }
+
+    /**
+     * Duplicate keys that can not be separated by splitting go to overflow pages.
+     */
+    @Test public void duplicatesOverflow() throws Exception {
+        for (int i = 0; i < 1500; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{42, i}));
+        }
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{43, 0}));
+        assertEquals(1500, lookup(42).size());
+        assertEquals(1, lookup(43).size());
+        // the directory and at most a couple of buckets besides the overflow chain
+        assertTrue(hf.numPages() < 10);
+    }
+
+    @Test public void deleteTuple() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{i, i}));
+        }
+        HashIndexScan scan = new HashIndexScan(tid, hf.getId(),
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(5)));
+        scan.open();
+        Tuple t = scan.next();
+        scan.close();
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertTrue(lookup(5).isEmpty());
+        assertEquals(1, lookup(6).size());
+    }
+
+    @Test public void onlyEquality() throws Exception {
+        HashIndexScan scan = new HashIndexScan(tid, hf.getId(),
+                new IndexPredicate(Predicate.Op.GREATER_THAN, new IntField(5)));
+        try {
+            scan.open();
+            fail("expected DbException");
+        } catch (simpledb.common.DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashIndexFileTest.class);
+    }
+}
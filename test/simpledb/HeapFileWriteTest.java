@@ -12,7 +12,10 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +93,45 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples() and HeapFile.deleteTuples()
+     */
+    @Test public void addAndDeleteTuples() throws Exception {
+        // 1000 tuples fill the first page and most of a second one; each
+        // modified page is returned once and is already dirty
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        List<Page> pages = empty.insertTuples(tid, tuples);
+        assertEquals(2, pages.size());
+        assertEquals(2, empty.numPages());
+        for (Page p : pages)
+            assertEquals(tid, p.isDirty());
+        assertEquals(0, ((HeapPage) pages.get(0)).getNumEmptySlots());
+        assertEquals(8, ((HeapPage) pages.get(1)).getNumEmptySlots());
+
+        // the next batch fills the second page before starting a third
+        List<Tuple> more = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            more.add(Utility.getHeapTuple(i, 2));
+        pages = empty.insertTuples(tid, more);
+        assertEquals(2, pages.size());
+        assertEquals(1, pages.get(0).getId().getPageNumber());
+        assertEquals(3, empty.numPages());
+
+        // deletes are grouped by page, and free slots are reused
+        List<Tuple> doomed = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 100)
+            doomed.add(tuples.get(i));
+        doomed.add(tuples.get(999));
+        pages = empty.deleteTuples(tid, doomed);
+        assertEquals(2, pages.size());
+        assertEquals(6, ((HeapPage) pages.get(0)).getNumEmptySlots());
+        assertEquals(5, ((HeapPage) pages.get(1)).getNumEmptySlots());
+        pages = empty.insertTuples(tid, Collections.singletonList(Utility.getHeapTuple(7, 2)));
+        assertEquals(0, pages.get(0).getId().getPageNumber());
+    }
+
     /**
      * JUnit suite target
      */
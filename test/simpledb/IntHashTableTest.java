@@ -0,0 +1,52 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.execution.IntHashTable;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * Keys get ids in the order they are first added, and keep them while the
+     * table grows; find does not add keys.
+     */
+    @Test public void numbersKeys() {
+        IntHashTable table = new IntHashTable(2);
+        int[] special = {0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for (int i = 0; i < special.length; i++)
+            assertEquals(i, table.add(special[i]));
+        Random r = new Random(5);
+        Map<Integer, Integer> ids = new HashMap<>();
+        for (int i = 0; i < special.length; i++)
+            ids.put(special[i], i);
+        for (int i = 0; i < 100000; i++) {
+            int key = r.nextInt(30000) * 65536;
+            Integer expected = ids.get(key);
+            int id = table.add(key);
+            if (expected == null)
+                ids.put(key, id);
+            else
+                assertEquals((int) expected, id);
+        }
+        assertEquals(ids.size(), table.size());
+        for (Map.Entry<Integer, Integer> e : ids.entrySet()) {
+            assertEquals((int) e.getValue(), table.find(e.getKey()));
+            assertEquals((int) e.getKey(), table.key(e.getValue()));
+        }
+        assertEquals(-1, table.find(12345));
+        assertEquals(ids.size(), table.size());
+        assertTrue(table.memoryBytes() >= 12L * table.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
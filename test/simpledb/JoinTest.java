@@ -13,10 +13,15 @@ import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.storage.HeapPage;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class JoinTest extends SimpleDbTestBase {
 
   final int width1 = 2;
@@ -112,6 +117,75 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for the block nested loops mode using a &gt; predicate
+   */
+  @Test public void blockGtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(11, count);
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Counts how often the inner relation is rewound.
+   */
+  private static class RewindCounter extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int rewinds = 0;
+
+    RewindCounter(TupleDesc td, List<Tuple> tuples) {
+      super(td, tuples);
+    }
+
+    @Override
+    public void rewind() {
+      rewinds++;
+      super.rewind();
+    }
+  }
+
+  /**
+   * The block mode reads the inner relation once per block of outer pages
+   * instead of once per outer tuple.
+   */
+  @Test public void blockInnerPasses() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(1);
+    int perPage = HeapPage.getNumTuples(td);
+    List<Tuple> outer = new ArrayList<>();
+    for (int i = 0; i < 3 * perPage; i++)
+      outer.add(Utility.getHeapTuple(i % 10));
+    List<Tuple> inner = new ArrayList<>();
+    for (int i = 0; i < 10; i++)
+      inner.add(Utility.getHeapTuple(i));
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+
+    RewindCounter tupleInner = new RewindCounter(td, inner);
+    Join tupleJoin = new Join(pred, new TupleIterator(td, outer), tupleInner);
+    RewindCounter blockInner = new RewindCounter(td, inner);
+    Join blockJoin = new Join(pred, new TupleIterator(td, outer), blockInner, 1);
+    for (Join op : new Join[] { tupleJoin, blockJoin }) {
+      op.open();
+      int count = 0;
+      while (op.hasNext()) {
+        op.next();
+        count++;
+      }
+      assertEquals(outer.size() * 9, count);
+      op.close();
+    }
+    assertEquals(outer.size(), tupleInner.rewinds);
+    // 三块外层元组，第一块直接用刚打开的内层
+    assertEquals(2, blockInner.rewinds);
+  }
+
   /**
    * JUnit suite target
    */
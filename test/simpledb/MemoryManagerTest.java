@@ -0,0 +1,201 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.MemoryManager;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MemoryManagerTest extends SimpleDbTestBase {
+
+    /**
+     * A reservation gets the pages that are left if there are fewer than
+     * asked for, and fails if not even the minimum is left. A query budget
+     * is given back when it is closed or its transaction completes.
+     */
+    @Test public void reserveAndRelease() throws Exception {
+        MemoryManager m = new MemoryManager(100);
+        assertEquals(60, m.reserve(60, 3));
+        assertEquals(40, m.reserve(60, 3));
+        assertEquals(100, m.getReservedPages());
+        try {
+            m.reserve(10, 3);
+            fail("expected the reservation to be rejected");
+        } catch (DbException e) {
+            // expected
+        }
+        m.release(60);
+        assertEquals(40, m.getReservedPages());
+        assertEquals(100, m.getPeakPages());
+
+        TransactionId tid = new TransactionId();
+        MemoryManager query = m.newQueryBudget(tid, 50);
+        assertEquals(50, query.getTotalPages());
+        assertEquals(40, m.getReservedPages());
+        assertEquals(20, query.reserve(20, 3));
+        assertEquals(60, m.getReservedPages());
+        assertEquals(30, query.reserve(40, 3));
+        assertEquals(90, m.getReservedPages());
+        query.release(30);
+        assertEquals(60, m.getReservedPages());
+        query.close();
+        assertEquals(40, m.getReservedPages());
+        query.close();
+        assertEquals(40, m.getReservedPages());
+
+        // 事务结束时归还没有关闭的预算
+        query = m.newQueryBudget(tid, 30);
+        query.reserve(30, 3);
+        assertEquals(70, m.getReservedPages());
+        // 查询预算有空余，但共享内存不够时也会被拒绝
+        MemoryManager other = m.newQueryBudget(null, 100);
+        try {
+            other.reserve(50, 50);
+            fail("expected the reservation to be rejected");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(0, other.getReservedPages());
+        m.releaseTransaction(tid);
+        assertEquals(40, m.getReservedPages());
+    }
+
+    /**
+     * Operators reserve their pages when they are opened and release them
+     * when they are closed; with fewer pages than their budget they spill,
+     * and with fewer than their minimum they are rejected.
+     */
+    @Test public void operatorsReserve() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 20000, 100000, null, rows, "c");
+        TupleDesc td = Utility.getTupleDesc(2);
+        List<List<Integer>> expected = new ArrayList<>(rows);
+        expected.sort(Comparator.comparing(r -> r.get(0)));
+
+        MemoryManager m = new MemoryManager(5);
+        OrderBy sort = new OrderBy(0, true, new TupleIterator(td, TestUtil.tuples(rows)));
+        sort.setMemoryManager(m);
+        sort.open();
+        assertEquals(5, sort.getGrantedPages());
+        assertEquals(5, m.getReservedPages());
+        assertTrue(sort.getRunsWritten() > 0);
+        List<List<Integer>> sorted = TestUtil.drain(sort);
+        assertEquals(expected.size(), sorted.size());
+        for (int i = 0; i < sorted.size(); i++)
+            assertEquals(expected.get(i).get(0), sorted.get(i).get(0));
+        sort.close();
+        assertEquals(0, m.getReservedPages());
+
+        // 连接和去重在同一个预算中，后打开的只得到剩下的页
+        m = new MemoryManager(8);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin join = new HashEquiJoin(p, new TupleIterator(td, TestUtil.tuples(rows)),
+                new TupleIterator(td, TestUtil.tuples(rows.subList(0, 100))));
+        HashDistinct distinct = new HashDistinct(join);
+        distinct.setMemoryPages(4);
+        distinct.setMemoryManager(m);
+        join.setMemoryManager(m);
+        distinct.open();
+        assertEquals(4, distinct.getGrantedPages());
+        assertEquals(4, join.getGrantedPages());
+        assertTrue(join.getSpilledPartitions() > 0);
+        assertFalse(TestUtil.drain(distinct).isEmpty());
+        distinct.close();
+        assertEquals(0, m.getReservedPages());
+
+        m = new MemoryManager(2);
+        sort = new OrderBy(0, true, new TupleIterator(td, TestUtil.tuples(rows)));
+        sort.setMemoryManager(m);
+        try {
+            sort.open();
+            fail("expected the sort to be rejected");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(0, m.getReservedPages());
+    }
+
+    /**
+     * The optimizer splits the budget of a query among its operators, and
+     * the operators of a query reserve their memory from the database while
+     * it runs.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rowsA = new ArrayList<>();
+        List<List<Integer>> rowsB = new ArrayList<>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, rowsA, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, rowsB, "c");
+        HeapFile namedA = new HeapFile(a.getFile(), a.getTupleDesc());
+        HeapFile namedB = new HeapFile(b.getFile(), b.getTupleDesc());
+        Database.getCatalog().addTable(namedA, "mema");
+        Database.getCatalog().addTable(namedB, "memb");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("mema", new TableStats(namedA.getId(), 10));
+        stats.put("memb", new TableStats(namedB.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.setMemoryPages(40);
+        lp.addScan(namedA.getId(), "a");
+        lp.addScan(namedB.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("a.c1", null);
+        lp.addProjectField("b.c1", null);
+        lp.addOrderBy("b.c1", false);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        List<MemoryConsumer> consumers = TestUtil.findOperators(plan, MemoryConsumer.class);
+        assertTrue(consumers.size() >= 2);
+        int planned = 0;
+        for (MemoryConsumer c : consumers)
+            planned += c.getMemoryPages();
+        assertTrue(planned <= 40);
+
+        int expected = 0;
+        for (List<Integer> ra : rowsA) {
+            for (List<Integer> rb : rowsB) {
+                if (ra.get(0).equals(rb.get(0)))
+                    expected++;
+            }
+        }
+        MemoryManager db = Database.getMemoryManager();
+        int before = db.getReservedPages();
+        Query q = new Query(plan, tid);
+        q.setLogicalPlan(lp);
+        q.start();
+        assertTrue(db.getReservedPages() > before);
+        assertTrue(db.getReservedPages() <= before + 40);
+        int count = 0;
+        Integer last = null;
+        while (q.hasNext()) {
+            int v = q.next().getField(1).hashCode();
+            assertTrue(last == null || last >= v);
+            last = v;
+            count++;
+        }
+        assertTrue(q.getMemoryManager().getPeakPages() > 0);
+        assertTrue(q.getMemoryManager().getPeakPages() <= 40);
+        q.close();
+        assertEquals(expected, count);
+        assertEquals(before, db.getReservedPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MemoryManagerTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MetadataAggregateTest extends SimpleDbTestBase {
+
+    private static List<List<Integer>> run(OpIterator plan) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        return result;
+    }
+
+    private static Map<String, TableStats> register(DbFile f, String name) {
+        Database.getCatalog().addTable(f, name);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(f.getId(), 10));
+        return stats;
+    }
+
+    /**
+     * COUNT(*) and COUNT of a field over a whole heap table are counted from
+     * the page headers, which include the deletes of the running transaction;
+     * a WHERE clause still needs a scan.
+     */
+    @Test public void countFromPageHeaders() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, rows, "c");
+        HeapFile named = new HeapFile(f.getFile(), f.getTupleDesc());
+        TransactionId tid = new TransactionId();
+        assertEquals(rows.size(), named.countTuples(tid));
+        // 不在缓冲池中的页只读页头：加了共享锁，但没有解码、缓存
+        HeapPageId first = new HeapPageId(named.getId(), 0);
+        assertTrue(Database.getBufferPool().holdsLock(tid, first));
+        assertNull(Database.getBufferPool().getCachedPage(tid, first, Permissions.READ_ONLY));
+
+        // 删除一部分元组，计数来自缓冲池中的页
+        DbFileIterator it = named.iterator(tid);
+        it.open();
+        List<Tuple> doomed = new ArrayList<>();
+        List<List<Integer>> kept = new ArrayList<>();
+        for (int i = 0; it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 7 == 0)
+                doomed.add(t);
+            else
+                kept.add(SystemTestUtil.tupleToList(t));
+        }
+        it.close();
+        Database.getBufferPool().deleteTuples(tid, doomed);
+        int expected = rows.size() - doomed.size();
+        assertEquals(expected, named.countTuples(tid));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Map<String, TableStats> stats = register(named, "metacount");
+        tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "m");
+        lp.addProjectField("*", "count");
+        lp.addProjectField("m.c1", "count");
+        lp.addAggregate("count", "*", null);
+        lp.addAggregate("count", "m.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof MetadataAggregate);
+        assertEquals(Collections.singletonList(Arrays.asList(expected, expected)), run(plan));
+
+        int filtered = 0;
+        for (List<Integer> row : kept) {
+            if (row.get(0) < 50)
+                filtered++;
+        }
+        lp = new LogicalPlan();
+        lp.addScan(named.getId(), "m");
+        lp.addFilter("m.c0", Predicate.Op.LESS_THAN, "50");
+        lp.addProjectField("*", "count");
+        lp.addAggregate("count", "*", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+        assertEquals(Collections.singletonList(Collections.singletonList(filtered)), run(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * MIN and MAX of the key of a B+ tree are read from its left-most and
+     * right-most leaves; MIN of another field still needs a scan.
+     */
+    @Test public void keyBoundsFromLeaves() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 10000, null, rows, 0);
+        BTreeFile named = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Map<String, TableStats> stats = register(named, "metabounds");
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (List<Integer> row : rows) {
+            min = Math.min(min, row.get(0));
+            max = Math.max(max, row.get(0));
+        }
+        TransactionId tid = new TransactionId();
+        assertEquals(new IntField(min), named.minKey(tid));
+        assertEquals(new IntField(max), named.maxKey(tid));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "b");
+        lp.addProjectField("b.c0", "max");
+        lp.addProjectField("b.c0", "min");
+        lp.addAggregate("max", "b.c0", null);
+        lp.addAggregate("min", "b.c0", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof MetadataAggregate);
+        assertEquals(Collections.singletonList(Arrays.asList(max, min)), run(plan));
+
+        lp = new LogicalPlan();
+        lp.addScan(named.getId(), "b");
+        lp.addProjectField("b.c1", "min");
+        lp.addAggregate("min", "b.c1", null);
+        assertTrue(((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0] instanceof Aggregate);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // 空表没有结果
+        BTreeFile empty = BTreeUtility.createRandomBTreeFile(2, 0, 10, null, new ArrayList<>(), 0);
+        tid = new TransactionId();
+        assertNull(empty.minKey(tid));
+        OpIterator agg = new MetadataAggregate(tid, empty.getId(), "e", new int[]{0},
+                new Aggregator.Op[]{Aggregator.Op.MAX});
+        assertTrue(run(agg).isEmpty());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MetadataAggregateTest.class);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MultiAggregateTest extends SimpleDbTestBase {
+
+    private static final int[] AFIELDS = {2, 2, 2, 2, 1};
+    private static final Aggregator.Op[] AOPS = {Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.MIN, Aggregator.Op.AVG, Aggregator.Op.MAX};
+
+    /**
+     * @return for each group of (c0, c1), the group followed by COUNT(c2),
+     *         SUM(c2), MIN(c2), AVG(c2) and MAX(c1)
+     */
+    private static List<List<Integer>> expected(List<List<Integer>> rows) {
+        Map<List<Integer>, List<Integer>> groups = new HashMap<>();
+        for (List<Integer> row : rows)
+            groups.computeIfAbsent(row.subList(0, 2), g -> new ArrayList<>()).add(row.get(2));
+        List<List<Integer>> result = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<Integer>> e : groups.entrySet()) {
+            List<Integer> values = e.getValue();
+            long sum = 0;
+            for (int v : values)
+                sum += v;
+            List<Integer> t = new ArrayList<>(e.getKey());
+            t.add(values.size());
+            t.add((int) sum);
+            t.add(Collections.min(values));
+            t.add((int) (sum / values.size()));
+            t.add(e.getKey().get(1));
+            result.add(t);
+        }
+        result.sort(Comparator.comparing(Object::toString));
+        return result;
+    }
+
+    /**
+     * Several aggregates grouped by two fields are computed in one pass, the
+     * same a tuple and a batch at a time, in memory, spilled to disk and
+     * sorted, and over a parallel scan.
+     */
+    @Test public void groupsByTwoFields() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 100, null, rows, "c");
+        for (List<Integer> row : rows) {
+            row.set(0, row.get(0) % 40);
+            row.set(1, row.get(1) % 50);
+        }
+        List<List<Integer>> expected = expected(rows);
+        TupleDesc td = Utility.getTupleDesc(3);
+        int[] gfields = {0, 1};
+
+        Aggregate agg = new Aggregate(new TupleIterator(td, TestUtil.tuples(rows)), AFIELDS, AOPS, gfields);
+        assertEquals(7, agg.getTupleDesc().numFields());
+        assertArrayEquals(gfields, agg.getGroupFields());
+        agg.open();
+        assertEquals(expected, TestUtil.sortedResult(agg));
+        assertEquals(0, agg.getSpilledPartitions());
+        agg.rewind();
+        assertEquals(expected, TestUtil.sortedResult(agg));
+        agg.close();
+
+        MultiAggregator tupleAtATime = new MultiAggregator(gfields, new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                AFIELDS, new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE}, AOPS);
+        for (Tuple t : TestUtil.tuples(rows))
+            tupleAtATime.mergeTupleIntoGroup(t);
+        OpIterator it = tupleAtATime.iterator();
+        it.open();
+        assertEquals(expected, TestUtil.sortedResult(it));
+
+        // 预算很小时，溢出的分区按第一个分组列排序后逐段聚合
+        agg = new Aggregate(new TupleIterator(td, TestUtil.tuples(rows)), AFIELDS, AOPS, gfields, 3);
+        agg.open();
+        assertEquals(expected, TestUtil.sortedResult(agg));
+        assertTrue(agg.getSortedPartitions() > 0);
+        agg.close();
+
+        // 原始表上的并行聚合，分组值取自表中的原值
+        TransactionId tid = new TransactionId();
+        Aggregate serial = new Aggregate(new SeqScan(tid, f.getId(), "t"), AFIELDS, AOPS, gfields);
+        serial.open();
+        List<List<Integer>> serialResult = TestUtil.sortedResult(serial);
+        serial.close();
+        Aggregate parallel = new Aggregate(new ParallelSeqScan(tid, f.getId(), "t",
+                Collections.emptyList(), null, 4), AFIELDS, AOPS, gfields);
+        parallel.open();
+        assertEquals(serialResult, TestUtil.sortedResult(parallel));
+        parallel.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner computes every aggregate of the select list, grouped by
+     * every GROUP BY field, with a single Aggregate.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, 5, null, rows, "c");
+        HeapFile named = new HeapFile(f.getFile(), f.getTupleDesc());
+        Database.getCatalog().addTable(named, "multiagg");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("multiagg", new TableStats(named.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "m");
+        lp.addGroupBy("m.c1");
+        lp.addGroupBy("m.c0");
+        lp.addProjectField("m.c0", null);
+        lp.addProjectField("m.c2", "max");
+        lp.addProjectField("m.c1", null);
+        lp.addProjectField("m.c2", "count");
+        lp.addAggregate("max", "m.c2", null);
+        lp.addAggregate("count", "m.c2", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        Map<List<Integer>, int[]> groups = new HashMap<>();
+        for (List<Integer> row : rows) {
+            int[] g = groups.computeIfAbsent(Arrays.asList(row.get(0), row.get(1)),
+                    k -> new int[]{Integer.MIN_VALUE, 0});
+            g[0] = Math.max(g[0], row.get(2));
+            g[1]++;
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<List<Integer>, int[]> e : groups.entrySet())
+            expected.add(Arrays.asList(e.getKey().get(0), e.getValue()[0], e.getKey().get(1), e.getValue()[1]));
+        expected.sort(Comparator.comparing(Object::toString));
+
+        plan.open();
+        assertEquals(expected, TestUtil.sortedResult(plan));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiAggregateTest.class);
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int MEMORY_PAGES = 3;
+
+    private TupleDesc td;
+    private List<Tuple> tuples;
+
+    /**
+     * 20 times as many tuples as fit in the memory budget, with many duplicate
+     * keys; the second field records the input position.
+     */
+    @Before public void setUp() {
+        td = Utility.getTupleDesc(2);
+        int n = 20 * MEMORY_PAGES * HeapPage.getNumTuples(td);
+        Random r = new Random(7);
+        tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            tuples.add(Utility.getHeapTuple(new int[]{r.nextInt(n / 10) - n / 20, i}));
+    }
+
+    private static List<int[]> drain(OpIterator it) throws Exception {
+        List<int[]> result = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            result.add(new int[]{((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue()});
+        }
+        return result;
+    }
+
+    private void checkSorted(List<int[]> result, boolean asc) {
+        assertEquals(tuples.size(), result.size());
+        boolean[] seen = new boolean[tuples.size()];
+        for (int i = 0; i < result.size(); i++) {
+            int[] t = result.get(i);
+            assertFalse(seen[t[1]]);
+            seen[t[1]] = true;
+            assertEquals(((IntField) tuples.get(t[1]).getField(0)).getValue(), t[0]);
+            if (i > 0) {
+                int[] prev = result.get(i - 1);
+                assertTrue(asc ? prev[0] <= t[0] : prev[0] >= t[0]);
+                // 排序是稳定的
+                if (prev[0] == t[0])
+                    assertTrue(prev[1] < t[1]);
+            }
+        }
+    }
+
+    /**
+     * A sort of 20 times the memory budget spills runs, merges them in several
+     * passes, and returns every tuple in a stable order.
+     */
+    @Test public void externalSort() throws Exception {
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy op = new OrderBy(0, asc, new TupleIterator(td, tuples), MEMORY_PAGES);
+            op.open();
+            checkSorted(drain(op), asc);
+            // 20 个初始段，每趟最多归并 2 个
+            assertTrue(op.getRunsWritten() > 20);
+            op.rewind();
+            checkSorted(drain(op), asc);
+            op.close();
+        }
+    }
+
+    /**
+     * A child that fits in the budget is sorted in memory.
+     */
+    @Test public void inMemorySort() throws Exception {
+        tuples = tuples.subList(0, HeapPage.getNumTuples(td));
+        OrderBy op = new OrderBy(0, true, new TupleIterator(td, tuples), MEMORY_PAGES);
+        op.open();
+        checkSorted(drain(op), true);
+        assertEquals(0, op.getRunsWritten());
+        op.close();
+
+        // 重新打开不会重复返回元组
+        op.open();
+        checkSorted(drain(op), true);
+        op.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetTooSmall() {
+        new OrderBy(0, true, new TupleIterator(td, tuples), 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
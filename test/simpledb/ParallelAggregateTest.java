@@ -0,0 +1,181 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+    /**
+     * Every aggregate over a parallel scan, grouped by a column with many
+     * distinct values or not grouped, equals the serial aggregate.
+     */
+    @Test public void matchesSerial() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, 20000, null, new ArrayList<>(), "c");
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(1000));
+        Aggregator.Op[] ops = {Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT};
+        for (Aggregator.Op op : ops) {
+            for (int gfield : new int[]{0, Aggregator.NO_GROUPING}) {
+                Aggregate serial = new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "t")), 1, gfield, op);
+                serial.open();
+                List<List<Integer>> expected = TestUtil.sortedResult(serial);
+                serial.close();
+                assertFalse(expected.isEmpty());
+
+                ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t",
+                        Collections.singletonList(p), null, 4);
+                Aggregate parallel = new Aggregate(scan, 1, gfield, op);
+                assertEquals(serial.getTupleDesc(), parallel.getTupleDesc());
+                parallel.open();
+                assertEquals(op + " " + gfield, expected, TestUtil.sortedResult(parallel));
+                parallel.close();
+            }
+        }
+    }
+
+    /**
+     * When a worker finds more groups than its share of the budget, the
+     * aggregate over a parallel scan spills like a serial one and still gives
+     * the same groups, also after a rewind.
+     */
+    @Test public void spillsOverBudget() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, 20000, null, new ArrayList<>(), "c");
+        TransactionId tid = new TransactionId();
+        Aggregate serial = new Aggregate(new SeqScan(tid, f.getId(), "t"), 1, 0, Aggregator.Op.AVG);
+        serial.open();
+        List<List<Integer>> expected = TestUtil.sortedResult(serial);
+        serial.close();
+
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", new ArrayList<>(), null, 4);
+        Aggregate parallel = new Aggregate(scan, 1, 0, Aggregator.Op.AVG, Aggregate.MIN_MEMORY_PAGES);
+        parallel.open();
+        assertEquals(expected, TestUtil.sortedResult(parallel));
+        assertTrue(parallel.getSpilledPartitions() > 0);
+        parallel.rewind();
+        assertEquals(expected, TestUtil.sortedResult(parallel));
+        parallel.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A GROUP BY over a large heap file, planned over a parallel scan where
+     * there are several cores, keeps to the memory budget of the query.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40000, 20000, null, rows, "c");
+        HeapFile named = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(named, "pagg");
+        assertTrue(named.numPages() >= ParallelSeqScan.MIN_PAGES);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("pagg", new TableStats(named.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "p");
+        lp.addGroupBy("p.c0");
+        lp.addProjectField("p.c0", null);
+        lp.addProjectField("p.c1", "count");
+        lp.addAggregate("count", "p.c1", null);
+        lp.setMemoryPages(8);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(ParallelSeqScan.DEFAULT_PARALLELISM > 1, TestUtil.containsOperator(plan, ParallelSeqScan.class));
+        List<Aggregate> aggs = TestUtil.findOperators(plan, Aggregate.class);
+        assertEquals(1, aggs.size());
+
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (List<Integer> r : rows)
+            counts.merge(r.get(0), 1, Integer::sum);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet())
+            expected.add(Arrays.asList(e.getKey(), e.getValue()));
+
+        plan.open();
+        assertEquals(TestUtil.sorted(expected), TestUtil.sortedResult(plan));
+        assertTrue(aggs.get(0).getSpilledPartitions() > 0);
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Partial aggregates split into parts and merged part by part give the
+     * same groups as one aggregate over all tuples; AVG is exact.
+     */
+    @Test public void partitionAndMerge() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        Random r = new Random(3);
+        int big = 1 << 25;
+        IntegerAggregator all = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+        IntegerAggregator[] partials = new IntegerAggregator[3];
+        for (int i = 0; i < partials.length; i++)
+            partials[i] = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+        for (int i = 0; i < 3000; i++) {
+            Tuple t = Utility.getHeapTuple(new int[]{r.nextInt(100), big + r.nextInt(7)});
+            all.mergeTupleIntoGroup(t);
+            partials[i % partials.length].mergeTupleIntoGroup(t);
+        }
+        Aggregator[][] parts = new Aggregator[partials.length][];
+        for (int i = 0; i < partials.length; i++)
+            parts[i] = partials[i].partition(4);
+        List<List<Integer>> merged = new ArrayList<>();
+        for (int part = 0; part < 4; part++) {
+            Aggregator m = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+            for (Aggregator[] split : parts)
+                m.merge(split[part]);
+            OpIterator it = m.iterator();
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertEquals(part, Aggregator.partitionOf(t.getField(0), 4));
+                merged.add(SystemTestUtil.tupleToList(t));
+            }
+            it.close();
+        }
+        merged.sort(Comparator.comparing(Object::toString));
+        OpIterator allIt = all.iterator();
+        allIt.open();
+        List<List<Integer>> expected = TestUtil.sortedResult(allIt);
+        allIt.close();
+        assertEquals(expected, merged);
+        for (List<Integer> group : expected) {
+            assertTrue(group.get(1) >= big);
+            assertTrue(group.get(1) < big + 7);
+        }
+
+        StringAggregator counts = new StringAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.COUNT);
+        StringAggregator other = new StringAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.COUNT);
+        TupleDesc std = new TupleDesc(new Type[]{Type.STRING_TYPE});
+        for (int i = 0; i < 5; i++) {
+            Tuple t = new Tuple(std);
+            t.setField(0, new StringField("s" + i, Type.STRING_LEN));
+            (i < 2 ? counts : other).mergeTupleIntoGroup(t);
+        }
+        counts.merge(other.partition(2)[0]);
+        OpIterator countsIt = counts.iterator();
+        countsIt.open();
+        assertEquals(Collections.singletonList(Collections.singletonList(5)), TestUtil.sortedResult(countsIt));
+        countsIt.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
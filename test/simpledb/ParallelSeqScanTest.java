@@ -0,0 +1,173 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+    /**
+     * A parallel scan with pushed-down predicates and projection returns the
+     * same tuples as a SeqScan under Filters and a Project, also after a
+     * rewind and when it is read a batch at a time; the scanning transaction
+     * holds a shared lock on every page.
+     */
+    @Test public void matchesSeqScan() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 30000, 1000, null, rows, "c");
+        assertTrue(f.numPages() > 4 * ParallelSeqScan.PAGES_PER_RANGE);
+        TransactionId tid = new TransactionId();
+        Predicate p1 = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(200));
+        Predicate p2 = new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(700));
+
+        OpIterator serial = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                new Filter(p2, new Filter(p1, new SeqScan(tid, f.getId(), "t"))));
+        serial.open();
+        List<List<Integer>> expected = TestUtil.sorted(TestUtil.drain(serial));
+        serial.close();
+        assertFalse(expected.isEmpty());
+
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", Arrays.asList(p1, p2),
+                new int[]{2, 0}, 4);
+        assertEquals("t.c2", scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(scan)));
+        scan.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++)
+                batched.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+        }
+        assertEquals(expected, TestUtil.sorted(batched));
+        scan.close();
+
+        for (int i = 0; i < f.numPages(); i++)
+            assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(f.getId(), i)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Closing a scan that has only been partly read stops the workers, and a
+     * worker aborted while waiting for a lock aborts the reader.
+     */
+    @Test public void closeAndAbort() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, new ArrayList<>(), "c");
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", new ArrayList<>(), null, 4);
+        scan.open();
+        for (int i = 0; i < 10; i++)
+            scan.next();
+        scan.close();
+        scan.open();
+        assertEquals(40000, TestUtil.drain(scan).size());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        // 另一个事务持有最后一页的写锁
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().getPage(writer, new HeapPageId(f.getId(), f.numPages() - 1),
+                Permissions.READ_WRITE);
+        TransactionId reader = new TransactionId();
+        scan = new ParallelSeqScan(reader, f.getId(), "t", new ArrayList<>(), null, 4);
+        scan.open();
+        try {
+            TestUtil.drain(scan);
+            fail("expected the scan to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(reader, false);
+        Database.getBufferPool().transactionComplete(writer);
+    }
+
+    /**
+     * The tuples of a parallel scan keep their RecordIds, so a Delete can
+     * remove them.
+     */
+    @Test public void delete() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, rows, "c");
+        List<List<Integer>> remaining = new ArrayList<>();
+        for (List<Integer> r : rows) {
+            if (r.get(0) >= 250)
+                remaining.add(r);
+        }
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(250));
+        Delete delete = new Delete(tid, new ParallelSeqScan(tid, f.getId(), "t",
+                Collections.singletonList(p), null, 4));
+        delete.open();
+        assertEquals(rows.size() - remaining.size(), ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        scan.open();
+        assertEquals(TestUtil.sorted(remaining), TestUtil.sorted(TestUtil.drain(scan)));
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner scans a large heap file in parallel, with the WHERE clause
+     * evaluated by the workers.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, rows, "c");
+        HeapFile named = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(named, "pscan");
+        assertTrue(named.numPages() >= ParallelSeqScan.MIN_PAGES);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("pscan", new TableStats(named.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named.getId(), "p");
+        lp.addFilter("p.c0", Predicate.Op.LESS_THAN, "100");
+        lp.addProjectField("p.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(ParallelSeqScan.DEFAULT_PARALLELISM > 1, TestUtil.containsOperator(plan, ParallelSeqScan.class));
+        if (ParallelSeqScan.DEFAULT_PARALLELISM > 1)
+            assertFalse(TestUtil.containsOperator(plan, Filter.class));
+
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> r : rows) {
+            if (r.get(0) < 100)
+                expected.add(r.get(1));
+        }
+        List<Integer> actual = new ArrayList<>();
+        plan.open();
+        for (List<Integer> t : TestUtil.drain(plan))
+            actual.add(t.get(0));
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PinnedPageTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private BTreeFile bf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        bf = BTreeUtility.createRandomBTreeFile(2, 40000, 5000, null, tuples, 0);
+        Database.resetBufferPool(20);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void scanAll() throws Exception {
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+    }
+
+    /**
+     * A pinned page stays in the pool while a scan streams many more pages than
+     * the pool holds through it; without the pin it is evicted.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+        Page rootPtr = Database.getBufferPool().getPage(tid, rootPtrId, Permissions.READ_ONLY);
+        assertTrue(Database.getBufferPool().pinPage(rootPtrId));
+        scanAll();
+        assertSame(rootPtr, Database.getBufferPool().getPage(tid, rootPtrId, Permissions.READ_ONLY));
+
+        Database.getBufferPool().unpinPage(rootPtrId);
+        assertFalse(Database.getBufferPool().isPinned(rootPtrId));
+        scanAll();
+        assertNotSame(rootPtr, Database.getBufferPool().getPage(tid, rootPtrId, Permissions.READ_ONLY));
+    }
+
+    /**
+     * At most half of the pool can be pinned.
+     */
+    @Test public void pinLimit() {
+        for (int i = 1; i <= 10; i++)
+            assertTrue(Database.getBufferPool().pinPage(new BTreePageId(bf.getId(), i, BTreePageId.LEAF)));
+        assertTrue(Database.getBufferPool().pinPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF)));
+        assertFalse(Database.getBufferPool().pinPage(new BTreePageId(bf.getId(), 11, BTreePageId.LEAF)));
+        assertEquals(10, Database.getBufferPool().numPinned());
+    }
+
+    /**
+     * With the upper level pinned, probes pin the root pointer page and the root,
+     * which then survive scans, and return the same tuples as before.
+     */
+    @Test public void pinnedLevels() throws Exception {
+        bf.setPinnedLevels(1);
+        Random r = new Random(5);
+        for (int i = 0; i < 50; i++) {
+            int key = r.nextInt(5000);
+            int expected = 0;
+            for (List<Integer> t : tuples) {
+                if (t.get(0) == key)
+                    expected++;
+            }
+            DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+            it.open();
+            int found = 0;
+            while (it.hasNext()) {
+                assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+                found++;
+            }
+            it.close();
+            assertEquals(expected, found);
+        }
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+        BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrId,
+                Permissions.READ_ONLY)).getRootId();
+        assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+        assertTrue(Database.getBufferPool().isPinned(rootPtrId));
+        assertTrue(Database.getBufferPool().isPinned(rootId));
+        assertEquals(2, Database.getBufferPool().numPinned());
+
+        Page root = Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
+        scanAll();
+        assertSame(root, Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY));
+
+        bf.setPinnedLevels(0);
+        assertEquals(0, Database.getBufferPool().numPinned());
+    }
+
+    /**
+     * The cached child lookups agree with a walk over the entries, also after the
+     * page has been modified.
+     */
+    @Test public void childLookups() throws Exception {
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+        BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrId,
+                Permissions.READ_ONLY)).getRootId();
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId,
+                Permissions.READ_WRITE);
+        for (int round = 0; round < 2; round++) {
+            for (int key = -1; key <= 5001; key += 7) {
+                IntField f = new IntField(key);
+                BTreePageId first = null, last = null;
+                Iterator<BTreeEntry> it = root.iterator();
+                BTreeEntry e = null;
+                while (it.hasNext()) {
+                    e = it.next();
+                    if (first == null && e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+                        first = e.getLeftChild();
+                    if (e.getKey().compare(Predicate.Op.LESS_THAN_OR_EQ, f))
+                        last = e.getRightChild();
+                }
+                assertEquals(first == null ? e.getRightChild() : first, root.findChild(f));
+                assertEquals(last == null ? root.iterator().next().getLeftChild() : last, root.findLastChild(f));
+            }
+            // 修改页面后缓存的查找结构必须失效
+            BTreeEntry e = root.iterator().next();
+            root.deleteKeyAndRightChild(e);
+        }
+        Database.getBufferPool().discardPage(rootId);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PinnedPageTest.class);
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+    /**
+     * Every key added passes; keys outside the range of int keys never do,
+     * and few other keys pass the Bloom filter.
+     */
+    @Test public void noFalseNegatives() {
+        RuntimeFilter ints = new RuntimeFilter(Type.INT_TYPE);
+        RuntimeFilter strings = new RuntimeFilter(Type.STRING_TYPE);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ints.add(new IntField(i * 10)));
+            assertTrue(strings.add(new StringField("k" + i * 10, Type.STRING_LEN)));
+        }
+        ints.finish();
+        strings.finish();
+        int falsePositives = 0;
+        for (int v = 0; v < 10000; v++) {
+            boolean added = v % 10 == 0;
+            if (added) {
+                assertTrue(ints.mightContain(v));
+                assertTrue(strings.mightContain(new StringField("k" + v, Type.STRING_LEN)));
+            } else if (ints.mightContain(v)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 9000 / 10);
+        assertFalse(ints.mightContain(-1));
+        assertFalse(ints.mightContain(10000));
+
+        RuntimeFilter empty = new RuntimeFilter(Type.INT_TYPE);
+        empty.finish();
+        assertFalse(empty.mightContain(0));
+    }
+
+    /**
+     * A hash join pushes a filter of its build keys into the SeqScan of its
+     * probe side, which then returns only tuples that may match; the join
+     * result is the same, a tuple and a batch at a time, and after a rewind.
+     */
+    @Test public void pushedIntoProbeScan() throws Exception {
+        List<List<Integer>> probeRows = new ArrayList<>();
+        HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 20000, 10000, null, probeRows, "c");
+        List<Tuple> build = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            build.add(Utility.getHeapTuple(new int[]{i * 7, i}));
+        }
+        TransactionId tid = new TransactionId();
+        TupleDesc td = Utility.getTupleDesc(2);
+
+        Join nl = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, build), new SeqScan(tid, probe.getId(), "p"));
+        nl.open();
+        List<List<Integer>> expected = TestUtil.sortedResult(nl);
+        nl.close();
+
+        Predicate notNegative = new Predicate(1, Predicate.Op.NOT_EQUALS, new IntField(-1));
+        SeqScan scan = new SeqScan(tid, probe.getId(), "p");
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new TupleIterator(td, build), new Filter(notNegative, scan));
+        join.open();
+        assertNotNull(join.getRuntimeFilter());
+        assertSame(join.getRuntimeFilter(), scan.getRuntimeFilter());
+        assertEquals(expected, TestUtil.sortedResult(join));
+
+        // 扫描直接丢弃了绝大多数不匹配的元组
+        scan.rewind();
+        int passed = 0;
+        while (scan.hasNext()) {
+            assertTrue(join.getRuntimeFilter().mightContain(scan.next().getField(0)));
+            passed++;
+        }
+        assertTrue(passed < probeRows.size() / 10);
+
+        join.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch b;
+        while ((b = join.nextBatch()) != null) {
+            for (int i = 0; i < b.numRows(); i++)
+                batched.add(SystemTestUtil.tupleToList(b.getTuple(b.row(i))));
+        }
+        batched.sort(Comparator.comparing(Object::toString));
+        assertEquals(expected, batched);
+        join.close();
+        assertNull(scan.getRuntimeFilter());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RuntimeFilterTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private HeapFile hf;
+    private SecondaryIndex index;
+    private List<List<Integer>> tuples;
+
+    /**
+     * Create a heap table with an index on c1 that also includes c2.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, tuples, "c");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        index = new SecondaryIndex(f, "c1_idx", hf.getId(), 1, 2);
+        Database.getCatalog().addIndex(index);
+        tid = new TransactionId();
+        index.build(tid);
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<List<Integer>> lookup(int key) throws Exception {
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        List<List<Integer>> result = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(HeapPageId.class, t.getRecordId().getPageId().getClass());
+            result.add(SystemTestUtil.tupleToList(t));
+        }
+        scan.close();
+        return result;
+    }
+
+    /**
+     * Unit test for IndexOnlyScan: each entry holds the key and the included field.
+     */
+    @Test public void lookupMatchesTable() throws Exception {
+        for (int key : new int[]{0, 17, 99, 100}) {
+            List<List<Integer>> expected = new ArrayList<>();
+            for (List<Integer> t : tuples) {
+                if (t.get(1) == key)
+                    expected.add(Arrays.asList(t.get(1), t.get(2)));
+            }
+            List<List<Integer>> actual = lookup(key);
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+        }
+    }
+
+    /**
+     * The index follows inserts and deletes made through the BufferPool.
+     */
+    @Test public void maintainedByBufferPool() throws Exception {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(500));
+        t.setField(2, new IntField(7));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(Collections.singletonList(Arrays.asList(500, 7)), lookup(500));
+
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(500)));
+        scan.open();
+        assertEquals(t.getRecordId(), scan.next().getRecordId());
+        scan.close();
+
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertTrue(lookup(500).isEmpty());
+    }
+
+    /**
+     * The planner answers a query referencing only covered fields from the index.
+     */
+    @Test public void coveredQueryUsesIndex() throws Exception {
+        String name = Database.getCatalog().getTableName(hf.getId());
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(hf.getId(), 10));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "17");
+        lp.addProjectField("t.c2", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(containsIndexOnlyScan(plan));
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(1) == 17)
+                expected.add(Collections.singletonList(t.get(2)));
+        }
+        List<List<Integer>> actual = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            actual.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        assertEquals(expected.size(), actual.size());
+        assertTrue(actual.containsAll(expected));
+
+        // c0 is not stored in the index, so the heap has to be scanned
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "17");
+        lp.addProjectField("t.c0", null);
+        assertFalse(containsIndexOnlyScan(lp.physicalPlan(tid, stats, false)));
+    }
+
+    private static boolean containsIndexOnlyScan(OpIterator it) {
+        if (it instanceof IndexOnlyScan)
+            return true;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null && containsIndexOnlyScan(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,150 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SeqScanPushdownTest extends SimpleDbTestBase {
+
+    /**
+     * A scan with pushed-down predicates and projection returns the same
+     * tuples, in the same order, as a SeqScan under Filters and a Project,
+     * also after a rewind and when it is read a batch at a time.
+     */
+    @Test public void matchesFilterAndProject() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(4, 5000, 1000, null, new ArrayList<>(), "c");
+        TransactionId tid = new TransactionId();
+        Predicate p1 = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(200));
+        Predicate p2 = new Predicate(3, Predicate.Op.LESS_THAN_OR_EQ, new IntField(700));
+
+        OpIterator serial = new Project(Arrays.asList(2, 1), new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                new Filter(p2, new Filter(p1, new SeqScan(tid, f.getId(), "t"))));
+        serial.open();
+        List<List<Integer>> expected = TestUtil.drain(serial);
+        serial.close();
+        assertFalse(expected.isEmpty());
+
+        SeqScan scan = new SeqScan(tid, f.getId(), "t", Arrays.asList(p1, p2), new int[]{2, 1});
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t.c2", scan.getTupleDesc().getFieldName(0));
+        assertEquals(4, scan.getScanTupleDesc().numFields());
+        scan.open();
+        assertEquals(expected, TestUtil.drain(scan));
+        scan.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch b;
+        while ((b = scan.nextBatch()) != null) {
+            assertEquals(2, b.getTupleDesc().numFields());
+            for (int i = 0; i < b.numRows(); i++)
+                batched.add(SystemTestUtil.tupleToList(b.getTuple(b.row(i))));
+        }
+        assertEquals(expected, batched);
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner pushes the WHERE clause of a table into its scan, and the
+     * scans return only the fields used above them, so a join carries only
+     * the join fields and the selected fields.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rowsA = new ArrayList<>();
+        List<List<Integer>> rowsB = new ArrayList<>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(3, 300, 100, null, rowsA, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(3, 300, 100, null, rowsB, "c");
+        HeapFile namedA = new HeapFile(a.getFile(), a.getTupleDesc());
+        HeapFile namedB = new HeapFile(b.getFile(), b.getTupleDesc());
+        Database.getCatalog().addTable(namedA, "pusha");
+        Database.getCatalog().addTable(namedB, "pushb");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("pusha", new TableStats(namedA.getId(), 10));
+        stats.put("pushb", new TableStats(namedB.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(namedA.getId(), "a");
+        lp.addScan(namedB.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+        lp.addFilter("a.c2", Predicate.Op.LESS_THAN, "50");
+        lp.addFilter("b.c1", Predicate.Op.GREATER_THAN, "20");
+        lp.addFilter("b.c2", Predicate.Op.GREATER_THAN, "30");
+        lp.addProjectField("a.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(TestUtil.containsOperator(plan, Filter.class));
+        assertFalse(TestUtil.containsOperator(plan, ConjunctiveFilter.class));
+        List<OpIterator> joins = new ArrayList<>();
+        joins.addAll(TestUtil.findOperators(plan, HashEquiJoin.class));
+        joins.addAll(TestUtil.findOperators(plan, Join.class));
+        joins.addAll(TestUtil.findOperators(plan, SortMergeJoin.class));
+        assertEquals(1, joins.size());
+        // a.c0, a.c1 和 b.c0
+        assertEquals(3, joins.get(0).getTupleDesc().numFields());
+
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> ra : rowsA) {
+            if (ra.get(2) >= 50)
+                continue;
+            for (List<Integer> rb : rowsB) {
+                if (ra.get(0).equals(rb.get(0)) && rb.get(1) > 20 && rb.get(2) > 30)
+                    expected.add(ra.get(1));
+            }
+        }
+        List<Integer> actual = new ArrayList<>();
+        plan.open();
+        for (List<Integer> t : TestUtil.drain(plan))
+            actual.add(t.get(0));
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A scan moves a selective pushed-down predicate ahead of one that passes
+     * every tuple, both when it is read a tuple and a batch at a time.
+     */
+    @Test public void reordersBySelectivity() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, new ArrayList<>(), "c");
+        TransactionId tid = new TransactionId();
+        Predicate all = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+        Predicate few = new Predicate(1, Predicate.Op.EQUALS, new IntField(5));
+
+        SeqScan scan = new SeqScan(tid, f.getId(), "t", Arrays.asList(all, few), null);
+        scan.open();
+        assertEquals(all, scan.getEvaluationOrder().get(0));
+        TestUtil.drain(scan);
+        assertEquals(few, scan.getEvaluationOrder().get(0));
+        scan.close();
+
+        scan = new SeqScan(tid, f.getId(), "t", Arrays.asList(all, few), null);
+        scan.open();
+        assertEquals(all, scan.getEvaluationOrder().get(0));
+        while (scan.nextBatch() != null) {
+        }
+        assertEquals(few, scan.getEvaluationOrder().get(0));
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SeqScanPushdownTest.class);
+    }
+}
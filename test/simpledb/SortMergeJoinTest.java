@@ -0,0 +1,180 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private final TupleDesc td = Utility.getTupleDesc(2);
+
+    private List<Tuple> randomTuples(int n, int keys, long seed) {
+        Random r = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            tuples.add(Utility.getHeapTuple(new int[]{r.nextInt(keys), i}));
+        return tuples;
+    }
+
+    /**
+     * Every supported predicate returns the same tuples as a nested loops join,
+     * in ascending order of the join field of child1.
+     */
+    @Test public void matchesNestedLoops() throws Exception {
+        List<Tuple> left = randomTuples(300, 60, 1);
+        List<Tuple> right = randomTuples(400, 60, 2);
+        Predicate.Op[] ops = {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+        for (Predicate.Op op : ops) {
+            JoinPredicate p = new JoinPredicate(0, op, 0);
+            Join nl = new Join(p, new TupleIterator(td, left), new TupleIterator(td, right));
+            nl.open();
+            List<List<Integer>> expected = TestUtil.drain(nl);
+            nl.close();
+
+            SortMergeJoin smj = new SortMergeJoin(p, new TupleIterator(td, left), new TupleIterator(td, right));
+            assertTrue(smj.leftNeedsSort());
+            assertTrue(smj.rightNeedsSort());
+            smj.open();
+            List<List<Integer>> actual = TestUtil.drain(smj);
+            assertEquals(op.toString(), TestUtil.sorted(expected), TestUtil.sorted(actual));
+            for (int i = 1; i < actual.size(); i++) {
+                assertTrue(actual.get(i - 1).get(0) <= actual.get(i).get(0));
+                if (op == Predicate.Op.EQUALS)
+                    assertTrue(actual.get(i - 1).get(2) <= actual.get(i).get(2));
+            }
+            smj.rewind();
+            assertEquals(actual, TestUtil.drain(smj));
+            smj.close();
+        }
+    }
+
+    /**
+     * A range join keeps at most its memory budget of child2 in memory and
+     * writes the rest to disk, returning the same tuples as nested loops.
+     */
+    @Test public void rangeJoinSpills() throws Exception {
+        List<Tuple> left = randomTuples(30, 3000, 5);
+        List<Tuple> right = randomTuples(4000, 3000, 6);
+        Predicate.Op[] ops = {Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+        for (Predicate.Op op : ops) {
+            JoinPredicate p = new JoinPredicate(0, op, 0);
+            Join nl = new Join(p, new TupleIterator(td, left), new TupleIterator(td, right));
+            nl.open();
+            List<List<Integer>> expected = TestUtil.drain(nl);
+            nl.close();
+
+            SortMergeJoin smj = new SortMergeJoin(p, new TupleIterator(td, left), new TupleIterator(td, right));
+            smj.setMemoryPages(smj.getMinMemoryPages());
+            smj.open();
+            List<List<Integer>> actual = TestUtil.drain(smj);
+            assertEquals(op.toString(), TestUtil.sorted(expected), TestUtil.sorted(actual));
+            assertTrue(op.toString(), smj.getSpilledTuples() > 0);
+            smj.rewind();
+            assertEquals(actual, TestUtil.drain(smj));
+            smj.close();
+        }
+    }
+
+    /**
+     * Inputs that are already in order are not sorted again, and the join
+     * output counts as sorted for the next join.
+     */
+    @Test public void sortedInputs() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        OpIterator left = new OrderBy(0, true, new TupleIterator(td, randomTuples(100, 20, 3)));
+        OpIterator right = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(10)),
+                new OrderBy(0, true, new TupleIterator(td, randomTuples(100, 20, 4))));
+        SortMergeJoin smj = new SortMergeJoin(p, left, right);
+        assertFalse(smj.leftNeedsSort());
+        assertFalse(smj.rightNeedsSort());
+        assertTrue(SortMergeJoin.isSortedOn(smj, 0));
+        assertTrue(SortMergeJoin.isSortedOn(smj, 2));
+        assertFalse(SortMergeJoin.isSortedOn(smj, 1));
+        assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, new TupleIterator(td, new ArrayList<>())), 0));
+    }
+
+    /**
+     * A join of two B+ trees on their keys merges the clustered scans, and the
+     * ORDER BY on the key needs no sort; a range join is planned as a
+     * sort-merge join and costed below nested loops.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rows1 = new ArrayList<>(), rows2 = new ArrayList<>();
+        BTreeFile f1 = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, rows1, 0);
+        BTreeFile f2 = BTreeUtility.createRandomBTreeFile(2, 1000, 500, null, rows2, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BTreeFile named1 = new BTreeFile(f1.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        BTreeFile named2 = new BTreeFile(f2.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named1, "smj1");
+        Database.getCatalog().addTable(named2, "smj2");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("smj1", new TableStats(named1.getId(), 10));
+        stats.put("smj2", new TableStats(named2.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(named1.getId(), "a");
+        lp.addScan(named2.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("a.c0", null);
+        lp.addProjectField("b.c1", null);
+        lp.addOrderBy("a.c0", true);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, SortMergeJoin.class));
+        assertTrue(TestUtil.containsOperator(plan, BTreeScan.class));
+        assertFalse(TestUtil.containsOperator(plan, OrderBy.class));
+        assertFalse(TestUtil.containsOperator(plan, HashEquiJoin.class));
+
+        int expected = 0;
+        for (List<Integer> r1 : rows1) {
+            for (List<Integer> r2 : rows2) {
+                if (r1.get(0).equals(r2.get(0)))
+                    expected++;
+            }
+        }
+        plan.open();
+        List<List<Integer>> result = TestUtil.drain(plan);
+        plan.close();
+        assertEquals(expected, result.size());
+        for (int i = 1; i < result.size(); i++)
+            assertTrue(result.get(i - 1).get(0) <= result.get(i).get(0));
+
+        lp = new LogicalPlan();
+        lp.addScan(named1.getId(), "a");
+        lp.addScan(named2.getId(), "b");
+        lp.addJoin("a.c1", "b.c1", Predicate.Op.LESS_THAN);
+        lp.addProjectField("a.c0", null);
+        assertTrue(TestUtil.containsOperator(lp.physicalPlan(tid, stats, false), SortMergeJoin.class));
+
+        JoinOptimizer jo = new JoinOptimizer(lp, new ArrayList<>());
+        LogicalJoinNode range = new LogicalJoinNode("a", "b", "c1", "c1", Predicate.Op.LESS_THAN);
+        double cost = jo.estimateJoinCost(range, 2000, 1000, 100, 50);
+        assertTrue(cost > 150);
+        assertTrue(cost < 100 + 2000 * 50 + 2000 * 1000);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
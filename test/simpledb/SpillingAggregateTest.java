@@ -0,0 +1,93 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SpillingAggregateTest extends SimpleDbTestBase {
+
+    private final TupleDesc td = Utility.getTupleDesc(2);
+
+    private List<Tuple> randomTuples(int n, int groups, long seed) {
+        Random r = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            tuples.add(Utility.getHeapTuple(new int[]{r.nextInt(groups), r.nextInt(1000) - 500}));
+        return tuples;
+    }
+
+    private List<String> inMemory(TupleDesc td, List<Tuple> tuples, Aggregator.Op op) throws Exception {
+        Aggregate agg = new Aggregate(new TupleIterator(td, tuples), 1, 0, op);
+        agg.open();
+        List<String> result = TestUtil.sortedStrings(agg);
+        agg.close();
+        assertEquals(0, agg.getSpilledPartitions());
+        return result;
+    }
+
+    /**
+     * Groups beyond the budget are partitioned to disk; the partitions fit in
+     * memory and are aggregated by hashing. Every operator gives the same
+     * groups as an aggregate that fits in memory, also after a rewind.
+     */
+    @Test public void spillsPartitions() throws Exception {
+        List<Tuple> tuples = randomTuples(30000, 8000, 1);
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            List<String> expected = inMemory(td, tuples, op);
+            Aggregate agg = new Aggregate(new TupleIterator(td, tuples), 1, 0, op, 8);
+            agg.open();
+            assertEquals(op.toString(), expected, TestUtil.sortedStrings(agg));
+            assertTrue(agg.getSpilledPartitions() > 0);
+            assertEquals(0, agg.getSortedPartitions());
+            agg.rewind();
+            assertEquals(op.toString(), expected, TestUtil.sortedStrings(agg));
+            agg.close();
+        }
+    }
+
+    /**
+     * A spilled partition with more groups than the budget is sorted on the
+     * group field and aggregated one group at a time.
+     */
+    @Test public void sortsLargePartitions() throws Exception {
+        List<Tuple> tuples = randomTuples(30000, 20000, 2);
+        List<String> expected = inMemory(td, tuples, Aggregator.Op.AVG);
+        Aggregate agg = new Aggregate(new TupleIterator(td, tuples), 1, 0, Aggregator.Op.AVG, 3);
+        agg.open();
+        assertEquals(expected, TestUtil.sortedStrings(agg));
+        assertTrue(agg.getSortedPartitions() > 0);
+        agg.close();
+
+        // 字符串分组值
+        TupleDesc std = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> strings = new ArrayList<>();
+        for (Tuple t : randomTuples(6000, 4000, 3)) {
+            Tuple s = new Tuple(std);
+            s.setField(0, new StringField("g" + t.getField(0), Type.STRING_LEN));
+            s.setField(1, t.getField(1));
+            strings.add(s);
+        }
+        expected = inMemory(std, strings, Aggregator.Op.COUNT);
+        agg = new Aggregate(new TupleIterator(std, strings), 1, 0, Aggregator.Op.COUNT, 3);
+        agg.open();
+        assertEquals(expected, TestUtil.sortedStrings(agg));
+        assertTrue(agg.getSpilledPartitions() > 0);
+        agg.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillingAggregateTest.class);
+    }
+}
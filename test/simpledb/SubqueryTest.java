@@ -0,0 +1,246 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SubqueryTest extends SimpleDbTestBase {
+
+    /**
+     * A child that counts how often it is opened and rewound.
+     */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int opens = 0;
+        int rewinds = 0;
+
+        CountingIterator(List<List<Integer>> rows) {
+            super(Utility.getTupleDesc(2), TestUtil.tuples(rows));
+        }
+
+        @Override
+        public void open() {
+            super.open();
+            opens++;
+        }
+
+        @Override
+        public void rewind() {
+            super.rewind();
+            rewinds++;
+        }
+    }
+
+    /**
+     * A Materialize reads its child once and replays its tuples after a
+     * rewind, also when they do not fit in memory.
+     */
+    @Test public void materialize() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, rows, "c");
+
+        CountingIterator child = new CountingIterator(rows);
+        Materialize m = new Materialize(child);
+        m.open();
+        assertEquals(rows, TestUtil.drain(m));
+        m.rewind();
+        assertEquals(rows, TestUtil.drain(m));
+        assertEquals(0, m.getSpilledTuples());
+        assertEquals(1, child.opens);
+        assertEquals(0, child.rewinds);
+        m.close();
+
+        child = new CountingIterator(rows);
+        m = new Materialize(child, 1);
+        m.open();
+        assertTrue(m.getSpilledTuples() > 0);
+        assertEquals(rows, TestUtil.drain(m));
+        m.rewind();
+        assertEquals(rows, TestUtil.drain(m));
+        assertEquals(1, child.opens);
+        m.close();
+    }
+
+    /**
+     * A HashSemiJoin returns each outer tuple whose value is (or, for an anti
+     * join, is not) in the subquery once, in the order of the outer input,
+     * and reads the subquery only once.
+     */
+    @Test public void semiJoin() throws Exception {
+        List<List<Integer>> outer = new ArrayList<>();
+        List<List<Integer>> inner = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 3000, 200, null, outer, "c");
+        SystemTestUtil.createRandomHeapFile(2, 300, 200, null, inner, "c");
+        Set<Integer> values = new HashSet<>();
+        for (List<Integer> row : inner)
+            values.add(row.get(1));
+        List<List<Integer>> in = new ArrayList<>();
+        List<List<Integer>> notIn = new ArrayList<>();
+        for (List<Integer> row : outer)
+            (values.contains(row.get(0)) ? in : notIn).add(row);
+        assertFalse(in.isEmpty());
+        assertFalse(notIn.isEmpty());
+
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        CountingIterator sub = new CountingIterator(inner);
+        HashSemiJoin j = new HashSemiJoin(p, new TupleIterator(Utility.getTupleDesc(2), TestUtil.tuples(outer)),
+                sub, false);
+        assertEquals(Utility.getTupleDesc(2), j.getTupleDesc());
+        j.open();
+        assertEquals(values.size(), j.getNumKeys());
+        assertEquals(in, TestUtil.drain(j));
+        j.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = j.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++)
+                batched.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+        }
+        assertEquals(in, batched);
+        assertEquals(1, sub.opens);
+        assertEquals(0, sub.rewinds);
+        j.close();
+
+        j = new HashSemiJoin(p, new TupleIterator(Utility.getTupleDesc(2), TestUtil.tuples(outer)),
+                new CountingIterator(inner), true);
+        j.open();
+        assertEquals(notIn, TestUtil.drain(j));
+        j.close();
+    }
+
+    /**
+     * A HashSemiJoin whose subquery has more values than its budget spills
+     * them and the outer tuples that may match them, and joins each spilled
+     * partition by hashing or, if it does not fit either, by merging the
+     * sorted files; IN and NOT IN still return every outer tuple once.
+     */
+    @Test public void semiJoinSpills() throws Exception {
+        Random r = new Random(5);
+        List<List<Integer>> outer = new ArrayList<>();
+        List<List<Integer>> inner = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            outer.add(Arrays.asList(r.nextInt(30000), i));
+        for (int i = 0; i < 20000; i++)
+            inner.add(Arrays.asList(i, r.nextInt(20000)));
+        Set<Integer> values = new HashSet<>();
+        for (List<Integer> row : inner)
+            values.add(row.get(1));
+        List<List<Integer>> in = new ArrayList<>();
+        List<List<Integer>> notIn = new ArrayList<>();
+        for (List<Integer> row : outer)
+            (values.contains(row.get(0)) ? in : notIn).add(row);
+
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        for (int pages : new int[]{HashSemiJoin.MIN_MEMORY_PAGES, 8}) {
+            for (boolean anti : new boolean[]{false, true}) {
+                HashSemiJoin j = new HashSemiJoin(p, new TupleIterator(Utility.getTupleDesc(2), TestUtil.tuples(outer)),
+                        new CountingIterator(inner), anti);
+                j.setMemoryPages(pages);
+                j.open();
+                assertTrue(j.getSpilledPartitions() > 0);
+                List<List<Integer>> expected = TestUtil.sorted(anti ? notIn : in);
+                assertEquals(expected, TestUtil.sortedResult(j));
+                j.rewind();
+                List<List<Integer>> batched = new ArrayList<>();
+                TupleBatch batch;
+                while ((batch = j.nextBatch()) != null) {
+                    for (int i = 0; i < batch.numRows(); i++)
+                        batched.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+                }
+                assertEquals(expected, TestUtil.sorted(batched));
+                j.close();
+            }
+        }
+    }
+
+    /**
+     * The planner turns IN and NOT IN into semi joins, and materializes a
+     * subquery that a nested-loop join reads more than once.
+     */
+    @Test public void planner() throws Exception {
+        List<List<Integer>> rowsA = new ArrayList<>();
+        List<List<Integer>> rowsB = new ArrayList<>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 2000, 300, null, rowsA, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 1000, 300, null, rowsB, "c");
+        HeapFile namedA = new HeapFile(a.getFile(), a.getTupleDesc());
+        HeapFile namedB = new HeapFile(b.getFile(), b.getTupleDesc());
+        Database.getCatalog().addTable(namedA, "suba");
+        Database.getCatalog().addTable(namedB, "subb");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("suba", new TableStats(namedA.getId(), 10));
+        stats.put("subb", new TableStats(namedB.getId(), 10));
+        TableStats.setTableStats("suba", stats.get("suba"));
+        TableStats.setTableStats("subb", stats.get("subb"));
+        TransactionId tid = new TransactionId();
+        Parser parser = new Parser();
+
+        Set<Integer> values = new HashSet<>();
+        for (List<Integer> row : rowsB) {
+            if (row.get(1) > 100)
+                values.add(row.get(0));
+        }
+        for (boolean anti : new boolean[]{false, true}) {
+            LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT a.c0, a.c1 FROM suba a WHERE a.c0 "
+                    + (anti ? "NOT IN" : "IN") + " (SELECT b.c0 FROM subb b WHERE b.c1 > 100);");
+            OpIterator plan = lp.physicalPlan(tid, stats, false);
+            assertTrue(TestUtil.containsOperator(plan, HashSemiJoin.class));
+            List<List<Integer>> expected = new ArrayList<>();
+            for (List<Integer> row : rowsA) {
+                if (values.contains(row.get(0)) != anti)
+                    expected.add(row);
+            }
+            plan.open();
+            List<List<Integer>> result = TestUtil.drain(plan);
+            plan.close();
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, result);
+        }
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid,
+                "SELECT a.c0 FROM suba a WHERE a.c1 <> (SELECT b.c1 FROM subb b WHERE b.c0 < 20);");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, Materialize.class));
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> ra : rowsA) {
+            for (List<Integer> rb : rowsB) {
+                if (rb.get(0) < 20 && !ra.get(1).equals(rb.get(1)))
+                    expected.add(ra.get(0));
+            }
+        }
+        List<Integer> actual = new ArrayList<>();
+        plan.open();
+        for (List<Integer> t : TestUtil.drain(plan))
+            actual.add(t.get(0));
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+
+        try {
+            parser.generateLogicalPlan(tid, "SELECT a.c0 FROM suba a WHERE a.c0 IN (1, 2);");
+            fail("expected IN lists to be rejected");
+        } catch (ParsingException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SubqueryTest.class);
+    }
+}
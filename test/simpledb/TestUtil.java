@@ -2,7 +2,9 @@ package simpledb;
 
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -168,6 +170,103 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return the remaining tuples of an open iterator of int fields, as the
+     *   lists of their values, in the order they are returned
+     */
+    public static List<List<Integer>> drain(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        return result;
+    }
+
+    /**
+     * @return a copy of the tuples in a fixed order, to compare results that
+     *   come in no particular order
+     */
+    public static List<List<Integer>> sorted(List<List<Integer>> tuples) {
+        List<List<Integer>> copy = new ArrayList<>(tuples);
+        copy.sort(Comparator.comparing(Object::toString));
+        return copy;
+    }
+
+    /**
+     * @return the remaining tuples of an open iterator of int fields, as the
+     *   lists of their values, in a fixed order
+     */
+    public static List<List<Integer>> sortedResult(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        return sorted(drain(it));
+    }
+
+    /**
+     * @return the remaining tuples of an open iterator, as strings, in the
+     *   order they are returned
+     */
+    public static List<String> drainStrings(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        List<String> result = new ArrayList<>();
+        while (it.hasNext())
+            result.add(it.next().toString());
+        return result;
+    }
+
+    /**
+     * @return the remaining tuples of an open iterator, as strings, in a
+     *   fixed order
+     */
+    public static List<String> sortedStrings(OpIterator it)
+        throws DbException, TransactionAbortedException {
+        List<String> result = drainStrings(it);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return tuples of int fields with the values of the rows
+     */
+    public static List<Tuple> tuples(List<List<Integer>> rows) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            int[] values = new int[row.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = row.get(i);
+            tuples.add(Utility.getHeapTuple(values));
+        }
+        return tuples;
+    }
+
+    /**
+     * @return the operators of the plan rooted at it, including it, that are
+     *   instances of cls, in depth-first order
+     */
+    public static <T> List<T> findOperators(OpIterator it, Class<T> cls) {
+        List<T> found = new ArrayList<>();
+        findOperators(it, cls, found);
+        return found;
+    }
+
+    private static <T> void findOperators(OpIterator it, Class<T> cls, List<T> found) {
+        if (cls.isInstance(it))
+            found.add(cls.cast(it));
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null)
+                    findOperators(child, cls, found);
+            }
+        }
+    }
+
+    /**
+     * @return true iff the plan rooted at it has an operator that is an
+     *   instance of cls
+     */
+    public static boolean containsOperator(OpIterator it, Class<?> cls) {
+        return !findOperators(it, cls).isEmpty();
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -0,0 +1,168 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TopNTest extends SimpleDbTestBase {
+    private TupleDesc td;
+    private List<Tuple> tuples;
+
+    /**
+     * Tuples with many duplicate keys; the second field records the input
+     * position.
+     */
+    @Before public void setUp() {
+        td = Utility.getTupleDesc(2);
+        Random r = new Random(11);
+        tuples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            tuples.add(Utility.getHeapTuple(new int[]{r.nextInt(100), i}));
+    }
+
+    /**
+     * Counts the tuples pulled from it.
+     */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int pulled = 0;
+
+        CountingIterator(TupleDesc td, List<Tuple> tuples) {
+            super(td, tuples);
+        }
+
+        @Override
+        public Tuple next() {
+            pulled++;
+            return super.next();
+        }
+    }
+
+    /**
+     * TopN returns the same tuples, in the same order, as the head of a stable
+     * OrderBy, also when n cuts through a run of equal keys.
+     */
+    @Test public void matchesOrderBy() throws Exception {
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy sort = new OrderBy(0, asc, new TupleIterator(td, tuples));
+            sort.open();
+            List<List<Integer>> sorted = TestUtil.drain(sort);
+            sort.close();
+            for (int n : new int[]{0, 1, 37, 50, 2000, 3000}) {
+                TopN top = new TopN(0, asc, n, new TupleIterator(td, tuples));
+                top.open();
+                List<List<Integer>> expected = sorted.subList(0, Math.min(n, sorted.size()));
+                assertEquals(expected, TestUtil.drain(top));
+                top.rewind();
+                assertEquals(expected, TestUtil.drain(top));
+                top.close();
+            }
+        }
+    }
+
+    /**
+     * A TopN granted fewer pages than n tuples take sorts its child within
+     * them and still returns the head of the OrderBy.
+     */
+    @Test public void sortsOverBudget() throws Exception {
+        OrderBy sort = new OrderBy(0, true, new TupleIterator(td, tuples));
+        sort.open();
+        List<List<Integer>> expected = TestUtil.drain(sort).subList(0, 1800);
+        sort.close();
+
+        TopN top = new TopN(0, true, 1800, new TupleIterator(td, tuples));
+        assertTrue(top.getMemoryPages() > TopN.MIN_MEMORY_PAGES);
+        top.setMemoryPages(TopN.MIN_MEMORY_PAGES);
+        top.open();
+        assertTrue(top.isSorted());
+        assertEquals(expected, TestUtil.drain(top));
+        top.rewind();
+        assertEquals(expected, TestUtil.drain(top));
+        top.close();
+    }
+
+    /**
+     * Limit skips offset tuples, returns limit tuples and does not pull more
+     * tuples than that from its child.
+     */
+    @Test public void limitStopsEarly() throws Exception {
+        CountingIterator child = new CountingIterator(td, tuples);
+        Limit limit = new Limit(10, 5, child);
+        limit.open();
+        List<List<Integer>> result = TestUtil.drain(limit);
+        assertEquals(10, result.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i + 5, (int) result.get(i).get(1));
+        assertEquals(15, child.pulled);
+
+        limit.rewind();
+        assertEquals(result, TestUtil.drain(limit));
+        limit.close();
+
+        limit = new Limit(10, 1995, new TupleIterator(td, tuples));
+        limit.open();
+        assertEquals(5, TestUtil.drain(limit).size());
+        limit.close();
+    }
+
+    /**
+     * The parser accepts LIMIT and OFFSET; ORDER BY ... LIMIT is planned as a
+     * TopN instead of a full sort.
+     */
+    @Test public void parseLimit() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, rows, "c");
+        Database.getCatalog().addTable(new HeapFile(hf.getFile(), hf.getTupleDesc()), "topn");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("topn", new TableStats(hf.getId(), 10));
+        TransactionId tid = new TransactionId();
+        Parser parser = new Parser();
+
+        rows.sort(Comparator.comparing((List<Integer> t) -> t.get(0)).reversed());
+        LogicalPlan lp = parser.generateLogicalPlan(tid,
+                "SELECT t.c0 FROM topn t ORDER BY t.c0 DESC LIMIT 20 OFFSET 10;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(TestUtil.containsOperator(plan, TopN.class));
+        assertFalse(TestUtil.containsOperator(plan, OrderBy.class));
+        plan.open();
+        List<List<Integer>> result = TestUtil.drain(plan);
+        plan.close();
+        assertEquals(20, result.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(rows.get(i + 10).get(0), result.get(i).get(0));
+
+        lp = parser.generateLogicalPlan(tid, "select t.c0 from topn t limit 7;");
+        plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(TestUtil.containsOperator(plan, TopN.class));
+        plan.open();
+        assertEquals(7, TestUtil.drain(plan).size());
+        plan.close();
+
+        lp = parser.generateLogicalPlan(tid, "SELECT t.c0 FROM topn t OFFSET 990;");
+        plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        assertEquals(10, TestUtil.drain(plan).size());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    private static List<List<Integer>> drainBatches(OpIterator it) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.numRows() > 0);
+            for (int i = 0; i < batch.numRows(); i++)
+                result.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+        }
+        return result;
+    }
+
+    /**
+     * A scan, filter and projection read a batch at a time return the same
+     * tuples, in the same order, as when they are read a tuple at a time.
+     */
+    @Test public void scanFilterProject() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, rows, "c");
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(50));
+            OpIterator tuples = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                    new Filter(p, new SeqScan(tid, f.getId(), "t")));
+            tuples.open();
+            List<List<Integer>> expected = TestUtil.drain(tuples);
+            tuples.close();
+
+            OpIterator batches = new BatchAdapter(new Project(Arrays.asList(2, 0),
+                    new Type[]{Type.INT_TYPE, Type.INT_TYPE}, new Filter(p, new SeqScan(tid, f.getId(), "t"))));
+            batches.open();
+            assertEquals(op.toString(), expected, TestUtil.drain(batches));
+            batches.rewind();
+            assertEquals(op.toString(), expected, drainBatches(batches));
+            batches.close();
+        }
+    }
+
+    /**
+     * Comparisons of a string column over the byte slices agree with
+     * StringField.compare.
+     */
+    @Test public void filterStrings() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        String[] words = {"", "a", "ab", "abc", "b", "ba", "zz", "\u00e9t\u00e9"};
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(words[i % words.length], Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        for (String w : words) {
+            for (Predicate.Op op : Predicate.Op.values()) {
+                Predicate p = new Predicate(0, op, new StringField(w, Type.STRING_LEN));
+                List<Integer> expected = new ArrayList<>();
+                for (Tuple t : tuples) {
+                    if (p.filter(t))
+                        expected.add(((IntField) t.getField(1)).getValue());
+                }
+                Filter filter = new Filter(p, new TupleIterator(td, tuples));
+                filter.open();
+                List<Integer> actual = new ArrayList<>();
+                TupleBatch batch;
+                while ((batch = filter.nextBatch()) != null) {
+                    for (int i = 0; i < batch.numRows(); i++) {
+                        int row = batch.row(i);
+                        actual.add(batch.getInt(1, row));
+                        assertEquals(w + " " + op, ((StringField) tuples.get(batch.getInt(1, row)).getField(0)).getValue(),
+                                batch.getString(0, row));
+                    }
+                }
+                filter.close();
+                assertEquals(w + " " + op, expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Aggregates over a filtered scan, which are computed from its batches,
+     * match the aggregates computed from the rows of the table.
+     */
+    @Test public void aggregate() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 50, null, rows, "c");
+        TransactionId tid = new TransactionId();
+        Map<Integer, Integer> sums = new HashMap<>(), counts = new HashMap<>();
+        int min = Integer.MAX_VALUE;
+        for (List<Integer> r : rows) {
+            if (r.get(1) >= 10) {
+                sums.merge(r.get(0), r.get(1), Integer::sum);
+                counts.merge(r.get(0), 1, Integer::sum);
+                min = Math.min(min, r.get(1));
+            }
+        }
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(10));
+
+        Aggregate sum = new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "t")), 1, 0, Aggregator.Op.SUM);
+        sum.open();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : sums.entrySet())
+            expected.add(Arrays.asList(e.getKey(), e.getValue()));
+        assertEquals(TestUtil.sorted(expected), TestUtil.sorted(TestUtil.drain(sum)));
+        sum.close();
+
+        Aggregate count = new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "t")), 1, 0, Aggregator.Op.COUNT);
+        count.open();
+        expected.clear();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet())
+            expected.add(Arrays.asList(e.getKey(), e.getValue()));
+        assertEquals(TestUtil.sorted(expected), TestUtil.sorted(TestUtil.drain(count)));
+        count.close();
+
+        Aggregate minAgg = new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "t")), 1,
+                Aggregator.NO_GROUPING, Aggregator.Op.MIN);
+        minAgg.open();
+        assertEquals(Collections.singletonList(Collections.singletonList(min)), TestUtil.drain(minAgg));
+        minAgg.close();
+    }
+
+    /**
+     * A hash join probed a batch at a time, also with spilled partitions,
+     * returns the same tuples as when it is read a tuple at a time.
+     */
+    @Test public void hashJoin() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        Random r = new Random(7);
+        List<Tuple> build = new ArrayList<>(), probe = new ArrayList<>();
+        int buildSize = 10 * 3 * HeapPage.getNumTuples(td);
+        for (int i = 0; i < buildSize; i++)
+            build.add(Utility.getHeapTuple(new int[]{r.nextInt(5000), i}));
+        for (int i = 0; i < 4000; i++)
+            probe.add(Utility.getHeapTuple(new int[]{r.nextInt(5000), i}));
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (int memoryPages : new int[]{3, HashEquiJoin.DEFAULT_MEMORY_PAGES}) {
+            HashEquiJoin join = new HashEquiJoin(p, new TupleIterator(td, build), new TupleIterator(td, probe),
+                    memoryPages);
+            join.open();
+            List<List<Integer>> expected = TestUtil.sorted(TestUtil.drain(join));
+            assertFalse(expected.isEmpty());
+            join.rewind();
+            assertEquals(expected, TestUtil.sorted(drainBatches(join)));
+            assertEquals(memoryPages == 3, join.getSpilledPartitions() > 0);
+            join.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}